@@ -27,10 +27,19 @@ LOCAL_SRC_FILES := \
 	$(call all-java-files-under, src) \
 	$(call all-renderscript-files-under, src)
 
+# JPEG preview decoding shared with TestingCamera2
+LOCAL_SRC_FILES += \
+	../TestingCamera2/src/com/android/testingcamera2/JpegPreviewDecoder.java
+
 LOCAL_DEX_PREOPT := false
 
 LOCAL_PACKAGE_NAME := TestingCamera
 
+# Native preview callback conversion
+LOCAL_JNI_SHARED_LIBRARIES := libtestingcamera_jni
+
 include $(BUILD_PACKAGE)
 
+include $(call all-makefiles-under,$(LOCAL_PATH))
+
 endif
@@ -0,0 +1,53 @@
+#
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+LOCAL_PATH:= $(call my-dir)
+
+# Results must match the Java conversion, so no fused multiply-adds
+callback_convert_cflags := -Wall -Werror -ffp-contract=off
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := libtestingcamera_jni
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+		callback_convert.cpp
+
+LOCAL_CFLAGS := $(callback_convert_cflags)
+
+LOCAL_C_INCLUDES := $(JNI_H_INCLUDE)
+
+LOCAL_SDK_VERSION := current
+
+include $(BUILD_SHARED_LIBRARY)
+
+# Host build, for the callback conversion benchmarks
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := libtestingcamera_jni
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := \
+		callback_convert.cpp
+
+LOCAL_CFLAGS := $(callback_convert_cflags)
+
+LOCAL_C_INCLUDES := $(JNI_H_INCLUDE)
+
+include $(BUILD_HOST_SHARED_LIBRARY)
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Native row conversion for com.android.testingcamera.YuvToRgbConverter; the arithmetic
+// must match its Java path, so this is built without floating point contraction.
+
+#include <jni.h>
+#include <stdint.h>
+
+namespace {
+
+// Kernel ids, as in YuvToRgbConverter
+enum Kernel {
+    KERNEL_UNKNOWN = 0,
+    KERNEL_SEMIPLANAR = 1,
+    KERNEL_PLANAR = 2,
+    KERNEL_INTERLEAVED = 3
+};
+
+/**
+ * JFIF standard YCbCr <-> RGB conversion matrix,
+ * column-major order, as in callback.rs.
+ */
+const float YUV2RGB[] = {
+    1.0f, 1.0f, 1.0f, 0.0f,
+    0.0f, -0.34414f, 1.772f, 0.0f,
+    1.402f, -0.71414f, 0.0f, 0.0f,
+    -0.701f, 0.529f, -0.886f, 1.0f
+};
+
+// Clamp to range [0, 255] and truncate, as convert_uchar4 does
+inline uint32_t clampChannel(float value) {
+    if (value < 0.f) value = 0.f;
+    if (value > 255.f) value = 255.f;
+    return static_cast<uint32_t>(value);
+}
+
+inline uint32_t toArgb(uint32_t luma, uint32_t cb, uint32_t cr) {
+    const float* m = YUV2RGB;
+    float l = luma;
+    float u = cb;
+    float v = cr;
+    float r = m[0] * l + m[4] * u + m[8] * v + m[12] * 255.f;
+    float g = m[1] * l + m[5] * u + m[9] * v + m[13] * 255.f;
+    float b = m[2] * l + m[6] * u + m[10] * v + m[14] * 255.f;
+    float a = m[3] * l + m[7] * u + m[11] * v + m[15] * 255.f;
+    return clampChannel(a) << 24 | clampChannel(r) << 16 | clampChannel(g) << 8 |
+            clampChannel(b);
+}
+
+void convertRows(const uint8_t* in, uint32_t* out, jint kernel,
+        jint yStride, jint uvStride, jint uStart, jint vStart,
+        jfloat xScale, jfloat yScale, jint outWidth, jint startRow, jint endRow) {
+    for (jint y = startRow; y < endRow; y++) {
+        int32_t yScaled = static_cast<int32_t>(y * yScale);
+        int32_t uvRow = yScaled / 2; // truncation is important here
+        const uint8_t* yRow = in + yStride * yScaled;
+        uint32_t* outRow = out + y * outWidth;
+        for (jint x = 0; x < outWidth; x++) {
+            int32_t xScaled = static_cast<int32_t>(x * xScale);
+            int32_t vuPixel;
+            switch (kernel) {
+            case KERNEL_SEMIPLANAR:
+                vuPixel = uvRow * uvStride + (xScaled & ~0x1);
+                outRow[x] = toArgb(yRow[xScaled], in[uStart + vuPixel], in[vStart + vuPixel]);
+                break;
+            case KERNEL_PLANAR:
+                vuPixel = uvStride * uvRow + xScaled / 2;
+                outRow[x] = toArgb(yRow[xScaled], in[uStart + vuPixel], in[vStart + vuPixel]);
+                break;
+            case KERNEL_INTERLEAVED:
+                vuPixel = yStride * yScaled + 2 * (xScaled & ~0x1);
+                outRow[x] = toArgb(yRow[xScaled * 2], in[uStart + vuPixel],
+                        in[vStart + vuPixel]);
+                break;
+            case KERNEL_UNKNOWN:
+            default:
+                outRow[x] = toArgb(yRow[xScaled], 128, 128);
+                break;
+            }
+        }
+    }
+}
+
+} // namespace
+
+extern "C" JNIEXPORT void JNICALL
+    Java_com_android_testingcamera_NativeYuvConverter_convertRows(
+        JNIEnv* env, jclass, jbyteArray in, jintArray out, jint kernel,
+        jint yStride, jint uvStride, jint uStart, jint vStart,
+        jfloat xScale, jfloat yScale, jint outWidth, jint startRow, jint endRow) {
+    // Other bands of the same arrays may be converted concurrently, which critical
+    // access allows
+    void* inData = env->GetPrimitiveArrayCritical(in, NULL);
+    if (inData == NULL) return;
+    void* outData = env->GetPrimitiveArrayCritical(out, NULL);
+    if (outData == NULL) {
+        env->ReleasePrimitiveArrayCritical(in, inData, JNI_ABORT);
+        return;
+    }
+    convertRows(static_cast<const uint8_t*>(inData), static_cast<uint32_t*>(outData),
+            kernel, yStride, uvStride, uStart, vStart, xScale, yScale, outWidth,
+            startRow, endRow);
+    env->ReleasePrimitiveArrayCritical(out, outData, 0);
+    env->ReleasePrimitiveArrayCritical(in, inData, JNI_ABORT);
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import android.hardware.Camera;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Preview callback buffers, kept across preview size and format changes.
+ *
+ * Free buffers are pooled by size, so switching back to an earlier configuration
+ * reuses its buffers instead of allocating new ones. The number of buffers in
+ * flight (queued to the camera or held by the app) follows how long the app
+ * holds each buffer: enough to cover the frames that arrive while one is held,
+ * plus MIN_BUFFERS for the camera itself. The count grows right away
+ * when the camera runs out of buffers, and shrinks one buffer at a time after
+ * SHRINK_DELAY_FRAMES frames with no need for it.
+ *
+ * Frames the camera had to drop because no buffer was queued are counted as
+ * starved. Frames delivered but not displayed are counted by the
+ * CallbackProcessor.
+ *
+ * Not thread-safe; all calls must come from the thread receiving the preview
+ * callbacks.
+ */
+class CallbackBufferPool {
+    private static final int MIN_BUFFERS = 2;
+    private static final int MAX_BUFFERS = 8;
+    // Free buffers kept per size, beyond which returned buffers are dropped
+    private static final int MAX_FREE_BUFFERS = MAX_BUFFERS;
+    private static final int SHRINK_DELAY_FRAMES = 60;
+    // A callback gap this many frame durations long means frames were missed
+    private static final float MISSED_FRAME_GAP = 1.5f;
+    private static final float HISTORY_COEFF = 0.9f;
+    private static final float MEASUREMENT_COEFF = 0.1f;
+
+    private final SparseArray<ArrayDeque<byte[]>> mFreeBuffers =
+            new SparseArray<ArrayDeque<byte[]>>();
+    private final ArrayList<byte[]> mQueuedBuffers = new ArrayList<byte[]>();
+
+    private Camera mCamera;
+    private int mSize = 0;
+    private int mHeldCount = 0;
+    private int mTargetCount = MIN_BUFFERS + 1;
+    private int mFramesSinceNeeded = 0;
+    private boolean mRanOut = false;
+
+    private long mLastFrameTimestamp = -1;
+    private float mAvgFrameDuration = 0;
+    private float mAvgProcessingTime = 0;
+
+    private int mFrameCount = 0;
+    private int mStarvedCount = 0;
+    private int mAllocatedCount = 0;
+    private int mReusedCount = 0;
+
+    /**
+     * Start queueing buffers of the given size to the camera. Must be called
+     * after the camera's callback buffers have been cleared, which returns any
+     * buffers still queued from an earlier configuration to the pool.
+     */
+    public void start(Camera camera, int size) {
+        reclaimQueued();
+        mCamera = camera;
+        mSize = size;
+        mLastFrameTimestamp = -1;
+        mAvgFrameDuration = 0;
+        mRanOut = false;
+        mFrameCount = 0;
+        mStarvedCount = 0;
+        fill();
+    }
+
+    /**
+     * Stop queueing buffers. Must be called after the camera's callback buffers
+     * have been cleared. Buffers still held by the app return to the pool
+     * when released.
+     */
+    public void stop() {
+        reclaimQueued();
+        mCamera = null;
+    }
+
+    /**
+     * A buffer was filled by the camera and handed to the app.
+     *
+     * @param timestamp time the callback arrived, in milliseconds
+     */
+    public void onFrame(byte[] data, long timestamp) {
+        mQueuedBuffers.remove(data);
+        mHeldCount++;
+        mFrameCount++;
+        if (mLastFrameTimestamp != -1) {
+            long frameDuration = timestamp - mLastFrameTimestamp;
+            if (mAvgFrameDuration > 0 &&
+                    frameDuration > mAvgFrameDuration * MISSED_FRAME_GAP) {
+                int missed = Math.round(frameDuration / mAvgFrameDuration) - 1;
+                if (mRanOut && missed > 0) {
+                    mStarvedCount += missed;
+                    grow();
+                }
+            } else {
+                mAvgFrameDuration = mAvgFrameDuration == 0 ? frameDuration :
+                        mAvgFrameDuration * HISTORY_COEFF +
+                        frameDuration * MEASUREMENT_COEFF;
+            }
+        }
+        mLastFrameTimestamp = timestamp;
+        mRanOut = mQueuedBuffers.isEmpty();
+    }
+
+    /**
+     * A delivered frame has been processed, after holding the buffer for the
+     * given time.
+     */
+    public void onProcessed(byte[] data, long processingTime) {
+        mAvgProcessingTime = mAvgProcessingTime == 0 ? processingTime :
+                mAvgProcessingTime * HISTORY_COEFF +
+                processingTime * MEASUREMENT_COEFF;
+        updateTarget();
+        release(data);
+    }
+
+    /**
+     * Give a delivered buffer back, to be queued to the camera again if it's
+     * still needed.
+     */
+    public void release(byte[] data) {
+        if (mHeldCount > 0) mHeldCount--;
+        if (mCamera != null && data.length == mSize &&
+                mQueuedBuffers.size() + mHeldCount < mTargetCount) {
+            queue(data);
+        } else {
+            free(data);
+        }
+        fill();
+    }
+
+    public String getSummary() {
+        return String.format("%d frames, %d starved; " +
+                "%d buffers in flight, processing %.1f ms, " +
+                "%d buffers allocated, %d reused",
+                mFrameCount, mStarvedCount, mTargetCount,
+                mAvgProcessingTime, mAllocatedCount, mReusedCount);
+    }
+
+    private void updateTarget() {
+        int needed = MIN_BUFFERS;
+        if (mAvgFrameDuration > 0) {
+            needed += (int) Math.ceil(mAvgProcessingTime / mAvgFrameDuration);
+        }
+        needed = Math.min(needed, MAX_BUFFERS);
+        if (needed >= mTargetCount) {
+            mTargetCount = needed;
+            mFramesSinceNeeded = 0;
+        } else if (++mFramesSinceNeeded >= SHRINK_DELAY_FRAMES) {
+            mTargetCount--;
+            mFramesSinceNeeded = 0;
+        }
+    }
+
+    private void grow() {
+        if (mTargetCount < MAX_BUFFERS) mTargetCount++;
+        mFramesSinceNeeded = 0;
+    }
+
+    /** Queue buffers until the target count is in flight */
+    private void fill() {
+        if (mCamera == null || mSize <= 0) return;
+        while (mQueuedBuffers.size() + mHeldCount < mTargetCount) {
+            queue(obtain());
+        }
+    }
+
+    private byte[] obtain() {
+        ArrayDeque<byte[]> free = mFreeBuffers.get(mSize);
+        if (free != null && !free.isEmpty()) {
+            mReusedCount++;
+            return free.removeFirst();
+        }
+        mAllocatedCount++;
+        return new byte[mSize];
+    }
+
+    private void free(byte[] data) {
+        ArrayDeque<byte[]> free = mFreeBuffers.get(data.length);
+        if (free == null) {
+            free = new ArrayDeque<byte[]>();
+            mFreeBuffers.put(data.length, free);
+        }
+        if (free.size() < MAX_FREE_BUFFERS) {
+            free.addFirst(data);
+        }
+    }
+
+    private void queue(byte[] data) {
+        mQueuedBuffers.add(data);
+        mCamera.addCallbackBuffer(data);
+    }
+
+    private void reclaimQueued() {
+        for (byte[] data : mQueuedBuffers) {
+            free(data);
+        }
+        mQueuedBuffers.clear();
+    }
+}
@@ -1,9 +1,10 @@
 package com.android.testingcamera;
 
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.ImageFormat;
 import android.graphics.PixelFormat;
-import android.os.AsyncTask;
 import android.os.SystemClock;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
@@ -25,55 +26,172 @@ import android.view.SurfaceView;
  *
  *  The processing is done in a background thread, and the result is produced
  *  into an Allocation that's backed by a SurfaceView
+ *
+ *  Instead of RenderScript, the conversion can be done by YuvToRgbConverter,
+ *  in Java or in native code, and drawn to the SurfaceView through a Bitmap.
+ *  In that case, every VERIFY_INTERVAL-th frame can also be converted by
+ *  RenderScript, and the results compared.
+ *
+ *  Callback data is copied into one of two input slots on the calling thread,
+ *  so the callback buffer can be returned to the camera right away, and the
+ *  copy overlaps with the conversion of the other slot. A single worker thread
+ *  converts slots one at a time. At most one copied frame waits for the
+ *  worker; a newer frame replaces it, and the replaced frame is counted as
+ *  skipped. A frame displayed after the next frame has already arrived is
+ *  counted as late.
  */
 class CallbackProcessor {
+    static final int BACKEND_RENDERSCRIPT = 0;
+    static final int BACKEND_JAVA = 1;
+    static final int BACKEND_NATIVE = 2;
+
+    /** Input copy of one callback frame */
+    private static class InputSlot {
+        // One of these is set, depending on the backend
+        Allocation allocation;
+        byte[] data;
+        // Number of the frame in the slot, counting from 1
+        int frameNumber;
+    }
+
     private SurfaceView mCallbackView;
     private Surface mCallbackSurface;
 
     private Object mTaskLock = new Object();
+    private final InputSlot[] mSlots = new InputSlot[2];
+    // Guarded by mTaskLock
+    private InputSlot mPendingSlot = null;
+    private InputSlot mConvertingSlot = null;
+    private int mReceivedCount = 0;
+    private int mProcessedCount = 0;
+    private int mSkippedCount = 0;
+    private int mLateCount = 0;
+    private long mTotalConversionTime = 0;
+
+    private final Thread mWorker;
 
     private RenderScript mRS;
+    // Only for verification; the RenderScript backend uses the input slots
     private Allocation mAllocationIn;
     private Allocation mAllocationOut;
     private ScriptGroup mConverter;
+    private ScriptC_callback mSwizzleScript;
+
+    // Set when converting without RenderScript
+    private YuvToRgbConverter mCpuConverter;
+    private int[] mPixels;
+    private Bitmap mBitmap;
+
+    // Set when verifying against RenderScript
+    private Allocation mAllocationVerify;
+    private byte[] mVerifyPixels;
+    private int mFrameCount = 0;
+    private int mVerifiedCount = 0;
+    private int mMismatchCount = 0;
+    private int mMaxDifference = 0;
 
     private int mWidth;
     private int mHeight;
     private int mFormat;
+    private int mViewWidth;
+    private int mViewHeight;
 
     private boolean mDone = false;
-    private boolean mTaskInProgress = false;
 
     static final private int kStopTimeout = 2000; // ms
+    static final private int VERIFY_INTERVAL = 30; // frames
+    static final private int VERIFY_REPORTING_PERIOD = 10; // verified frames
+    // Relaxed floating point in callback.rs allows this much difference
+    static final private int VERIFY_TOLERANCE = 1;
 
     private static final String TAG = "CallbackProcessor";
 
     public CallbackProcessor(int width, int height, int format,
             Resources res, SurfaceView callbackView,
             int viewWidth, int viewHeight,
-            RenderScript rs) {
+            RenderScript rs, int backend, boolean verify) {
         mWidth = width;
         mHeight = height;
         mFormat = format;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
         mRS = rs;
         mCallbackView = callbackView;
 
+        if (backend == BACKEND_NATIVE && !NativeYuvConverter.isAvailable()) {
+            Log.w(TAG, "Native conversion library not available, using Java");
+            backend = BACKEND_JAVA;
+        }
+        if (mRS == null) {
+            if (backend == BACKEND_RENDERSCRIPT) {
+                Log.w(TAG, "RenderScript not available, using Java");
+                backend = BACKEND_JAVA;
+            }
+            if (verify) {
+                Log.w(TAG, "RenderScript not available, can't verify conversion");
+                verify = false;
+            }
+        }
+
+        if (backend != BACKEND_RENDERSCRIPT) {
+            mCpuConverter = new YuvToRgbConverter(mWidth, mHeight, mFormat,
+                    viewWidth, viewHeight, Runtime.getRuntime().availableProcessors(),
+                    backend == BACKEND_NATIVE);
+            mPixels = new int[viewWidth * viewHeight];
+            mBitmap = Bitmap.createBitmap(viewWidth, viewHeight,
+                    Bitmap.Config.ARGB_8888);
+            Log.i(TAG, "Converting callbacks " +
+                    (mCpuConverter.isNative() ? "natively" : "in Java") + " with " +
+                    mCpuConverter.getThreadCount() + " threads");
+        }
+
         int inputSize = TestingCamera.getCallbackBufferSize(mWidth, mHeight,
                 mFormat);
-        mAllocationIn = Allocation.createSized(mRS, Element.U8(mRS), inputSize);
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new InputSlot();
+            if (mCpuConverter != null) {
+                mSlots[i].data = new byte[inputSize];
+            } else {
+                mSlots[i].allocation =
+                        Allocation.createSized(mRS, Element.U8(mRS), inputSize);
+            }
+        }
+        mWorker = new Thread(mConvertLoop, TAG);
+
+        if (mCpuConverter != null && !verify) {
+            mWorker.start();
+            return;
+        }
+
+        Allocation scriptInput = mSlots[0].allocation;
+        if (mCpuConverter != null) {
+            mAllocationIn = Allocation.createSized(mRS, Element.U8(mRS), inputSize);
+            scriptInput = mAllocationIn;
+        }
 
         Type.Builder tb = new Type.Builder(mRS, Element.RGBA_8888(mRS));
         tb.setX(viewWidth);
         tb.setY(viewHeight);
         Type outType = tb.create();
 
-        mAllocationOut = Allocation.createTyped(mRS, outType,
-                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
-
         ScriptC_callback swizzleScript = new ScriptC_callback(mRS);
-        swizzleScript.bind_yuv_in(mAllocationIn);
+        swizzleScript.bind_yuv_in(scriptInput);
         swizzleScript.invoke_init_convert(mWidth, mHeight,
             mFormat, viewWidth, viewHeight);
+        mSwizzleScript = swizzleScript;
+
+        if (mCpuConverter != null) {
+            // Only for verification, so the output is read back, not displayed
+            mAllocationVerify = Allocation.createTyped(mRS, outType,
+                    Allocation.USAGE_SCRIPT);
+            mVerifyPixels = new byte[viewWidth * viewHeight * 4];
+            mWorker.start();
+            return;
+        }
+
+        mAllocationOut = Allocation.createTyped(mRS, outType,
+                Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
+
         Script.KernelID swizzleId;
 
         switch (mFormat) {
@@ -96,61 +214,186 @@ class CallbackProcessor {
         mConverter = b.create();
 
         mConverter.setOutput(swizzleId, mAllocationOut);
+        mWorker.start();
     }
 
     public boolean stop() {
         synchronized(mTaskLock) {
             mDone = true;
-            long startTime = SystemClock.elapsedRealtime();
-            while (mTaskInProgress) {
-                try {
-                    mTaskLock.wait(kStopTimeout);
-                } catch (InterruptedException e) {
-                    // ignored, keep waiting
-                }
-                long endTime = SystemClock.elapsedRealtime();
-                if (endTime - startTime > kStopTimeout) {
-                    return false;
-                }
+            mPendingSlot = null;
+            mTaskLock.notifyAll();
+        }
+        boolean interrupted = false;
+        long deadline = SystemClock.elapsedRealtime() + kStopTimeout;
+        while (mWorker.isAlive()) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                mWorker.join(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
-        mAllocationOut.setSurface(null);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWorker.isAlive()) {
+            return false;
+        }
+        if (mCpuConverter != null) {
+            mCpuConverter.release();
+        } else {
+            mAllocationOut.setSurface(null);
+        }
         return true;
     }
 
-    public void displayCallback(byte[] data) {
-        synchronized(mTaskLock) {
-            if (mTaskInProgress || mDone) return;
-            mTaskInProgress = true;
-        }
+    /**
+     * Copy a callback buffer in for display. The buffer can be reused as soon
+     * as this returns.
+     *
+     * @return false if the frame was dropped because the processor is
+     *         stopped or has no surface to display to
+     */
+    public boolean displayCallback(byte[] data) {
         if (mCallbackSurface == null) {
             mCallbackView.getHolder().setFormat(PixelFormat.RGBA_8888);
             mCallbackSurface = mCallbackView.getHolder().getSurface();
-            if (mCallbackSurface == null) return;
-            mAllocationOut.setSurface(mCallbackSurface);
+            if (mCallbackSurface == null) return false;
+            if (mCpuConverter == null) {
+                mAllocationOut.setSurface(mCallbackSurface);
+            }
+        }
+        InputSlot slot;
+        synchronized(mTaskLock) {
+            if (mDone) return false;
+            mReceivedCount++;
+            if (mPendingSlot != null) {
+                // Latest wins; the waiting frame is replaced
+                slot = mPendingSlot;
+                mPendingSlot = null;
+                mSkippedCount++;
+            } else {
+                slot = mSlots[0] != mConvertingSlot ? mSlots[0] : mSlots[1];
+            }
+        }
+        if (slot.allocation != null) {
+            slot.allocation.copyFrom(data);
+        } else {
+            System.arraycopy(data, 0, slot.data, 0, slot.data.length);
+        }
+        synchronized(mTaskLock) {
+            if (mDone) return false;
+            slot.frameNumber = mReceivedCount;
+            mPendingSlot = slot;
+            mTaskLock.notifyAll();
         }
-        new ProcessCallbackTask().execute(data);
+        return true;
     }
 
-    private class ProcessCallbackTask extends AsyncTask<byte[], Void, Boolean> {
+    /**
+     * Get the frame counters since the processor was created.
+     */
+    public String getSummary() {
+        synchronized(mTaskLock) {
+            return String.format("processed %d, skipped %d, late %d, conversion %.1f ms",
+                    mProcessedCount, mSkippedCount, mLateCount,
+                    mProcessedCount == 0 ? 0.0 :
+                    (double) mTotalConversionTime / mProcessedCount);
+        }
+    }
 
+    private final Runnable mConvertLoop = new Runnable() {
         @Override
-        protected Boolean doInBackground(byte[]... datas) {
-            byte[] data = datas[0];
+        public void run() {
+            while (true) {
+                InputSlot slot;
+                synchronized(mTaskLock) {
+                    while (mPendingSlot == null && !mDone) {
+                        try {
+                            mTaskLock.wait();
+                        } catch (InterruptedException e) {
+                            // ignored, stop() wakes us up
+                        }
+                    }
+                    if (mDone) return;
+                    slot = mPendingSlot;
+                    mPendingSlot = null;
+                    mConvertingSlot = slot;
+                }
+
+                long startTime = SystemClock.elapsedRealtime();
+                convert(slot);
+                long conversionTime = SystemClock.elapsedRealtime() - startTime;
 
-            mAllocationIn.copyFrom(data);
+                synchronized(mTaskLock) {
+                    mConvertingSlot = null;
+                    mProcessedCount++;
+                    mTotalConversionTime += conversionTime;
+                    if (mReceivedCount > slot.frameNumber) {
+                        mLateCount++;
+                    }
+                }
+            }
+        }
+    };
+
+    private void convert(InputSlot slot) {
+        if (mCpuConverter == null) {
+            mSwizzleScript.bind_yuv_in(slot.allocation);
             mConverter.execute();
             mAllocationOut.ioSend();
-
-            synchronized(mTaskLock) {
-                mTaskInProgress = false;
-                mTaskLock.notify();
+        } else {
+            mCpuConverter.convert(slot.data, mPixels);
+            if (mAllocationVerify != null &&
+                    mFrameCount++ % VERIFY_INTERVAL == 0) {
+                verify(slot.data);
             }
-            return true;
+            mBitmap.setPixels(mPixels, 0, mViewWidth, 0, 0,
+                    mViewWidth, mViewHeight);
+            Canvas canvas = mCallbackSurface.lockCanvas(null);
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+            mCallbackSurface.unlockCanvasAndPost(canvas);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Boolean result) {
+    /**
+     * Convert the frame with RenderScript as well, and compare to the
+     * converted pixels.
+     */
+    private void verify(byte[] data) {
+        mAllocationIn.copyFrom(data);
+        switch (mFormat) {
+        case ImageFormat.NV21:
+            mSwizzleScript.forEach_convert_semiplanar(mAllocationVerify);
+            break;
+        case ImageFormat.YV12:
+            mSwizzleScript.forEach_convert_planar(mAllocationVerify);
+            break;
+        case ImageFormat.YUY2:
+            mSwizzleScript.forEach_convert_interleaved(mAllocationVerify);
+            break;
+        case ImageFormat.UNKNOWN:
+        default:
+            mSwizzleScript.forEach_convert_unknown(mAllocationVerify);
+        }
+        mAllocationVerify.copyTo(mVerifyPixels);
+
+        int difference = YuvToRgbConverter.maxDifference(mPixels, mVerifyPixels,
+                mViewWidth * mViewHeight);
+        mVerifiedCount++;
+        mMaxDifference = Math.max(mMaxDifference, difference);
+        if (difference > VERIFY_TOLERANCE) {
+            mMismatchCount++;
+            Log.e(TAG, "Callback conversion differs from RenderScript by " +
+                    difference + " in frame " + (mFrameCount - 1));
+        }
+        if (mVerifiedCount % VERIFY_REPORTING_PERIOD == 0) {
+            Log.i(TAG, "Verified " + mVerifiedCount + " frames against RenderScript, " +
+                    mMismatchCount + " differ by more than " + VERIFY_TOLERANCE +
+                    ", max difference " + mMaxDifference);
         }
     }
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Histogram of intervals between preview callbacks, for percentiles that an
+ * average hides stutter behind.
+ *
+ * Intervals are counted in BIN_WIDTH_NS wide bins up to MAX_INTERVAL_NS; longer
+ * intervals share an overflow bin, but the maximum is kept exactly. Percentiles
+ * are reported as the upper edge of their bin, so they are accurate to
+ * BIN_WIDTH_NS. Recording doesn't allocate, so it can be done for every frame.
+ *
+ * Intervals longer than twice the nominal interval, usually a dropped frame,
+ * are counted separately.
+ */
+class FrameIntervalHistogram {
+    private static final long BIN_WIDTH_NS = 100000; // 0.1 ms
+    private static final long MAX_INTERVAL_NS = 250000000; // 250 ms
+    private static final int BIN_COUNT = (int) (MAX_INTERVAL_NS / BIN_WIDTH_NS);
+
+    // The last bin counts all intervals of MAX_INTERVAL_NS or more
+    private final int[] mBins = new int[BIN_COUNT + 1];
+    private int mCount = 0;
+    private long mMaxNs = 0;
+    private long mTotalNs = 0;
+    private int mLongCount = 0;
+    private long mNominalNs = 0;
+
+    /**
+     * Clear all intervals.
+     *
+     * @param nominalNs expected frame interval, or 0 if unknown
+     */
+    public void reset(long nominalNs) {
+        Arrays.fill(mBins, 0);
+        mCount = 0;
+        mMaxNs = 0;
+        mTotalNs = 0;
+        mLongCount = 0;
+        mNominalNs = nominalNs;
+    }
+
+    public void record(long intervalNs) {
+        if (intervalNs < 0) return;
+        int bin = (int) Math.min(intervalNs / BIN_WIDTH_NS, BIN_COUNT);
+        mBins[bin]++;
+        mCount++;
+        mTotalNs += intervalNs;
+        mMaxNs = Math.max(mMaxNs, intervalNs);
+        if (mNominalNs > 0 && intervalNs > 2 * mNominalNs) {
+            mLongCount++;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the interval that the given fraction of intervals are no longer than.
+     *
+     * @param fraction between 0 and 1
+     * @return the interval in ns, or 0 if there are none
+     */
+    public long getPercentile(double fraction) {
+        if (mCount == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            seen += mBins[bin];
+            if (seen >= rank) {
+                return Math.min((bin + 1) * BIN_WIDTH_NS, mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US,
+                "%d intervals, mean %.2f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, " +
+                "max %.2f ms, %d over 2x nominal %.2f ms",
+                mCount, mCount == 0 ? 0.0 : mTotalNs / 1e6 / mCount,
+                getPercentile(0.5) / 1e6, getPercentile(0.9) / 1e6,
+                getPercentile(0.99) / 1e6, mMaxNs / 1e6, mLongCount, mNominalNs / 1e6);
+    }
+
+    /**
+     * Write the summary as comments, followed by the non-empty bins as CSV
+     * lines of bin start in ms and count.
+     */
+    public void writeCsv(PrintWriter out) {
+        out.println("# " + getSummary());
+        out.println("interval_ms,count");
+        for (int bin = 0; bin <= BIN_COUNT; bin++) {
+            if (mBins[bin] == 0) continue;
+            out.println(String.format(Locale.US, "%.1f,%d",
+                    bin * BIN_WIDTH_NS / 1e6, mBins[bin]));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+/**
+ * Native row conversion for YuvToRgbConverter, in libtestingcamera_jni.
+ */
+class NativeYuvConverter {
+    private static final boolean sAvailable;
+
+    static {
+        boolean available;
+        try {
+            System.loadLibrary("testingcamera_jni");
+            available = true;
+        } catch (UnsatisfiedLinkError e) {
+            available = false;
+        }
+        sAvailable = available;
+    }
+
+    /**
+     * Whether the native library could be loaded.
+     */
+    static boolean isAvailable() {
+        return sAvailable;
+    }
+
+    /**
+     * Convert output rows [startRow, endRow) with the given YuvToRgbConverter kernel and
+     * layout.
+     */
+    static native void convertRows(byte[] in, int[] out, int kernel,
+            int yStride, int uvStride, int uStart, int vStart,
+            float xScale, float yScale, int outWidth, int startRow, int endRow);
+}
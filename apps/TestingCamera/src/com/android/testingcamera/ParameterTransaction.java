@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Batches Camera.Parameters changes into a single setParameters() call.
+ *
+ * Controls change the shared parameters and call request(); all requests made
+ * before the handler runs again are applied together. The parameters are
+ * diffed against the last applied set, using their flattened form, so the
+ * call is skipped when nothing changed, and the preview is only restarted
+ * when a key in PREVIEW_KEYS changed.
+ *
+ * The time saved is estimated from the measured cost of setParameters() and
+ * of a preview restart, times the calls and restarts that applying each
+ * request on its own would have taken.
+ *
+ * All methods must be called on the handler's thread.
+ */
+class ParameterTransaction {
+    /** Activity hooks for changes that need the preview restarted */
+    interface Callbacks {
+        /**
+         * Stop the preview, before preview parameters change.
+         *
+         * @return true if the preview was running, and needs restarting
+         */
+        boolean onStopPreview();
+
+        /**
+         * Called once the parameters have been applied, or rejected by the
+         * camera. On failure the shared parameters have been reset to the
+         * last applied set.
+         *
+         * @param applied whether setParameters() succeeded
+         * @param previewChanged whether a preview parameter changed
+         * @param restartPreview whether the preview was stopped for the change
+         * @param summary description of the transaction, for the log
+         */
+        void onApplied(boolean applied, boolean previewChanged, boolean restartPreview,
+                String summary);
+    }
+
+    // Parameters that can't change while the preview is running
+    private static final String[] PREVIEW_KEYS = {
+        "preview-size",
+        "preview-format"
+    };
+
+    private static final String TAG = "ParameterTransaction";
+
+    private static final float HISTORY_COEFF = 0.8f;
+    private static final float MEASUREMENT_COEFF = 0.2f;
+
+    private final Handler mHandler;
+    private final Callbacks mCallbacks;
+
+    private Camera mCamera;
+    private Camera.Parameters mParams;
+    private String mAppliedFlattened;
+    private Map<String, String> mApplied = new HashMap<String, String>();
+    private Map<String, String> mRequested = new HashMap<String, String>();
+    private boolean mScheduled = false;
+
+    // Since the last apply
+    private int mRequestCount = 0;
+    private int mPreviewRequestCount = 0;
+
+    private float mAvgSetTimeMs = 0;
+    private float mAvgRestartTimeMs = 0;
+    private float mTotalSavedMs = 0;
+
+    ParameterTransaction(Handler handler, Callbacks callbacks) {
+        mHandler = handler;
+        mCallbacks = callbacks;
+    }
+
+    /**
+     * Apply the initial parameters of a newly opened camera right away, and
+     * track later changes to them.
+     */
+    public void start(Camera camera, Camera.Parameters params) {
+        mHandler.removeCallbacks(mApplyRunnable);
+        mScheduled = false;
+        mCamera = camera;
+        mParams = params;
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        mCamera.setParameters(mParams);
+        recordSetTime(SystemClock.elapsedRealtimeNanos() - startTime);
+        mAppliedFlattened = mParams.flatten();
+        mApplied = unflatten(mAppliedFlattened);
+        mRequested = mApplied;
+        mRequestCount = 0;
+        mPreviewRequestCount = 0;
+    }
+
+    /**
+     * Stop tracking the camera; pending changes are dropped.
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mApplyRunnable);
+        mScheduled = false;
+        mCamera = null;
+        mParams = null;
+    }
+
+    /**
+     * Request that the current parameters are applied, together with any
+     * other requests made before the handler runs.
+     */
+    public void request() {
+        if (mCamera == null) return;
+        Map<String, String> requested = unflatten(mParams.flatten());
+        // What applying this request on its own would have cost
+        List<String> changed = diff(mRequested, requested);
+        if (!changed.isEmpty()) {
+            mRequestCount++;
+            if (affectsPreview(changed)) mPreviewRequestCount++;
+        }
+        mRequested = requested;
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.post(mApplyRunnable);
+        }
+    }
+
+    /**
+     * Apply any pending changes right away, before using the camera in a way
+     * that depends on them.
+     */
+    public void applyNow() {
+        if (!mScheduled) return;
+        mHandler.removeCallbacks(mApplyRunnable);
+        apply();
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "setParameters %.1f ms, preview restart %.1f ms, " +
+                "%.1f ms saved in total", mAvgSetTimeMs, mAvgRestartTimeMs,
+                mTotalSavedMs);
+    }
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            apply();
+        }
+    };
+
+    private void apply() {
+        mScheduled = false;
+        if (mCamera == null) return;
+
+        String flattened = mParams.flatten();
+        Map<String, String> requested = unflatten(flattened);
+        List<String> changed = diff(mApplied, requested);
+        int requestCount = mRequestCount;
+        int previewRequestCount = mPreviewRequestCount;
+        mRequestCount = 0;
+        mPreviewRequestCount = 0;
+        mRequested = requested;
+
+        if (changed.isEmpty()) {
+            float savedMs = requestCount * mAvgSetTimeMs +
+                    previewRequestCount * mAvgRestartTimeMs;
+            mTotalSavedMs += savedMs;
+            Log.i(TAG, String.format(Locale.US, "No parameter changes from %d requests, " +
+                    "saved ~%.1f ms", requestCount, savedMs));
+            return;
+        }
+
+        boolean previewChanged = affectsPreview(changed);
+        long startTime = SystemClock.elapsedRealtimeNanos();
+        boolean restartPreview = previewChanged && mCallbacks.onStopPreview();
+        long setStartTime = SystemClock.elapsedRealtimeNanos();
+        boolean applied = true;
+        try {
+            mCamera.setParameters(mParams);
+            mAppliedFlattened = flattened;
+            mApplied = requested;
+        } catch (RuntimeException e) {
+            // Rejected; go back to what the camera actually has
+            Log.e(TAG, "setParameters failed for " + changed + ": " + e.getMessage());
+            applied = false;
+            mParams.unflatten(mAppliedFlattened);
+            mRequested = mApplied;
+        }
+        long setTime = SystemClock.elapsedRealtimeNanos() - setStartTime;
+        recordSetTime(setTime);
+
+        float savedMs = Math.max(0, requestCount - 1) * mAvgSetTimeMs +
+                Math.max(0, previewRequestCount - (restartPreview ? 1 : 0)) *
+                mAvgRestartTimeMs;
+        mTotalSavedMs += savedMs;
+        String summary = String.format(Locale.US, "%s %d changed parameters from %d " +
+                "requests in %.1f ms%s, saved ~%.1f ms: %s",
+                applied ? "Applied" : "Failed to apply", changed.size(),
+                Math.max(requestCount, 1), setTime / 1e6,
+                restartPreview ? " with preview restart" : "", savedMs, changed);
+
+        mCallbacks.onApplied(applied, previewChanged, restartPreview, summary);
+        if (restartPreview) {
+            long restartTime = SystemClock.elapsedRealtimeNanos() - startTime - setTime;
+            mAvgRestartTimeMs = average(mAvgRestartTimeMs, restartTime / 1e6f);
+        }
+    }
+
+    private void recordSetTime(long timeNs) {
+        mAvgSetTimeMs = average(mAvgSetTimeMs, timeNs / 1e6f);
+    }
+
+    private static float average(float avg, float value) {
+        return avg == 0 ? value : avg * HISTORY_COEFF + value * MEASUREMENT_COEFF;
+    }
+
+    private static boolean affectsPreview(List<String> changedKeys) {
+        for (String key : PREVIEW_KEYS) {
+            if (changedKeys.contains(key)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the keys whose values differ between two parameter sets.
+     */
+    private static List<String> diff(Map<String, String> from, Map<String, String> to) {
+        List<String> changed = new ArrayList<String>();
+        Set<String> keys = new HashSet<String>(from.keySet());
+        keys.addAll(to.keySet());
+        for (String key : keys) {
+            String a = from.get(key);
+            String b = to.get(key);
+            if (a == null ? b != null : !a.equals(b)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Split the output of Camera.Parameters.flatten(), key=value pairs
+     * separated by semicolons.
+     */
+    private static Map<String, String> unflatten(String flattened) {
+        Map<String, String> map = new HashMap<String, String>();
+        for (String pair : flattened.split(";")) {
+            int split = pair.indexOf('=');
+            if (split < 0) continue;
+            map.put(pair.substring(0, split), pair.substring(split + 1));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Timing of a series of takePicture() shots at one snapshot size.
+ *
+ * Each shot records when its callbacks arrived, relative to the takePicture()
+ * call; the shutter callback time is the shutter lag. Shot-to-shot time is
+ * between consecutive takePicture() calls, so it includes restarting the
+ * preview. Percentiles use the nearest rank, since series are short. Shots
+ * whose JPEG never arrived are only counted.
+ */
+class ShotTimingStats {
+    static final int SHUTTER = 0;
+    static final int RAW = 1;
+    static final int POSTVIEW = 2;
+    static final int JPEG = 3;
+    static final int STAGE_COUNT = 4;
+
+    private static final String[] STAGE_NAMES = {
+        "shutter lag", "raw", "postview", "jpeg"
+    };
+
+    private final String mName;
+    private final List<long[]> mShots = new ArrayList<long[]>();
+    private final List<Long> mShotToShot = new ArrayList<Long>();
+    private int mFailedShots = 0;
+
+    /**
+     * @param name the snapshot size, for the summary
+     */
+    ShotTimingStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record a shot.
+     *
+     * @param stageNs time of each stage's callback after takePicture(), in ns,
+     *        or -1 if it didn't arrive
+     */
+    public void addShot(long[] stageNs) {
+        mShots.add(stageNs.clone());
+    }
+
+    /**
+     * Record a shot that timed out.
+     */
+    public void addFailedShot() {
+        mFailedShots++;
+    }
+
+    public void addShotToShot(long intervalNs) {
+        mShotToShot.add(intervalNs);
+    }
+
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(mName).append(": ").append(mShots.size()).append(" shots");
+        if (mFailedShots > 0) {
+            summary.append(", ").append(mFailedShots).append(" failed");
+        }
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            long[] values = new long[mShots.size()];
+            int count = 0;
+            for (long[] shot : mShots) {
+                if (shot[stage] >= 0) values[count++] = shot[stage];
+            }
+            appendPercentiles(summary, STAGE_NAMES[stage], Arrays.copyOf(values, count));
+        }
+        long[] shotToShot = new long[mShotToShot.size()];
+        for (int i = 0; i < shotToShot.length; i++) {
+            shotToShot[i] = mShotToShot.get(i);
+        }
+        appendPercentiles(summary, "shot-to-shot", shotToShot);
+        return summary.toString();
+    }
+
+    private static void appendPercentiles(StringBuilder summary, String name, long[] values) {
+        summary.append("; ").append(name);
+        if (values.length == 0) {
+            summary.append(" n/a");
+            return;
+        }
+        Arrays.sort(values);
+        summary.append(String.format(Locale.US, " p50 %.1f, p90 %.1f, max %.1f ms",
+                percentile(values, 0.5) / 1e6, percentile(values, 0.9) / 1e6,
+                values[values.length - 1] / 1e6));
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
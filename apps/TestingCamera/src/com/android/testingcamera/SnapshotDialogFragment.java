@@ -7,7 +7,6 @@ import java.io.IOException;
 import android.Manifest;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.media.ExifInterface;
 import android.media.MediaScannerConnection.OnScanCompletedListener;
 import android.net.Uri;
@@ -24,6 +23,8 @@ import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.android.testingcamera2.JpegPreviewDecoder;
+
 class SnapshotDialogFragment extends DialogFragment
                 implements OnScanCompletedListener{
 
@@ -33,7 +34,13 @@ class SnapshotDialogFragment extends DialogFragment
     private Button mSaveButton;
     private Button mSaveAndViewButton;
 
+    private static final int PREVIEW_MIN_SIZE = 512;
+
+    // Shared by all snapshots, so its bitmaps get reused; AsyncTasks run one at a time
+    private static final JpegPreviewDecoder sJpegDecoder = new JpegPreviewDecoder();
+
     private byte[] mJpegImage;
+    private Bitmap mPreviewBitmap;
     private boolean mSaved = false;
     private boolean mViewWhenReady = false;
         private Uri mSavedUri = null;
@@ -65,27 +72,16 @@ class SnapshotDialogFragment extends DialogFragment
                 @Override
                 protected Bitmap doInBackground(byte[]... params) {
                     byte[] jpegImage = params[0];
-                    BitmapFactory.Options opts = new BitmapFactory.Options();
-                    opts.inJustDecodeBounds = true;
-                    BitmapFactory.decodeByteArray(jpegImage, 0,
-                            jpegImage.length, opts);
-                    // Keep image at less than 1 MP.
-                    if (opts.outWidth > 1024 || opts.outHeight > 1024) {
-                        int scaleFactorX = opts.outWidth / 1024 + 1;
-                        int scaleFactorY = opts.outHeight / 1024 + 1;
-                        int scaleFactor = scaleFactorX > scaleFactorY ?
-                            scaleFactorX : scaleFactorY;
-                        opts.inSampleSize = scaleFactor;
-                    }
-                    opts.inJustDecodeBounds = false;
-                    Bitmap img = BitmapFactory.decodeByteArray(jpegImage, 0,
-                            jpegImage.length, opts);
-                    return img;
+                    // Keep image at around 1 MP or less; the smaller side ends up between
+                    // 512 and 1024 pixels.
+                    return sJpegDecoder.decode(jpegImage, 0, jpegImage.length,
+                            PREVIEW_MIN_SIZE, PREVIEW_MIN_SIZE);
                 }
 
                 @Override
                 protected void onPostExecute(Bitmap img) {
                     mInfoImage.setImageBitmap(img);
+                    mPreviewBitmap = img;
                 }
             }.execute(mJpegImage);
         }
@@ -94,6 +90,14 @@ class SnapshotDialogFragment extends DialogFragment
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // No longer shown; the next snapshot can be decoded into it
+        sJpegDecoder.reuseBitmap(mPreviewBitmap);
+        mPreviewBitmap = null;
+    }
+
     public OnClickListener mOkButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
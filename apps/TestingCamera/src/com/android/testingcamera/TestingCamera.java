@@ -50,6 +50,7 @@ import android.widget.SeekBar;
 import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.ToggleButton;
+import android.renderscript.RSRuntimeException;
 import android.renderscript.RenderScript;
 import android.text.Layout;
 import android.text.method.ScrollingMovementMethod;
@@ -57,14 +58,18 @@ import android.util.Log;
 import android.util.SparseArray;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -100,6 +105,8 @@ public class TestingCamera extends Activity
     private ToggleButton mExposureLockToggle;
     private Spinner mSnapshotSizeSpinner;
     private Button  mTakePictureButton;
+    private Button  mBenchmarkPicturesButton;
+    private CheckBox mBenchmarkAllSizesCheckBox;
     private Spinner mCamcorderProfileSpinner;
     private Spinner mVideoRecordSizeSpinner;
     private Spinner mVideoFrameRateSpinner;
@@ -109,6 +116,8 @@ public class TestingCamera extends Activity
     private ToggleButton mRecordHintToggle;
     private ToggleButton mLockCameraToggle;
     private Spinner mCallbackFormatSpinner;
+    private Spinner mCallbackBackendSpinner;
+    private CheckBox mVerifyCallbacksCheckBox;
     private ToggleButton mCallbackToggle;
     private TextView mColorEffectSpinnerLabel;
     private Spinner mColorEffectSpinner;
@@ -156,19 +165,72 @@ public class TestingCamera extends Activity
 
     private boolean mCallbacksEnabled = false;
     private CallbackProcessor mCallbackProcessor = null;
+    private int mCallbackBackend = CallbackProcessor.BACKEND_RENDERSCRIPT;
+    private final CallbackBufferPool mCallbackBufferPool = new CallbackBufferPool();
     long mLastCallbackTimestamp = -1;
     float mCallbackAvgFrameDuration = 30;
     int mCallbackFrameCount = 0;
+    long mLastCallbackTimestampNs = -1;
+    private final FrameIntervalHistogram mCallbackIntervals = new FrameIntervalHistogram();
+
+    /** Shot benchmark state */
+    private final Handler mBenchmarkHandler = new Handler();
+    private final Map<String, ShotTimingStats> mShotStats =
+            new LinkedHashMap<String, ShotTimingStats>();
+    private final long[] mShotStageNs = new long[ShotTimingStats.STAGE_COUNT];
+    private List<Integer> mBenchmarkSizes = new ArrayList<Integer>();
+    private ShotTimingStats mCurrentShotStats;
+    private boolean mBenchmarkingShots = false;
+    private int mBenchmarkShotsLeft = 0;
+    private long mShotStartNs = -1;
+    private long mLastShotStartNs = -1;
+
+    private final ParameterTransaction mParamsTransaction =
+            new ParameterTransaction(new Handler(), new ParameterTransaction.Callbacks() {
+        @Override
+        public boolean onStopPreview() {
+            if (mState != CAMERA_PREVIEW) return false;
+            log("Stopping preview and callbacks to change preview parameters");
+            stopCallbacks();
+            mCamera.stopPreview();
+            return true;
+        }
+
+        @Override
+        public void onApplied(boolean applied, boolean previewChanged,
+                boolean restartPreview, String summary) {
+            if (!applied) {
+                // mParams was rolled back; the controls still show the rejected values
+                syncPreviewControls();
+            }
+            if (previewChanged && applied) {
+                resizePreview();
+            }
+            if (restartPreview) {
+                log("Restarting preview");
+                mCamera.startPreview();
+                if (!applied && mCallbacksEnabled) {
+                    // Stopped with the preview, and the layout is unchanged, so
+                    // no layout pass will reconfigure them
+                    configureCallbacks(mCallbackView.getWidth(), mCallbackView.getHeight());
+                }
+            }
+            log(summary);
+        }
+    });
     private static final float MEAN_FPS_HISTORY_COEFF = 0.9f;
     private static final float MEAN_FPS_MEASUREMENT_COEFF = 0.1f;
     private static final int   FPS_REPORTING_PERIOD = 200; // frames
-    private static final int CALLBACK_BUFFER_COUNT = 3;
 
     private static final int CAMERA_UNINITIALIZED = 0;
     private static final int CAMERA_OPEN = 1;
     private static final int CAMERA_PREVIEW = 2;
     private static final int CAMERA_TAKE_PICTURE = 3;
     private static final int CAMERA_RECORD = 4;
+
+    private static final int BENCHMARK_SHOT_COUNT = 10;
+    // A shot whose JPEG hasn't arrived by then is recorded as failed
+    private static final long BENCHMARK_SHOT_TIMEOUT_MS = 10000;
     private int mState = CAMERA_UNINITIALIZED;
 
     private static final int NO_CAMERA_ID = -1;
@@ -253,6 +315,12 @@ public class TestingCamera extends Activity
         mTakePictureButton.setOnClickListener(mTakePictureListener);
         mPreviewOnlyControls.add(mTakePictureButton);
 
+        mBenchmarkPicturesButton = (Button) findViewById(R.id.benchmark_pictures);
+        mBenchmarkPicturesButton.setOnClickListener(mBenchmarkPicturesListener);
+        mPreviewOnlyControls.add(mBenchmarkPicturesButton);
+
+        mBenchmarkAllSizesCheckBox = (CheckBox) findViewById(R.id.benchmark_all_sizes_checkbox);
+
         mCamcorderProfileSpinner = (Spinner) findViewById(R.id.camcorder_profile_spinner);
         mCamcorderProfileSpinner.setOnItemSelectedListener(mCamcorderProfileListener);
         mOpenOnlyControls.add(mCamcorderProfileSpinner);
@@ -288,6 +356,14 @@ public class TestingCamera extends Activity
         mCallbackFormatSpinner.setOnItemSelectedListener(mCallbackFormatListener);
         mOpenOnlyControls.add(mCallbackFormatSpinner);
 
+        mCallbackBackendSpinner = (Spinner) findViewById(R.id.callback_backend_spinner);
+        mCallbackBackendSpinner.setAdapter(
+                new ArrayAdapter<String>(this, R.layout.spinner_item,
+                        new String[] { "RenderScript", "Java", "Native" }));
+        mCallbackBackendSpinner.setOnItemSelectedListener(mCallbackBackendListener);
+
+        mVerifyCallbacksCheckBox = (CheckBox) findViewById(R.id.verify_callbacks_checkbox);
+
         mCallbackToggle = (ToggleButton) findViewById(R.id.enable_callbacks);
         mCallbackToggle.setOnClickListener(mCallbackToggleListener);
         mOpenOnlyControls.add(mCallbackToggle);
@@ -330,7 +406,14 @@ public class TestingCamera extends Activity
             mCameraSpinner.setSelection(0);
         }
 
-        mRS = RenderScript.create(this);
+        try {
+            mRS = RenderScript.create(this);
+        } catch (RSRuntimeException e) {
+            logE("RenderScript not available, converting callbacks in Java: " +
+                    e.getMessage());
+            mRS = null;
+            mCallbackBackendSpinner.setSelection(CallbackProcessor.BACKEND_JAVA);
+        }
     }
 
     @Override
@@ -343,6 +426,7 @@ public class TestingCamera extends Activity
     @Override
     public void onPause() {
         super.onPause();
+        abortShotBenchmark();
         if (mState == CAMERA_RECORD) {
             stopRecording(false);
         }
@@ -357,6 +441,8 @@ public class TestingCamera extends Activity
             log("onPause: Releasing camera");
 
             if (mCamera != null) {
+                mParamsTransaction.stop();
+                mCallbackBufferPool.stop();
                 mCamera.release();
             }
             mState = CAMERA_UNINITIALIZED;
@@ -528,11 +614,6 @@ public class TestingCamera extends Activity
         public void onItemSelected(AdapterView<?> parent,
                 View view, int pos, long id) {
             if (pos == mPreviewSize) return;
-            if (mState == CAMERA_PREVIEW) {
-                log("Stopping preview and callbacks to switch resolutions");
-                stopCallbacks();
-                mCamera.stopPreview();
-            }
 
             mPreviewSize = pos;
             int width = mPreviewSizes.get(mPreviewSize).width;
@@ -541,13 +622,8 @@ public class TestingCamera extends Activity
 
             log("Setting preview size to " + width + "x" + height);
 
-            mCamera.setParameters(mParams);
-            resizePreview();
-
-            if (mState == CAMERA_PREVIEW) {
-                log("Restarting preview");
-                mCamera.startPreview();
-            }
+            // The preview is restarted when the change is applied
+            mParamsTransaction.request();
         }
 
         @Override
@@ -567,7 +643,12 @@ public class TestingCamera extends Activity
 
             log("Setting preview frame rate to " + ((TextView)view).getText());
 
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
+
+            if (mCallbacksEnabled) {
+                // The nominal interval changed
+                finishCallbackIntervals();
+            }
         }
 
         @Override
@@ -592,7 +673,7 @@ public class TestingCamera extends Activity
                 log("Turning off HDR");
                 mParams.setSceneMode(Camera.Parameters.SCENE_MODE_AUTO);
             }
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
     };
 
@@ -606,6 +687,7 @@ public class TestingCamera extends Activity
             }
             if (mPreviewToggle.isChecked()) {
                 log("Starting preview");
+                mParamsTransaction.applyNow();
                 mCamera.startPreview();
                 mState = CAMERA_PREVIEW;
                 enablePreviewOnlyControls(true);
@@ -635,7 +717,7 @@ public class TestingCamera extends Activity
             }
             mParams.setFocusMode(focusMode);
 
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
 
         @Override
@@ -689,7 +771,7 @@ public class TestingCamera extends Activity
             String flashMode = mFlashModes.get(mFlashMode);
             log("Setting flash mode to " + flashMode);
             mParams.setFlashMode(flashMode);
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
 
         @Override
@@ -713,7 +795,7 @@ public class TestingCamera extends Activity
 
             mParams.setPictureSize(width, height);
 
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
 
         @Override
@@ -732,6 +814,7 @@ public class TestingCamera extends Activity
                 enablePreviewOnlyControls(false);
                 mPreviewToggle.setChecked(false);
 
+                mParamsTransaction.applyNow();
                 mCamera.takePicture(mShutterCb, mRawCb, mPostviewCb, mJpegCb);
             } else {
                 logE("Can't take picture while not running preview!");
@@ -739,6 +822,18 @@ public class TestingCamera extends Activity
         }
     };
 
+    private View.OnClickListener mBenchmarkPicturesListener =
+            new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (mState != CAMERA_PREVIEW) {
+                logE("Can't benchmark pictures while not running preview!");
+                return;
+            }
+            startShotBenchmark(mBenchmarkAllSizesCheckBox.isChecked());
+        }
+    };
+
     private AdapterView.OnItemSelectedListener mCamcorderProfileListener =
                 new AdapterView.OnItemSelectedListener() {
         @Override
@@ -832,7 +927,7 @@ public class TestingCamera extends Activity
             boolean on = ((ToggleButton) v).isChecked();
             mParams.setVideoStabilization(on);
 
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
     };
 
@@ -843,7 +938,7 @@ public class TestingCamera extends Activity
             boolean on = ((ToggleButton) v).isChecked();
             mParams.setRecordingHint(on);
 
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
     };
 
@@ -906,6 +1001,196 @@ public class TestingCamera extends Activity
         }
     };
 
+    /**
+     * Take BENCHMARK_SHOT_COUNT pictures at the selected snapshot size, or at each
+     * snapshot size in turn, and log how long their callbacks took. The preview is
+     * restarted after each JPEG callback, and the next shot taken right away; the
+     * pictures aren't shown.
+     */
+    private void startShotBenchmark(boolean allSizes) {
+        mBenchmarkSizes.clear();
+        if (allSizes) {
+            for (int i = 0; i < mSnapshotSizes.size(); i++) {
+                mBenchmarkSizes.add(i);
+            }
+        } else {
+            mBenchmarkSizes.add(mSnapshotSize);
+        }
+        mShotStats.clear();
+        log("Benchmarking " + BENCHMARK_SHOT_COUNT + " shots at " +
+                mBenchmarkSizes.size() + " snapshot sizes");
+
+        mBenchmarkingShots = true;
+        mState = CAMERA_TAKE_PICTURE;
+        enablePreviewOnlyControls(false);
+        mSnapshotSizeSpinner.setEnabled(false);
+        mPreviewToggle.setEnabled(false);
+        startNextBenchmarkSize();
+    }
+
+    private void startNextBenchmarkSize() {
+        if (mBenchmarkSizes.isEmpty()) {
+            finishShotBenchmark();
+            return;
+        }
+        Camera.Size size = mSnapshotSizes.get(mBenchmarkSizes.remove(0));
+        String name = size.width + " x " + size.height;
+        mParams.setPictureSize(size.width, size.height);
+        mParamsTransaction.request();
+        mParamsTransaction.applyNow();
+
+        mCurrentShotStats = new ShotTimingStats(name);
+        mShotStats.put(name, mCurrentShotStats);
+        mBenchmarkShotsLeft = BENCHMARK_SHOT_COUNT;
+        // Shot-to-shot time is only compared within one size
+        mLastShotStartNs = -1;
+        takeBenchmarkShot();
+    }
+
+    private final Runnable mBenchmarkShotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            takeBenchmarkShot();
+        }
+    };
+
+    private final Runnable mNextBenchmarkSizeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startNextBenchmarkSize();
+        }
+    };
+
+    private final Runnable mShotTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            logE("Benchmark picture timed out after " + BENCHMARK_SHOT_TIMEOUT_MS + " ms");
+            finishBenchmarkShot(/*failed*/ true);
+        }
+    };
+
+    /**
+     * Callbacks of one benchmark shot, identified by its start time, so that
+     * callbacks arriving after the shot timed out are ignored.
+     */
+    private class BenchmarkShotCallback
+            implements Camera.ShutterCallback, Camera.PictureCallback {
+        private final long mShotStart;
+        private final int mStage;
+
+        BenchmarkShotCallback(long shotStartNs, int stage) {
+            mShotStart = shotStartNs;
+            mStage = stage;
+        }
+
+        @Override
+        public void onShutter() {
+            onStage();
+        }
+
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            onStage();
+        }
+
+        private void onStage() {
+            if (!mBenchmarkingShots || mShotStart != mShotStartNs) return;
+            mShotStageNs[mStage] = SystemClock.elapsedRealtimeNanos() - mShotStartNs;
+            if (mStage == ShotTimingStats.JPEG) {
+                finishBenchmarkShot(/*failed*/ false);
+            }
+        }
+    }
+
+    private void takeBenchmarkShot() {
+        Arrays.fill(mShotStageNs, -1);
+        mShotStartNs = SystemClock.elapsedRealtimeNanos();
+        if (mLastShotStartNs != -1) {
+            mCurrentShotStats.addShotToShot(mShotStartNs - mLastShotStartNs);
+        }
+        mLastShotStartNs = mShotStartNs;
+        try {
+            mCamera.takePicture(
+                    new BenchmarkShotCallback(mShotStartNs, ShotTimingStats.SHUTTER),
+                    new BenchmarkShotCallback(mShotStartNs, ShotTimingStats.RAW),
+                    new BenchmarkShotCallback(mShotStartNs, ShotTimingStats.POSTVIEW),
+                    new BenchmarkShotCallback(mShotStartNs, ShotTimingStats.JPEG));
+            mBenchmarkHandler.postDelayed(mShotTimeoutRunnable, BENCHMARK_SHOT_TIMEOUT_MS);
+        } catch (RuntimeException e) {
+            logE("Benchmark picture failed: " + e.getMessage());
+            mShotStartNs = -1;
+            mBenchmarkSizes.clear();
+            mCamera.startPreview();
+            finishShotBenchmark();
+        }
+    }
+
+    private void finishBenchmarkShot(boolean failed) {
+        mBenchmarkHandler.removeCallbacks(mShotTimeoutRunnable);
+        if (failed) {
+            mCurrentShotStats.addFailedShot();
+        } else {
+            mCurrentShotStats.addShot(mShotStageNs);
+        }
+        mShotStartNs = -1;
+        mBenchmarkShotsLeft--;
+        try {
+            mCamera.startPreview();
+        } catch (RuntimeException e) {
+            logE("Can't restart preview after benchmark picture: " + e.getMessage());
+            mBenchmarkSizes.clear();
+            finishShotBenchmark();
+            return;
+        }
+        if (mBenchmarkShotsLeft > 0) {
+            mBenchmarkHandler.post(mBenchmarkShotRunnable);
+        } else {
+            mBenchmarkHandler.post(mNextBenchmarkSizeRunnable);
+        }
+    }
+
+    private void finishShotBenchmark() {
+        mBenchmarkingShots = false;
+        Camera.Size size = mSnapshotSizes.get(mSnapshotSize);
+        mParams.setPictureSize(size.width, size.height);
+        mParamsTransaction.request();
+
+        log("Shot benchmark results:");
+        logIndent(1);
+        for (ShotTimingStats stats : mShotStats.values()) {
+            log(stats.getSummary());
+        }
+        logIndent(-1);
+
+        mState = CAMERA_PREVIEW;
+        enablePreviewOnlyControls(true);
+        mSnapshotSizeSpinner.setEnabled(true);
+        mPreviewToggle.setEnabled(true);
+    }
+
+    /**
+     * Stop a running shot benchmark. The callbacks of a shot already taken are
+     * ignored, and it leaves the preview stopped.
+     */
+    private void abortShotBenchmark() {
+        if (!mBenchmarkingShots) return;
+        log("Aborting shot benchmark");
+        mBenchmarkHandler.removeCallbacks(mBenchmarkShotRunnable);
+        mBenchmarkHandler.removeCallbacks(mNextBenchmarkSizeRunnable);
+        mBenchmarkHandler.removeCallbacks(mShotTimeoutRunnable);
+        mBenchmarkingShots = false;
+        mBenchmarkSizes.clear();
+        if (mShotStartNs != -1) {
+            mShotStartNs = -1;
+            mPreviewToggle.setChecked(false);
+        } else {
+            mState = CAMERA_PREVIEW;
+            mPreviewToggle.setEnabled(true);
+            enablePreviewOnlyControls(true);
+        }
+        mSnapshotSizeSpinner.setEnabled(true);
+    }
+
     private AdapterView.OnItemSelectedListener mCallbackFormatListener =
             new AdapterView.OnItemSelectedListener() {
         public void onItemSelected(AdapterView<?> parent,
@@ -918,30 +1203,32 @@ public class TestingCamera extends Activity
             switch (mState) {
             case CAMERA_UNINITIALIZED:
                 return;
-            case CAMERA_OPEN:
-                break;
-            case CAMERA_PREVIEW:
-                if (mCallbacksEnabled) {
-                    log("Stopping preview and callbacks to switch formats");
-                    stopCallbacks();
-                    mCamera.stopPreview();
-                }
-                break;
             case CAMERA_RECORD:
                 logE("Can't update format while recording active");
                 return;
             }
 
+            // The preview is restarted and callbacks reconfigured when the
+            // change is applied
             mParams.setPreviewFormat(mPreviewFormats.get(mPreviewFormat));
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
+        }
+
+        public void onNothingSelected(AdapterView<?> parent) {
+
+        }
+    };
 
+    private AdapterView.OnItemSelectedListener mCallbackBackendListener =
+            new AdapterView.OnItemSelectedListener() {
+        public void onItemSelected(AdapterView<?> parent,
+                        View view, int pos, long id) {
+            // The callback surface can't switch between RenderScript and
+            // canvas output, so the backend is only picked up when callbacks
+            // are enabled and the surface is created
             if (mCallbacksEnabled) {
-                if (mState == CAMERA_PREVIEW) {
-                    mCamera.startPreview();
-                }
+                log("Callback conversion will change once callbacks are re-enabled");
             }
-
-            configureCallbacks(mCallbackView.getWidth(), mCallbackView.getHeight());
         }
 
         public void onNothingSelected(AdapterView<?> parent) {
@@ -961,6 +1248,7 @@ public class TestingCamera extends Activity
 
             } else {
                 log("Enabling preview callbacks");
+                mCallbackBackend = mCallbackBackendSpinner.getSelectedItemPosition();
                 mCallbacksEnabled = true;
                 resizePreview();
                 mCallbackView.setVisibility(View.VISIBLE);
@@ -1066,7 +1354,7 @@ public class TestingCamera extends Activity
         }
 
         // Update parameters based on above updates
-        mCamera.setParameters(mParams);
+        mParamsTransaction.start(mCamera, mParams);
 
         if (mPreviewHolder != null) {
             log("Setting preview display");
@@ -1094,8 +1382,11 @@ public class TestingCamera extends Activity
     }
 
     private void resetCamera() {
+        abortShotBenchmark();
         if (mState >= CAMERA_OPEN) {
             log("Closing old camera");
+            mParamsTransaction.stop();
+            mCallbackBufferPool.stop();
             mCamera.release();
         }
         mCamera = null;
@@ -1158,7 +1449,7 @@ public class TestingCamera extends Activity
                 boolean fromUser) {
             mZoom = progress;
             mParams.setZoom(mZoom);
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
         @Override
         public void onStartTrackingTouch(SeekBar seekBar) { }
@@ -1387,6 +1678,23 @@ public class TestingCamera extends Activity
                         res.getInteger(R.integer.preview_only_weight) ));
     }
 
+    /**
+     * Select the preview size and format in use by mParams, after a rejected
+     * change was rolled back.
+     */
+    private void syncPreviewControls() {
+        int size = mPreviewSizes.indexOf(mParams.getPreviewSize());
+        if (size >= 0) {
+            mPreviewSize = size;
+            mPreviewSizeSpinner.setSelection(mPreviewSize);
+        }
+        int format = mPreviewFormats.indexOf(mParams.getPreviewFormat());
+        if (format >= 0) {
+            mPreviewFormat = format;
+            mCallbackFormatSpinner.setSelection(mPreviewFormat);
+        }
+    }
+
     void layoutPreview() {
         int width = mPreviewSizes.get(mPreviewSize).width;
         int height = mPreviewSizes.get(mPreviewSize).height;
@@ -1426,32 +1734,76 @@ public class TestingCamera extends Activity
             int height = mPreviewSizes.get(mPreviewSize).height;
             int format = mPreviewFormats.get(mPreviewFormat);
 
+            // Each processor has its own worker thread
+            if (mCallbackProcessor != null && !mCallbackProcessor.stop()) {
+                logE("Can't stop preview callback processing!");
+            }
             mCallbackProcessor = new CallbackProcessor(width, height, format,
                     getResources(), mCallbackView,
-                    callbackWidth, callbackHeight, mRS);
+                    callbackWidth, callbackHeight, mRS, mCallbackBackend,
+                    mVerifyCallbacksCheckBox.isChecked());
 
             int size = getCallbackBufferSize(width, height, format);
             log("Configuring callbacks:" + width + " x " + height +
                     " , format " + format);
-            for (int i = 0; i < CALLBACK_BUFFER_COUNT; i++) {
-                mCamera.addCallbackBuffer(new byte[size]);
-            }
+            mCallbackBufferPool.start(mCamera, size);
             mCamera.setPreviewCallbackWithBuffer(this);
         }
         mLastCallbackTimestamp = -1;
         mCallbackFrameCount = 0;
         mCallbackAvgFrameDuration = 30;
+        finishCallbackIntervals();
     }
 
     private void stopCallbacks() {
         if (mState >= CAMERA_OPEN) {
             mCamera.setPreviewCallbackWithBuffer(null);
+            mCallbackBufferPool.stop();
+            log("Preview callbacks: " + mCallbackBufferPool.getSummary());
             if (mCallbackProcessor != null) {
+                log("Callback frames " + mCallbackProcessor.getSummary());
                 if (!mCallbackProcessor.stop()) {
                     logE("Can't stop preview callback processing!");
                 }
             }
         }
+        finishCallbackIntervals();
+    }
+
+    /**
+     * Log and export the callback intervals so far, if any, and start over.
+     */
+    private void finishCallbackIntervals() {
+        if (mCallbackIntervals.getCount() > 0) {
+            log("Callback intervals: " + mCallbackIntervals.getSummary());
+            exportCallbackIntervals();
+        }
+        int frameRate = mParams != null ? mParams.getPreviewFrameRate() : 0;
+        mCallbackIntervals.reset(frameRate > 0 ? 1000000000L / frameRate : 0);
+        mLastCallbackTimestampNs = -1;
+    }
+
+    private void exportCallbackIntervals() {
+        File outputFile = getOutputMediaFile(MEDIA_TYPE_FRAME_STATS);
+        if (outputFile == null) {
+            logE("Unable to create callback interval file");
+            return;
+        }
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(outputFile));
+            try {
+                mCallbackIntervals.writeCsv(out);
+            } finally {
+                out.close();
+            }
+            if (out.checkError()) {
+                logE("Error writing callback intervals to " + outputFile);
+            } else {
+                log("Callback intervals saved to " + outputFile);
+            }
+        } catch (IOException e) {
+            logE("Unable to write callback intervals: " + e.getMessage());
+        }
     }
 
     @Override
@@ -1464,18 +1816,27 @@ public class TestingCamera extends Activity
                     frameDuration * MEAN_FPS_MEASUREMENT_COEFF;
         }
         mLastCallbackTimestamp = timestamp;
+        long timestampNs = SystemClock.elapsedRealtimeNanos();
+        if (mLastCallbackTimestampNs != -1) {
+            mCallbackIntervals.record(timestampNs - mLastCallbackTimestampNs);
+        }
+        mLastCallbackTimestampNs = timestampNs;
+        mCallbackBufferPool.onFrame(data, timestamp);
         if (mState < CAMERA_PREVIEW || !mCallbacksEnabled) {
-            mCamera.addCallbackBuffer(data);
+            mCallbackBufferPool.release(data);
             return;
         }
         mCallbackFrameCount++;
         if (mCallbackFrameCount % FPS_REPORTING_PERIOD == 0) {
             log("Got " + FPS_REPORTING_PERIOD + " callback frames, fps "
                     + 1e3/mCallbackAvgFrameDuration);
+            log("Callback intervals: " + mCallbackIntervals.getSummary());
+            log("Callback frames " + mCallbackProcessor.getSummary());
+            log("Preview callbacks: " + mCallbackBufferPool.getSummary());
         }
         mCallbackProcessor.displayCallback(data);
-
-        mCamera.addCallbackBuffer(data);
+        mCallbackBufferPool.onProcessed(data,
+                SystemClock.elapsedRealtime() - timestamp);
     }
 
     @Override
@@ -1500,6 +1861,7 @@ public class TestingCamera extends Activity
 
     static final int MEDIA_TYPE_IMAGE = 0;
     static final int MEDIA_TYPE_VIDEO = 1;
+    static final int MEDIA_TYPE_FRAME_STATS = 2;
     @SuppressLint("SimpleDateFormat")
     File getOutputMediaFile(int type){
         // To be safe, you should check that the SDCard is mounted
@@ -1532,6 +1894,9 @@ public class TestingCamera extends Activity
         } else if(type == MEDIA_TYPE_VIDEO) {
             mediaFile = new File(mediaStorageDir.getPath() + File.separator +
             "VID_"+ timeStamp + ".mp4");
+        } else if(type == MEDIA_TYPE_FRAME_STATS) {
+            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
+            "FRAMES_"+ timeStamp + ".csv");
         } else {
             return null;
         }
@@ -1588,7 +1953,10 @@ public class TestingCamera extends Activity
         log("Configuring MediaRecoder");
 
         mRecordHandoffCheckBox.setEnabled(false);
+        mParamsTransaction.applyNow();
         if (mRecordHandoffCheckBox.isChecked()) {
+            mParamsTransaction.stop();
+            mCallbackBufferPool.stop();
             mCamera.release();
         } else {
             mCamera.unlock();
@@ -1752,7 +2120,7 @@ public class TestingCamera extends Activity
             String colorEffect = mColorEffects.get(mColorEffect);
             log("Setting color effect to " + colorEffect);
             mParams.setColorEffect(colorEffect);
-            mCamera.setParameters(mParams);
+            mParamsTransaction.request();
         }
 
         @Override
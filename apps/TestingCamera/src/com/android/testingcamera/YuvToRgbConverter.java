@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts preview callback data to ARGB pixels for display, without RenderScript.
+ *
+ * The conversion follows the kernels in callback.rs: the output is scaled from the input
+ * with nearest-neighbor sampling, and converted with the JFIF YCbCr to RGB matrix in
+ * single-precision float, clamped and truncated. Since callback.rs is built with relaxed
+ * floating point, its output may differ from this by one in any channel.
+ *
+ * Rows are split into bands converted in parallel, either in Java or by the native
+ * library; the calling thread converts the last band. Each converter owns its threads,
+ * so release() must be called when it's no longer needed.
+ *
+ * Has no framework dependencies, so it can also be run on the host.
+ */
+public class YuvToRgbConverter {
+    // Values of the android.graphics.ImageFormat constants, as in callback.rs
+    static final int FORMAT_UNKNOWN = 0;
+    static final int FORMAT_RGB_565 = 4;
+    static final int FORMAT_NV16 = 0x10;
+    static final int FORMAT_NV21 = 0x11;
+    static final int FORMAT_YUY2 = 0x14;
+    static final int FORMAT_YV12 = 0x32315659;
+
+    // Kernels of callback.rs; also used by the native library
+    static final int KERNEL_UNKNOWN = 0;
+    static final int KERNEL_SEMIPLANAR = 1;
+    static final int KERNEL_PLANAR = 2;
+    static final int KERNEL_INTERLEAVED = 3;
+
+    /**
+     * JFIF standard YCbCr <-> RGB conversion matrix,
+     * column-major order, as in callback.rs.
+     */
+    private static final float[] YUV2RGB = {
+        1.0f, 1.0f, 1.0f, 0.0f,
+        0.0f, -0.34414f, 1.772f, 0.0f,
+        1.402f, -0.71414f, 0.0f, 0.0f,
+        -0.701f, 0.529f, -0.886f, 1.0f
+    };
+
+    private final int mOutWidth;
+    private final int mOutHeight;
+    private final int mKernel;
+    private final boolean mUseNative;
+
+    // Derived as in init_convert() in callback.rs
+    private final int mYStride;
+    private final int mUvStride;
+    private final int mUStart;
+    private final int mVStart;
+    private final float mXScale;
+    private final float mYScale;
+
+    private final int mBandCount;
+    private final ExecutorService mExecutor;
+    private final List<Future<?>> mBandResults = new ArrayList<Future<?>>();
+
+    /**
+     * @param width width of the callback data
+     * @param height height of the callback data
+     * @param format ImageFormat of the callback data
+     * @param outWidth width of the output pixels
+     * @param outHeight height of the output pixels
+     * @param threads how many threads to convert with, including the caller's
+     * @param useNative whether to convert rows with the native library rather than Java
+     */
+    public YuvToRgbConverter(int width, int height, int format,
+            int outWidth, int outHeight, int threads, boolean useNative) {
+        mOutWidth = outWidth;
+        mOutHeight = outHeight;
+        mUseNative = useNative;
+
+        mXScale = (float) width / outWidth;
+        mYScale = (float) height / outHeight;
+
+        switch (format) {
+        case FORMAT_NV16:
+        case FORMAT_NV21:
+            mYStride = width;
+            mUvStride = width;
+            mVStart = mYStride * height;
+            mUStart = mVStart + 1;
+            break;
+        case FORMAT_YV12:
+            // Minimum align-16 stride
+            mYStride = (width + 0xF) & ~0xF;
+            mUvStride = (mYStride / 2 + 0xF) & ~0xF;
+            mVStart = mYStride * height;
+            mUStart = mVStart + mUvStride * (height / 2);
+            break;
+        case FORMAT_YUY2:
+            mYStride = width * 2;
+            mUvStride = mYStride;
+            mUStart = 1;
+            mVStart = 3;
+            break;
+        case FORMAT_RGB_565:
+        case FORMAT_UNKNOWN:
+        default:
+            mYStride = width;
+            mUvStride = width;
+            mVStart = 0;
+            mUStart = 0;
+        }
+
+        // Kernel choice as in CallbackProcessor
+        switch (format) {
+        case FORMAT_NV21:
+            mKernel = KERNEL_SEMIPLANAR;
+            break;
+        case FORMAT_YV12:
+            mKernel = KERNEL_PLANAR;
+            break;
+        case FORMAT_YUY2:
+            mKernel = KERNEL_INTERLEAVED;
+            break;
+        case FORMAT_UNKNOWN:
+        default:
+            mKernel = KERNEL_UNKNOWN;
+        }
+
+        mBandCount = Math.max(1, Math.min(threads, outHeight));
+        mExecutor = mBandCount > 1 ? Executors.newFixedThreadPool(mBandCount - 1) : null;
+    }
+
+    /**
+     * Convert one frame of callback data.
+     *
+     * @param in callback data, of at least TestingCamera.getCallbackBufferSize() bytes
+     * @param out ARGB output pixels, of at least outWidth * outHeight entries
+     */
+    public void convert(final byte[] in, final int[] out) {
+        mBandResults.clear();
+        for (int band = 0; band < mBandCount - 1; band++) {
+            final int startRow = bandStart(band);
+            final int endRow = bandStart(band + 1);
+            mBandResults.add(mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    convertRows(in, out, startRow, endRow);
+                }
+            }));
+        }
+        convertRows(in, out, bandStart(mBandCount - 1), mOutHeight);
+
+        boolean interrupted = false;
+        try {
+            for (Future<?> result : mBandResults) {
+                while (true) {
+                    try {
+                        result.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Callback conversion failed", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop the conversion threads.
+     */
+    public void release() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    public boolean isNative() {
+        return mUseNative;
+    }
+
+    public int getThreadCount() {
+        return mBandCount;
+    }
+
+    /**
+     * Get the largest difference of any channel between converted pixels and RGBA_8888
+     * output of callback.rs for the same frame.
+     */
+    public static int maxDifference(int[] argb, byte[] rgba, int pixelCount) {
+        int maxDiff = 0;
+        for (int i = 0; i < pixelCount; i++) {
+            int p = argb[i];
+            int o = i * 4;
+            maxDiff = Math.max(maxDiff, Math.abs(((p >> 16) & 0xFF) - (rgba[o] & 0xFF)));
+            maxDiff = Math.max(maxDiff, Math.abs(((p >> 8) & 0xFF) - (rgba[o + 1] & 0xFF)));
+            maxDiff = Math.max(maxDiff, Math.abs((p & 0xFF) - (rgba[o + 2] & 0xFF)));
+            maxDiff = Math.max(maxDiff, Math.abs((p >>> 24) - (rgba[o + 3] & 0xFF)));
+        }
+        return maxDiff;
+    }
+
+    private int bandStart(int band) {
+        return (int) ((long) mOutHeight * band / mBandCount);
+    }
+
+    private void convertRows(byte[] in, int[] out, int startRow, int endRow) {
+        if (mUseNative) {
+            NativeYuvConverter.convertRows(in, out, mKernel, mYStride, mUvStride,
+                    mUStart, mVStart, mXScale, mYScale, mOutWidth, startRow, endRow);
+        } else {
+            convertRowsJava(in, out, startRow, endRow);
+        }
+    }
+
+    private void convertRowsJava(byte[] in, int[] out, int startRow, int endRow) {
+        final float[] m = YUV2RGB;
+        for (int y = startRow; y < endRow; y++) {
+            int yScaled = (int) (y * mYScale);
+            int uvRow = yScaled / 2; // truncation is important here
+            int outIndex = y * mOutWidth;
+            for (int x = 0; x < mOutWidth; x++) {
+                int xScaled = (int) (x * mXScale);
+                int luma;
+                int cb;
+                int cr;
+                switch (mKernel) {
+                case KERNEL_SEMIPLANAR: {
+                    int vuPixel = uvRow * mUvStride + (xScaled & ~0x1);
+                    luma = in[mYStride * yScaled + xScaled] & 0xFF;
+                    cb = in[mUStart + vuPixel] & 0xFF;
+                    cr = in[mVStart + vuPixel] & 0xFF;
+                    break;
+                }
+                case KERNEL_PLANAR: {
+                    int vuPixel = mUvStride * uvRow + xScaled / 2;
+                    luma = in[mYStride * yScaled + xScaled] & 0xFF;
+                    cb = in[mUStart + vuPixel] & 0xFF;
+                    cr = in[mVStart + vuPixel] & 0xFF;
+                    break;
+                }
+                case KERNEL_INTERLEAVED: {
+                    int vuPixel = mYStride * yScaled + 2 * (xScaled & ~0x1);
+                    luma = in[mYStride * yScaled + xScaled * 2] & 0xFF;
+                    cb = in[mUStart + vuPixel] & 0xFF;
+                    cr = in[mVStart + vuPixel] & 0xFF;
+                    break;
+                }
+                case KERNEL_UNKNOWN:
+                default:
+                    luma = in[mYStride * yScaled + xScaled] & 0xFF;
+                    cb = 128;
+                    cr = 128;
+                }
+                // (luma, cb, cr, 255) times the matrix, as rsMatrixMultiply does
+                float r = m[0] * luma + m[4] * cb + m[8] * cr + m[12] * 255;
+                float g = m[1] * luma + m[5] * cb + m[9] * cr + m[13] * 255;
+                float b = m[2] * luma + m[6] * cb + m[10] * cr + m[14] * 255;
+                float a = m[3] * luma + m[7] * cb + m[11] * cr + m[15] * 255;
+                out[outIndex + x] = clamp(a) << 24 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+            }
+        }
+    }
+
+    // Clamp to range [0, 255] and truncate, as convert_uchar4 does
+    private static int clamp(float value) {
+        return (int) Math.min(Math.max(value, 0f), 255f);
+    }
+}
@@ -34,4 +34,7 @@ LOCAL_PACKAGE_NAME := TestingCamera2
 
 include $(BUILD_PACKAGE)
 
+# Host-side tools for working with TestingCamera2 output
+include $(call all-makefiles-under,$(LOCAL_PATH))
+
 endif
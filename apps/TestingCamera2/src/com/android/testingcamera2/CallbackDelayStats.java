@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import android.os.SystemClock;
+
+/**
+ * Measures how late capture callbacks are dispatched, as the time from the start of exposure
+ * to the onCaptureStarted callback running. This includes the camera pipeline's own shutter
+ * notification latency, which doesn't depend on the callback thread, so compare results
+ * between callback threads rather than reading them as absolute dispatch delays.
+ *
+ * <p>Only meaningful when sensor timestamps use the elapsed realtime clock. Statistics are
+ * reported to the log and reset every REPORT_INTERVAL callbacks.</p>
+ */
+public class CallbackDelayStats {
+
+    private static final int REPORT_INTERVAL = 300;
+
+    private final String mName;
+    private int mCount;
+    private long mTotalNs;
+    private long mMaxNs;
+
+    /**
+     * @param name what the callbacks are, for the log
+     */
+    public CallbackDelayStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Record a callback for a frame, from the thread running the callback.
+     *
+     * @param timestampNs the frame's start of exposure, in the elapsed realtime clock
+     */
+    public synchronized void onCallback(long timestampNs) {
+        long delayNs = SystemClock.elapsedRealtimeNanos() - timestampNs;
+        mCount++;
+        mTotalNs += delayNs;
+        mMaxNs = Math.max(mMaxNs, delayNs);
+        if (mCount == REPORT_INTERVAL) {
+            TLog.i("%s: exposure start to callback avg %.2f ms, max %.2f ms over %d frames",
+                    mName, mTotalNs / 1e6 / mCount, mMaxNs / 1e6, mCount);
+            reset();
+        }
+    }
+
+    public synchronized void reset() {
+        mCount = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+    }
+}
@@ -22,8 +22,12 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
 import android.view.Surface;
@@ -32,6 +36,7 @@ import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.Spinner;
 import android.widget.TextView;
@@ -120,6 +125,8 @@ public class CameraControlPane extends ControlPane {
     private Button mConfigureButton;
     private Button mStopButton;
     private Button mFlushButton;
+    private ToggleButton mTraceButton;
+    private CheckBox mUiCallbacksCheckBox;
 
     /**
      * All controls that should be enabled when there's a valid camera ID
@@ -145,11 +152,31 @@ public class CameraControlPane extends ControlPane {
     private CameraCaptureSession mCurrentCaptureSession;
     private SessionState mSessionState = SessionState.NONE;
     private CameraCall mActiveCameraCall;
-    private LinkedList<TotalCaptureResult> mRecentResults = new LinkedList<>();
+    // Guarded by itself; filled on the callback thread and read from the UI thread
+    private final LinkedList<TotalCaptureResult> mRecentResults = new LinkedList<>();
+    private final List<ResultListener> mResultListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Device, session and capture callbacks run on this pane's own thread, so they don't wait
+     * behind layout and log updates on the UI thread; UI updates are posted back to mUiHandler.
+     * Started by the constructors that set up a camera, and quit in remove().
+     */
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    // The handler of the currently open camera: mCallbackHandler, or mUiHandler to compare
+    // against running the callbacks on the UI thread
+    private Handler mActiveCallbackHandler;
+    private final CallbackDelayStats mCallbackDelayStats =
+            new CallbackDelayStats("Capture callbacks");
+    private volatile boolean mMeasureCallbackDelay = false;
 
     private List<Surface> mConfiguredSurfaces;
     private List<TargetControlPane> mConfiguredTargetPanes;
 
+    // Written to on the callback thread
+    private volatile CaptureTraceWriter mTraceWriter;
+
     /**
      * Constructor for tooling only
      */
@@ -165,6 +192,7 @@ public class CameraControlPane extends ControlPane {
         super(tc, attrs, listener, tc.getPaneTracker());
 
         mPaneId = mCameraPaneIdCounter++;
+        startCallbackThread();
         setUpUI(tc);
         initializeCameras(tc);
 
@@ -194,6 +222,7 @@ public class CameraControlPane extends ControlPane {
         configParser.next();
         configParser.require(XmlPullParser.END_TAG, XmlPullParser.NO_NAMESPACE, PANE_NAME);
 
+        startCallbackThread();
         setUpUI(tc);
         initializeCameras(tc);
 
@@ -213,9 +242,20 @@ public class CameraControlPane extends ControlPane {
         }
     }
 
+    private void startCallbackThread() {
+        mCallbackThread = new HandlerThread("CameraControlPane callbacks");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mActiveCallbackHandler = mCallbackHandler;
+    }
+
     @Override
     public void remove() {
         closeCurrentCamera();
+        if (mCallbackThread != null) {
+            // Let the camera's last callbacks run first
+            mCallbackThread.quitSafely();
+        }
         super.remove();
     }
 
@@ -235,6 +275,23 @@ public class CameraControlPane extends ControlPane {
         public void showCameraInfo(String cameraId);
     }
 
+    /**
+     * Interface to be implemented by panes that need every capture result from this camera,
+     * such as target panes recording per-frame metadata. Called on the camera's callback
+     * thread, not the UI thread.
+     */
+    public interface ResultListener {
+        public void onCaptureCompleted(TotalCaptureResult result);
+    }
+
+    public void addResultListener(ResultListener listener) {
+        mResultListeners.add(listener);
+    }
+
+    public void removeResultListener(ResultListener listener) {
+        mResultListeners.remove(listener);
+    }
+
     public CameraCharacteristics getCharacteristics() {
         if (mCurrentCameraId != null) {
             return mCameraOps.getCameraInfo(mCurrentCameraId);
@@ -267,7 +324,7 @@ public class CameraControlPane extends ControlPane {
     public boolean capture(CaptureRequest request) {
         if (mCurrentCaptureSession != null) {
             try {
-                mCurrentCaptureSession.capture(request, mResultListener, null);
+                mCurrentCaptureSession.capture(request, mResultListener, mActiveCallbackHandler);
                 return true;
             } catch (CameraAccessException e) {
                 TLog.e("Unable to capture for camera %s.", e, mCurrentCameraId);
@@ -279,7 +336,8 @@ public class CameraControlPane extends ControlPane {
     public boolean repeat(CaptureRequest request) {
         if (mCurrentCaptureSession != null) {
             try {
-                mCurrentCaptureSession.setRepeatingRequest(request, mResultListener, null);
+                mCurrentCaptureSession.setRepeatingRequest(request, mResultListener,
+                        mActiveCallbackHandler);
                 return true;
             } catch (CameraAccessException e) {
                 TLog.e("Unable to set repeating request for camera %s.", e, mCurrentCameraId);
@@ -289,10 +347,12 @@ public class CameraControlPane extends ControlPane {
     }
 
     public TotalCaptureResult getResultAt(long timestamp) {
-        for (TotalCaptureResult result : mRecentResults) {
-            long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
-            if (resultTimestamp == timestamp) return result;
-            if (resultTimestamp > timestamp) return null;
+        synchronized (mRecentResults) {
+            for (TotalCaptureResult result : mRecentResults) {
+                long resultTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (resultTimestamp == timestamp) return result;
+                if (resultTimestamp > timestamp) return null;
+            }
         }
         return null;
     }
@@ -311,13 +371,30 @@ public class CameraControlPane extends ControlPane {
     }
 
     private CaptureCallback mResultListener = new CaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                long timestamp, long frameNumber) {
+            if (mMeasureCallbackDelay) {
+                mCallbackDelayStats.onCallback(timestamp);
+            }
+        }
+
         public void onCaptureCompleted(
                 CameraCaptureSession session,
                 CaptureRequest request,
                 TotalCaptureResult result) {
-            mRecentResults.add(result);
-            if (mRecentResults.size() > MAX_CACHED_RESULTS) {
-                mRecentResults.remove();
+            CaptureTraceWriter traceWriter = mTraceWriter;
+            if (traceWriter != null) {
+                traceWriter.write(result);
+            }
+            synchronized (mRecentResults) {
+                mRecentResults.add(result);
+                if (mRecentResults.size() > MAX_CACHED_RESULTS) {
+                    mRecentResults.remove();
+                }
+            }
+            for (ResultListener listener : mResultListeners) {
+                listener.onCaptureCompleted(result);
             }
         }
     };
@@ -357,6 +434,11 @@ public class CameraControlPane extends ControlPane {
         mFlushButton = (Button) findViewById(R.id.camera_pane_flush_button);
         mFlushButton.setOnClickListener(mFlushButtonListener);
         mConfiguredControls.add(mFlushButton);
+        mTraceButton = (ToggleButton) findViewById(R.id.camera_pane_trace_button);
+        mTraceButton.setOnCheckedChangeListener(mTraceButtonListener);
+        mOpenControls.add(mTraceButton);
+        mUiCallbacksCheckBox = (CheckBox) findViewById(R.id.camera_pane_ui_callbacks);
+        mBaseControls.add(mUiCallbacksCheckBox);
     }
 
     private void initializeCameras(TestingCamera21 tc) {
@@ -389,7 +471,11 @@ public class CameraControlPane extends ControlPane {
                     if (isChecked) {
                         // Open camera
                         mCurrentCamera = null;
-                        mCameraOps.openCamera(mCurrentCameraId, mCameraListener);
+                        mActiveCallbackHandler = mUiCallbacksCheckBox.isChecked() ?
+                                mUiHandler : mCallbackHandler;
+                        startCallbackDelayStats();
+                        mCameraOps.openCamera(mCurrentCameraId, mCameraListener,
+                                mActiveCallbackHandler);
                     } else {
                         // Close camera
                         closeCurrentCamera();
@@ -430,6 +516,27 @@ public class CameraControlPane extends ControlPane {
         }
     };
 
+    private final CompoundButton.OnCheckedChangeListener mTraceButtonListener =
+            new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    if (isChecked) {
+                        if (mTraceWriter == null && mCurrentCameraId != null) {
+                            mTraceWriter = CaptureTraceWriter.create(mCurrentCameraId,
+                                    getCharacteristics());
+                            if (mTraceWriter == null) {
+                                buttonView.setChecked(false);
+                                return;
+                            }
+                            TLog.i("Tracing capture results for camera %s to %s",
+                                    mCurrentCameraId, mTraceWriter.getFile().getName());
+                        }
+                    } else {
+                        stopTracing();
+                    }
+                }
+            };
+
     private final OnClickListener mConfigureButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -447,7 +554,8 @@ public class CameraControlPane extends ControlPane {
                         targetSurfaces.size());
                 mActiveCameraCall = CameraCall.CONFIGURE;
                 if (targetSurfaces.size() > 0) {
-                    mCurrentCamera.createCaptureSession(targetSurfaces, mSessionListener, /*handler*/null);
+                    mCurrentCamera.createCaptureSession(targetSurfaces, mSessionListener,
+                            mActiveCallbackHandler);
                 } else if (mCurrentCaptureSession != null) {
                     mCurrentCaptureSession.close();
                     mCurrentCaptureSession = null;
@@ -471,24 +579,34 @@ public class CameraControlPane extends ControlPane {
             new CameraCaptureSession.StateCallback() {
 
         @Override
-        public void onConfigured(CameraCaptureSession session) {
-            mCurrentCaptureSession = session;
-            TLog.i("Configuration completed for camera %s.", mCurrentCamera.getId());
+        public void onConfigured(final CameraCaptureSession session) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mCurrentCaptureSession = session;
+                    TLog.i("Configuration completed for camera %s.", mCurrentCamera.getId());
 
-            setSessionState(SessionState.CONFIGURED);
+                    setSessionState(SessionState.CONFIGURED);
+                }
+            });
         }
 
         @Override
         public void onConfigureFailed(CameraCaptureSession session) {
-            mActiveCameraCall = CameraCall.NONE;
-            TLog.e("Configuration failed for camera %s.", mCurrentCamera.getId());
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mActiveCameraCall = CameraCall.NONE;
+                    TLog.e("Configuration failed for camera %s.", mCurrentCamera.getId());
 
-            setSessionState(SessionState.CONFIGURE_FAILED);
+                    setSessionState(SessionState.CONFIGURE_FAILED);
+                }
+            });
         }
 
         @Override
         public void onReady(CameraCaptureSession session) {
-            setSessionState(SessionState.READY);
+            postSessionState(SessionState.READY);
         }
 
         /**
@@ -503,7 +621,7 @@ public class CameraControlPane extends ControlPane {
          */
         @Override
         public void onActive(CameraCaptureSession session) {
-            setSessionState(SessionState.ACTIVE);
+            postSessionState(SessionState.ACTIVE);
         }
 
         /**
@@ -519,12 +637,17 @@ public class CameraControlPane extends ControlPane {
          * as normal.</p>
          */
         @Override
-        public void onClosed(CameraCaptureSession session) {
-            // Ignore closes if the session has been replaced
-            if (mCurrentCaptureSession != null && session != mCurrentCaptureSession) {
-                return;
-            }
-            setSessionState(SessionState.CLOSED);
+        public void onClosed(final CameraCaptureSession session) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Ignore closes if the session has been replaced
+                    if (mCurrentCaptureSession != null && session != mCurrentCaptureSession) {
+                        return;
+                    }
+                    setSessionState(SessionState.CLOSED);
+                }
+            });
         }
 
         @Override
@@ -537,27 +660,84 @@ public class CameraControlPane extends ControlPane {
     private final CameraDevice.StateCallback mCameraListener = new CameraDevice.StateCallback() {
         @Override
         public void onClosed(CameraDevice camera) {
-            // Don't change state on close, tracked by callers of close()
-            mOpenButton.setChecked(false);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    // Don't change state on close, tracked by callers of close()
+                    mOpenButton.setChecked(false);
+                }
+            });
         }
 
         @Override
         public void onDisconnected(CameraDevice camera) {
-            setCameraState(CameraState.DISCONNECTED);
+            postCameraState(CameraState.DISCONNECTED);
         }
 
         @Override
         public void onError(CameraDevice camera, int error) {
-            setCameraState(CameraState.ERROR);
+            postCameraState(CameraState.ERROR);
         }
 
         @Override
-        public void onOpened(CameraDevice camera) {
-            mCurrentCamera = camera;
-            setCameraState(CameraState.OPENED);
+        public void onOpened(final CameraDevice camera) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    mCurrentCamera = camera;
+                    setCameraState(CameraState.OPENED);
+                }
+            });
         }
     };
 
+    /**
+     * Run a UI update from a camera callback: right away if the callbacks already run on the
+     * UI thread, posted to it otherwise.
+     */
+    private void runOnUiThread(Runnable r) {
+        if (Looper.myLooper() == mUiHandler.getLooper()) {
+            r.run();
+        } else {
+            mUiHandler.post(r);
+        }
+    }
+
+    private void postSessionState(final SessionState newState) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setSessionState(newState);
+            }
+        });
+    }
+
+    private void postCameraState(final CameraState newState) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                setCameraState(newState);
+            }
+        });
+    }
+
+    /**
+     * Start measuring callback dispatch delay for the camera being opened, if its timestamps
+     * can be compared with the elapsed realtime clock.
+     */
+    private void startCallbackDelayStats() {
+        mCallbackDelayStats.reset();
+        CameraCharacteristics info = getCharacteristics();
+        Integer timestampSource = info == null ? null :
+                info.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        mMeasureCallbackDelay = timestampSource != null && timestampSource ==
+                CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        if (mMeasureCallbackDelay) {
+            TLog.i("Measuring capture callback delay for camera %s on the %s thread",
+                    mCurrentCameraId, mActiveCallbackHandler == mUiHandler ? "UI" : "callback");
+        }
+    }
+
     private void switchToCamera(String newCameraId) {
         closeCurrentCamera();
 
@@ -572,7 +752,25 @@ public class CameraControlPane extends ControlPane {
         mPaneTracker.notifyOtherPanes(this, PaneTracker.PaneEvent.NEW_CAMERA_SELECTED);
     }
 
+    private void stopTracing() {
+        final CaptureTraceWriter traceWriter = mTraceWriter;
+        if (traceWriter != null) {
+            mTraceWriter = null;
+            // Close after any result being written on the callback thread
+            mActiveCallbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    traceWriter.close();
+                }
+            });
+        }
+    }
+
     private void closeCurrentCamera() {
+        if (mTraceButton.isChecked()) {
+            // Closes the trace through the button listener
+            mTraceButton.setChecked(false);
+        }
         if (mCurrentCamera != null) {
             mCurrentCamera.close();
             mCurrentCamera = null;
@@ -16,6 +16,7 @@
 
 package com.android.testingcamera2;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -26,6 +27,7 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraAccessException;
+import android.os.Handler;
 
 /**
  * A central manager of camera devices and current clients for them.
@@ -35,12 +37,15 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
 
     private final CameraManager mCameraManager;
     private final Activity mActivity;
-    private final Set<CameraDevice> mOpenCameras = new HashSet<CameraDevice>();
+    // Updated from the device callbacks, which may run on any client's handler
+    private final Set<CameraDevice> mOpenCameras =
+            Collections.synchronizedSet(new HashSet<CameraDevice>());
 
     // For persisting values for permission requests
     private static final int PERMISSIONS_REQUEST_CAMERA = 1;
     private String mDelayedOpenId = null;
     private CameraDevice.StateCallback mDelayedOpenListener = null;
+    private Handler mDelayedOpenHandler = null;
 
     public CameraOps2(Activity activity) {
         mActivity = activity;
@@ -103,10 +108,23 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
      *         for its listener to be called to determine if open will succeed.
      */
     public boolean openCamera(String cameraId, CameraDevice.StateCallback listener) {
-        for (CameraDevice camera : mOpenCameras) {
-            if (camera.getId() == cameraId) {
-                TLog.e("Camera %s is already open", cameraId);
-                return false;
+        return openCamera(cameraId, listener, /*handler*/null);
+    }
+
+    /**
+     * Attempt to open a camera device, with its state callbacks running on the given handler.
+     *
+     * @param handler handler for the listener, or null for the calling thread's looper
+     * @see #openCamera(String, CameraDevice.StateCallback)
+     */
+    public boolean openCamera(String cameraId, CameraDevice.StateCallback listener,
+            Handler handler) {
+        synchronized (mOpenCameras) {
+            for (CameraDevice camera : mOpenCameras) {
+                if (camera.getId() == cameraId) {
+                    TLog.e("Camera %s is already open", cameraId);
+                    return false;
+                }
             }
         }
         if ((mActivity.checkSelfPermission(Manifest.permission.CAMERA)
@@ -117,6 +135,7 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
 
             mDelayedOpenId = cameraId;
             mDelayedOpenListener = listener;
+            mDelayedOpenHandler = handler;
 
             mActivity.requestPermissions(new String[] {
                         Manifest.permission.CAMERA,
@@ -125,13 +144,14 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
             return false;
         }
 
-        return doOpenCamera(cameraId, listener);
+        return doOpenCamera(cameraId, listener, handler);
     }
 
-    private boolean doOpenCamera(String cameraId, CameraDevice.StateCallback listener) {
+    private boolean doOpenCamera(String cameraId, CameraDevice.StateCallback listener,
+            Handler handler) {
         try {
             DeviceStateCallback proxyListener = new DeviceStateCallback(listener);
-            mCameraManager.openCamera(cameraId, proxyListener, null);
+            mCameraManager.openCamera(cameraId, proxyListener, handler);
         } catch (CameraAccessException e) {
             TLog.e("Unable to open camera %s.", e, cameraId);
             return false;
@@ -146,10 +166,11 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 TLog.i("Camera permission granted");
                 if (mDelayedOpenId != null && mDelayedOpenListener != null) {
-                    doOpenCamera(mDelayedOpenId, mDelayedOpenListener);
+                    doOpenCamera(mDelayedOpenId, mDelayedOpenListener, mDelayedOpenHandler);
                 }
                 mDelayedOpenId = null;
                 mDelayedOpenListener = null;
+                mDelayedOpenHandler = null;
             } else {
                 TLog.i("Camera permission denied, not opening camera");
                 if (mDelayedOpenId != null && mDelayedOpenListener != null) {
@@ -157,6 +178,7 @@ public class CameraOps2 extends CameraManager.AvailabilityCallback {
                             CameraDevice.StateCallback.ERROR_CAMERA_DISABLED);
                     mDelayedOpenId = null;
                     mDelayedOpenListener = null;
+                    mDelayedOpenHandler = null;
                 }
             }
             if (grantResults[1] == PackageManager.PERMISSION_GRANTED) {
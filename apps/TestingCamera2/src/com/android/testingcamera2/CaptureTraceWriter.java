@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Environment;
+import android.os.SystemClock;
+
+/**
+ * Writes one line per capture result to a plain-text trace file, for offline analysis on a
+ * host machine with the trace analyzer in tools/traceanalyzer.
+ *
+ * <p>The format is a comment header followed by comma-separated lines of
+ * {@link #TRACE_COLUMNS}. Missing values are written as -1. Result arrival times are taken in
+ * the same time base as the sensor timestamps, so the difference between the two is the
+ * capture-to-result latency.</p>
+ */
+public class CaptureTraceWriter {
+
+    public static final String TRACE_VERSION = "# tc2trace v1";
+    public static final String TRACE_COLUMNS =
+            "frame_number,sensor_timestamp_ns,result_timestamp_ns,ae_state,af_state,awb_state," +
+            "exposure_time_ns,sensitivity,frame_duration_ns";
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Writer mWriter;
+    private final File mFile;
+    private final boolean mRealtimeTimestamps;
+    private final StringBuilder mLine = new StringBuilder(128);
+    private long mLineCount = 0;
+
+    private CaptureTraceWriter(File file, String cameraId, boolean realtimeTimestamps)
+            throws IOException {
+        mFile = file;
+        mRealtimeTimestamps = realtimeTimestamps;
+        mWriter = new BufferedWriter(new FileWriter(file), WRITE_BUFFER_SIZE);
+        mWriter.write(TRACE_VERSION);
+        mWriter.write("\n# camera_id=");
+        mWriter.write(cameraId);
+        mWriter.write("\n# timestamp_source=");
+        mWriter.write(realtimeTimestamps ? "REALTIME" : "UNKNOWN");
+        mWriter.write("\n# ");
+        mWriter.write(TRACE_COLUMNS);
+        mWriter.write('\n');
+    }
+
+    /**
+     * Create a new trace file for the given camera in the TestingCamera2 media directory.
+     *
+     * @return the new writer, or null if the trace file cannot be created
+     */
+    public static CaptureTraceWriter create(String cameraId, CameraCharacteristics info) {
+        File traceFile = getOutputTraceFile(cameraId);
+        if (traceFile == null) {
+            return null;
+        }
+        Integer timestampSource = info.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        boolean realtime = timestampSource != null &&
+                timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        try {
+            return new CaptureTraceWriter(traceFile, cameraId, realtime);
+        } catch (IOException e) {
+            TLog.e("Unable to create capture trace file %s", e, traceFile);
+            return null;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Append a result to the trace; must be called as soon as the result arrives so that the
+     * recorded arrival time is meaningful.
+     */
+    public void write(TotalCaptureResult result) {
+        long arrivalNs = mRealtimeTimestamps ?
+                SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+        mLine.setLength(0);
+        mLine.append(result.getFrameNumber()).append(',');
+        appendValue(result.get(CaptureResult.SENSOR_TIMESTAMP));
+        mLine.append(arrivalNs).append(',');
+        appendValue(result.get(CaptureResult.CONTROL_AE_STATE));
+        appendValue(result.get(CaptureResult.CONTROL_AF_STATE));
+        appendValue(result.get(CaptureResult.CONTROL_AWB_STATE));
+        appendValue(result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+        appendValue(result.get(CaptureResult.SENSOR_SENSITIVITY));
+        Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        mLine.append(frameDuration != null ? frameDuration : -1).append('\n');
+        try {
+            mWriter.append(mLine);
+            mLineCount++;
+        } catch (IOException e) {
+            TLog.e("Unable to write to capture trace %s", e, mFile);
+        }
+    }
+
+    public void close() {
+        try {
+            mWriter.close();
+            TLog.i("Wrote %d results to capture trace %s", mLineCount, mFile.getName());
+        } catch (IOException e) {
+            TLog.e("Unable to close capture trace %s", e, mFile);
+        }
+    }
+
+    private void appendValue(Number value) {
+        if (value != null) {
+            mLine.append(value.longValue());
+        } else {
+            mLine.append(-1);
+        }
+        mLine.append(',');
+    }
+
+    private static File getOutputTraceFile(String cameraId) {
+        String state = Environment.getExternalStorageState();
+        if (!Environment.MEDIA_MOUNTED.equals(state)) {
+            TLog.e("External storage not mounted, cannot write capture trace");
+            return null;
+        }
+
+        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM), "TestingCamera2");
+        if (!mediaStorageDir.exists()) {
+            if (!mediaStorageDir.mkdirs()) {
+                TLog.e("Failed to create directory for capture traces");
+                return null;
+            }
+        }
+
+        String timeStamp = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss_SSS").format(new Date());
+        return new File(mediaStorageDir.getPath() + File.separator +
+                "TRACE_" + timeStamp + "_cam" + cameraId + ".csv");
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decodes DEPTH16 images into false-color ARGB pixels for display.
+ *
+ * <p>Each DEPTH16 sample holds a 13-bit range in millimeters in its low bits and a 3-bit
+ * confidence in its high bits. Confidence 0 means 100%, and values 1-7 map to 0% through
+ * 6/7. Pixels with no range or with confidence below the configured minimum are masked out
+ * in black. The rest are colored with a perceptual colormap, auto-ranged to the nearest and
+ * farthest valid ranges in the image; near is red and far is blue.</p>
+ *
+ * <p>Large images are decoded in parallel row bands. A decoder instance isn't thread-safe,
+ * but different instances can be used concurrently.</p>
+ *
+ * <p>This class has no framework dependencies, so it is also built into the host benchmarks.</p>
+ */
+public class Depth16Decoder {
+
+    public static final int RANGE_MASK = 0x1FFF;
+    public static final int MAX_RANGE = RANGE_MASK;
+    public static final int CONFIDENCE_SHIFT = 13;
+
+    public static final float DEFAULT_MIN_CONFIDENCE = 0.25f;
+
+    private static final int MASKED_COLOR = 0xff000000;
+    private static final int COLORMAP_SIZE = 256;
+
+    // Below this many output pixels, threading costs more than it saves
+    private static final int MIN_PARALLEL_PIXELS = 64 * 1024;
+
+    private static final int[] sColormap = createColormap();
+
+    private static final int sThreadCount = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService sExecutor;
+
+    private int mMinConfidenceCode;
+    private int mLastMinRange;
+    private int mLastMaxRange;
+
+    public Depth16Decoder() {
+        setMinConfidence(DEFAULT_MIN_CONFIDENCE);
+    }
+
+    /**
+     * Get the range, in millimeters, of a DEPTH16 sample. 0 means no measurement.
+     */
+    public static int getRange(short sample) {
+        return sample & RANGE_MASK;
+    }
+
+    /**
+     * Get the confidence of a DEPTH16 sample, from 0 to 1.
+     */
+    public static float getConfidence(short sample) {
+        int code = (sample >> CONFIDENCE_SHIFT) & 0x7;
+        return code == 0 ? 1.f : (code - 1) / 7.f;
+    }
+
+    /**
+     * Set the minimum confidence, from 0 to 1, for a pixel to be shown rather than masked.
+     */
+    public void setMinConfidence(float minConfidence) {
+        // Rank confidence codes so that a single comparison works: 0 is the highest
+        mMinConfidenceCode = 0;
+        for (int code = 1; code < 8; code++) {
+            if ((code - 1) / 7.f >= minConfidence) {
+                mMinConfidenceCode = code;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the nearest valid range seen by the last decode call, in millimeters.
+     */
+    public int getLastMinRange() {
+        return mLastMinRange;
+    }
+
+    /**
+     * Get the farthest valid range seen by the last decode call, in millimeters.
+     */
+    public int getLastMaxRange() {
+        return mLastMaxRange;
+    }
+
+    /**
+     * Convert a DEPTH16 image to false-color ARGB pixels, subsampling by the given scale
+     * factor.
+     *
+     * @param depth DEPTH16 samples; the position is ignored
+     * @param width image width in pixels
+     * @param height image height in pixels
+     * @param rowStride distance between rows in samples (not bytes)
+     * @param scale subsampling factor, 1 or more
+     * @return (width / scale) * (height / scale) ARGB pixels, in row order
+     */
+    public int[] decode(final ShortBuffer depth, int width, int height, final int rowStride,
+            final int scale) {
+        final int w = width / scale;
+        final int h = height / scale;
+        final int[] out = new int[w * h];
+
+        int bands = (w * h >= MIN_PARALLEL_PIXELS) ? Math.min(sThreadCount, h) : 1;
+        final int[] bandStarts = new int[bands + 1];
+        for (int i = 0; i <= bands; i++) {
+            bandStarts[i] = h * i / bands;
+        }
+
+        // First pass: extract valid ranges into the output, and find their bounds
+        final int[] bandMin = new int[bands];
+        final int[] bandMax = new int[bands];
+        runBands(bands, new Band() {
+            @Override
+            public void run(int band) {
+                long minMax = extractRanges(depth, out, w, bandStarts[band],
+                        bandStarts[band + 1], rowStride, scale);
+                bandMin[band] = (int) (minMax >> 32);
+                bandMax[band] = (int) minMax;
+            }
+        });
+        int min = MAX_RANGE + 1;
+        int max = 0;
+        for (int i = 0; i < bands; i++) {
+            min = Math.min(min, bandMin[i]);
+            max = Math.max(max, bandMax[i]);
+        }
+        if (min > max) {
+            // Nothing valid
+            min = max = 0;
+        }
+        mLastMinRange = min;
+        mLastMaxRange = max;
+
+        // Second pass: colormap lookup in place, as fixed point to keep divides out of the loop
+        final int maxRange = max;
+        final int lutScale = (max > min) ? ((COLORMAP_SIZE - 1) << 16) / (max - min) : 0;
+        runBands(bands, new Band() {
+            @Override
+            public void run(int band) {
+                mapColors(out, bandStarts[band] * w, bandStarts[band + 1] * w, maxRange,
+                        lutScale);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Write the range values of a DEPTH16 image as a 16-bit binary PGM (maxval 8191), without
+     * confidence, for use with external tools.
+     *
+     * @param rowStride distance between rows in samples (not bytes)
+     */
+    public static void writePgm(ShortBuffer depth, int width, int height, int rowStride,
+            OutputStream out) throws IOException {
+        String header = "P5\n" + width + " " + height + "\n" + MAX_RANGE + "\n";
+        out.write(header.getBytes("US-ASCII"));
+        ShortBuffer src = depth.duplicate();
+        short[] samples = new short[width];
+        byte[] row = new byte[width * 2];
+        for (int y = 0; y < height; y++) {
+            src.position(y * rowStride);
+            src.get(samples);
+            for (int x = 0, i = 0; x < width; x++) {
+                int range = samples[x] & RANGE_MASK;
+                // PGM samples are big-endian
+                row[i++] = (byte) (range >> 8);
+                row[i++] = (byte) range;
+            }
+            out.write(row);
+        }
+    }
+
+    /**
+     * Copy the range of each sampled pixel into out, or -1 for masked pixels.
+     *
+     * @return the minimum range in the upper 32 bits and the maximum in the lower 32 bits
+     */
+    private long extractRanges(ShortBuffer depth, int[] out, int w, int yStart, int yEnd,
+            int rowStride, int scale) {
+        // Confidence codes that pass, as all-ones masks; code 0 is full confidence, otherwise
+        // higher is better
+        int[] codeMask = new int[8];
+        codeMask[0] = -1;
+        for (int code = 1; code < 8; code++) {
+            codeMask[code] = (mMinConfidenceCode != 0 && code >= mMinConfidenceCode) ? -1 : 0;
+        }
+        short[] row = new short[(w - 1) * scale + 1];
+        ShortBuffer src = depth.duplicate();
+        int min = MAX_RANGE + 1;
+        int max = 0;
+        for (int y = yStart; y < yEnd; y++) {
+            // Bulk row copies are much faster than per-sample buffer reads
+            src.position(y * scale * rowStride);
+            src.get(row);
+            // Branch-free, since masked pixels tend to be scattered unpredictably
+            for (int x = 0, i = 0, j = y * w; x < w; x++, i += scale, j++) {
+                int sample = row[i] & 0xFFFF;
+                int range = sample & RANGE_MASK;
+                // All ones if the range is nonzero and the confidence is high enough
+                int valid = codeMask[sample >>> CONFIDENCE_SHIFT] & ~((range - 1) >> 31);
+                out[j] = (range & valid) | ~valid;
+                min = Math.min(min, (range & valid) | (~valid & (MAX_RANGE + 1)));
+                max = Math.max(max, range & valid);
+            }
+        }
+        return ((long) min << 32) | (max & 0xFFFFFFFFL);
+    }
+
+    private static void mapColors(int[] out, int start, int end, int maxRange, int lutScale) {
+        int[] colormap = sColormap;
+        for (int j = start; j < end; j++) {
+            int range = out[j];
+            // Nearest is the top of the colormap
+            out[j] = (range < 0) ? MASKED_COLOR : colormap[((maxRange - range) * lutScale) >> 16];
+        }
+    }
+
+    private interface Band {
+        void run(int band);
+    }
+
+    /**
+     * Run all bands, using the shared worker pool for all but the first.
+     */
+    private static void runBands(int bands, final Band task) {
+        if (bands == 1) {
+            task.run(0);
+            return;
+        }
+        ExecutorService executor = getExecutor();
+        List<Future<?>> pending = new ArrayList<Future<?>>(bands - 1);
+        for (int i = 1; i < bands; i++) {
+            final int band = i;
+            pending.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(band);
+                }
+            }));
+        }
+        task.run(0);
+        boolean interrupted = false;
+        for (Future<?> f : pending) {
+            while (true) {
+                try {
+                    f.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // Results are needed regardless; keep waiting
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Depth decoding failed", e.getCause());
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(sThreadCount, new ThreadFactory() {
+                private int mCount = 0;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Depth16Decoder-" + mCount++);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Build the colormap from a polynomial fit of the Turbo colormap, which stays perceptually
+     * ordered and readable where a plain hue ramp has flat or confusing regions.
+     */
+    private static int[] createColormap() {
+        int[] map = new int[COLORMAP_SIZE];
+        for (int i = 0; i < COLORMAP_SIZE; i++) {
+            double x = i / (double) (COLORMAP_SIZE - 1);
+            double r = 0.13572138 + x * (4.61539260 + x * (-42.66032258 + x * (132.13108234 +
+                    x * (-152.94239396 + x * 59.28637943))));
+            double g = 0.09140261 + x * (2.19418839 + x * (4.84296658 + x * (-14.18503333 +
+                    x * (4.27729857 + x * 2.82956604))));
+            double b = 0.10667330 + x * (12.64194608 + x * (-60.58204836 + x * (110.36276771 +
+                    x * (-89.90310912 + x * 27.34824973))));
+            map[i] = 0xff000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+        }
+        return map;
+    }
+
+    private static int toByte(double v) {
+        return (int) Math.round(Math.max(0, Math.min(1, v)) * 255);
+    }
+}
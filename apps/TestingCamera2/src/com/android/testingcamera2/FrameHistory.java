@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.media.Image;
+import android.media.ImageReader;
+
+/**
+ * A browsable history of the most recent frames from an ImageReader.
+ *
+ * <p>With no memory budget, acquired Images are kept open, so the history is limited to the
+ * reader's maxImages and holds on to camera buffers while it is browsed. With a budget, each
+ * arriving frame is copied and its Image is closed immediately, so the stream never waits on
+ * the history; the oldest frames are dropped to keep room for the next frame within the budget.
+ * Copy buffers are pooled and reused as frames are dropped.</p>
+ *
+ * <p>Copies are made in ByteBuffers that count against the app's Java heap, so the budget must
+ * leave room for the rest of the app. If an allocation still fails, the history stops growing at
+ * what it already has, and frames that don't fit are dropped.</p>
+ *
+ * <p>Frames are copied with {@link #copyFrom}, from any thread, and added to the history with
+ * {@link #add}. All other methods must be called from the thread that owns the history, except
+ * that other threads may read a frame after retaining it, which keeps its data valid after the
+ * history drops it, until it is released.</p>
+ */
+public class FrameHistory {
+
+    // Allocation granularity, so that compressed frames of varying size can share buffers
+    private static final int BUFFER_ALIGNMENT = 64 * 1024;
+
+    /**
+     * One plane of a frame, with the same layout as the Image.Plane it came from.
+     */
+    public static class Plane {
+        private final ByteBuffer mBuffer;
+        private final int mRowStride;
+        private final int mPixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+
+        /**
+         * Get a view of the whole plane with its own position and limit, and the same byte
+         * order, for reading concurrently with other users of the frame.
+         */
+        public ByteBuffer duplicateBuffer() {
+            ByteBuffer buffer = mBuffer.duplicate().order(mBuffer.order());
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * A frame in the history: either an open Image, or a copy of one.
+     */
+    public static class Frame {
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mTimestamp;
+        private final Plane[] mPlanes;
+        private final Image mImage;
+        // Pool storage backing the planes of a copied frame
+        private final ByteBuffer[] mStorage;
+        // References held by the history and by other threads; guarded by the history
+        private int mRefCount = 1;
+
+        private Frame(Image image) {
+            mFormat = image.getFormat();
+            mWidth = image.getWidth();
+            mHeight = image.getHeight();
+            mTimestamp = image.getTimestamp();
+            Image.Plane[] imagePlanes = image.getPlanes();
+            mPlanes = new Plane[imagePlanes.length];
+            for (int i = 0; i < imagePlanes.length; i++) {
+                mPlanes[i] = new Plane(imagePlanes[i].getBuffer(),
+                        imagePlanes[i].getRowStride(), imagePlanes[i].getPixelStride());
+            }
+            mImage = image;
+            mStorage = null;
+        }
+
+        private Frame(Image image, Plane[] planes, ByteBuffer[] storage) {
+            mFormat = image.getFormat();
+            mWidth = image.getWidth();
+            mHeight = image.getHeight();
+            mTimestamp = image.getTimestamp();
+            mPlanes = planes;
+            mImage = null;
+            mStorage = storage;
+        }
+
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public Plane[] getPlanes() {
+            return mPlanes;
+        }
+
+        /**
+         * Get the Image this frame holds open, or null if the frame is a copy.
+         */
+        public Image getImage() {
+            return mImage;
+        }
+
+        private long getStorageBytes() {
+            long bytes = 0;
+            if (mStorage != null) {
+                for (ByteBuffer buffer : mStorage) {
+                    bytes += buffer.capacity();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private final long mBudgetBytes;
+    private final LinkedList<Frame> mFrames = new LinkedList<>();
+    private final List<ByteBuffer> mFreeBuffers = new ArrayList<>();
+    private long mAllocatedBytes = 0;
+    // The budget, or less once an allocation has failed
+    private long mLimitBytes;
+    // Room to keep for the next frame, as big as the last one
+    private long mNeededBytes = 0;
+    private boolean mReportedFull = false;
+
+    /**
+     * @param budgetBytes memory to use for copied frames, or 0 to keep Images open instead
+     */
+    public FrameHistory(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+        mLimitBytes = budgetBytes;
+    }
+
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public boolean isCopying() {
+        return mBudgetBytes > 0;
+    }
+
+    public int size() {
+        return mFrames.size();
+    }
+
+    public Frame get(int index) {
+        return mFrames.get(index);
+    }
+
+    /**
+     * Get the memory currently allocated for copies, including pooled free buffers.
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    /**
+     * Keep a frame's data valid until a matching {@link #release}, even if the history drops
+     * it. Held Images still count towards the reader's maxImages, so only retain copies.
+     *
+     * @return false if the frame has already been dropped and released
+     */
+    public synchronized boolean retain(Frame frame) {
+        if (frame.mRefCount == 0) return false;
+        frame.mRefCount++;
+        return true;
+    }
+
+    /**
+     * Release a reference from {@link #retain}. Can be called from any thread.
+     */
+    public synchronized void release(Frame frame) {
+        if (--frame.mRefCount > 0) return;
+        if (frame.mImage != null) {
+            frame.mImage.close();
+        } else {
+            for (ByteBuffer buffer : frame.mStorage) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Acquire the next image from the reader and keep it open in the history, dropping the
+     * oldest frames as needed. Only for a history without a budget.
+     *
+     * @return the number of frames dropped from the start of the history
+     */
+    public int acquireFrom(ImageReader reader) {
+        int dropped = 0;
+        // Images must be released before the reader will hand out another one
+        while (mFrames.size() >= reader.getMaxImages()) {
+            dropOldest();
+            dropped++;
+        }
+        Image image = reader.acquireNextImage();
+        if (image != null) {
+            mFrames.add(new Frame(image));
+        }
+        return dropped;
+    }
+
+    /**
+     * Acquire the next image from the reader, copy it, and close it. Only for a history with a
+     * budget; can be called from any thread.
+     *
+     * @return the copy, to be passed to {@link #add}, or null if there was no image or no room
+     *         for it; then {@link #makeRoom} should be called
+     */
+    public Frame copyFrom(ImageReader reader) {
+        Image image = reader.acquireNextImage();
+        if (image == null) return null;
+        try {
+            Image.Plane[] imagePlanes = image.getPlanes();
+            Plane[] planes = new Plane[imagePlanes.length];
+            ByteBuffer[] storage = new ByteBuffer[imagePlanes.length];
+            for (int i = 0; i < imagePlanes.length; i++) {
+                ByteBuffer src = imagePlanes[i].getBuffer();
+                src.rewind();
+                int size = src.remaining();
+                ByteBuffer buffer = allocate(size);
+                if (buffer == null) {
+                    synchronized (this) {
+                        mNeededBytes = 0;
+                        for (int j = 0; j < imagePlanes.length; j++) {
+                            mNeededBytes += alignSize(imagePlanes[j].getBuffer().capacity());
+                        }
+                        for (int j = 0; j < i; j++) {
+                            mFreeBuffers.add(storage[j]);
+                        }
+                        if (!mReportedFull) {
+                            TLog.e("No room for a %d byte frame in the %d MB history; " +
+                                    "dropping frames", size, mLimitBytes / (1024 * 1024));
+                            mReportedFull = true;
+                        }
+                    }
+                    return null;
+                }
+                storage[i] = buffer;
+                buffer.clear();
+                buffer.put(src);
+                src.rewind();
+                buffer.flip();
+                // Keep the source byte order, so wider samples read back the same
+                planes[i] = new Plane(buffer.slice().order(src.order()),
+                        imagePlanes[i].getRowStride(), imagePlanes[i].getPixelStride());
+            }
+            return new Frame(image, planes, storage);
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Add a frame from {@link #copyFrom} to the history, then drop the oldest frames until
+     * there is room for another frame of the same size.
+     *
+     * @return the number of frames dropped from the start of the history
+     */
+    public synchronized int add(Frame frame) {
+        mFrames.add(frame);
+        mNeededBytes = frame.getStorageBytes();
+        return dropForRoom(1);
+    }
+
+    /**
+     * Drop the oldest frames until there is room for a frame that {@link #copyFrom} had no
+     * room for.
+     *
+     * @return the number of frames dropped from the start of the history
+     */
+    public synchronized int makeRoom() {
+        return dropForRoom(0);
+    }
+
+    /**
+     * Drop all frames, and release the memory of all but retained ones.
+     */
+    public synchronized void clear() {
+        while (!mFrames.isEmpty()) {
+            dropOldest();
+        }
+        for (ByteBuffer buffer : mFreeBuffers) {
+            mAllocatedBytes -= buffer.capacity();
+        }
+        mFreeBuffers.clear();
+    }
+
+    private void dropOldest() {
+        release(mFrames.removeFirst());
+    }
+
+    private int dropForRoom(int keepCount) {
+        int dropped = 0;
+        while (mFrames.size() > keepCount && getUsedBytes() + mNeededBytes > mLimitBytes) {
+            dropOldest();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private static long alignSize(int size) {
+        return (size + BUFFER_ALIGNMENT - 1L) / BUFFER_ALIGNMENT * BUFFER_ALIGNMENT;
+    }
+
+    // Memory in copies, including those dropped but still retained
+    private synchronized long getUsedBytes() {
+        long used = mAllocatedBytes;
+        for (ByteBuffer buffer : mFreeBuffers) {
+            used -= buffer.capacity();
+        }
+        return used;
+    }
+
+    /**
+     * Get a buffer of at least size bytes from the pool, allocating one if the budget allows.
+     *
+     * @return the buffer, or null if there is no room for it
+     */
+    private synchronized ByteBuffer allocate(int size) {
+        ByteBuffer best = null;
+        for (ByteBuffer buffer : mFreeBuffers) {
+            if (buffer.capacity() >= size &&
+                    (best == null || buffer.capacity() < best.capacity())) {
+                best = buffer;
+            }
+        }
+        if (best != null) {
+            mFreeBuffers.remove(best);
+            return best;
+        }
+        long alignedSize = alignSize(size);
+        if (mAllocatedBytes + alignedSize > mLimitBytes) {
+            // Free buffers too small to be reused still count against the budget; release
+            // them before giving up on the frame
+            Iterator<ByteBuffer> it = mFreeBuffers.iterator();
+            while (it.hasNext() && mAllocatedBytes + alignedSize > mLimitBytes) {
+                mAllocatedBytes -= it.next().capacity();
+                it.remove();
+            }
+            if (mAllocatedBytes + alignedSize > mLimitBytes) return null;
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocateDirect((int) alignedSize);
+        } catch (OutOfMemoryError e) {
+            // The heap can't hold the whole budget; keep to what's already allocated
+            mLimitBytes = mAllocatedBytes;
+            TLog.e("Out of memory for the frame history, limiting it to %d MB",
+                    mLimitBytes / (1024 * 1024));
+            return null;
+        }
+        mAllocatedBytes += alignedSize;
+        return buffer;
+    }
+}
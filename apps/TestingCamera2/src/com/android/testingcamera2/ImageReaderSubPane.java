@@ -18,17 +18,18 @@ package com.android.testingcamera2;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
-import java.nio.FloatBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
@@ -36,28 +37,33 @@ import java.text.SimpleDateFormat;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.ColorMatrixColorFilter;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.DngCreator;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.Image;
 import android.media.ImageReader;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.SystemClock;
 import android.util.Size;
 import android.util.AttributeSet;
+import android.util.LruCache;
+import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.Surface;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.Spinner;
+import android.widget.ToggleButton;
 import android.widget.AdapterView.OnItemSelectedListener;
 
 public class ImageReaderSubPane extends TargetSubPane {
@@ -67,6 +73,14 @@ public class ImageReaderSubPane extends TargetSubPane {
     private static final int NO_IMAGE = -1;
     private static final int MAX_BUFFER_COUNT = 25;
     private static final int DEFAULT_BUFFER_COUNT = 3;
+    // Memory budgets for copying frames into the history; 0 keeps Images open instead. Only
+    // those that fit in the largest fraction of the heap the history may use are offered.
+    private static final int[] HISTORY_BUDGETS_MB = { 0, 32, 64, 128, 256, 512, 1024 };
+    private static final int MAX_HISTORY_HEAP_DIVISOR = 2;
+    // Share of the heap left by the history that decoded previews may use
+    private static final int PREVIEW_CACHE_HEAP_DIVISOR = 8;
+    // Most frames to preallocate in a RAW recording; fewer if storage is short
+    private static final int MAX_RAW_RECORD_FRAMES = 1000;
 
     enum OutputFormat {
         JPEG(ImageFormat.JPEG),
@@ -92,8 +106,12 @@ public class ImageReaderSubPane extends TargetSubPane {
     private Size[] mSizes;
     private final Spinner mCountSpinner;
     private Integer[] mCounts;
+    private final Spinner mHistorySpinner;
+    private final List<Integer> mHistoryBudgetsMb = new ArrayList<>();
 
     private final ImageView mImageView;
+    private final ToggleButton mRecordButton;
+    private final EditText mExportFramesText;
 
     private int mCurrentCameraOrientation = 0;
     private int mCurrentUiOrientation = 0;
@@ -107,13 +125,53 @@ public class ImageReaderSubPane extends TargetSubPane {
     private int mConfiguredCount = 0;
 
     private ImageReader mReader = null;
-    private final LinkedList<Image> mCurrentImages = new LinkedList<>();
+    // Frames are copied on the image thread, and added to the history on the UI thread
+    private volatile FrameHistory mHistory = new FrameHistory(0);
+    private HandlerThread mImageThread;
+    private Handler mImageHandler;
     private int mCurrentImageIdx = NO_IMAGE;
 
+    // Decoded previews by frame timestamp and scale factor, bounded by total bitmap size
+    private final LruCache<Pair<Long, Integer>, Bitmap> mPreviewCache =
+            new LruCache<Pair<Long, Integer>, Bitmap>(getPreviewCacheBytes(0)) {
+        @Override
+        protected int sizeOf(Pair<Long, Integer> key, Bitmap value) {
+            return value.getByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Pair<Long, Integer> key,
+                final Bitmap oldValue, Bitmap newValue) {
+            if (!evicted) return;
+            // May be on the prefetch thread; check whether it's on screen from the UI thread
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (oldValue != mDisplayedBitmap) {
+                        mJpegDecoder.reuseBitmap(oldValue);
+                    }
+                }
+            });
+        }
+    };
+    private Bitmap mDisplayedBitmap;
+    private Pair<Long, Integer> mDisplayedKey;
+    private final Set<Pair<Long, Integer>> mPrefetchKeys = new HashSet<>();
+    private HandlerThread mPrefetchThread;
+    private Handler mPrefetchHandler;
+
     private int mRawShiftFactor = 0;
     private int mRawShiftRow = 0;
     private int mRawShiftCol = 0;
 
+    private final Depth16Decoder mDepthDecoder = new Depth16Decoder();
+    private final Depth16Decoder mPrefetchDepthDecoder = new Depth16Decoder();
+    private final JpegPreviewDecoder mJpegDecoder = new JpegPreviewDecoder();
+    private final JpegPreviewDecoder mPrefetchJpegDecoder = new JpegPreviewDecoder();
+    private final PointCloudWriter mPointCloudWriter = new PointCloudWriter();
+    // Read from the camera callback thread
+    private volatile RawBurstRecorder mRawRecorder;
+
     // 5x4 color matrix for YUV->RGB conversion
     private static final ColorMatrixColorFilter sJFIF_YUVToRGB_Filter =
             new ColorMatrixColorFilter(new float[] {
@@ -149,6 +207,26 @@ public class ImageReaderSubPane extends TargetSubPane {
                         mCounts));
         mCountSpinner.setSelection(DEFAULT_BUFFER_COUNT - 1);
 
+        mHistorySpinner =
+                (Spinner) this.findViewById(R.id.target_subpane_image_reader_history_spinner);
+        long maxHistoryMb = Runtime.getRuntime().maxMemory() / MAX_HISTORY_HEAP_DIVISOR /
+                (1024 * 1024);
+        for (int budgetMb : HISTORY_BUDGETS_MB) {
+            if (budgetMb <= maxHistoryMb) {
+                mHistoryBudgetsMb.add(budgetMb);
+            }
+        }
+        String[] historyItems = new String[mHistoryBudgetsMb.size()];
+        for (int i = 0; i < historyItems.length; i++) {
+            historyItems[i] = (mHistoryBudgetsMb.get(i) == 0) ?
+                    getContext().getString(R.string.target_subpane_image_reader_history_off) :
+                    getContext().getString(R.string.target_subpane_image_reader_history_mb,
+                            mHistoryBudgetsMb.get(i));
+        }
+        mHistorySpinner.setAdapter(new ArrayAdapter<>(getContext(), R.layout.spinner_item,
+                        historyItems));
+        mHistorySpinner.setOnItemSelectedListener(mHistorySpinnerListener);
+
         mImageView = (ImageView) this.findViewById(R.id.target_subpane_image_reader_view);
 
         Button b = (Button) this.findViewById(R.id.target_subpane_image_reader_prev_button);
@@ -159,11 +237,27 @@ public class ImageReaderSubPane extends TargetSubPane {
 
         b = (Button) this.findViewById(R.id.target_subpane_image_reader_save_button);
         b.setOnClickListener(mSaveButtonListener);
+
+        mRecordButton =
+                (ToggleButton) this.findViewById(R.id.target_subpane_image_reader_record_button);
+        mRecordButton.setOnCheckedChangeListener(mRecordButtonListener);
+
+        mExportFramesText =
+                (EditText) this.findViewById(R.id.target_subpane_image_reader_export_frames);
+
+        b = (Button) this.findViewById(R.id.target_subpane_image_reader_export_button);
+        b.setOnClickListener(mExportButtonListener);
     }
 
     @Override
     public void setTargetCameraPane(CameraControlPane target) {
+        if (mCurrentCamera != null) {
+            mCurrentCamera.removeResultListener(mResultListener);
+        }
         mCurrentCamera = target;
+        if (target != null) {
+            target.addResultListener(mResultListener);
+        }
         if (target != null) {
             updateFormats();
         } else {
@@ -307,9 +401,15 @@ public class ImageReaderSubPane extends TargetSubPane {
         mCurrentSizeId = newSelectionId;
     }
 
-    private void updateImage() {
+    /**
+     * Show the current frame.
+     *
+     * @param prefetch also decode its neighbors in the background, when browsing with
+     *     prev/next; not while streaming, where the neighbors change with every frame
+     */
+    private void updateImage(boolean prefetch) {
         if (mCurrentImageIdx == NO_IMAGE) return;
-        Image img = mCurrentImages.get(mCurrentImageIdx);
+        FrameHistory.Frame img = mHistory.get(mCurrentImageIdx);
 
         // Find rough scale factor to fit image into imageview to minimize processing overhead
         // Want to be one factor too large
@@ -318,47 +418,113 @@ public class ImageReaderSubPane extends TargetSubPane {
             SCALE_FACTOR <<= 1;
         }
 
+        Pair<Long, Integer> key = new Pair<>(img.getTimestamp(), SCALE_FACTOR);
+        Bitmap imgBitmap = mPreviewCache.get(key);
+        if (imgBitmap == null) {
+            imgBitmap = decodePreview(img, SCALE_FACTOR, mJpegDecoder, mDepthDecoder);
+            if (imgBitmap != null) {
+                mPreviewCache.put(key, imgBitmap);
+            }
+        }
+        if (imgBitmap != null) {
+            mImageView.setImageBitmap(imgBitmap);
+            mDisplayedBitmap = imgBitmap;
+            mDisplayedKey = key;
+        }
+        if (prefetch) {
+            prefetchNeighbors(SCALE_FACTOR);
+        }
+    }
+
+    /**
+     * Decode the neighbors of the current frame into the preview cache in the background, so
+     * that prev/next show them immediately. Only copied frames can be held for this; held
+     * Images are limited by the reader's maxImages.
+     */
+    private void prefetchNeighbors(final int scaleFactor) {
+        if (!mHistory.isCopying() || mHistory.size() < 2) return;
+        int count = mHistory.size();
+        int prevIdx = (mCurrentImageIdx == 0) ? (count - 1) : (mCurrentImageIdx - 1);
+        int nextIdx = (mCurrentImageIdx == count - 1) ? 0 : (mCurrentImageIdx + 1);
+        int[] neighbors = (prevIdx == nextIdx) ? new int[] { prevIdx } :
+                new int[] { prevIdx, nextIdx };
+        final FrameHistory history = mHistory;
+        for (int idx : neighbors) {
+            if (idx == mCurrentImageIdx) continue;
+            final FrameHistory.Frame frame = history.get(idx);
+            final Pair<Long, Integer> key = new Pair<>(frame.getTimestamp(), scaleFactor);
+            // Already decoded for display
+            if (key.equals(mDisplayedKey)) continue;
+            // Also keeps a cached neighbor from being evicted before it's shown
+            if (mPreviewCache.get(key) != null) continue;
+            synchronized (mPrefetchKeys) {
+                if (!mPrefetchKeys.add(key)) continue;
+            }
+            history.retain(frame);
+            if (mPrefetchThread == null) {
+                mPrefetchThread = new HandlerThread("PreviewPrefetchThread");
+                mPrefetchThread.start();
+                mPrefetchHandler = new Handler(mPrefetchThread.getLooper());
+            }
+            mPrefetchHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Bitmap bitmap = decodePreview(frame, scaleFactor, mPrefetchJpegDecoder,
+                                mPrefetchDepthDecoder);
+                        if (bitmap != null) {
+                            mPreviewCache.put(key, bitmap);
+                        }
+                    } finally {
+                        history.release(frame);
+                        synchronized (mPrefetchKeys) {
+                            mPrefetchKeys.remove(key);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Convert a frame to a bitmap for display, subsampled by scaleFactor. Safe to call from a
+     * background thread with a frame that stays valid meanwhile.
+     */
+    private Bitmap decodePreview(FrameHistory.Frame img, int scaleFactor,
+            JpegPreviewDecoder jpegDecoder, Depth16Decoder depthDecoder) {
         Bitmap imgBitmap = null;
         switch (img.getFormat()) {
             case ImageFormat.JPEG: {
-                ByteBuffer jpegBuffer = img.getPlanes()[0].getBuffer();
-                jpegBuffer.rewind();
-                byte[] jpegData = new byte[jpegBuffer.limit()];
-                jpegBuffer.get(jpegData);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inSampleSize = SCALE_FACTOR;
-                imgBitmap = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, opts);
+                imgBitmap = jpegDecoder.decode(img.getPlanes()[0].duplicateBuffer(),
+                        img.getWidth() / scaleFactor, img.getHeight() / scaleFactor);
                 break;
             }
             case ImageFormat.YUV_420_888: {
-                ByteBuffer yBuffer = img.getPlanes()[0].getBuffer();
-                ByteBuffer uBuffer = img.getPlanes()[1].getBuffer();
-                ByteBuffer vBuffer = img.getPlanes()[2].getBuffer();
-                yBuffer.rewind();
-                uBuffer.rewind();
-                vBuffer.rewind();
-                int w = mConfiguredSize.getWidth() / SCALE_FACTOR;
-                int h = mConfiguredSize.getHeight() / SCALE_FACTOR;
+                ByteBuffer yBuffer = img.getPlanes()[0].duplicateBuffer();
+                ByteBuffer uBuffer = img.getPlanes()[1].duplicateBuffer();
+                ByteBuffer vBuffer = img.getPlanes()[2].duplicateBuffer();
+                int w = img.getWidth() / scaleFactor;
+                int h = img.getHeight() / scaleFactor;
                 int stride = img.getPlanes()[0].getRowStride();
                 int uStride = img.getPlanes()[1].getRowStride();
                 int vStride = img.getPlanes()[2].getRowStride();
                 int uPStride = img.getPlanes()[1].getPixelStride();
                 int vPStride = img.getPlanes()[2].getPixelStride();
-                byte[] row = new byte[mConfiguredSize.getWidth()];
-                byte[] uRow = new byte[(mConfiguredSize.getWidth()/2-1)*uPStride + 1];
-                byte[] vRow = new byte[(mConfiguredSize.getWidth()/2-1)*vPStride + 1];
+                byte[] row = new byte[img.getWidth()];
+                byte[] uRow = new byte[(img.getWidth()/2-1)*uPStride + 1];
+                byte[] vRow = new byte[(img.getWidth()/2-1)*vPStride + 1];
                 int[] imgArray = new int[w * h];
                 for (int y = 0, j = 0, rowStart = 0, uRowStart = 0, vRowStart = 0; y < h;
-                     y++, rowStart += stride*SCALE_FACTOR) {
+                     y++, rowStart += stride*scaleFactor) {
                     yBuffer.position(rowStart);
                     yBuffer.get(row);
-                    if (y * SCALE_FACTOR % 2 == 0) {
+                    if (y * scaleFactor % 2 == 0) {
                         uBuffer.position(uRowStart);
                         uBuffer.get(uRow);
                         vBuffer.position(vRowStart);
                         vBuffer.get(vRow);
-                        uRowStart += uStride*SCALE_FACTOR/2;
-                        vRowStart += vStride*SCALE_FACTOR/2;
+                        uRowStart += uStride*scaleFactor/2;
+                        vRowStart += vStride*scaleFactor/2;
                     }
                     for (int x = 0, i = 0; x < w; x++) {
                         int yval = row[i] & 0xFF;
@@ -366,7 +532,7 @@ public class ImageReaderSubPane extends TargetSubPane {
                         int vval = vRow[i/2 * vPStride] & 0xFF;
                         // Write YUV directly; the ImageView color filter will convert to RGB for us.
                         imgArray[j] = Color.rgb(yval, uval, vval);
-                        i += SCALE_FACTOR;
+                        i += scaleFactor;
                         j++;
                     }
                 }
@@ -374,24 +540,23 @@ public class ImageReaderSubPane extends TargetSubPane {
                 break;
             }
             case ImageFormat.RAW_SENSOR: {
-                ShortBuffer rawBuffer = img.getPlanes()[0].getBuffer().asShortBuffer();
-                rawBuffer.rewind();
+                ShortBuffer rawBuffer = img.getPlanes()[0].duplicateBuffer().asShortBuffer();
                 // Very rough nearest-neighbor downsample for display
-                int w = mConfiguredSize.getWidth() / SCALE_FACTOR;
-                int h = mConfiguredSize.getHeight() / SCALE_FACTOR;
-                short[] redRow = new short[mConfiguredSize.getWidth()];
-                short[] blueRow = new short[mConfiguredSize.getWidth()];
+                int w = img.getWidth() / scaleFactor;
+                int h = img.getHeight() / scaleFactor;
+                short[] redRow = new short[img.getWidth()];
+                short[] blueRow = new short[img.getWidth()];
                 int[] imgArray = new int[w * h];
                 for (int y = 0, j = 0; y < h; y++) {
                     // Align to start of red row in the pair to sample from
                     rawBuffer.position(
-                        (y * SCALE_FACTOR + mRawShiftRow) * mConfiguredSize.getWidth());
+                        (y * scaleFactor + mRawShiftRow) * img.getWidth());
                     rawBuffer.get(redRow);
                     // Align to start of blue row in the pair to sample from
                     rawBuffer.position(
-                        (y * SCALE_FACTOR + 1 - mRawShiftRow) * mConfiguredSize.getWidth());
+                        (y * scaleFactor + 1 - mRawShiftRow) * img.getWidth());
                     rawBuffer.get(blueRow);
-                    for (int x = 0, i = 0; x < w; x++, i += SCALE_FACTOR, j++) {
+                    for (int x = 0, i = 0; x < w; x++, i += scaleFactor, j++) {
                         int r = redRow[i + mRawShiftCol] >> mRawShiftFactor;
                         int g = redRow[i + 1 - mRawShiftCol] >> mRawShiftFactor;
                         int b = blueRow[i + 1 - mRawShiftCol] >> mRawShiftFactor;
@@ -406,48 +571,62 @@ public class ImageReaderSubPane extends TargetSubPane {
                 break;
             }
             case ImageFormat.DEPTH16: {
-                ShortBuffer y16Buffer = img.getPlanes()[0].getBuffer().asShortBuffer();
-                y16Buffer.rewind();
+                ShortBuffer y16Buffer = img.getPlanes()[0].duplicateBuffer().asShortBuffer();
                 // Very rough nearest-neighbor downsample for display
                 int w = img.getWidth();
                 int h = img.getHeight();
                 // rowStride is in bytes, accessing array as shorts
                 int stride = img.getPlanes()[0].getRowStride() / 2;
 
-                imgBitmap = convertDepthToFalseColor(y16Buffer, w, h, stride, SCALE_FACTOR);
-
+                int[] imgArray = depthDecoder.decode(y16Buffer, w, h, stride, scaleFactor);
+                imgBitmap = Bitmap.createBitmap(imgArray, w / scaleFactor, h / scaleFactor,
+                        Bitmap.Config.ARGB_8888);
                 break;
 
             }
         }
-        if (imgBitmap != null) {
-            mImageView.setImageBitmap(imgBitmap);
-        }
+        return imgBitmap;
     }
 
     /**
-     * Convert depth16 buffer into a false-color RGBA Bitmap, scaling down
-     * by factor of scale
+     * Get the preview cache size for a history budget, so that the two together stay well
+     * within the heap.
      */
-    private Bitmap convertDepthToFalseColor(ShortBuffer depthBuffer, int w, int h,
-            int stride, int scale) {
-        short[] yRow = new short[w];
-        int[] imgArray = new int[w * h];
-        w = w / scale;
-        h = h / scale;
-        stride = stride * scale;
-        for (int y = 0, j = 0, rowStart = 0; y < h; y++, rowStart += stride) {
-            // Align to start of nearest-neighbor row
-            depthBuffer.position(rowStart);
-            depthBuffer.get(yRow);
-            for (int x = 0, i = 0; x < w; x++, i += scale, j++) {
-                short y16 = yRow[i];
-                int r = y16 & 0x00FF;
-                int g = (y16 >> 8) & 0x00FF;
-                imgArray[j] = Color.rgb(r, g, 0);
-            }
-        }
-        return Bitmap.createBitmap(imgArray, w, h, Bitmap.Config.ARGB_8888);
+    private static int getPreviewCacheBytes(long historyBudgetBytes) {
+        long free = Runtime.getRuntime().maxMemory() - historyBudgetBytes;
+        return (int) Math.min(Math.max(free, 0) / PREVIEW_CACHE_HEAP_DIVISOR, Integer.MAX_VALUE);
+    }
+
+    private Handler getImageHandler() {
+        if (mImageThread == null) {
+            mImageThread = new HandlerThread("ImageHistoryThread");
+            mImageThread.start();
+            mImageHandler = new Handler(mImageThread.getLooper());
+        }
+        return mImageHandler;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mImageThread != null) {
+            if (mReader != null) {
+                mReader.setOnImageAvailableListener(null, null);
+            }
+            mImageThread.quitSafely();
+            mImageThread = null;
+            mImageHandler = null;
+        }
+        if (mPrefetchThread != null) {
+            mPrefetchThread.quitSafely();
+            mPrefetchThread = null;
+            mPrefetchHandler = null;
+        }
+        if (mRawRecorder != null) {
+            mRecordButton.setChecked(false);
+            mRawRecorder.release();
+            mRawRecorder = null;
+        }
     }
 
     @Override
@@ -465,12 +644,24 @@ public class ImageReaderSubPane extends TargetSubPane {
                 mConfiguredCount != c) {
 
             if (mReader != null) {
-                mReader.close();
-                mCurrentImages.clear();
+                // Stops any RAW recording from the old reader
+                mRecordButton.setChecked(false);
+                mHistory.clear();
+                mHistory = new FrameHistory(mHistory.getBudgetBytes());
                 mCurrentImageIdx = NO_IMAGE;
+                // Close it on the image thread, so that no frame is being copied from it
+                final ImageReader oldReader = mReader;
+                oldReader.setOnImageAvailableListener(null, null);
+                getImageHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        oldReader.close();
+                    }
+                });
             }
+            mPreviewCache.evictAll();
             mReader = ImageReader.newInstance(s.getWidth(), s.getHeight(), f.imageFormat, c);
-            mReader.setOnImageAvailableListener(mImageListener, null);
+            mReader.setOnImageAvailableListener(mImageListener, getImageHandler());
             mConfiguredSize = s;
             mConfiguredFormat = f;
             mConfiguredCount = c;
@@ -483,6 +674,8 @@ public class ImageReaderSubPane extends TargetSubPane {
             }
             // Clear output now that we're actually changing to a new target
             mImageView.setImageBitmap(null);
+            mDisplayedBitmap = null;
+            mDisplayedKey = null;
         }
         return mReader.getSurface();
     }
@@ -512,15 +705,33 @@ public class ImageReaderSubPane extends TargetSubPane {
         };
     };
 
+    private final OnItemSelectedListener mHistorySpinnerListener = new OnItemSelectedListener() {
+        @Override
+        public void onItemSelected(AdapterView<?> parent, View view, int pos, long id) {
+            long budgetBytes = mHistoryBudgetsMb.get(pos) * 1024L * 1024L;
+            if (mHistory.isCopying() || budgetBytes > 0) {
+                // Start over with the new budget
+                mHistory.clear();
+                mHistory = new FrameHistory(budgetBytes);
+                mCurrentImageIdx = NO_IMAGE;
+                mPreviewCache.resize(getPreviewCacheBytes(budgetBytes));
+            }
+        };
+
+        @Override
+        public void onNothingSelected(AdapterView<?> parent) {
+        };
+    };
+
     private final OnClickListener mPrevButtonListener = new OnClickListener() {
         @Override
         public void onClick(View v) {
             if (mCurrentImageIdx != NO_IMAGE) {
                 int prevIdx = mCurrentImageIdx;
                 mCurrentImageIdx = (mCurrentImageIdx == 0) ?
-                        (mCurrentImages.size() - 1) : (mCurrentImageIdx - 1);
+                        (mHistory.size() - 1) : (mCurrentImageIdx - 1);
                 if (prevIdx != mCurrentImageIdx) {
-                    updateImage();
+                    updateImage(/*prefetch*/true);
                 }
             }
         }
@@ -531,10 +742,10 @@ public class ImageReaderSubPane extends TargetSubPane {
         public void onClick(View v) {
             if (mCurrentImageIdx != NO_IMAGE) {
                 int prevIdx = mCurrentImageIdx;
-                mCurrentImageIdx = (mCurrentImageIdx == mCurrentImages.size() - 1) ?
+                mCurrentImageIdx = (mCurrentImageIdx == mHistory.size() - 1) ?
                         0 : (mCurrentImageIdx + 1);
                 if (prevIdx != mCurrentImageIdx) {
-                    updateImage();
+                    updateImage(/*prefetch*/true);
                 }
             }
         }
@@ -545,7 +756,7 @@ public class ImageReaderSubPane extends TargetSubPane {
         public void onClick(View v) {
             // TODO: Make async and coordinate with onImageAvailable
             if (mCurrentImageIdx != NO_IMAGE) {
-                Image img = mCurrentImages.get(mCurrentImageIdx);
+                FrameHistory.Frame img = mHistory.get(mCurrentImageIdx);
                 try {
                     String name = saveImage(img);
                     TLog.i("Saved image as %s", name);
@@ -556,24 +767,182 @@ public class ImageReaderSubPane extends TargetSubPane {
         }
     };
 
+    private final CompoundButton.OnCheckedChangeListener mRecordButtonListener =
+            new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            if (isChecked) {
+                if (!startRawRecording()) {
+                    buttonView.setChecked(false);
+                }
+            } else if (mRawRecorder != null && mRawRecorder.isRecording()) {
+                mRawRecorder.stop();
+                if (mReader != null) {
+                    mReader.setOnImageAvailableListener(mImageListener, getImageHandler());
+                }
+            }
+        }
+    };
+
+    private final OnClickListener mExportButtonListener = new OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (mRawRecorder == null || mRawRecorder.isRecording()) {
+                TLog.e("No finished RAW recording to export from");
+                return;
+            }
+            int[] frames;
+            try {
+                frames = parseFrameList(mExportFramesText.getText().toString());
+            } catch (NumberFormatException e) {
+                TLog.e("Can't parse frame list to export: %s", e.getMessage());
+                return;
+            }
+            TLog.i("Exporting %s frames from %s", frames == null ? "all" : frames.length,
+                    mRawRecorder.getFile().getName());
+            mRawRecorder.exportToDng(frames);
+        }
+    };
+
+    private final CameraControlPane.ResultListener mResultListener =
+            new CameraControlPane.ResultListener() {
+        @Override
+        public void onCaptureCompleted(TotalCaptureResult result) {
+            if (mRawRecorder != null) {
+                mRawRecorder.onCaptureResult(result);
+            }
+        }
+    };
+
+    private final RawBurstRecorder.Listener mRawRecorderListener =
+            new RawBurstRecorder.Listener() {
+        @Override
+        public void onRecordingStopped(RawBurstRecorder recorder, int frameCount) {
+            TLog.i("Recorded %d RAW frames to %s", frameCount, recorder.getFile().getName());
+        }
+
+        @Override
+        public void onExportFinished(RawBurstRecorder recorder, int exportedCount) {
+            TLog.i("Exported %d DNG files from %s", exportedCount,
+                    recorder.getFile().getName());
+        }
+    };
+
+    /**
+     * Start recording all frames from the current RAW reader to a new sequence file, instead
+     * of adding them to the history.
+     *
+     * @return false if recording can't start
+     */
+    private boolean startRawRecording() {
+        if (mReader == null || mCurrentCamera == null ||
+                (mConfiguredFormat != OutputFormat.RAW16 &&
+                        mConfiguredFormat != OutputFormat.RAW10)) {
+            TLog.e("RAW recording needs a configured RAW16 or RAW10 target");
+            return false;
+        }
+        File dngFile = getOutputImageFile(ImageFormat.RAW_SENSOR,
+                SystemClock.elapsedRealtimeNanos());
+        if (dngFile == null) {
+            TLog.e("No storage available for RAW recording");
+            return false;
+        }
+        File file = new File(dngFile.getParentFile(),
+                dngFile.getName().replace("IMG_", "RAW_").replace(".dng", ".tc2raw"));
+        if (mRawRecorder != null) {
+            mRawRecorder.release();
+        }
+        mRawRecorder = new RawBurstRecorder(file, MAX_RAW_RECORD_FRAMES,
+                mCurrentCamera.getCharacteristics(), mRawRecorderListener);
+        mRawRecorder.start(mReader);
+        TLog.i("Recording RAW frames to %s", file.getName());
+        return true;
+    }
+
+    /**
+     * Parse a list of frame indices and ranges such as "0-9,20".
+     *
+     * @return the frame indices, or null for all frames if the list is empty
+     */
+    private static int[] parseFrameList(String list) {
+        list = list.trim();
+        if (list.isEmpty()) return null;
+        List<Integer> frames = new ArrayList<>();
+        for (String item : list.split(",")) {
+            String[] range = item.trim().split("-");
+            if (range.length > 2) {
+                throw new NumberFormatException("Bad range " + item);
+            }
+            int first = Integer.parseInt(range[0].trim());
+            int last = (range.length == 2) ? Integer.parseInt(range[1].trim()) : first;
+            for (int i = first; i <= last; i++) {
+                frames.add(i);
+            }
+        }
+        int[] result = new int[frames.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = frames.get(i);
+        }
+        return result;
+    }
+
     private final ImageReader.OnImageAvailableListener mImageListener =
             new ImageReader.OnImageAvailableListener() {
         @Override
-        public void onImageAvailable(ImageReader reader) {
-            while (mCurrentImages.size() >= reader.getMaxImages()) {
-                Image oldest = mCurrentImages.remove();
-                oldest.close();
-                mCurrentImageIdx = Math.min(mCurrentImageIdx - 1, 0);
+        public void onImageAvailable(final ImageReader reader) {
+            final FrameHistory history = mHistory;
+            if (!history.isCopying()) {
+                // Held Images are cheap to acquire; do it where the history is browsed
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (reader != mReader || history != mHistory) return;
+                        onFrameAdded(history.acquireFrom(reader));
+                    }
+                });
+                return;
             }
-            mCurrentImages.add(reader.acquireNextImage());
-            if (mCurrentImageIdx == NO_IMAGE) {
-                mCurrentImageIdx = 0;
+            final FrameHistory.Frame frame = history.copyFrom(reader);
+            if (frame == null) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (history != mHistory) return;
+                        int dropped = history.makeRoom();
+                        if (dropped > 0) {
+                            onFrameAdded(dropped);
+                        }
+                    }
+                });
+                return;
             }
-            updateImage();
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (history != mHistory) {
+                        history.release(frame);
+                        return;
+                    }
+                    onFrameAdded(history.add(frame));
+                }
+            });
         }
     };
 
-    private String saveImage(Image img) throws IOException {
+    private void onFrameAdded(int dropped) {
+        if (mHistory.size() == 0) {
+            mCurrentImageIdx = NO_IMAGE;
+            return;
+        }
+        if (mCurrentImageIdx == NO_IMAGE) {
+            mCurrentImageIdx = 0;
+        } else {
+            mCurrentImageIdx = Math.max(mCurrentImageIdx - dropped, 0);
+        }
+        updateImage(/*prefetch*/false);
+    }
+
+    private String saveImage(FrameHistory.Frame img) throws IOException {
         long timestamp = img.getTimestamp();
         File output = getOutputImageFile(img.getFormat(), timestamp);
         try (FileOutputStream out = new FileOutputStream(output)) {
@@ -596,6 +965,13 @@ public class ImageReaderSubPane extends TargetSubPane {
                 }
                 case ImageFormat.DEPTH16: {
                     writeDepth16Image(img, out);
+                    // Also keep the raw range values for other tools
+                    File rangeOutput = new File(output.getParentFile(),
+                            output.getName().replace(".png", ".pgm"));
+                    try (FileOutputStream rangeOut = new FileOutputStream(rangeOutput)) {
+                        writeDepth16RangeImage(img, rangeOut);
+                    }
+                    TLog.i("Saved depth range image as %s", rangeOutput.getName());
                     break;
                 }
                 case ImageFormat.DEPTH_POINT_CLOUD: {
@@ -607,7 +983,7 @@ public class ImageReaderSubPane extends TargetSubPane {
         return output.getName();
     }
 
-    private void writeDngImage(Image img, OutputStream out) throws IOException {
+    private void writeDngImage(FrameHistory.Frame img, OutputStream out) throws IOException {
         if (img.getFormat() != ImageFormat.RAW_SENSOR) {
             throw new IOException(
                     String.format("Unexpected Image format: %d, expected ImageFormat.RAW_SENSOR",
@@ -627,11 +1003,41 @@ public class ImageReaderSubPane extends TargetSubPane {
         }
         CameraCharacteristics info = mCurrentCamera.getCharacteristics();
         try (DngCreator writer = new DngCreator(info, result)) {
-            writer.writeImage(out, img);
+            if (img.getImage() != null) {
+                writer.writeImage(out, img.getImage());
+            } else {
+                writer.writeByteBuffer(out, new Size(img.getWidth(), img.getHeight()),
+                        packRaw16(img), /*offset*/ 0);
+            }
         }
     }
 
-    private void writeJpegImage(Image img, OutputStream out) throws IOException {
+    /**
+     * Get the RAW16 data of a copied frame without row padding, as DngCreator needs it
+     */
+    private ByteBuffer packRaw16(FrameHistory.Frame img) {
+        FrameHistory.Plane plane = img.getPlanes()[0];
+        ByteBuffer data = plane.getBuffer();
+        data.rewind();
+        int rowBytes = img.getWidth() * 2;
+        if (plane.getRowStride() == rowBytes) {
+            return data;
+        }
+        ByteBuffer packed = ByteBuffer.allocateDirect(rowBytes * img.getHeight())
+                .order(data.order());
+        for (int y = 0, rowStart = 0; y < img.getHeight(); y++,
+                rowStart += plane.getRowStride()) {
+            data.limit(rowStart + rowBytes);
+            data.position(rowStart);
+            packed.put(data);
+        }
+        data.limit(data.capacity());
+        data.rewind();
+        packed.flip();
+        return packed;
+    }
+
+    private void writeJpegImage(FrameHistory.Frame img, OutputStream out) throws IOException {
         if (img.getFormat() != ImageFormat.JPEG) {
             throw new IOException(
                     String.format("Unexpected Image format: %d, expected ImageFormat.JPEG",
@@ -643,7 +1049,7 @@ public class ImageReaderSubPane extends TargetSubPane {
         outChannel.write(jpegData);
     }
 
-    private void writeYuvImage(Image img, OutputStream out)
+    private void writeYuvImage(FrameHistory.Frame img, OutputStream out)
             throws IOException {
         if (img.getFormat() != ImageFormat.YUV_420_888) {
             throw new IOException(
@@ -652,7 +1058,7 @@ public class ImageReaderSubPane extends TargetSubPane {
         }
         WritableByteChannel outChannel = Channels.newChannel(out);
         for (int plane = 0; plane < 3; plane++) {
-            Image.Plane colorPlane = img.getPlanes()[plane];
+            FrameHistory.Plane colorPlane = img.getPlanes()[plane];
             ByteBuffer colorData = colorPlane.getBuffer();
             int subsampleFactor = (plane == 0) ? 1 : 2;
             int colorW = img.getWidth() / subsampleFactor;
@@ -690,7 +1096,7 @@ public class ImageReaderSubPane extends TargetSubPane {
     /**
      * Save a 16-bpp depth image as a false-color PNG
      */
-    private void writeDepth16Image(Image img, OutputStream out) throws IOException {
+    private void writeDepth16Image(FrameHistory.Frame img, OutputStream out) throws IOException {
         if (img.getFormat() != ImageFormat.DEPTH16) {
             throw new IOException(
                     String.format("Unexpected Image format: %d, expected ImageFormat.DEPTH16",
@@ -701,26 +1107,43 @@ public class ImageReaderSubPane extends TargetSubPane {
         int rowStride = img.getPlanes()[0].getRowStride() / 2; // in shorts
         ShortBuffer y16Data = img.getPlanes()[0].getBuffer().asShortBuffer();
 
-        Bitmap rgbImage = convertDepthToFalseColor(y16Data, w, h, rowStride, /*scale*/ 1);
+        int[] imgArray = mDepthDecoder.decode(y16Data, w, h, rowStride, /*scale*/ 1);
+        Bitmap rgbImage = Bitmap.createBitmap(imgArray, w, h, Bitmap.Config.ARGB_8888);
         rgbImage.compress(Bitmap.CompressFormat.PNG, 100, out);
         rgbImage.recycle();
+        TLog.i("Depth range %d to %d mm", mDepthDecoder.getLastMinRange(),
+                mDepthDecoder.getLastMaxRange());
     }
 
-    // This saves a text file of float values for a point cloud
-    private void writeDepthPointImage(Image img, OutputStream out) throws IOException {
+    /**
+     * Save the range values of a 16-bpp depth image as a 16-bit PGM
+     */
+    private void writeDepth16RangeImage(FrameHistory.Frame img, OutputStream out)
+            throws IOException {
+        int rowStride = img.getPlanes()[0].getRowStride() / 2; // in shorts
+        ShortBuffer y16Data = img.getPlanes()[0].getBuffer().asShortBuffer();
+        BufferedOutputStream bufferedOut = new BufferedOutputStream(out);
+        Depth16Decoder.writePgm(y16Data, img.getWidth(), img.getHeight(), rowStride,
+                bufferedOut);
+        bufferedOut.flush();
+    }
+
+    /**
+     * Save a point cloud as a PLY file
+     */
+    private void writeDepthPointImage(FrameHistory.Frame img, OutputStream out) throws IOException {
         if (img.getFormat() != ImageFormat.DEPTH_POINT_CLOUD) {
             throw new IOException(
-                    String.format("Unexpected Image format: %d, expected ImageFormat.DEPTH16",
-                            img.getFormat()));
-        }
-        FloatBuffer pointList = img.getPlanes()[0].getBuffer().asFloatBuffer();
-        int pointCount = pointList.limit() / 3;
-        OutputStreamWriter writer = new OutputStreamWriter(out);
-        for (int i = 0; i < pointCount; i++) {
-            String pt = String.format("%f, %f, %f\n",
-                    pointList.get(), pointList.get(),pointList.get());
-            writer.write(pt, 0, pt.length());
+                    String.format("Unexpected Image format: %d, expected " +
+                            "ImageFormat.DEPTH_POINT_CLOUD", img.getFormat()));
         }
+        // The camera produces native-endian floats; the plane buffer is shared with other
+        // readers of the frame, so read through a view of it
+        ByteBuffer points =
+                img.getPlanes()[0].getBuffer().duplicate().order(ByteOrder.nativeOrder());
+        points.rewind();
+        int pointCount = mPointCloudWriter.write(points, Channels.newChannel(out));
+        TLog.i("Saved %d depth points", pointCount);
     }
 
     File getOutputImageFile(int type, long timestamp){
@@ -782,7 +1205,7 @@ public class ImageReaderSubPane extends TargetSubPane {
                 break;
             case ImageFormat.DEPTH_POINT_CLOUD:
                 mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                        "IMG_"+ timeStamp + "_depth_points.txt");
+                        "IMG_"+ timeStamp + "_depth_points.ply");
                 break;
             default:
                 mediaFile = new File(mediaStorageDir.getPath() + File.separator +
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decodes JPEG captures into bitmaps for on-screen preview, doing as little work as the
+ * requested size allows.
+ *
+ * <ul>
+ * <li>If the EXIF thumbnail is at least the requested size, only the thumbnail is decoded.
+ * Finding the thumbnail needs API 24; earlier releases always decode the full image.</li>
+ * <li>Otherwise the full image is decoded with the largest power-of-two subsampling that
+ * still covers the requested size.</li>
+ * <li>Array-backed buffers are decoded in place; direct buffers are copied into a byte array
+ * that is kept and reused for the next decode.</li>
+ * <li>Bitmaps handed back with {@link #reuseBitmap} are decoded into again when the size
+ * fits, from API 19 on.</li>
+ * </ul>
+ *
+ * <p>Each decode is timed and logged under the JpegPreviewDecoder tag, for comparing decode
+ * cost across sensor resolutions; running totals are available from {@link #getStats}.</p>
+ *
+ * <p>A decoder instance isn't thread-safe, except for {@link #reuseBitmap}.</p>
+ *
+ * <p>This class depends only on the public SDK, so TestingCamera builds it in as well.</p>
+ */
+public class JpegPreviewDecoder {
+
+    private static final String TAG = "JpegPreviewDecoder";
+
+    // EXIF thumbnails are limited to 64 KB, so anything larger can't be satisfied by one
+    private static final int MAX_THUMBNAIL_DIMENSION = 640;
+    private static final int MAX_REUSABLE_BITMAPS = 3;
+
+    /**
+     * Running totals over all decodes by one decoder.
+     */
+    public static class Stats {
+        public int decodeCount;
+        public int thumbnailCount;
+        public int reusedBitmapCount;
+        public long totalSourcePixels;
+        public long totalNs;
+        public long maxNs;
+
+        @Override
+        public String toString() {
+            if (decodeCount == 0) return "No JPEG previews decoded";
+            return String.format(Locale.US,
+                    "%d JPEG previews (%d from thumbnail, %d into reused bitmaps): " +
+                    "avg %.1f ms, max %.1f ms, avg %.1f ns/source pixel",
+                    decodeCount, thumbnailCount, reusedBitmapCount,
+                    totalNs / 1e6 / decodeCount, maxNs / 1e6,
+                    totalSourcePixels == 0 ? 0. : (double) totalNs / totalSourcePixels);
+        }
+    }
+
+    private byte[] mData = new byte[0];
+    private final List<Bitmap> mReusableBitmaps = new ArrayList<>();
+    private final Stats mStats = new Stats();
+    private final BitmapFactory.Options mBoundsOpts = new BitmapFactory.Options();
+
+    public JpegPreviewDecoder() {
+        mBoundsOpts.inJustDecodeBounds = true;
+    }
+
+    /**
+     * Decode JPEG data for display at no less than the requested size, if the image is that
+     * large. The buffer's position and limit are left unchanged.
+     *
+     * @param jpeg JPEG data between the buffer's position and limit
+     * @return the decoded bitmap, or null if the data can't be decoded
+     */
+    public Bitmap decode(ByteBuffer jpeg, int reqWidth, int reqHeight) {
+        long startNs = SystemClock.elapsedRealtimeNanos();
+        int length = jpeg.remaining();
+        if (jpeg.hasArray()) {
+            return decode(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), length,
+                    reqWidth, reqHeight, startNs);
+        }
+        if (mData.length < length) {
+            mData = new byte[length];
+        }
+        jpeg.duplicate().get(mData, 0, length);
+        return decode(mData, 0, length, reqWidth, reqHeight, startNs);
+    }
+
+    /**
+     * Decode JPEG data for display at no less than the requested size, if the image is that
+     * large.
+     *
+     * @return the decoded bitmap, or null if the data can't be decoded
+     */
+    public Bitmap decode(byte[] jpeg, int offset, int length, int reqWidth, int reqHeight) {
+        return decode(jpeg, offset, length, reqWidth, reqHeight,
+                SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Offer a bitmap that is no longer displayed or referenced to be decoded into again. Only
+     * mutable bitmaps from this class are kept. Can be called from any thread.
+     */
+    public void reuseBitmap(Bitmap bitmap) {
+        // Before API 19, only bitmaps of exactly the decoded size can be reused
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() ||
+                bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        synchronized (mReusableBitmaps) {
+            if (mReusableBitmaps.size() >= MAX_REUSABLE_BITMAPS) {
+                mReusableBitmaps.remove(0);
+            }
+            mReusableBitmaps.add(bitmap);
+        }
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private Bitmap decode(byte[] jpeg, int offset, int length, int reqWidth, int reqHeight,
+            long startNs) {
+        long copiedNs = SystemClock.elapsedRealtimeNanos();
+
+        // Bounds only parse the headers
+        BitmapFactory.decodeByteArray(jpeg, offset, length, mBoundsOpts);
+        int fullWidth = mBoundsOpts.outWidth;
+        int fullHeight = mBoundsOpts.outHeight;
+        if (fullWidth <= 0 || fullHeight <= 0) {
+            Log.e(TAG, "Unable to read JPEG size");
+            return null;
+        }
+
+        int srcOffset = offset;
+        int srcLength = length;
+        int srcWidth = fullWidth;
+        int srcHeight = fullHeight;
+        boolean thumbnail = false;
+        if (reqWidth <= MAX_THUMBNAIL_DIMENSION && reqHeight <= MAX_THUMBNAIL_DIMENSION) {
+            long[] range = getThumbnailRange(jpeg, offset, length);
+            if (range != null) {
+                BitmapFactory.decodeByteArray(jpeg, offset + (int) range[0], (int) range[1],
+                        mBoundsOpts);
+                if (mBoundsOpts.outWidth >= reqWidth && mBoundsOpts.outHeight >= reqHeight) {
+                    srcOffset = offset + (int) range[0];
+                    srcLength = (int) range[1];
+                    srcWidth = mBoundsOpts.outWidth;
+                    srcHeight = mBoundsOpts.outHeight;
+                    thumbnail = true;
+                }
+            }
+        }
+
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = 1;
+        while (srcWidth / (opts.inSampleSize * 2) >= reqWidth &&
+                srcHeight / (opts.inSampleSize * 2) >= reqHeight) {
+            opts.inSampleSize *= 2;
+        }
+        opts.inMutable = true;
+        // Power-of-two subsampling rounds up
+        int outWidth = (srcWidth + opts.inSampleSize - 1) / opts.inSampleSize;
+        int outHeight = (srcHeight + opts.inSampleSize - 1) / opts.inSampleSize;
+        opts.inBitmap = takeReusableBitmap(outWidth * outHeight * 4);
+
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, srcOffset, srcLength, opts);
+        } catch (IllegalArgumentException e) {
+            // The reused bitmap didn't fit after all
+            opts.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, srcOffset, srcLength, opts);
+        }
+        long endNs = SystemClock.elapsedRealtimeNanos();
+        if (bitmap == null) {
+            Log.e(TAG, "Unable to decode JPEG");
+            return null;
+        }
+
+        long elapsedNs = endNs - startNs;
+        mStats.decodeCount++;
+        if (thumbnail) mStats.thumbnailCount++;
+        if (opts.inBitmap != null) mStats.reusedBitmapCount++;
+        mStats.totalSourcePixels += (long) fullWidth * fullHeight;
+        mStats.totalNs += elapsedNs;
+        mStats.maxNs = Math.max(mStats.maxNs, elapsedNs);
+        Log.d(TAG, String.format(Locale.US,
+                "%dx%d (%.1f MP) -> %dx%d from %s, sample %d%s: %.2f ms (copy %.2f ms)",
+                fullWidth, fullHeight, fullWidth * fullHeight / 1e6,
+                bitmap.getWidth(), bitmap.getHeight(), thumbnail ? "thumbnail" : "image",
+                opts.inSampleSize, opts.inBitmap != null ? ", reused bitmap" : "",
+                elapsedNs / 1e6, (copiedNs - startNs) / 1e6));
+        return bitmap;
+    }
+
+    private Bitmap takeReusableBitmap(int byteCount) {
+        synchronized (mReusableBitmaps) {
+            for (int i = 0; i < mReusableBitmaps.size(); i++) {
+                Bitmap candidate = mReusableBitmaps.get(i);
+                if (candidate.getAllocationByteCount() >= byteCount) {
+                    mReusableBitmaps.remove(i);
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find the EXIF thumbnail, as an offset and length relative to the start of the JPEG data.
+     *
+     * @return the range, or null if there is no JPEG thumbnail or it can't be found
+     */
+    private static long[] getThumbnailRange(byte[] jpeg, int offset, int length) {
+        // Reading EXIF from a stream, and the thumbnail range, are API 24
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return null;
+        try {
+            ExifInterface exif =
+                    new ExifInterface(new ByteArrayInputStream(jpeg, offset, length));
+            if (!exif.hasThumbnail()) return null;
+            long[] range = exif.getThumbnailRange();
+            if (range == null || range[0] < 0 || range[0] + range[1] > length) return null;
+            return range;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes DEPTH_POINT_CLOUD data as PLY files, which most point cloud tools can open.
+ *
+ * <p>Each point in a DEPTH_POINT_CLOUD buffer is four floats: x, y, z in meters, and a
+ * confidence from 0 to 1. All four are written as PLY vertex properties. The binary
+ * little-endian format is the default; when the source buffer is already little-endian it is
+ * written to the channel as-is. The ASCII format is larger and slower, but readable.</p>
+ *
+ * <p>Output goes through one reusable chunk buffer, with no per-point allocation. A writer
+ * instance isn't thread-safe.</p>
+ *
+ * <p>This class has no framework dependencies, so it is also built into the host benchmarks.</p>
+ */
+public class PointCloudWriter {
+
+    public enum Format {
+        BINARY_LITTLE_ENDIAN,
+        ASCII
+    }
+
+    public static final int FLOATS_PER_POINT = 4;
+    public static final int BYTES_PER_POINT = FLOATS_PER_POINT * 4;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Longest ASCII float that formatFixed produces, plus a separator
+    private static final int MAX_ASCII_FLOAT = 32;
+    private static final int ASCII_DECIMALS = 6;
+    private static final long ASCII_SCALE = 1000000;
+    // Beyond this, fixed-point formatting would overflow; such values aren't plausible depths
+    private static final float MAX_FIXED_VALUE = 1e12f;
+
+    private Format mFormat;
+    private final ByteBuffer mChunk =
+            ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    public PointCloudWriter() {
+        this(Format.BINARY_LITTLE_ENDIAN);
+    }
+
+    public PointCloudWriter(Format format) {
+        mFormat = format;
+    }
+
+    public void setFormat(Format format) {
+        mFormat = format;
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Write a PLY file containing all the points between the position and limit of the given
+     * buffer. The buffer's position and limit are left unchanged.
+     *
+     * @param points DEPTH_POINT_CLOUD data, in the buffer's byte order
+     * @param out destination for the PLY file
+     * @return the number of points written
+     */
+    public int write(ByteBuffer points, WritableByteChannel out) throws IOException {
+        int pointCount = points.remaining() / BYTES_PER_POINT;
+        writeHeader(pointCount, out);
+        if (mFormat == Format.ASCII) {
+            writeAscii(points, pointCount, out);
+        } else {
+            writeBinary(points, pointCount, out);
+        }
+        return pointCount;
+    }
+
+    private void writeHeader(int pointCount, WritableByteChannel out) throws IOException {
+        String header = "ply\n" +
+                "format " + (mFormat == Format.ASCII ? "ascii" : "binary_little_endian") +
+                " 1.0\n" +
+                "comment DEPTH_POINT_CLOUD from TestingCamera2, xyz in meters\n" +
+                "element vertex " + pointCount + "\n" +
+                "property float x\n" +
+                "property float y\n" +
+                "property float z\n" +
+                "property float confidence\n" +
+                "end_header\n";
+        writeFully(ByteBuffer.wrap(header.getBytes("US-ASCII")), out);
+    }
+
+    private void writeBinary(ByteBuffer points, int pointCount, WritableByteChannel out)
+            throws IOException {
+        ByteBuffer src = points.duplicate();
+        src.limit(src.position() + pointCount * BYTES_PER_POINT);
+        if (points.order() == ByteOrder.LITTLE_ENDIAN) {
+            // Already in PLY byte order; no copy needed
+            writeFully(src, out);
+            return;
+        }
+        // Swap through the chunk buffer
+        FloatBuffer srcFloats = src.order(points.order()).asFloatBuffer();
+        mChunk.clear();
+        FloatBuffer chunkFloats = mChunk.asFloatBuffer();
+        while (srcFloats.hasRemaining()) {
+            int count = Math.min(srcFloats.remaining(), chunkFloats.capacity());
+            FloatBuffer slice = srcFloats.slice();
+            slice.limit(count);
+            chunkFloats.clear();
+            chunkFloats.put(slice);
+            srcFloats.position(srcFloats.position() + count);
+            mChunk.clear();
+            mChunk.limit(count * 4);
+            writeFully(mChunk, out);
+        }
+    }
+
+    private void writeAscii(ByteBuffer points, int pointCount, WritableByteChannel out)
+            throws IOException {
+        FloatBuffer src = points.duplicate().order(points.order()).asFloatBuffer();
+        byte[] chunk = mChunk.array();
+        int pos = 0;
+        int floatCount = pointCount * FLOATS_PER_POINT;
+        for (int i = 0; i < floatCount; i++) {
+            if (pos > CHUNK_SIZE - MAX_ASCII_FLOAT) {
+                flushChunk(pos, out);
+                pos = 0;
+            }
+            pos = formatFixed(src.get(i), chunk, pos);
+            chunk[pos++] = (byte) ((i % FLOATS_PER_POINT == FLOATS_PER_POINT - 1) ? '\n' : ' ');
+        }
+        flushChunk(pos, out);
+    }
+
+    private void flushChunk(int length, WritableByteChannel out) throws IOException {
+        mChunk.clear();
+        mChunk.limit(length);
+        writeFully(mChunk, out);
+    }
+
+    /**
+     * Format a float like "%f" (six decimal places) into buf without allocating, and return
+     * the new position.
+     */
+    private static int formatFixed(float value, byte[] buf, int pos) {
+        if (Float.isNaN(value)) {
+            return putAscii("nan", buf, pos);
+        }
+        if (Float.isInfinite(value)) {
+            return putAscii(value > 0 ? "inf" : "-inf", buf, pos);
+        }
+        if (Math.abs(value) >= MAX_FIXED_VALUE) {
+            // Implausible for depth data, so the allocation doesn't matter
+            return putAscii(Float.toString(value), buf, pos);
+        }
+        if (Float.floatToRawIntBits(value) < 0) {
+            buf[pos++] = '-';
+        }
+        // Round halves away from zero, as "%f" does
+        long scaled = Math.round(Math.abs((double) value) * ASCII_SCALE);
+        long whole = scaled / ASCII_SCALE;
+        long frac = scaled % ASCII_SCALE;
+        pos = putDigits(whole, 1, buf, pos);
+        buf[pos++] = '.';
+        return putDigits(frac, ASCII_DECIMALS, buf, pos);
+    }
+
+    /**
+     * Write a non-negative value in decimal, zero-padded to at least minDigits.
+     */
+    private static int putDigits(long value, int minDigits, byte[] buf, int pos) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            buf[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    private static int putAscii(String s, byte[] buf, int pos) {
+        for (int i = 0; i < s.length(); i++) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    private static void writeFully(ByteBuffer data, WritableByteChannel out) throws IOException {
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+    }
+}
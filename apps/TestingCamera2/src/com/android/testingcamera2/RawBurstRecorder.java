@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.DngCreator;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Size;
+
+/**
+ * Records every frame from a RAW16 or RAW10 ImageReader into a {@link RawSequenceFile}, on a
+ * dedicated thread so that the stream isn't held up by the UI, and exports recorded frames to
+ * DNG afterwards.
+ *
+ * <p>DNG export needs the capture result of each frame, which can't be stored in the sequence
+ * file, so results are kept in memory for the recorder's lifetime; the file itself stores the
+ * key metadata of each frame in its index.</p>
+ */
+public class RawBurstRecorder {
+
+    /**
+     * Called on the UI thread when recording stops or an export finishes.
+     */
+    public interface Listener {
+        void onRecordingStopped(RawBurstRecorder recorder, int frameCount);
+        void onExportFinished(RawBurstRecorder recorder, int exportedCount);
+    }
+
+    // Leave some room on the device for everything else
+    private static final double MAX_STORAGE_FRACTION = 0.8;
+
+    private final File mFile;
+    private final int mMaxFrames;
+    private final CameraCharacteristics mCharacteristics;
+    private final Listener mListener;
+    private final Handler mUiHandler = new Handler();
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Only touched on the recorder thread
+    private RawSequenceFile.Writer mWriter;
+    private boolean mFull = false;
+    private long mStartNs;
+    private long mBytesWritten;
+
+    private final Map<Long, TotalCaptureResult> mResults = new HashMap<>();
+    private volatile boolean mRecording = false;
+    private volatile int mFrameCount = 0;
+
+    /**
+     * @param file sequence file to record to
+     * @param maxFrames most frames to preallocate room for; fewer if storage is short
+     * @param characteristics characteristics of the camera, for DNG export
+     */
+    public RawBurstRecorder(File file, int maxFrames, CameraCharacteristics characteristics,
+            Listener listener) {
+        mFile = file;
+        mMaxFrames = maxFrames;
+        mCharacteristics = characteristics;
+        mListener = listener;
+        mThread = new HandlerThread("RawBurstRecorder");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Start recording all images from the reader. This replaces the reader's image listener
+     * until {@link #stop}.
+     */
+    public void start(ImageReader reader) {
+        int format = reader.getImageFormat();
+        if (format != ImageFormat.RAW_SENSOR && format != ImageFormat.RAW10) {
+            throw new IllegalArgumentException("Only RAW_SENSOR and RAW10 can be recorded");
+        }
+        mRecording = true;
+        reader.setOnImageAvailableListener(mImageListener, mHandler);
+    }
+
+    /**
+     * Stop recording, and finish the sequence file in the background. The caller must set a
+     * new image listener on the reader.
+     */
+    public void stop() {
+        mRecording = false;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int frameCount = mWriter == null ? 0 : mWriter.getFrameCount();
+                if (mWriter != null) {
+                    double seconds = (SystemClock.elapsedRealtimeNanos() - mStartNs) / 1e9;
+                    try {
+                        mWriter.close();
+                        TLog.i("Recorded %d raw frames to %s, %.1f MB/s", frameCount,
+                                mFile.getName(), mBytesWritten / seconds / 1e6);
+                    } catch (IOException e) {
+                        TLog.e("Unable to finish raw sequence %s", e, mFile.getName());
+                    }
+                    mWriter = null;
+                }
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onRecordingStopped(RawBurstRecorder.this, frameCount);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Record the capture result of a frame. Call for every result while recording, from any
+     * thread.
+     */
+    public void onCaptureResult(TotalCaptureResult result) {
+        if (!mRecording) return;
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) return;
+        synchronized (mResults) {
+            mResults.put(timestamp, result);
+        }
+        final long ts = timestamp;
+        final long exposure = getOrZero(result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+        final int sensitivity = (int) getOrZero(result.get(CaptureResult.SENSOR_SENSITIVITY));
+        final long duration = getOrZero(result.get(CaptureResult.SENSOR_FRAME_DURATION));
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWriter != null) {
+                    mWriter.setMetadata(ts, exposure, sensitivity, duration);
+                }
+            }
+        });
+    }
+
+    /**
+     * Export recorded frames to DNG files next to the sequence file, in the background.
+     *
+     * @param frames indices of the frames to export, or null for all
+     */
+    public void exportToDng(final int[] frames) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final int exported = exportFrames(frames);
+                mUiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mListener.onExportFinished(RawBurstRecorder.this, exported);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the recorder thread once pending work is done.
+     */
+    public void release() {
+        mThread.quitSafely();
+    }
+
+    private static long getOrZero(Number value) {
+        return value == null ? 0 : value.longValue();
+    }
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image img = reader.acquireNextImage();
+            if (img == null) return;
+            try {
+                if (mRecording && !mFull) {
+                    appendImage(img);
+                }
+            } catch (IOException e) {
+                TLog.e("Unable to record raw frame, stopping", e);
+                mFull = true;
+            } finally {
+                img.close();
+            }
+        }
+    };
+
+    private void appendImage(Image img) throws IOException {
+        Image.Plane plane = img.getPlanes()[0];
+        ByteBuffer data = plane.getBuffer();
+        data.rewind();
+        if (mWriter == null) {
+            RawSequenceFile.Header header = new RawSequenceFile.Header(img.getFormat(),
+                    img.getWidth(), img.getHeight(), plane.getRowStride(),
+                    plane.getPixelStride(), data.remaining());
+            File dir = mFile.getParentFile();
+            long available = (long) (dir.getUsableSpace() * MAX_STORAGE_FRACTION);
+            int capacity = (int) Math.min(mMaxFrames, available / header.getRecordSize());
+            if (capacity < 1) {
+                throw new IOException("No storage space for raw frames");
+            }
+            mWriter = new RawSequenceFile.Writer(mFile, header, capacity);
+            mStartNs = SystemClock.elapsedRealtimeNanos();
+            TLog.i("Recording up to %d raw frames (%d MB) to %s", capacity,
+                    capacity * header.getRecordSize() / (1024 * 1024), mFile.getName());
+        }
+        if (!mWriter.append(img.getTimestamp(), data)) {
+            TLog.e("Raw sequence %s is full after %d frames", mFile.getName(),
+                    mWriter.getFrameCount());
+            mFull = true;
+            return;
+        }
+        mBytesWritten += data.remaining();
+        mFrameCount = mWriter.getFrameCount();
+    }
+
+    private int exportFrames(int[] frames) {
+        int exported = 0;
+        try (RawSequenceFile.Reader reader = new RawSequenceFile.Reader(mFile)) {
+            RawSequenceFile.Header header = reader.getHeader();
+            List<RawSequenceFile.FrameInfo> infos = reader.getFrames();
+            if (frames == null) {
+                frames = new int[infos.size()];
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = i;
+                }
+            }
+            ByteBuffer frameData = null;
+            ByteBuffer raw16 = ByteBuffer.allocateDirect(header.width * header.height * 2)
+                    .order(ByteOrder.nativeOrder());
+            String baseName = mFile.getName().replaceFirst("\\.[^.]*$", "");
+            for (int index : frames) {
+                if (index < 0 || index >= infos.size()) {
+                    TLog.e("No raw frame %d to export", index);
+                    continue;
+                }
+                RawSequenceFile.FrameInfo info = infos.get(index);
+                TotalCaptureResult result;
+                synchronized (mResults) {
+                    result = mResults.get(info.timestamp);
+                }
+                if (result == null) {
+                    TLog.e("No capture result for raw frame %d, not exporting", index);
+                    continue;
+                }
+                frameData = reader.readFrame(index, frameData);
+                toPackedRaw16(header, frameData, raw16);
+
+                File out = new File(mFile.getParentFile(),
+                        String.format("%s_%04d.dng", baseName, index));
+                try (DngCreator dng = new DngCreator(mCharacteristics, result);
+                        OutputStream os = new BufferedOutputStream(new FileOutputStream(out))) {
+                    dng.writeByteBuffer(os, new Size(header.width, header.height), raw16, 0);
+                }
+                exported++;
+            }
+        } catch (IOException e) {
+            TLog.e("Unable to export raw frames from %s", e, mFile.getName());
+        }
+        return exported;
+    }
+
+    /**
+     * Convert a recorded frame to RAW16 without row padding, as DngCreator needs it.
+     */
+    private static void toPackedRaw16(RawSequenceFile.Header header, ByteBuffer src,
+            ByteBuffer dst) {
+        dst.clear();
+        int width = header.width;
+        if (header.format == ImageFormat.RAW_SENSOR) {
+            for (int y = 0; y < header.height; y++) {
+                src.limit(y * header.rowStride + width * 2);
+                src.position(y * header.rowStride);
+                dst.put(src);
+            }
+        } else {
+            // RAW10: each 4 pixels are packed into 5 bytes, 8 high bits each and then the
+            // 2 low bits of all four
+            byte[] row = new byte[width * 5 / 4];
+            for (int y = 0; y < header.height; y++) {
+                src.limit(y * header.rowStride + row.length);
+                src.position(y * header.rowStride);
+                src.get(row);
+                for (int i = 0; i < row.length; i += 5) {
+                    int low = row[i + 4] & 0xFF;
+                    for (int p = 0; p < 4; p++) {
+                        int value = ((row[i + p] & 0xFF) << 2) | ((low >> (2 * p)) & 0x3);
+                        dst.putShort((short) value);
+                    }
+                }
+            }
+        }
+        dst.flip();
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A container file for long sequences of raw frames, written at close to full storage speed.
+ *
+ * <p>Layout, all little-endian:</p>
+ * <pre>
+ * header    HEADER_SIZE bytes: magic "TC2RAWSQ", version, image format, width, height,
+ *           row stride, pixel stride, frame data size; zero-padded up to the first record
+ * frames    one record per frame, starting at FIRST_RECORD_OFFSET: a FRAME_HEADER_SIZE header
+ *           (frame magic, index, sensor timestamp, data size) followed by the plane data
+ *           exactly as the camera produced it, row padding included, then zero padding. The
+ *           frame header sits at the end of the previous RECORD_ALIGNMENT unit, so that the
+ *           plane data of every frame starts on a RECORD_ALIGNMENT boundary
+ * index     one INDEX_ENTRY_SIZE entry per frame: record offset, sensor timestamp, exposure
+ *           time, sensitivity, frame duration
+ * footer    FOOTER_SIZE bytes: magic "TC2RAWIX", index offset, frame count
+ * </pre>
+ *
+ * <p>The writer preallocates room for a fixed number of frames and copies each frame into a
+ * memory-mapped window of the file, so a frame costs one memory copy and the kernel writes
+ * it back in large sequential chunks. The index goes at the end, once capture metadata for
+ * all frames is known, and the file is truncated to its final size.</p>
+ *
+ * <p>This class has no framework dependencies, so it is also built into the host benchmarks.</p>
+ */
+public class RawSequenceFile {
+
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int FRAME_HEADER_SIZE = 32;
+    public static final int INDEX_ENTRY_SIZE = 40;
+    public static final int FOOTER_SIZE = 32;
+    // Frame data starts on a page boundary, so it's copied to and from whole pages
+    public static final int RECORD_ALIGNMENT = 4096;
+    public static final int FIRST_RECORD_OFFSET = RECORD_ALIGNMENT - FRAME_HEADER_SIZE;
+
+    private static final long HEADER_MAGIC = 0x5153574152324354L; // "TC2RAWSQ"
+    private static final long FOOTER_MAGIC = 0x5849574152324354L; // "TC2RAWIX"
+    private static final int FRAME_MAGIC = 0x4d415246; // "FRAM"
+
+    // Frames are mapped this many bytes at a time, rounded to whole records
+    private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Layout of every frame in a sequence.
+     */
+    public static class Header {
+        public final int format;
+        public final int width;
+        public final int height;
+        public final int rowStride;
+        public final int pixelStride;
+        public final int frameDataSize;
+
+        public Header(int format, int width, int height, int rowStride, int pixelStride,
+                int frameDataSize) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+            this.frameDataSize = frameDataSize;
+        }
+
+        /**
+         * Bytes per frame record in the file, including its header and alignment padding.
+         */
+        public long getRecordSize() {
+            return align(FRAME_HEADER_SIZE + (long) frameDataSize);
+        }
+    }
+
+    /**
+     * Where a frame is in the file, and its capture metadata. Metadata fields are 0 if no
+     * capture result was recorded for the frame.
+     */
+    public static class FrameInfo {
+        public final int index;
+        public final long offset;
+        public final long timestamp;
+        public long exposureTimeNs;
+        public int sensitivity;
+        public long frameDurationNs;
+
+        FrameInfo(int index, long offset, long timestamp) {
+            this.index = index;
+            this.offset = offset;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private RawSequenceFile() {}
+
+    private static long align(long size) {
+        return (size + RECORD_ALIGNMENT - 1) / RECORD_ALIGNMENT * RECORD_ALIGNMENT;
+    }
+
+    /**
+     * Appends frames to a new sequence file. Frames are appended from one thread; metadata
+     * can be added from any thread.
+     */
+    public static class Writer implements Closeable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final Header mHeader;
+        private final int mCapacity;
+        private final long mRecordSize;
+        private final int mRecordsPerWindow;
+
+        // Only the window being written is kept mapped, so that long recordings don't run
+        // out of address space
+        private MappedByteBuffer mWindow;
+        private long mWindowStart;
+
+        private final List<FrameInfo> mFrames = new ArrayList<>();
+        private final Map<Long, FrameInfo> mFramesByTimestamp = new HashMap<>();
+        // Metadata for frames that haven't been appended yet
+        private final Map<Long, long[]> mPendingMetadata = new HashMap<>();
+        private boolean mClosed = false;
+
+        /**
+         * Create a sequence file with room for capacity frames. Any existing file is replaced.
+         */
+        public Writer(File file, Header header, int capacity) throws IOException {
+            mHeader = header;
+            mCapacity = capacity;
+            mRecordSize = header.getRecordSize();
+            mRecordsPerWindow = (int) Math.max(1, MAP_WINDOW_SIZE / mRecordSize);
+            mFile = new RandomAccessFile(file, "rw");
+            mChannel = mFile.getChannel();
+            try {
+                mFile.setLength(0);
+                mFile.setLength(FIRST_RECORD_OFFSET + mRecordSize * capacity);
+
+                ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                out.putLong(HEADER_MAGIC);
+                out.putInt(VERSION);
+                out.putInt(header.format);
+                out.putInt(header.width);
+                out.putInt(header.height);
+                out.putInt(header.rowStride);
+                out.putInt(header.pixelStride);
+                out.putInt(header.frameDataSize);
+                out.clear();
+                writeFully(out, 0);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        public Header getHeader() {
+            return mHeader;
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        public synchronized int getFrameCount() {
+            return mFrames.size();
+        }
+
+        /**
+         * Append one frame. Data beyond the header's frame data size is ignored.
+         *
+         * @param data plane data between position and limit, left unchanged
+         * @return false if the file is full
+         */
+        public boolean append(long timestamp, ByteBuffer data) throws IOException {
+            int index;
+            synchronized (this) {
+                if (mClosed) throw new IOException("Sequence file is closed");
+                index = mFrames.size();
+            }
+            if (index >= mCapacity) return false;
+
+            int windowIndex = index / mRecordsPerWindow;
+            long windowStart =
+                    FIRST_RECORD_OFFSET + windowIndex * mRecordsPerWindow * mRecordSize;
+            if (mWindow == null || mWindowStart != windowStart) {
+                if (mWindow != null) {
+                    // Done with the previous window; it's unmapped once collected
+                    mWindow.force();
+                    mWindow = null;
+                }
+                long windowSize = Math.min(mRecordsPerWindow, mCapacity - windowIndex *
+                        mRecordsPerWindow) * mRecordSize;
+                mWindow = mChannel.map(FileChannel.MapMode.READ_WRITE, windowStart,
+                        windowSize);
+                mWindow.order(ByteOrder.LITTLE_ENDIAN);
+                mWindowStart = windowStart;
+            }
+
+            int size = Math.min(data.remaining(), mHeader.frameDataSize);
+            int recordStart = (int) (FIRST_RECORD_OFFSET + index * mRecordSize - windowStart);
+            mWindow.position(recordStart);
+            mWindow.putInt(FRAME_MAGIC);
+            mWindow.putInt(index);
+            mWindow.putLong(timestamp);
+            mWindow.putInt(size);
+            mWindow.position(recordStart + FRAME_HEADER_SIZE);
+            ByteBuffer src = data.duplicate();
+            src.limit(src.position() + size);
+            mWindow.put(src);
+
+            FrameInfo info = new FrameInfo(index, windowStart + recordStart, timestamp);
+            synchronized (this) {
+                long[] metadata = mPendingMetadata.remove(timestamp);
+                if (metadata != null) {
+                    applyMetadata(info, metadata);
+                }
+                mFrames.add(info);
+                mFramesByTimestamp.put(timestamp, info);
+            }
+            return true;
+        }
+
+        /**
+         * Record capture metadata for the frame with the given sensor timestamp, which may
+         * arrive before or after the frame itself.
+         */
+        public synchronized void setMetadata(long timestamp, long exposureTimeNs,
+                int sensitivity, long frameDurationNs) {
+            long[] metadata = { exposureTimeNs, sensitivity, frameDurationNs };
+            FrameInfo info = mFramesByTimestamp.get(timestamp);
+            if (info != null) {
+                applyMetadata(info, metadata);
+            } else if (!mClosed) {
+                mPendingMetadata.put(timestamp, metadata);
+            }
+        }
+
+        private static void applyMetadata(FrameInfo info, long[] metadata) {
+            info.exposureTimeNs = metadata[0];
+            info.sensitivity = (int) metadata[1];
+            info.frameDurationNs = metadata[2];
+        }
+
+        /**
+         * Flush all frames to storage, write the index, and trim the file to its used size.
+         */
+        @Override
+        public void close() throws IOException {
+            List<FrameInfo> frames;
+            synchronized (this) {
+                if (mClosed) return;
+                mClosed = true;
+                mPendingMetadata.clear();
+                frames = new ArrayList<>(mFrames);
+            }
+            try {
+                if (mWindow != null) {
+                    mWindow.force();
+                    mWindow = null;
+                }
+
+                long indexOffset = FIRST_RECORD_OFFSET + frames.size() * mRecordSize;
+                ByteBuffer out = ByteBuffer.allocate(
+                        frames.size() * INDEX_ENTRY_SIZE + FOOTER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for (FrameInfo info : frames) {
+                    out.putLong(info.offset);
+                    out.putLong(info.timestamp);
+                    out.putLong(info.exposureTimeNs);
+                    out.putInt(info.sensitivity);
+                    out.putLong(info.frameDurationNs);
+                    out.putInt(0);
+                }
+                out.putLong(FOOTER_MAGIC);
+                out.putLong(indexOffset);
+                out.putInt(frames.size());
+                out.putInt(INDEX_ENTRY_SIZE);
+                out.position(out.capacity());
+                out.flip();
+                mFile.setLength(indexOffset + out.remaining());
+                writeFully(out, indexOffset);
+                mChannel.force(true);
+            } finally {
+                mFile.close();
+            }
+        }
+
+        private void writeFully(ByteBuffer data, long position) throws IOException {
+            while (data.hasRemaining()) {
+                position += mChannel.write(data, position);
+            }
+        }
+    }
+
+    /**
+     * Reads frames back from a complete sequence file. Safe to use from multiple threads.
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final Header mHeader;
+        private final List<FrameInfo> mFrames;
+
+        public Reader(File file) throws IOException {
+            mFile = new RandomAccessFile(file, "r");
+            mChannel = mFile.getChannel();
+            try {
+                ByteBuffer in = read(0, HEADER_SIZE);
+                if (in.getLong() != HEADER_MAGIC) {
+                    throw new IOException("Not a raw sequence file: " + file);
+                }
+                int version = in.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported raw sequence version " + version);
+                }
+                mHeader = new Header(in.getInt(), in.getInt(), in.getInt(), in.getInt(),
+                        in.getInt(), in.getInt());
+
+                long length = mChannel.size();
+                if (length < HEADER_SIZE + FOOTER_SIZE) {
+                    throw new IOException("Raw sequence file is incomplete: " + file);
+                }
+                in = read(length - FOOTER_SIZE, FOOTER_SIZE);
+                if (in.getLong() != FOOTER_MAGIC) {
+                    throw new IOException("Raw sequence file has no index: " + file);
+                }
+                long indexOffset = in.getLong();
+                int frameCount = in.getInt();
+                int entrySize = in.getInt();
+
+                List<FrameInfo> frames = new ArrayList<>(frameCount);
+                in = read(indexOffset, frameCount * entrySize);
+                for (int i = 0; i < frameCount; i++) {
+                    in.position(i * entrySize);
+                    long offset = in.getLong();
+                    FrameInfo info = new FrameInfo(i, offset, in.getLong());
+                    info.exposureTimeNs = in.getLong();
+                    info.sensitivity = in.getInt();
+                    info.frameDurationNs = in.getLong();
+                    frames.add(info);
+                }
+                mFrames = Collections.unmodifiableList(frames);
+            } catch (IOException e) {
+                mFile.close();
+                throw e;
+            }
+        }
+
+        public Header getHeader() {
+            return mHeader;
+        }
+
+        public List<FrameInfo> getFrames() {
+            return mFrames;
+        }
+
+        /**
+         * Read the plane data of one frame.
+         *
+         * @param dst buffer to read into, or null to allocate one; needs room for the header's
+         *            frame data size
+         * @return the buffer, holding the frame data between position 0 and the limit
+         */
+        public ByteBuffer readFrame(int index, ByteBuffer dst) throws IOException {
+            FrameInfo info = mFrames.get(index);
+            ByteBuffer frameHeader = read(info.offset, FRAME_HEADER_SIZE);
+            if (frameHeader.getInt() != FRAME_MAGIC || frameHeader.getInt() != index) {
+                throw new IOException("Corrupt raw sequence frame " + index);
+            }
+            frameHeader.getLong();
+            int size = frameHeader.getInt();
+            if (dst == null) {
+                dst = ByteBuffer.allocateDirect(mHeader.frameDataSize);
+            }
+            dst.clear();
+            dst.limit(size);
+            long position = info.offset + FRAME_HEADER_SIZE;
+            while (dst.hasRemaining()) {
+                int read = mChannel.read(dst, position);
+                if (read < 0) throw new IOException("Raw sequence file is truncated");
+                position += read;
+            }
+            dst.flip();
+            return dst;
+        }
+
+        private ByteBuffer read(long position, int size) throws IOException {
+            ByteBuffer in = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            while (in.hasRemaining()) {
+                int read = mChannel.read(in, position + in.position());
+                if (read < 0) throw new IOException("Raw sequence file is truncated");
+            }
+            in.flip();
+            return in;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
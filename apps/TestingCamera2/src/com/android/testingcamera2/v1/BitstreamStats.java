@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the size, key frame flag and presentation timestamp of every sample of an encoded
+ * video stream, and summarizes them: bitrate over one-second windows, key frame interval, and
+ * gaps in the frame timestamps.
+ *
+ * <p>Samples are kept in primitive arrays that grow by doubling, so recording a sample doesn't
+ * allocate in the steady state. Not thread-safe; add samples from the encoder output thread,
+ * and summarize once encoding has finished.</p>
+ */
+public class BitstreamStats {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long US_PER_SECOND = 1000000;
+    // A frame interval this many times the expected one counts as a gap
+    private static final double GAP_THRESHOLD = 1.5;
+
+    private final int mExpectedFrameRate;
+    private final int mExpectedKeyFrameIntervalSec;
+
+    private int mCount = 0;
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+    private long[] mPtsUs = new long[INITIAL_CAPACITY];
+    private boolean[] mKeyFrames = new boolean[INITIAL_CAPACITY];
+
+    /**
+     * @param expectedFrameRate frame rate the encoder was configured with, to detect gaps
+     * @param expectedKeyFrameIntervalSec key frame interval the encoder was configured with
+     */
+    public BitstreamStats(int expectedFrameRate, int expectedKeyFrameIntervalSec) {
+        mExpectedFrameRate = expectedFrameRate;
+        mExpectedKeyFrameIntervalSec = expectedKeyFrameIntervalSec;
+    }
+
+    public void addSample(int size, long presentationTimeUs, boolean keyFrame) {
+        if (mCount == mSizes.length) {
+            int capacity = mCount * 2;
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mPtsUs = Arrays.copyOf(mPtsUs, capacity);
+            mKeyFrames = Arrays.copyOf(mKeyFrames, capacity);
+        }
+        mSizes[mCount] = size;
+        mPtsUs[mCount] = presentationTimeUs;
+        mKeyFrames[mCount] = keyFrame;
+        mCount++;
+    }
+
+    public int getSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * Get the bitrate of each whole or partial second of the stream, in bits per second,
+     * starting from the first sample's timestamp.
+     */
+    public long[] getWindowBitRates() {
+        if (mCount == 0) return new long[0];
+        long firstUs = mPtsUs[0];
+        long lastUs = firstUs;
+        for (int i = 1; i < mCount; i++) {
+            lastUs = Math.max(lastUs, mPtsUs[i]);
+        }
+        long[] bits = new long[(int) ((lastUs - firstUs) / US_PER_SECOND) + 1];
+        for (int i = 0; i < mCount; i++) {
+            // Encoders may output samples out of presentation order
+            int window = (int) (Math.max(0, mPtsUs[i] - firstUs) / US_PER_SECOND);
+            bits[window] += mSizes[i] * 8L;
+        }
+        // Scale the last, partial window by the time it actually covers, including the last
+        // frame's own duration
+        long lastWindowUs =
+                (lastUs - firstUs) % US_PER_SECOND + US_PER_SECOND / mExpectedFrameRate;
+        if (lastWindowUs < US_PER_SECOND) {
+            bits[bits.length - 1] = bits[bits.length - 1] * US_PER_SECOND / lastWindowUs;
+        }
+        return bits;
+    }
+
+    /**
+     * Write a human-readable summary of the stream.
+     */
+    public void writeSummary(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            writeSummary(out);
+        }
+    }
+
+    private void writeSummary(PrintWriter out) {
+        out.printf(Locale.US, "Samples: %d%n", mCount);
+        if (mCount == 0) return;
+
+        long totalBytes = 0;
+        for (int i = 0; i < mCount; i++) {
+            totalBytes += mSizes[i];
+        }
+        long[] sortedPts = Arrays.copyOf(mPtsUs, mCount);
+        Arrays.sort(sortedPts);
+        long frameIntervalUs = US_PER_SECOND / mExpectedFrameRate;
+        long durationUs = sortedPts[mCount - 1] - sortedPts[0] + frameIntervalUs;
+        out.printf(Locale.US, "Duration: %.3f s, %d bytes, average %.3f Mbps%n",
+                durationUs / 1e6, totalBytes, totalBytes * 8.0 / durationUs);
+        if (sortedPts[mCount - 1] > sortedPts[0]) {
+            out.printf(Locale.US, "Sustained frame rate: %.2f fps (configured %d fps)%n",
+                    (mCount - 1) * 1e6 / (sortedPts[mCount - 1] - sortedPts[0]),
+                    mExpectedFrameRate);
+        }
+
+        long[] windows = getWindowBitRates();
+        long minRate = Long.MAX_VALUE;
+        long maxRate = 0;
+        for (long rate : windows) {
+            minRate = Math.min(minRate, rate);
+            maxRate = Math.max(maxRate, rate);
+        }
+        out.printf(Locale.US, "Bitrate over 1 s windows: min %.3f Mbps, max %.3f Mbps%n",
+                minRate / 1e6, maxRate / 1e6);
+        for (int i = 0; i < windows.length; i++) {
+            out.printf(Locale.US, "  %4d s: %.3f Mbps%n", i, windows[i] / 1e6);
+        }
+
+        int keyFrames = 0;
+        long lastKeyUs = -1;
+        long minKeyIntervalUs = Long.MAX_VALUE;
+        long maxKeyIntervalUs = 0;
+        long totalKeyIntervalUs = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (!mKeyFrames[i]) continue;
+            keyFrames++;
+            if (lastKeyUs >= 0) {
+                long intervalUs = mPtsUs[i] - lastKeyUs;
+                minKeyIntervalUs = Math.min(minKeyIntervalUs, intervalUs);
+                maxKeyIntervalUs = Math.max(maxKeyIntervalUs, intervalUs);
+                totalKeyIntervalUs += intervalUs;
+            }
+            lastKeyUs = mPtsUs[i];
+        }
+        if (keyFrames > 1) {
+            out.printf(Locale.US,
+                    "Key frames: %d, interval avg %.3f s, min %.3f s, max %.3f s " +
+                    "(configured %d s)%n",
+                    keyFrames, totalKeyIntervalUs / 1e6 / (keyFrames - 1),
+                    minKeyIntervalUs / 1e6, maxKeyIntervalUs / 1e6,
+                    mExpectedKeyFrameIntervalSec);
+        } else {
+            out.printf(Locale.US, "Key frames: %d (configured interval %d s)%n",
+                    keyFrames, mExpectedKeyFrameIntervalSec);
+        }
+
+        int gaps = 0;
+        long missingFrames = 0;
+        long maxIntervalUs = 0;
+        for (int i = 1; i < mCount; i++) {
+            long intervalUs = sortedPts[i] - sortedPts[i - 1];
+            maxIntervalUs = Math.max(maxIntervalUs, intervalUs);
+            if (intervalUs > frameIntervalUs * GAP_THRESHOLD) {
+                gaps++;
+                missingFrames += Math.round((double) intervalUs / frameIntervalUs) - 1;
+            }
+        }
+        out.printf(Locale.US,
+                "Timestamp gaps: %d, about %d frames missing at %d fps, " +
+                "longest frame interval %.1f ms%n",
+                gaps, missingFrames, mExpectedFrameRate, maxIntervalUs / 1e3);
+    }
+}
@@ -18,13 +18,16 @@ package com.android.testingcamera2.v1;
 
 import android.hardware.camera2.CaptureRequest;
 
+import java.util.ArrayDeque;
+
 /**
  * A camera AF control class wraps the AF control parameters.
  */
 public class CameraAutoFocusControls {
     private boolean mAfControlEnabled = true;
     private int mAfMode = CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
-    private Integer mPendingTrigger = null;
+    // Triggers not yet sent, oldest first; each goes out with one request
+    private final ArrayDeque<Integer> mPendingTriggers = new ArrayDeque<Integer>();
 
     public CameraAutoFocusControls() {
     }
@@ -46,16 +49,14 @@ public class CameraAutoFocusControls {
     }
 
     public synchronized void setPendingTriggerStart() {
-        mPendingTrigger = CaptureRequest.CONTROL_AF_TRIGGER_START;
+        mPendingTriggers.add(CaptureRequest.CONTROL_AF_TRIGGER_START);
     }
 
     public synchronized void setPendingTriggerCancel() {
-        mPendingTrigger = CaptureRequest.CONTROL_AF_TRIGGER_CANCEL;
+        mPendingTriggers.add(CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
     }
 
     public synchronized Integer consumePendingTrigger() {
-        Integer pendingTrigger = mPendingTrigger;
-        mPendingTrigger = null;
-        return pendingTrigger;
+        return mPendingTriggers.poll();
     }
 }
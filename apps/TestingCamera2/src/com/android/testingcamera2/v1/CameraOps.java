@@ -20,19 +20,27 @@ import android.content.Context;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest.Builder;
+import android.hardware.camera2.params.InputConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.util.Size;
 import android.media.Image;
 import android.media.ImageReader;
 import android.media.MediaCodec;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -42,13 +50,21 @@ import com.android.ex.camera2.blocking.BlockingCameraManager.BlockingOpenExcepti
 import com.android.ex.camera2.blocking.BlockingStateCallback;
 import com.android.ex.camera2.blocking.BlockingSessionCallback;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * A camera controller class that runs in its own thread, to
  * move camera ops off the UI. Generally thread-safe.
+ *
+ * <p>The camera, the session and the preview request are only used with the CameraOps lock
+ * held, since they are changed from the UI thread, from background tasks, and from the ops
+ * thread by the asynchronous API and preview updates. The blocking calls hold the lock while
+ * they wait for camera callbacks, so those callbacks come on a separate thread; the ops
+ * thread can then always wait for the lock.</p>
  */
 public class CameraOps {
 
@@ -61,6 +77,21 @@ public class CameraOps {
 
     private final HandlerThread mOpsThread;
     private final Handler mOpsHandler;
+    // Gets the camera callbacks that the blocking calls wait for
+    private final HandlerThread mBlockingCallbackThread;
+    private final Handler mBlockingCallbackHandler;
+
+    // Asynchronous operations waiting to start, and whether one holds the queue; ops thread only
+    private final ArrayDeque<AsyncOp<?>> mPendingOps = new ArrayDeque<AsyncOp<?>>();
+    private boolean mOpRunning;
+    private final OpLatencyStats mOpLatencyStats = new OpLatencyStats();
+
+    // Gets the results of the repeating preview request, may be null
+    private volatile CameraCaptureSession.CaptureCallback mPreviewResultListener;
+
+    // Controls for the next coalesced preview update
+    private volatile CameraControls mPendingPreviewControls;
+    private final ControlUpdateScheduler mPreviewUpdateScheduler;
 
     private final CameraManager mCameraManager;
     private final BlockingCameraManager mBlockingCameraManager;
@@ -71,17 +102,29 @@ public class CameraOps {
     private CameraCaptureSession mSession;
 
     private ImageReader mCaptureReader;
+    private ImageReader mRawCaptureReader;
+    // Whether the current session is the persistent preview+still session, and its outputs
+    private boolean mStillSessionConfigured = false;
+    private boolean mStillSessionHasRaw = false;
+    // Frame ring of the current zero-shutter-lag session, or null if it's not a ZSL session
+    private ZslCaptureEngine mZslEngine;
     private CameraCharacteristics mCameraCharacteristics;
+    // Read from mCameraCharacteristics when the camera opens; checked for every still capture
+    private volatile boolean mRealtimeSensorTimestamps;
 
     private int mEncodingBitRate;
     private int mDeviceOrientation;
 
     private CaptureRequest.Builder mPreviewRequestBuilder;
     private CaptureRequest.Builder mRecordingRequestBuilder;
+    // Whether the current recording uses a constrained high-speed session
+    private boolean mHighSpeedRecording = false;
     List<Surface> mOutputSurfaces = new ArrayList<Surface>(2);
     private Surface mPreviewSurface;
     // How many JPEG buffers do we want to hold on to at once
     private static final int MAX_CONCURRENT_JPEGS = 2;
+    // How many full-resolution frames to keep for zero-shutter-lag capture
+    private static final int ZSL_RING_SIZE = 3;
 
     private static final int STATUS_ERROR = 0;
     private static final int STATUS_UNINITIALIZED = 1;
@@ -90,6 +133,9 @@ public class CameraOps {
     private static final int ENC_BIT_RATE_LOW = 2000000;
     // high encoding bitrate(bps), used by large resolution like 1080p.
     private static final int ENC_BIT_RATE_HIGH = 10000000;
+    // Encoding bits per pixel per frame for high-speed recording, matching ENC_BIT_RATE_HIGH
+    // at 1080p30
+    private static final float ENC_BITS_PER_PIXEL_HIGH_SPEED = 0.16f;
     private static final Size DEFAULT_SIZE = new Size(640, 480);
     private static final Size HIGH_RESOLUTION_SIZE = new Size(1920, 1080);
 
@@ -100,6 +146,10 @@ public class CameraOps {
     private int mStatus = STATUS_UNINITIALIZED;
 
     CameraRecordingStream mRecordingStream;
+    // Recording streams for each encoder configuration, starting with mRecordingStream
+    private final List<CameraRecordingStream> mRecordingStreams =
+            new ArrayList<CameraRecordingStream>();
+    private int mActiveRecordingStreamCount = 0;
     private final Listener mListener;
     private final Handler mListenerHandler;
 
@@ -119,8 +169,13 @@ public class CameraOps {
         mOpsThread = new HandlerThread("CameraOpsThread");
         mOpsThread.start();
         mOpsHandler = new Handler(mOpsThread.getLooper());
+        mBlockingCallbackThread = new HandlerThread("CameraOps blocking callbacks");
+        mBlockingCallbackThread.start();
+        mBlockingCallbackHandler = new Handler(mBlockingCallbackThread.getLooper());
+        mPreviewUpdateScheduler = new ControlUpdateScheduler(mOpsHandler, mPreviewUpdater);
 
         mRecordingStream = new CameraRecordingStream();
+        mRecordingStreams.add(mRecordingStream);
         mStatus = STATUS_OK;
 
         mListener = listener;
@@ -155,10 +210,31 @@ public class CameraOps {
         return mCameraCharacteristics;
     }
 
-    public void closeDevice()
+    /**
+     * Whether the open camera's sensor timestamps use the
+     * {@link SystemClock#elapsedRealtimeNanos} clock, so they can be compared with app times.
+     * Always false before API 23, which can't report the timestamp source.
+     */
+    public boolean hasRealtimeSensorTimestamps() {
+        return mRealtimeSensorTimestamps;
+    }
+
+    private void setCameraCharacteristics(CameraCharacteristics characteristics) {
+        mCameraCharacteristics = characteristics;
+        boolean realtime = false;
+        if (characteristics != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            Integer timestampSource =
+                    characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            realtime = timestampSource != null &&
+                    timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        }
+        mRealtimeSensorTimestamps = realtime;
+    }
+
+    public synchronized void closeDevice()
             throws ApiFailureException {
         checkOk();
-        mCameraCharacteristics = null;
+        setCameraCharacteristics(null);
 
         if (mCamera == null) return;
 
@@ -170,6 +246,7 @@ public class CameraOps {
 
         mCamera = null;
         mSession = null;
+        onSessionReplaced();
     }
 
     private void minimalOpenCamera() throws ApiFailureException {
@@ -183,8 +260,9 @@ public class CameraOps {
                     throw new ApiFailureException("no devices");
                 }
                 mCamera = mBlockingCameraManager.openCamera(devices[0],
-                        mDeviceListener, mOpsHandler);
-                mCameraCharacteristics = mCameraManager.getCameraCharacteristics(mCamera.getId());
+                        mDeviceListener, mBlockingCallbackHandler);
+                setCameraCharacteristics(
+                        mCameraManager.getCameraCharacteristics(mCamera.getId()));
                 characteristics = mCameraCharacteristics;
             } catch (CameraAccessException e) {
                 throw new ApiFailureException("open failure", e);
@@ -192,30 +270,51 @@ public class CameraOps {
                 throw new ApiFailureException("open async failure", e);
             }
 
-            // Dispatch listener event
-            if (mListener != null && mListenerHandler != null) {
-                mListenerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        mListener.onCameraOpened(devices[0], characteristics);
-                    }
-                });
-            }
+            dispatchCameraOpened(devices[0], characteristics);
         }
 
         mStatus = STATUS_OK;
     }
 
+    private void dispatchCameraOpened(final String cameraId,
+            final CameraCharacteristics characteristics) {
+        if (mListener != null && mListenerHandler != null) {
+            mListenerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onCameraOpened(cameraId, characteristics);
+                }
+            });
+        }
+    }
+
     private void configureOutputs(List<Surface> outputs) throws CameraAccessException {
         BlockingSessionCallback sessionListener = new BlockingSessionCallback();
-        mCamera.createCaptureSession(outputs, sessionListener, mOpsHandler);
+        mCamera.createCaptureSession(outputs, sessionListener, mBlockingCallbackHandler);
         mSession = sessionListener.waitAndGetSession(IDLE_WAIT_MS);
+        onSessionReplaced();
+    }
+
+    /**
+     * Forget the state of the previous session, once a new one has replaced it.
+     */
+    private void onSessionReplaced() {
+        mStillSessionConfigured = false;
+        if (mZslEngine != null) {
+            // The preview request fed the ZSL ring too, which the new session doesn't have
+            if (mPreviewRequestBuilder != null) {
+                mPreviewRequestBuilder.removeTarget(mZslEngine.getSurface());
+            }
+            mZslEngine.release();
+            mZslEngine = null;
+        }
     }
 
     /**
      * Set up SurfaceView dimensions for camera preview
      */
-    public void minimalPreviewConfig(SurfaceHolder previewHolder) throws ApiFailureException {
+    public synchronized void minimalPreviewConfig(SurfaceHolder previewHolder)
+            throws ApiFailureException {
 
         minimalOpenCamera();
         try {
@@ -246,13 +345,21 @@ public class CameraOps {
     /**
      * Update current preview with user-specified control inputs.
      */
-    public void updatePreview(CameraControls controls) {
+    public synchronized void updatePreview(CameraControls controls) {
         if (VERBOSE) {
             Log.v(TAG, "updatePreview - begin");
         }
 
         updateCaptureRequest(mPreviewRequestBuilder, controls);
 
+        if (mHighSpeedRecording) {
+            // Constrained high-speed sessions only take high-speed request lists. The preview
+            // restarts with the updated controls when recording stops; triggers are dropped.
+            removeTriggers(mPreviewRequestBuilder);
+            Log.i(TAG, "Preview controls will be applied once high-speed recording stops");
+            return;
+        }
+
         try {
             // Insert a one-time request if any triggers were set into the request
             if (hasTriggers(mPreviewRequestBuilder)) {
@@ -268,9 +375,14 @@ public class CameraOps {
                 }
             }
 
-            // TODO: add capture result listener
-            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
-                    /*listener*/null, /*handler*/null);
+            if (mZslEngine != null) {
+                // Keep filling the ZSL ring
+                mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mZslEngine.getResultCallback(), mOpsHandler);
+            } else {
+                mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mPreviewResultListener, mOpsHandler);
+            }
         } catch (CameraAccessException e) {
             Log.e(TAG, "Update camera preview failed");
         }
@@ -280,6 +392,59 @@ public class CameraOps {
         }
     }
 
+    /**
+     * Set the listener for the results of the preview's repeating request, from the next
+     * preview start or update on. Results are delivered on the camera ops thread.
+     */
+    public void setPreviewResultListener(CameraCaptureSession.CaptureCallback listener) {
+        mPreviewResultListener = listener;
+    }
+
+    /**
+     * Request a preview update with the given controls, applied on the ops thread at most once
+     * per frame interval. Requests made in between are merged, the latest controls winning.
+     */
+    public void requestPreviewUpdate(CameraControls controls) {
+        mPendingPreviewControls = controls;
+        mPreviewUpdateScheduler.requestUpdate();
+    }
+
+    /**
+     * Request a preview update that sends a pending trigger, applied right away and never
+     * merged with another trigger.
+     */
+    public void requestPreviewTriggerUpdate(CameraControls controls) {
+        mPendingPreviewControls = controls;
+        mPreviewUpdateScheduler.requestTriggerUpdate();
+    }
+
+    /**
+     * Get the counters of requested, applied and merged preview updates.
+     */
+    public String getPreviewUpdateSummary() {
+        return mPreviewUpdateScheduler.getSummary();
+    }
+
+    private final ControlUpdateScheduler.Updater mPreviewUpdater =
+            new ControlUpdateScheduler.Updater() {
+        @Override
+        public long applyUpdate() {
+            CameraControls controls = mPendingPreviewControls;
+            synchronized (CameraOps.this) {
+                if (mSession == null || mPreviewRequestBuilder == null) {
+                    // No preview yet; it picks up the controls when it starts
+                    return 0;
+                }
+                updatePreview(controls);
+            }
+            CameraManualControls manual = controls.getManualControls();
+            if (manual.isManualControlEnabled()) {
+                return Math.max(manual.getFrameDuration(), manual.getExposure());
+            }
+            return 0;
+        }
+    };
+
     private static boolean hasTriggers(Builder requestBuilder) {
         if (requestBuilder == null) {
             return false;
@@ -329,9 +494,9 @@ public class CameraOps {
     /**
      * Configure streams and run minimal preview
      */
-    public void minimalPreview(SurfaceHolder previewHolder, CameraControls camCtl)
+    public synchronized void minimalPreview(SurfaceHolder previewHolder, CameraControls camCtl)
             throws ApiFailureException {
-
+        requireNoHighSpeedRecording("Preview");
         minimalOpenCamera();
 
         if (mPreviewSurface == null) {
@@ -348,40 +513,21 @@ public class CameraOps {
 
             mPreviewRequestBuilder.addTarget(mPreviewSurface);
 
-            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(), null, null);
+            mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                    mPreviewResultListener, mOpsHandler);
         } catch (CameraAccessException e) {
             throw new ApiFailureException("Error setting up minimal preview", e);
         }
     }
 
-    public void minimalJpegCapture(final CaptureCallback listener, CaptureResultListener l,
-            Handler h, CameraControls cameraControl) throws ApiFailureException {
+    public synchronized void minimalJpegCapture(final CaptureCallback listener,
+            CaptureResultListener l, Handler h, CameraControls cameraControl)
+            throws ApiFailureException {
+        requireNoHighSpeedRecording("JPEG capture");
         minimalOpenCamera();
 
         try {
-            CameraCharacteristics properties =
-                    mCameraManager.getCameraCharacteristics(mCamera.getId());
-            Size[] jpegSizes = null;
-            if (properties != null) {
-                jpegSizes = properties.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).
-                        getOutputSizes(ImageFormat.JPEG);
-            }
-            int width = 640;
-            int height = 480;
-
-            if (jpegSizes != null && jpegSizes.length > 0) {
-                width = jpegSizes[0].getWidth();
-                height = jpegSizes[0].getHeight();
-            }
-
-            if (mCaptureReader == null || mCaptureReader.getWidth() != width ||
-                    mCaptureReader.getHeight() != height) {
-                if (mCaptureReader != null) {
-                    mCaptureReader.close();
-                }
-                mCaptureReader = ImageReader.newInstance(width, height,
-                        ImageFormat.JPEG, MAX_CONCURRENT_JPEGS);
-            }
+            prepareJpegReader();
 
             List<Surface> outputSurfaces = new ArrayList<Surface>(/*capacity*/1);
             outputSurfaces.add(mCaptureReader.getSurface());
@@ -396,22 +542,7 @@ public class CameraOps {
 
             updateCaptureRequest(captureBuilder, cameraControl);
 
-            ImageReader.OnImageAvailableListener readerListener =
-                    new ImageReader.OnImageAvailableListener() {
-                @Override
-                public void onImageAvailable(ImageReader reader) {
-                    Image i = null;
-                    try {
-                        i = reader.acquireNextImage();
-                        listener.onCaptureAvailable(i);
-                    } finally {
-                        if (i != null) {
-                            i.close();
-                        }
-                    }
-                }
-            };
-            mCaptureReader.setOnImageAvailableListener(readerListener, h);
+            mCaptureReader.setOnImageAvailableListener(createReaderListener(listener), h);
 
             mSession.capture(captureBuilder.build(), l, mOpsHandler);
         } catch (CameraAccessException e) {
@@ -419,22 +550,324 @@ public class CameraOps {
         }
     }
 
-    public void startRecording(Context applicationContext, boolean useMediaCodec, int outputFormat)
+    /**
+     * Capture a JPEG, and optionally a RAW image, from a session that keeps the preview
+     * running alongside the still outputs. The session is only configured for the first shot,
+     * or when its outputs change, so later shots skip the session teardown and preview
+     * rebuild that each minimalJpegCapture() needs. RAW images are acquired and dropped; they
+     * are only there to include the RAW stream's cost.
+     */
+    public synchronized void persistentStillCapture(final CaptureCallback listener,
+            CaptureResultListener l, Handler h, CameraControls cameraControl, boolean includeRaw)
             throws ApiFailureException {
+        requireNoHighSpeedRecording("Still capture");
+        minimalOpenCamera();
+
+        if (mPreviewSurface == null) {
+            throw new ApiFailureException("Preview surface is not created");
+        }
+        try {
+            boolean outputsChanged = prepareJpegReader();
+            if (includeRaw) {
+                outputsChanged |= prepareRawReader();
+                if (mRawCaptureReader == null) {
+                    Log.w(TAG, "RAW capture not supported, capturing JPEG only");
+                    includeRaw = false;
+                }
+            }
+
+            if (!mStillSessionConfigured || outputsChanged ||
+                    includeRaw != mStillSessionHasRaw) {
+                List<Surface> outputSurfaces = new ArrayList<Surface>(/*capacity*/3);
+                outputSurfaces.add(mPreviewSurface);
+                outputSurfaces.add(mCaptureReader.getSurface());
+                if (includeRaw) {
+                    outputSurfaces.add(mRawCaptureReader.getSurface());
+                }
+                configureOutputs(outputSurfaces);
+                mStillSessionConfigured = true;
+                mStillSessionHasRaw = includeRaw;
+
+                if (mPreviewRequestBuilder == null) {
+                    mPreviewRequestBuilder =
+                            mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                    mPreviewRequestBuilder.addTarget(mPreviewSurface);
+                }
+                updateCaptureRequest(mPreviewRequestBuilder, cameraControl);
+                mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mPreviewResultListener, mOpsHandler);
+            }
+
+            CaptureRequest.Builder captureBuilder =
+                    mCamera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientationHint());
+            captureBuilder.addTarget(mCaptureReader.getSurface());
+            if (includeRaw) {
+                captureBuilder.addTarget(mRawCaptureReader.getSurface());
+                mRawCaptureReader.setOnImageAvailableListener(mRawDropListener, h);
+            }
+            updateCaptureRequest(captureBuilder, cameraControl);
+
+            mCaptureReader.setOnImageAvailableListener(createReaderListener(listener), h);
+
+            mSession.capture(captureBuilder.build(), l, mOpsHandler);
+        } catch (CameraAccessException e) {
+            throw new ApiFailureException("Error in persistent still capture", e);
+        }
+    }
+
+    /**
+     * Capture a JPEG by reprocessing a recent full-resolution frame, with no shutter lag. The
+     * first call sets up a reprocessable session that keeps the preview running and the last
+     * ZSL_RING_SIZE frames in a ZslCaptureEngine; later calls only submit a reprocess request.
+     * PRIVATE frames are used if the camera can reprocess them, YUV frames otherwise.
+     *
+     * @param prefer3aConverged pick the most recent frame with 3A converged rather than the
+     *     most recent frame
+     * @return the SENSOR_TIMESTAMP of the reprocessed frame, that is, its start of exposure
+     */
+    public synchronized long zslCapture(final CaptureCallback listener, CaptureResultListener l,
+            Handler h, CameraControls cameraControl, boolean prefer3aConverged)
+            throws ApiFailureException {
+        // Sample the shutter time before anything else, that's the moment to capture
+        long shutterNs = SystemClock.elapsedRealtimeNanos();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            throw new ApiFailureException("ZSL capture needs reprocessing, from API 23");
+        }
+        requireNoHighSpeedRecording("ZSL capture");
+        minimalOpenCamera();
+
+        if (mPreviewSurface == null) {
+            throw new ApiFailureException("Preview surface is not created");
+        }
+        try {
+            if (mZslEngine == null) {
+                configureZslSession(cameraControl);
+            }
+
+            // Sensor timestamps can only be compared with the shutter time if they use the
+            // same clock
+            boolean realtime = hasRealtimeSensorTimestamps();
+            ZslCaptureEngine.Frame frame = mZslEngine.takeFrame(
+                    realtime ? shutterNs : Long.MAX_VALUE, prefer3aConverged);
+            if (frame == null) {
+                throw new ApiFailureException("No ZSL frame available yet");
+            }
+            if (realtime) {
+                Log.i(TAG, String.format("ZSL frame is %.1f ms before shutter",
+                        (shutterNs - frame.getTimestamp()) / 1e6));
+            }
+
+            CaptureRequest.Builder reprocessBuilder =
+                    mCamera.createReprocessCaptureRequest(frame.result);
+            reprocessBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientationHint());
+            reprocessBuilder.addTarget(mCaptureReader.getSurface());
+
+            mCaptureReader.setOnImageAvailableListener(createReaderListener(listener), h);
+
+            long frameTimestampNs = frame.getTimestamp();
+            mZslEngine.queueInput(frame);
+            mSession.capture(reprocessBuilder.build(), l, mOpsHandler);
+            return frameTimestampNs;
+        } catch (CameraAccessException e) {
+            throw new ApiFailureException("Error in ZSL capture", e);
+        }
+    }
+
+    private void configureZslSession(CameraControls cameraControl)
+            throws ApiFailureException, CameraAccessException {
+        CameraCharacteristics properties = getCameraCharacteristics();
+        int[] capabilities = properties.get(
+                CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        int format = -1;
+        for (int capability : capabilities) {
+            if (capability ==
+                    CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING) {
+                format = ImageFormat.PRIVATE;
+                break;
+            }
+            if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING) {
+                format = ImageFormat.YUV_420_888;
+            }
+        }
+        if (format == -1) {
+            throw new ApiFailureException("Camera doesn't support reprocessing");
+        }
+
+        StreamConfigurationMap map =
+                properties.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size largest = null;
+        for (Size size : map.getInputSizes(format)) {
+            if (largest == null ||
+                    size.getWidth() * size.getHeight() > largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        if (largest == null) {
+            throw new ApiFailureException("No reprocessing input size for format " + format);
+        }
+        Log.i(TAG, String.format("ZSL with %s frames at %s",
+                format == ImageFormat.PRIVATE ? "PRIVATE" : "YUV", largest));
+
+        prepareJpegReader();
+        ZslCaptureEngine engine = new ZslCaptureEngine(largest.getWidth(), largest.getHeight(),
+                format, ZSL_RING_SIZE, mOpsHandler);
+
+        List<Surface> outputSurfaces = new ArrayList<Surface>(/*capacity*/3);
+        outputSurfaces.add(mPreviewSurface);
+        outputSurfaces.add(engine.getSurface());
+        outputSurfaces.add(mCaptureReader.getSurface());
+
+        BlockingSessionCallback sessionListener = new BlockingSessionCallback();
+        mCamera.createReprocessableCaptureSession(
+                new InputConfiguration(largest.getWidth(), largest.getHeight(), format),
+                outputSurfaces, sessionListener, mBlockingCallbackHandler);
+        mSession = sessionListener.waitAndGetSession(IDLE_WAIT_MS);
+        onSessionReplaced();
+        mZslEngine = engine;
+        engine.setInputSurface(mSession.getInputSurface());
+
+        CaptureRequest.Builder zslBuilder =
+                mCamera.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+        zslBuilder.addTarget(mPreviewSurface);
+        zslBuilder.addTarget(engine.getSurface());
+        updateCaptureRequest(zslBuilder, cameraControl);
+        mPreviewRequestBuilder = zslBuilder;
+        mSession.setRepeatingRequest(zslBuilder.build(), engine.getResultCallback(),
+                mOpsHandler);
+    }
+
+    /**
+     * Create or resize the JPEG capture reader for the camera's first JPEG size.
+     *
+     * @return true if the reader was replaced
+     */
+    private boolean prepareJpegReader() throws CameraAccessException {
+        CameraCharacteristics properties =
+                mCameraManager.getCameraCharacteristics(mCamera.getId());
+        Size[] jpegSizes = null;
+        if (properties != null) {
+            jpegSizes = properties.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).
+                    getOutputSizes(ImageFormat.JPEG);
+        }
+        int width = 640;
+        int height = 480;
+
+        if (jpegSizes != null && jpegSizes.length > 0) {
+            width = jpegSizes[0].getWidth();
+            height = jpegSizes[0].getHeight();
+        }
+
+        if (mCaptureReader == null || mCaptureReader.getWidth() != width ||
+                mCaptureReader.getHeight() != height) {
+            if (mCaptureReader != null) {
+                mCaptureReader.close();
+            }
+            mCaptureReader = ImageReader.newInstance(width, height,
+                    ImageFormat.JPEG, MAX_CONCURRENT_JPEGS);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create the RAW capture reader at the largest RAW_SENSOR size, if the camera has one.
+     *
+     * @return true if the reader was created
+     */
+    private boolean prepareRawReader() throws CameraAccessException {
+        if (mRawCaptureReader != null) return false;
+        CameraCharacteristics properties =
+                mCameraManager.getCameraCharacteristics(mCamera.getId());
+        Size[] rawSizes = properties.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP).
+                getOutputSizes(ImageFormat.RAW_SENSOR);
+        if (rawSizes == null || rawSizes.length == 0) return false;
+        Size largest = rawSizes[0];
+        for (Size size : rawSizes) {
+            if (size.getWidth() * size.getHeight() > largest.getWidth() * largest.getHeight()) {
+                largest = size;
+            }
+        }
+        mRawCaptureReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
+                ImageFormat.RAW_SENSOR, MAX_CONCURRENT_JPEGS);
+        return true;
+    }
+
+    private ImageReader.OnImageAvailableListener createReaderListener(
+            final CaptureCallback listener) {
+        return new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image i = null;
+                try {
+                    i = reader.acquireNextImage();
+                    listener.onCaptureAvailable(i);
+                } finally {
+                    if (i != null) {
+                        i.close();
+                    }
+                }
+            }
+        };
+    }
+
+    private final ImageReader.OnImageAvailableListener mRawDropListener =
+            new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image i = reader.acquireNextImage();
+            if (i != null) {
+                i.close();
+            }
+        }
+    };
+
+    public synchronized void startRecording(Context applicationContext, boolean useMediaCodec,
+            int outputFormat) throws ApiFailureException {
+        startRecording(applicationContext, useMediaCodec,
+                Arrays.asList(getDefaultEncoderConfig(outputFormat)));
+    }
+
+    /**
+     * Get the encoder configuration used by default for recording: 1080p at a high bitrate if
+     * the camera supports it, otherwise VGA at a low bitrate.
+     */
+    public synchronized CameraRecordingStream.EncoderConfig getDefaultEncoderConfig(
+            int outputFormat) throws ApiFailureException {
         minimalOpenCamera();
         Size recordingSize = getRecordingSize();
+        return new CameraRecordingStream.EncoderConfig(recordingSize, mEncodingBitRate,
+                outputFormat);
+    }
+
+    /**
+     * Start recording with one encoder per configuration, all fed by the same repeating
+     * request, for measuring the cost of simulcast recording. Each encoder writes its own
+     * file and reports its own statistics. With MediaRecorder, only the first stream records
+     * audio.
+     */
+    public synchronized void startRecording(Context applicationContext, boolean useMediaCodec,
+            List<CameraRecordingStream.EncoderConfig> configs) throws ApiFailureException {
+        minimalOpenCamera();
         int orientationHint = getOrientationHint();
         try {
             if (mRecordingRequestBuilder == null) {
                 mRecordingRequestBuilder =
                         mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
             }
-            // Setup output stream first
-            mRecordingStream.configure(
-                    applicationContext, recordingSize, useMediaCodec, mEncodingBitRate,
-                    orientationHint, outputFormat);
-            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */false);
-            mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */false);
+            while (mRecordingStreams.size() < configs.size()) {
+                mRecordingStreams.add(new CameraRecordingStream());
+            }
+            mActiveRecordingStreamCount = configs.size();
+            // Setup output streams first
+            for (int i = 0; i < configs.size(); i++) {
+                CameraRecordingStream stream = mRecordingStreams.get(i);
+                Log.i(TAG, "Recording stream " + i + ": " + configs.get(i));
+                stream.configure(applicationContext, configs.get(i), useMediaCodec,
+                        orientationHint, (i == 0) ? "" : ("_" + i), /* recordAudio */(i == 0));
+                stream.onConfiguringOutputs(mOutputSurfaces, /* detach */false);
+                stream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */false);
+            }
 
             // TODO: For preview, create preview stream class, and do the same thing like recording.
             mOutputSurfaces.add(mPreviewSurface);
@@ -443,13 +876,105 @@ public class CameraOps {
             // Start camera streaming and recording.
             configureOutputs(mOutputSurfaces);
             mSession.setRepeatingRequest(mRecordingRequestBuilder.build(), null, null);
-            mRecordingStream.start();
+            for (int i = 0; i < mActiveRecordingStreamCount; i++) {
+                mRecordingStreams.get(i).start();
+            }
         } catch (CameraAccessException e) {
             throw new ApiFailureException("Error start recording", e);
+        } catch (IllegalStateException e) {
+            throw new ApiFailureException("Error configuring recording streams", e);
         }
     }
 
-    public void stopRecording(Context ctx) throws ApiFailureException {
+    /**
+     * Start constrained high-speed recording at the highest fixed frame rate the camera
+     * supports, at the largest high-speed video size for that rate. High-speed sessions only
+     * allow outputs of one size, so the recording stream is the only output and the preview
+     * stops until recording ends.
+     */
+    public synchronized void startHighSpeedRecording(Context applicationContext,
+            boolean useMediaCodec, int outputFormat) throws ApiFailureException {
+        minimalOpenCamera();
+        CameraCharacteristics properties = getCameraCharacteristics();
+        int[] capabilities =
+                properties.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        boolean highSpeedSupported = false;
+        for (int capability : capabilities) {
+            if (capability == CameraMetadata
+                    .REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) {
+                highSpeedSupported = true;
+            }
+        }
+        if (!highSpeedSupported) {
+            throw new ApiFailureException("Camera doesn't support constrained high-speed video");
+        }
+
+        StreamConfigurationMap map =
+                properties.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Size bestSize = null;
+        Range<Integer> bestRange = null;
+        for (Size size : map.getHighSpeedVideoSizes()) {
+            for (Range<Integer> range : map.getHighSpeedVideoFpsRangesFor(size)) {
+                // Recording needs a fixed frame rate
+                if (!range.getLower().equals(range.getUpper())) continue;
+                if (bestRange == null || range.getUpper() > bestRange.getUpper() ||
+                        (range.getUpper().equals(bestRange.getUpper()) &&
+                        size.getWidth() * size.getHeight() >
+                        bestSize.getWidth() * bestSize.getHeight())) {
+                    bestSize = size;
+                    bestRange = range;
+                }
+            }
+        }
+        if (bestRange == null) {
+            throw new ApiFailureException("No fixed high-speed video frame rate available");
+        }
+        int frameRate = bestRange.getUpper();
+        int bitRate = (int) (bestSize.getWidth() * bestSize.getHeight() * frameRate *
+                ENC_BITS_PER_PIXEL_HIGH_SPEED);
+        Log.i(TAG, String.format("High-speed recording at %s, %s fps, %d bps",
+                bestSize, bestRange, bitRate));
+
+        try {
+            mActiveRecordingStreamCount = 1;
+            mRecordingStream.configure(
+                    applicationContext, bestSize, useMediaCodec, bitRate,
+                    getOrientationHint(), outputFormat, frameRate);
+            mOutputSurfaces.clear();
+            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */false);
+
+            BlockingSessionCallback sessionListener = new BlockingSessionCallback();
+            mCamera.createConstrainedHighSpeedCaptureSession(mOutputSurfaces, sessionListener,
+                    mBlockingCallbackHandler);
+            CameraConstrainedHighSpeedCaptureSession session =
+                    (CameraConstrainedHighSpeedCaptureSession)
+                    sessionListener.waitAndGetSession(IDLE_WAIT_MS);
+            mSession = session;
+            onSessionReplaced();
+
+            CaptureRequest.Builder builder =
+                    mCamera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, bestRange);
+            mRecordingStream.onConfiguringRequest(builder, /* detach */false);
+            mRecordingRequestBuilder = builder;
+            mHighSpeedRecording = true;
+
+            // High-speed sessions only take bursts of several frames' requests at a time
+            session.setRepeatingBurst(session.createHighSpeedRequestList(builder.build()),
+                    null, null);
+            mRecordingStream.start();
+        } catch (CameraAccessException e) {
+            throw new ApiFailureException("Error starting high-speed recording", e);
+        } catch (IllegalStateException e) {
+            throw new ApiFailureException("Error configuring high-speed recording", e);
+        }
+    }
+
+    public synchronized void stopRecording(Context ctx) throws ApiFailureException {
+        if (mHighSpeedRecording) {
+            stopHighSpeedRecording(ctx);
+            return;
+        }
         try {
             /**
              * <p>
@@ -462,14 +987,19 @@ public class CameraOps {
              * output to that surface. Then it cause camera in bad state.
              * </p>
              */
-            mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
-            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+            for (int i = 0; i < mActiveRecordingStreamCount; i++) {
+                CameraRecordingStream stream = mRecordingStreams.get(i);
+                stream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
+                stream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+            }
 
             // Remove recording surface before calling RecordingStream.stop,
             // since that invalidates the surface.
             configureOutputs(mOutputSurfaces);
 
-            mRecordingStream.stop(ctx);
+            for (int i = 0; i < mActiveRecordingStreamCount; i++) {
+                mRecordingStreams.get(i).stop(ctx);
+            }
 
             mSession.setRepeatingRequest(mRecordingRequestBuilder.build(), null, null);
         } catch (CameraAccessException e) {
@@ -477,10 +1007,54 @@ public class CameraOps {
         }
     }
 
+    private void stopHighSpeedRecording(Context ctx) throws ApiFailureException {
+        mHighSpeedRecording = false;
+        try {
+            // The recording stream is the only output of the high-speed session, so go back
+            // to a regular preview session before the stream releases its surface
+            mSession.stopRepeating();
+            mRecordingStream.onConfiguringRequest(mRecordingRequestBuilder, /* detach */true);
+            mRecordingStream.onConfiguringOutputs(mOutputSurfaces, /* detach */true);
+            mRecordingRequestBuilder = null;
+            mOutputSurfaces.clear();
+            mOutputSurfaces.add(mPreviewSurface);
+            configureOutputs(mOutputSurfaces);
+
+            mRecordingStream.stop(ctx);
+
+            if (mPreviewRequestBuilder != null) {
+                mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mPreviewResultListener, mOpsHandler);
+            }
+        } catch (CameraAccessException e) {
+            throw new ApiFailureException("Error stopping high-speed recording", e);
+        }
+    }
+
+    /**
+     * Get encoder statistics of the current or last MediaCodec recording
+     */
+    public CameraRecordingStream.EncoderStats getRecordingStats() {
+        return mRecordingStream.getEncoderStats();
+    }
+
+    /**
+     * Get encoder statistics of each stream of the current or last MediaCodec recording, in
+     * the order of their encoder configurations
+     */
+    public List<CameraRecordingStream.EncoderStats> getAllRecordingStats() {
+        List<CameraRecordingStream.EncoderStats> stats =
+                new ArrayList<CameraRecordingStream.EncoderStats>();
+        for (int i = 0; i < mActiveRecordingStreamCount; i++) {
+            stats.add(mRecordingStreams.get(i).getEncoderStats());
+        }
+        return stats;
+    }
+
     /**
      * Flush all current requests and in-progress work
      */
-    public void flush() throws ApiFailureException {
+    public synchronized void flush() throws ApiFailureException {
         minimalOpenCamera();
         try {
             mSession.abortCaptures();
@@ -489,6 +1063,391 @@ public class CameraOps {
         }
     }
 
+    /**
+     * Gets the outcome of an operation of the asynchronous API, on the ops thread.
+     */
+    public static interface AsyncCallback<T> {
+        void onCompleted(T result);
+        void onFailed(Exception error);
+    }
+
+    /**
+     * An operation of the asynchronous API, started on the ops thread in queue order. All its
+     * methods run on the ops thread.
+     */
+    private abstract class AsyncOp<T> {
+        private final String mStage;
+        private final AsyncCallback<T> mCallback;
+        private final long mQueuedNs = SystemClock.elapsedRealtimeNanos();
+        private long mStartNs;
+        private boolean mDone;
+        private boolean mReleased;
+
+        AsyncOp(String stage, AsyncCallback<T> callback) {
+            mStage = stage;
+            mCallback = callback;
+        }
+
+        /**
+         * Start the operation, which calls complete() or fail() once done. It may call
+         * release() before that, once the next operation can start; finishing also releases.
+         */
+        abstract void start() throws Exception;
+
+        final void run() {
+            mStartNs = SystemClock.elapsedRealtimeNanos();
+            try {
+                synchronized (CameraOps.this) {
+                    start();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        final void complete(T result) {
+            if (!finish(/*failed*/false)) return;
+            if (mCallback != null) {
+                mCallback.onCompleted(result);
+            }
+            release();
+        }
+
+        final void fail(Exception error) {
+            if (!finish(/*failed*/true)) return;
+            if (mCallback != null) {
+                mCallback.onFailed(error);
+            }
+            release();
+        }
+
+        final void release() {
+            if (mReleased) return;
+            mReleased = true;
+            // Start the next operation after this one's callbacks have returned
+            mOpsHandler.post(mStartNextOpRunnable);
+        }
+
+        private boolean finish(boolean failed) {
+            if (mDone) return false;
+            mDone = true;
+            long endNs = SystemClock.elapsedRealtimeNanos();
+            mOpLatencyStats.record(mStage, mStartNs - mQueuedNs, endNs - mStartNs, failed);
+            if (VERBOSE) {
+                Log.v(TAG, String.format("%s done in %.1f ms", mStage, (endNs - mStartNs) / 1e6));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Queue an operation to start on the ops thread once the previous one lets go of the
+     * queue. A failed operation doesn't stop the queue; later operations fail by themselves if
+     * they depend on it.
+     */
+    private void enqueue(final AsyncOp<?> op) {
+        mOpsHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPendingOps.add(op);
+                if (!mOpRunning) {
+                    startNextOp();
+                }
+            }
+        });
+    }
+
+    private final Runnable mStartNextOpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startNextOp();
+        }
+    };
+
+    private void startNextOp() {
+        AsyncOp<?> op = mPendingOps.poll();
+        mOpRunning = op != null;
+        if (op != null) {
+            op.run();
+        }
+    }
+
+    /**
+     * Open the first camera without blocking, if it isn't open yet.
+     *
+     * @param callback gets the opened camera, may be null
+     */
+    public void openCameraAsync(AsyncCallback<CameraDevice> callback) {
+        enqueue(new AsyncOp<CameraDevice>("open", callback) {
+            @Override
+            void start() throws Exception {
+                if (mCamera != null) {
+                    complete(mCamera);
+                    return;
+                }
+                final String[] devices = mCameraManager.getCameraIdList();
+                if (devices == null || devices.length == 0) {
+                    throw new ApiFailureException("no devices");
+                }
+                mCameraManager.openCamera(devices[0], new CameraDevice.StateCallback() {
+                    @Override
+                    public void onOpened(CameraDevice camera) {
+                        synchronized (CameraOps.this) {
+                            try {
+                                setCameraCharacteristics(
+                                        mCameraManager.getCameraCharacteristics(camera.getId()));
+                            } catch (CameraAccessException e) {
+                                camera.close();
+                                fail(new ApiFailureException("open failure", e));
+                                return;
+                            }
+                            mCamera = camera;
+                            mStatus = STATUS_OK;
+                        }
+                        dispatchCameraOpened(devices[0], mCameraCharacteristics);
+                        complete(camera);
+                    }
+
+                    @Override
+                    public void onDisconnected(CameraDevice camera) {
+                        onClosedUnexpectedly(camera, "Camera disconnected");
+                    }
+
+                    @Override
+                    public void onError(CameraDevice camera, int error) {
+                        onClosedUnexpectedly(camera, "Camera error " + error);
+                    }
+
+                    private void onClosedUnexpectedly(CameraDevice camera, String reason) {
+                        camera.close();
+                        synchronized (CameraOps.this) {
+                            if (mCamera == camera) {
+                                mCamera = null;
+                                mSession = null;
+                                onSessionReplaced();
+                            }
+                        }
+                        fail(new ApiFailureException(reason));
+                    }
+                }, mOpsHandler);
+            }
+        });
+    }
+
+    /**
+     * Create a capture session with the given outputs without blocking. The current session,
+     * if any, is closed; captures it already has in flight still complete.
+     *
+     * @param callback gets the new session, may be null
+     */
+    public void configureOutputsAsync(final List<Surface> outputs,
+            AsyncCallback<CameraCaptureSession> callback) {
+        configureOutputsAsync("configure", new Callable<List<Surface>>() {
+            @Override
+            public List<Surface> call() {
+                return outputs;
+            }
+        }, callback);
+    }
+
+    /**
+     * Create a capture session with outputs that are only known once the operation starts.
+     */
+    private void configureOutputsAsync(String stage, final Callable<List<Surface>> outputs,
+            AsyncCallback<CameraCaptureSession> callback) {
+        enqueue(new AsyncOp<CameraCaptureSession>(stage, callback) {
+            @Override
+            void start() throws Exception {
+                requireCamera();
+                requireNoHighSpeedRecording("Session configuration");
+                mCamera.createCaptureSession(outputs.call(),
+                        new CameraCaptureSession.StateCallback() {
+                    @Override
+                    public void onConfigured(CameraCaptureSession session) {
+                        synchronized (CameraOps.this) {
+                            mSession = session;
+                            onSessionReplaced();
+                        }
+                        complete(session);
+                    }
+
+                    @Override
+                    public void onConfigureFailed(CameraCaptureSession session) {
+                        fail(new ApiFailureException("Session configuration failed"));
+                    }
+                }, mOpsHandler);
+            }
+        });
+    }
+
+    /**
+     * Submit a single capture to the current session without blocking. The queue moves on as
+     * soon as the request is submitted, so later operations such as the next session
+     * configuration start while the capture is still in progress.
+     *
+     * @param targets outputs of the capture; read when the capture is submitted
+     * @param listener also gets the capture's callbacks, may be null
+     * @param callback gets the capture's result, may be null
+     */
+    public void captureAsync(final int template, final List<Surface> targets,
+            final CameraControls cameraControl,
+            final CameraCaptureSession.CaptureCallback listener,
+            AsyncCallback<TotalCaptureResult> callback) {
+        enqueue(new AsyncOp<TotalCaptureResult>("capture", callback) {
+            @Override
+            void start() throws Exception {
+                requireSession();
+                requireNoHighSpeedRecording("Capture");
+                CaptureRequest.Builder builder = mCamera.createCaptureRequest(template);
+                for (Surface target : targets) {
+                    builder.addTarget(target);
+                }
+                if (template == CameraDevice.TEMPLATE_STILL_CAPTURE) {
+                    builder.set(CaptureRequest.JPEG_ORIENTATION, getOrientationHint());
+                }
+                updateCaptureRequest(builder, cameraControl);
+                mSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
+                    @Override
+                    public void onCaptureStarted(CameraCaptureSession session,
+                            CaptureRequest request, long timestamp, long frameNumber) {
+                        if (listener != null) {
+                            listener.onCaptureStarted(session, request, timestamp, frameNumber);
+                        }
+                    }
+
+                    @Override
+                    public void onCaptureCompleted(CameraCaptureSession session,
+                            CaptureRequest request, TotalCaptureResult captureResult) {
+                        if (listener != null) {
+                            listener.onCaptureCompleted(session, request, captureResult);
+                        }
+                        complete(captureResult);
+                    }
+
+                    @Override
+                    public void onCaptureFailed(CameraCaptureSession session,
+                            CaptureRequest request, CaptureFailure failure) {
+                        if (listener != null) {
+                            listener.onCaptureFailed(session, request, failure);
+                        }
+                        fail(new ApiFailureException(
+                                "Capture failed, reason " + failure.getReason()));
+                    }
+                }, mOpsHandler);
+                release();
+            }
+        });
+    }
+
+    /**
+     * Abort all captures of the current session without blocking. Completes once the abort
+     * has been issued; the session discards in-flight captures by itself.
+     *
+     * @param callback may be null
+     */
+    public void flushAsync(AsyncCallback<Void> callback) {
+        enqueue(new AsyncOp<Void>("flush", callback) {
+            @Override
+            void start() throws Exception {
+                requireSession();
+                mSession.abortCaptures();
+                complete(null);
+            }
+        });
+    }
+
+    /**
+     * Configure a preview-only session and start the preview without blocking.
+     *
+     * @param callback called once the repeating preview request is set, may be null
+     */
+    public void startPreviewAsync(final CameraControls cameraControl,
+            AsyncCallback<Void> callback) {
+        configureOutputsAsync("configure preview", new Callable<List<Surface>>() {
+            @Override
+            public List<Surface> call() throws ApiFailureException {
+                if (mPreviewSurface == null) {
+                    throw new ApiFailureException("Preview surface is not created");
+                }
+                List<Surface> outputSurfaces = new ArrayList<Surface>(/*capacity*/1);
+                outputSurfaces.add(mPreviewSurface);
+                return outputSurfaces;
+            }
+        }, /*callback*/null);
+        enqueue(new AsyncOp<Void>("start preview", callback) {
+            @Override
+            void start() throws Exception {
+                requireSession();
+                requireNoHighSpeedRecording("Preview");
+                mPreviewRequestBuilder =
+                        mCamera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                updateCaptureRequest(mPreviewRequestBuilder, cameraControl);
+                mPreviewRequestBuilder.addTarget(mPreviewSurface);
+                mSession.setRepeatingRequest(mPreviewRequestBuilder.build(),
+                        mPreviewResultListener, mOpsHandler);
+                complete(null);
+            }
+        });
+    }
+
+    /**
+     * The asynchronous version of minimalJpegCapture(): open, configure a JPEG-only session
+     * and capture, all queued at once without blocking the caller.
+     *
+     * @param callback gets the JPEG capture's result, may be null
+     */
+    public void jpegCaptureAsync(final CaptureCallback listener, CaptureResultListener l,
+            final Handler h, CameraControls cameraControl,
+            AsyncCallback<TotalCaptureResult> callback) {
+        // Filled in on the ops thread when the session is configured, before the capture reads it
+        final List<Surface> jpegTargets = new ArrayList<Surface>(/*capacity*/1);
+        openCameraAsync(/*callback*/null);
+        configureOutputsAsync("configure JPEG", new Callable<List<Surface>>() {
+            @Override
+            public List<Surface> call() throws CameraAccessException {
+                prepareJpegReader();
+                mCaptureReader.setOnImageAvailableListener(createReaderListener(listener), h);
+                jpegTargets.clear();
+                jpegTargets.add(mCaptureReader.getSurface());
+                return jpegTargets;
+            }
+        }, /*callback*/null);
+        captureAsync(CameraDevice.TEMPLATE_STILL_CAPTURE, jpegTargets, cameraControl, l,
+                callback);
+    }
+
+    /**
+     * Get the latency of each stage of the asynchronous API so far.
+     */
+    public String getAsyncLatencySummary() {
+        return mOpLatencyStats.getSummary();
+    }
+
+    private void requireCamera() throws ApiFailureException {
+        if (mCamera == null) {
+            throw new ApiFailureException("Camera is not open");
+        }
+    }
+
+    private void requireSession() throws ApiFailureException {
+        requireCamera();
+        if (mSession == null) {
+            throw new ApiFailureException("No capture session");
+        }
+    }
+
+    /**
+     * Check that the session isn't a constrained high-speed one, which rejects single
+     * captures and repeating requests with unchecked exceptions, and which replacing would end
+     * the recording.
+     */
+    private void requireNoHighSpeedRecording(String operation) throws ApiFailureException {
+        if (mHighSpeedRecording) {
+            throw new ApiFailureException(operation + " not available during high-speed " +
+                    "recording");
+        }
+    }
+
     private int getOrientationHint() {
         // snap to {0, 90, 180, 270}
         int orientation = ((int)Math.round(mDeviceOrientation/90.0)*90) % 360;
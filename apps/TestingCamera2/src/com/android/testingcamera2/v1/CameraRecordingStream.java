@@ -26,6 +26,9 @@ import android.media.MediaMuxer;
 import android.media.MediaRecorder;
 import android.media.MediaScannerConnection;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
@@ -36,6 +39,12 @@ import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Camera video recording class. It takes frames produced by camera and encoded
@@ -48,9 +57,10 @@ public class CameraRecordingStream {
     private static final int STREAM_STATE_IDLE = 0;
     private static final int STREAM_STATE_CONFIGURED = 1;
     private static final int STREAM_STATE_RECORDING = 2;
-    private static final int FRAME_RATE = 30; // 30fps
+    public static final int DEFAULT_FRAME_RATE = 30; // 30fps
     private static final int IFRAME_INTERVAL = 1; // 1 seconds between I-frames
-    private static final int TIMEOUT_USEC = 10000; // Timeout value 10ms.
+    // How long stop() waits for the encoder to drain after signaling end of stream
+    private static final long EOS_TIMEOUT_MS = 5000;
     // Sync object to protect stream state access from multiple threads.
     private final Object mStateLock = new Object();
 
@@ -58,23 +68,155 @@ public class CameraRecordingStream {
     private MediaCodec mEncoder;
     private Surface mRecordingSurface;
     private int mEncBitRate;
+    private int mFrameRate = DEFAULT_FRAME_RATE;
+    // Encoder MIME type, or null for the output format's default
+    private String mMimeType;
+    // Distinguishes the output files of streams recording at the same time
+    private String mFileSuffix = "";
+    // Whether MediaRecorder also records the microphone; only one recorder can hold it
+    private boolean mRecordAudio = true;
     private int mOrientation;
-    private MediaCodec.BufferInfo mBufferInfo;
     private MediaMuxer mMuxer;
     private int mTrackIndex = -1;
     private boolean mMuxerStarted;
     private boolean mUseMediaCodec = false;
     private Size mStreamSize = new Size(-1, -1);
     private int mOutputFormat = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
-    private Thread mRecordingThread;
+    // Encoder callbacks and muxer writes run on this thread
+    private HandlerThread mEncoderThread;
+    private CountDownLatch mEndOfStreamLatch;
+    // Set by the encoder callback once the encoder has failed; it then takes no more calls
+    private volatile boolean mEncoderFailed;
     private MediaRecorder mMediaRecorder;
     private String mOutputFile;
+    // Guarded by itself; written on the encoder thread
+    private final EncoderStats mEncoderStats = new EncoderStats();
+    // Per-sample record of the current recording; filled on the encoder thread
+    private volatile BitstreamStats mBitstreamStats;
+    // Clock the sample timestamps came from, picked at the first sample; see onSampleEncoded
+    private boolean mTimestampsFromBootTime;
+
+    /**
+     * Statistics of the encoded samples of a MediaCodec recording.
+     */
+    public static class EncoderStats {
+        public int sampleCount;
+        public int keyFrameCount;
+        public long totalBytes;
+        public long firstPtsUs;
+        public long lastPtsUs;
+        // From the sample's capture timestamp to its arrival from the encoder
+        public long totalLatencyUs;
+        public long maxLatencyUs;
+
+        EncoderStats copy() {
+            EncoderStats stats = new EncoderStats();
+            stats.sampleCount = sampleCount;
+            stats.keyFrameCount = keyFrameCount;
+            stats.totalBytes = totalBytes;
+            stats.firstPtsUs = firstPtsUs;
+            stats.lastPtsUs = lastPtsUs;
+            stats.totalLatencyUs = totalLatencyUs;
+            stats.maxLatencyUs = maxLatencyUs;
+            return stats;
+        }
+
+        void reset() {
+            sampleCount = 0;
+            keyFrameCount = 0;
+            totalBytes = 0;
+            firstPtsUs = 0;
+            lastPtsUs = 0;
+            totalLatencyUs = 0;
+            maxLatencyUs = 0;
+        }
+
+        /**
+         * Get the output bitrate in bits per second, over the span of sample timestamps.
+         */
+        public long getBitRate() {
+            if (sampleCount < 2 || lastPtsUs <= firstPtsUs) return 0;
+            // Count the last sample as lasting one average frame interval
+            long spanUs = (lastPtsUs - firstPtsUs) * sampleCount / (sampleCount - 1);
+            return totalBytes * 8 * 1000000 / spanUs;
+        }
+
+        /**
+         * Get the sustained frame rate of the encoded output, from the sample timestamps.
+         */
+        public double getFrameRate() {
+            if (sampleCount < 2 || lastPtsUs <= firstPtsUs) return 0;
+            return (sampleCount - 1) * 1e6 / (lastPtsUs - firstPtsUs);
+        }
+
+        public double getAverageLatencyMs() {
+            return (sampleCount == 0) ? 0 : totalLatencyUs / 1000.0 / sampleCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d samples (%d key frames), %.1f fps, %d bytes, %.2f Mbps, " +
+                    "encode latency avg %.1f ms, max %.1f ms",
+                    sampleCount, keyFrameCount, getFrameRate(), totalBytes, getBitRate() / 1e6,
+                    getAverageLatencyMs(), maxLatencyUs / 1000.0);
+        }
+    }
+
+    /**
+     * Encoder settings for one recording stream, so that several streams with different
+     * settings can record from one camera at once.
+     */
+    public static class EncoderConfig {
+        public final Size size;
+        public final int bitRate;
+        public final int outputFormat;
+        // Encoder MIME type, or null for the output format's default; MediaCodec only
+        public final String mimeType;
+
+        public EncoderConfig(Size size, int bitRate, int outputFormat) {
+            this(size, bitRate, outputFormat, null);
+        }
+
+        public EncoderConfig(Size size, int bitRate, int outputFormat, String mimeType) {
+            this.size = size;
+            this.bitRate = bitRate;
+            this.outputFormat = outputFormat;
+            this.mimeType = mimeType;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %d bps %s", size, bitRate,
+                    (mimeType != null) ? mimeType : "default codec");
+        }
+    }
 
     public CameraRecordingStream() {
     }
 
     /**
-     * Configure stream with a size and encoder mode.
+     * Configure stream from an encoder configuration, at the default frame rate.
+     *
+     * @param fileSuffix Added to the output file name, to keep apart the files of streams
+     * recording at the same time.
+     * @param recordAudio Whether a MediaRecorder stream records audio. Only one MediaRecorder
+     * can use the microphone at a time, so at most one of the streams recording at the same
+     * time can have audio.
+     * @see #configure(Context, Size, boolean, int, int, int)
+     */
+    public synchronized void configure(
+            Context ctx, EncoderConfig config, boolean useMediaCodec, int orientation,
+            String fileSuffix, boolean recordAudio) {
+        mMimeType = config.mimeType;
+        mFileSuffix = fileSuffix;
+        mRecordAudio = recordAudio;
+        configureStream(ctx, config.size, useMediaCodec, config.bitRate, orientation,
+                config.outputFormat, DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Configure stream with a size and encoder mode, at the default frame rate.
      *
      * @param ctx Application context.
      * @param size Size of recording stream.
@@ -87,6 +229,29 @@ public class CameraRecordingStream {
     public synchronized void configure(
             Context ctx, Size size, boolean useMediaCodec, int bitRate, int orientation,
             int outputFormat) {
+        configure(ctx, size, useMediaCodec, bitRate, orientation, outputFormat,
+                DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * Configure stream with a size, encoder mode and frame rate.
+     *
+     * @param frameRate Frame rate the camera produces, such as 120 or 240
+     * for constrained high-speed recording.
+     * @see #configure(Context, Size, boolean, int, int, int)
+     */
+    public synchronized void configure(
+            Context ctx, Size size, boolean useMediaCodec, int bitRate, int orientation,
+            int outputFormat, int frameRate) {
+        mMimeType = null;
+        mFileSuffix = "";
+        mRecordAudio = true;
+        configureStream(ctx, size, useMediaCodec, bitRate, orientation, outputFormat, frameRate);
+    }
+
+    private void configureStream(
+            Context ctx, Size size, boolean useMediaCodec, int bitRate, int orientation,
+            int outputFormat, int frameRate) {
         if (getStreamState() == STREAM_STATE_RECORDING) {
             throw new IllegalStateException(
                     "Stream can only be configured when stream is in IDLE state");
@@ -96,13 +261,15 @@ public class CameraRecordingStream {
                 (!mStreamSize.equals(size)) ||
                 (mUseMediaCodec != useMediaCodec) ||
                 (mEncBitRate != bitRate) ||
-                (mOrientation != orientation);
+                (mOrientation != orientation) ||
+                (mFrameRate != frameRate);
 
         mStreamSize = size;
         mUseMediaCodec = useMediaCodec;
         mEncBitRate = bitRate;
         mOrientation = orientation;
         mOutputFormat = outputFormat;
+        mFrameRate = frameRate;
 
         if (mUseMediaCodec) {
             if (getStreamState() == STREAM_STATE_CONFIGURED) {
@@ -129,6 +296,9 @@ public class CameraRecordingStream {
         } else {
             configureMediaRecorder();
         }
+        if (mRecordingSurface == null) {
+            throw new IllegalStateException("No recording surface for " + mStreamSize);
+        }
 
         setStreamState(STREAM_STATE_CONFIGURED);
     }
@@ -231,16 +401,31 @@ public class CameraRecordingStream {
         setStreamState(STREAM_STATE_IDLE);
         Log.e(TAG, "setting camera to idle");
         if (mUseMediaCodec) {
-            // Wait until recording thread stop
             try {
-                mRecordingThread.join();
+                if (mEncoderFailed) {
+                    Log.w(TAG, "Encoder failed, not draining it");
+                } else {
+                    // Drain encoder; the encoder callback writes out all remaining samples and
+                    // then reports end of stream
+                    mEncoder.signalEndOfInputStream();
+                    if (!mEndOfStreamLatch.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        Log.w(TAG, "Timed out waiting for encoder end of stream");
+                    }
+                }
+            } catch (IllegalStateException e) {
+                // The encoder failed after the check
+                Log.e(TAG, "Could not signal encoder end of stream", e);
             } catch (InterruptedException e) {
                 throw new RuntimeException("Stop recording failed", e);
+            } finally {
+                try {
+                    releaseEncoder();
+                } finally {
+                    releaseMuxer(ctx);
+                }
             }
-            // Drain encoder
-            doMediaCodecEncoding(/* notifyEndOfStream */true);
-            releaseEncoder();
-            releaseMuxer(ctx);
+            Log.i(TAG, "Recording " + mOutputFile + " finished: " + getEncoderStats());
+            writeBitstreamSummary();
         } else {
             try {
                 mMediaRecorder.stop();
@@ -253,31 +438,40 @@ public class CameraRecordingStream {
     }
 
     /**
-     * Starts MediaCodec mode recording.
+     * Get the statistics of the current or last MediaCodec recording. Can be called at any
+     * time.
+     */
+    public EncoderStats getEncoderStats() {
+        synchronized (mEncoderStats) {
+            return mEncoderStats.copy();
+        }
+    }
+
+    /**
+     * Starts MediaCodec mode recording. The encoder is already running, and feeds the muxer
+     * from its callback as samples are encoded.
      */
     private void startMediaCodecRecording() {
-        /**
-         * Start video recording asynchronously. we need a loop to handle output
-         * data for each frame.
-         */
-        mRecordingThread = new Thread() {
-            @Override
-            public void run() {
-                if (VERBOSE) {
-                    Log.v(TAG, "Recording thread starts");
-                }
+        synchronized (mEncoderStats) {
+            mEncoderStats.reset();
+        }
+        mBitstreamStats = new BitstreamStats(mFrameRate, IFRAME_INTERVAL);
+    }
 
-                while (getStreamState() == STREAM_STATE_RECORDING) {
-                    // Feed encoder output into the muxer until recording stops.
-                    doMediaCodecEncoding(/* notifyEndOfStream */false);
-                }
-                if (VERBOSE) {
-                    Log.v(TAG, "Recording thread completes");
-                }
-                return;
-            }
-        };
-        mRecordingThread.start();
+    /**
+     * Write the bitstream summary of the finished recording next to its output file.
+     */
+    private void writeBitstreamSummary() {
+        if (mBitstreamStats == null || mOutputFile == null) return;
+        String base = mOutputFile.substring(0, mOutputFile.lastIndexOf('.'));
+        File summaryFile = new File(base + "_stats.txt");
+        try {
+            mBitstreamStats.writeSummary(summaryFile);
+            Log.i(TAG, "Bitstream summary written to " + summaryFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write bitstream summary " + summaryFile, e);
+        }
+        mBitstreamStats = null;
     }
 
     // Thread-safe access to the stream state.
@@ -302,8 +496,24 @@ public class CameraRecordingStream {
         if (VERBOSE) {
             Log.v(TAG, "releasing encoder");
         }
+        if (mEncoderThread != null) {
+            // Let pending callbacks finish, and drop any later ones, before the encoder and
+            // muxer go away
+            mEncoderThread.quitSafely();
+            try {
+                mEncoderThread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Stop encoder thread failed", e);
+            }
+            mEncoderThread = null;
+        }
         if (mEncoder != null) {
-            mEncoder.stop();
+            try {
+                mEncoder.stop();
+            } catch (IllegalStateException e) {
+                // Already in the error state; release() still frees it
+                Log.w(TAG, "Could not stop encoder: " + e);
+            }
             mEncoder.release();
             if (mRecordingSurface != null) {
                 mRecordingSurface.release();
@@ -318,7 +528,16 @@ public class CameraRecordingStream {
         }
 
         if (mMuxer != null) {
-            mMuxer.stop();
+            // A muxer that never got a track can't be stopped
+            if (mMuxerStarted) {
+                mMuxerStarted = false;
+                try {
+                    mMuxer.stop();
+                } catch (IllegalStateException e) {
+                    // No samples were written, if the encoder failed early
+                    Log.w(TAG, "Could not stop muxer: " + e);
+                }
+            }
             mMuxer.release();
             mMuxer = null;
             MediaScannerConnection.scanFile(ctx, new String [] { mOutputFile }, null, null);
@@ -342,6 +561,9 @@ public class CameraRecordingStream {
     }
 
     private String getOutputMime() {
+        if (mMimeType != null) {
+            return mMimeType;
+        }
         switch (mOutputFormat) {
             case MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4:
                 return "video/avc";
@@ -389,19 +611,48 @@ public class CameraRecordingStream {
         // Create a media file name
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
         String mediaFileName = mediaStorageDir.getPath() + File.separator +
-                "VID_" + timeStamp + getOutputExtension();
+                "VID_" + timeStamp + mFileSuffix + getOutputExtension();
 
         Log.v(TAG, "Recording file name: " + mediaFileName);
         return mediaFileName;
     }
 
+    /**
+     * Create the encoder on the handler's thread, and wait for it.
+     */
+    private MediaCodec createEncoder(Handler handler) {
+        FutureTask<MediaCodec> task = new FutureTask<>(new Callable<MediaCodec>() {
+            @Override
+            public MediaCodec call() throws IOException {
+                return MediaCodec.createEncoderByType(getOutputMime());
+            }
+        });
+        handler.post(task);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(
+                    "failed to create " + getOutputMime() + " encoder", e.getCause());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * Configures encoder and muxer state, and prepares the input Surface.
-     * Initializes mEncoder, mMuxer, mRecordingSurface, mBufferInfo,
+     * Initializes mEncoder, mEncoderThread, mMuxer, mRecordingSurface,
      * mTrackIndex, and mMuxerStarted.
      */
     private void configureMediaCodecEncoder() {
-        mBufferInfo = new MediaCodec.BufferInfo();
         MediaFormat format =
                 MediaFormat.createVideoFormat(getOutputMime(),
                         mStreamSize.getWidth(), mStreamSize.getHeight());
@@ -412,17 +663,20 @@ public class CameraRecordingStream {
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mEncBitRate);
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
         Log.i(TAG, "configure video encoding format: " + format);
 
-        // Create/configure a MediaCodec encoder.
-        try {
-            mEncoder = MediaCodec.createEncoderByType(getOutputMime());
-        } catch (IOException ioe) {
-            throw new IllegalStateException(
-                    "failed to create " + getOutputMime() + " encoder", ioe);
-        }
+        // Create/configure a MediaCodec encoder. It's created on the encoder thread, since
+        // the callback is delivered on the creating thread's looper; setting a Handler for it
+        // instead needs API 23.
+        mEncoderThread = new HandlerThread("CameraRecordingStream encoder");
+        mEncoderThread.start();
+        mEncoder = createEncoder(new Handler(mEncoderThread.getLooper()));
+        mEndOfStreamLatch = new CountDownLatch(1);
+        mEncoderFailed = false;
+        // The callback must be set before configure() to put the encoder in asynchronous mode
+        mEncoder.setCallback(mEncoderCallback);
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mRecordingSurface = mEncoder.createInputSurface();
         mEncoder.start();
@@ -455,15 +709,19 @@ public class CameraRecordingStream {
         mMediaRecorder = new MediaRecorder();
         try {
             if (mOutputFormat == MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4) {
-                mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+                if (mRecordAudio) {
+                    mMediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+                }
                 mMediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
                 mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
                 mMediaRecorder.setOutputFile(outputFileName);
                 mMediaRecorder.setVideoEncodingBitRate(mEncBitRate);
-                mMediaRecorder.setVideoFrameRate(FRAME_RATE);
+                mMediaRecorder.setVideoFrameRate(mFrameRate);
                 mMediaRecorder.setVideoSize(mStreamSize.getWidth(), mStreamSize.getHeight());
                 mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-                mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+                if (mRecordAudio) {
+                    mMediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
+                }
                 mMediaRecorder.setOrientationHint(mOrientation);
             } else {
                 // TODO audio support
@@ -471,7 +729,7 @@ public class CameraRecordingStream {
                 mMediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.WEBM);
                 mMediaRecorder.setOutputFile(outputFileName);
                 mMediaRecorder.setVideoEncodingBitRate(mEncBitRate);
-                mMediaRecorder.setVideoFrameRate(FRAME_RATE);
+                mMediaRecorder.setVideoFrameRate(mFrameRate);
                 mMediaRecorder.setVideoSize(mStreamSize.getWidth(), mStreamSize.getHeight());
                 mMediaRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.VP8);
             }
@@ -485,116 +743,127 @@ public class CameraRecordingStream {
     }
 
     /**
-     * Do encoding by using MediaCodec encoder, then extracts all pending data
-     * from the encoder and forwards it to the muxer.
-     * <p>
-     * If notifyEndOfStream is not set, this returns when there is no more data
-     * to output. If it is set, we send EOS to the encoder, and then iterate
-     * until we see EOS on the output. Calling this with notifyEndOfStream set
-     * should be done once, before stopping the muxer.
-     * </p>
+     * Handles encoder output in MediaCodec asynchronous mode, on mEncoderThread: starts the
+     * muxer once the output format is known, then forwards each encoded sample to it until
+     * end of stream.
      * <p>
      * We're just using the muxer to get a .mp4 file and audio is not included
      * here.
      * </p>
      */
-    private void doMediaCodecEncoding(boolean notifyEndOfStream) {
-        if (VERBOSE) {
-            Log.v(TAG, "doMediaCodecEncoding(" + notifyEndOfStream + ")");
+    private final MediaCodec.Callback mEncoderCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the camera through the input Surface
         }
 
-        if (notifyEndOfStream) {
-            mEncoder.signalEndOfInputStream();
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            /**
+             * should happen before receiving buffers, and should only
+             * happen once
+             */
+            if (mMuxerStarted) {
+                throw new IllegalStateException("format changed twice");
+            }
+            if (VERBOSE) {
+                Log.v(TAG, "encoder output format changed: " + format);
+            }
+            mTrackIndex = mMuxer.addTrack(format);
+            mMuxer.start();
+            mMuxerStarted = true;
         }
 
-        ByteBuffer[] encoderOutputBuffers = mEncoder.getOutputBuffers();
-        boolean notDone = true;
-        while (notDone) {
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                if (!notifyEndOfStream) {
-                    /**
-                     * Break out of the while loop because the encoder is not
-                     * ready to output anything yet.
-                     */
-                    notDone = false;
-                } else {
-                    if (VERBOSE) {
-                        Log.v(TAG, "no output available, spinning to await EOS");
-                    }
-                }
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                // generic case for mediacodec, not likely occurs for encoder.
-                encoderOutputBuffers = mEncoder.getOutputBuffers();
-            } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index,
+                MediaCodec.BufferInfo info) {
+            ByteBuffer encodedData = codec.getOutputBuffer(index);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                 /**
-                 * should happen before receiving buffers, and should only
-                 * happen once
+                 * The codec config data was pulled out and fed to the muxer
+                 * when we got the format change callback. Ignore it.
                  */
-                if (mMuxerStarted) {
-                    throw new IllegalStateException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
                 if (VERBOSE) {
-                    Log.v(TAG, "encoder output format changed: " + newFormat);
-                }
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-            } else {
-                // Normal flow: get output encoded buffer, send to muxer.
-                ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                            " was null");
+                    Log.v(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
                 }
+                info.size = 0;
+            }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    /**
-                     * The codec config data was pulled out and fed to the muxer
-                     * when we got the INFO_OUTPUT_FORMAT_CHANGED status. Ignore
-                     * it.
-                     */
-                    if (VERBOSE) {
-                        Log.v(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    }
-                    mBufferInfo.size = 0;
+            if (info.size != 0) {
+                if (!mMuxerStarted) {
+                    throw new RuntimeException("muxer hasn't started");
                 }
 
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-
-                    /**
-                     * It's usually necessary to adjust the ByteBuffer values to
-                     * match BufferInfo.
-                     */
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                /**
+                 * It's usually necessary to adjust the ByteBuffer values to
+                 * match BufferInfo.
+                 */
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
 
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    if (VERBOSE) {
-                        Log.v(TAG, "sent " + mBufferInfo.size + " bytes to muxer");
-                    }
+                mMuxer.writeSampleData(mTrackIndex, encodedData, info);
+                onSampleEncoded(info);
+                if (VERBOSE) {
+                    Log.v(TAG, "sent " + info.size + " bytes to muxer");
                 }
+            }
 
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
+            codec.releaseOutputBuffer(index, false);
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!notifyEndOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                        if (VERBOSE) {
-                            Log.v(TAG, "end of stream reached");
-                        }
-                    }
-                    // Finish encoding.
-                    notDone = false;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (getStreamState() == STREAM_STATE_RECORDING) {
+                    Log.w(TAG, "reached end of stream unexpectedly");
+                } else if (VERBOSE) {
+                    Log.v(TAG, "end of stream reached");
                 }
+                mEndOfStreamLatch.countDown();
             }
-        } // End of while(notDone)
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Encoder error: " + e.getDiagnosticInfo(), e);
+            mEncoderFailed = true;
+            // No end of stream will come; don't leave stop() waiting for it
+            mEndOfStreamLatch.countDown();
+        }
+    };
+
+    /**
+     * Update the encoder statistics with a sample written to the muxer.
+     */
+    private void onSampleEncoded(MediaCodec.BufferInfo info) {
+        long nowMonotonicUs = System.nanoTime() / 1000;
+        long nowBootTimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
+        boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        if (mBitstreamStats != null) {
+            mBitstreamStats.addSample(info.size, info.presentationTimeUs, keyFrame);
+        }
+        synchronized (mEncoderStats) {
+            if (mEncoderStats.sampleCount == 0) {
+                /**
+                 * Surface input keeps the camera's timestamps, which are in
+                 * either the monotonic or the boot time base depending on the
+                 * device. Boot time is never behind monotonic time, so the
+                 * clock that was just passed by the first sample is the one.
+                 */
+                mTimestampsFromBootTime = (info.presentationTimeUs > nowMonotonicUs);
+                mEncoderStats.firstPtsUs = info.presentationTimeUs;
+            }
+            long nowUs = mTimestampsFromBootTime ? nowBootTimeUs : nowMonotonicUs;
+            long latencyUs = Math.max(0, nowUs - info.presentationTimeUs);
+            mEncoderStats.sampleCount++;
+            if (keyFrame) {
+                mEncoderStats.keyFrameCount++;
+            }
+            mEncoderStats.totalBytes += info.size;
+            mEncoderStats.lastPtsUs = Math.max(mEncoderStats.lastPtsUs, info.presentationTimeUs);
+            mEncoderStats.totalLatencyUs += latencyUs;
+            mEncoderStats.maxLatencyUs = Math.max(mEncoderStats.maxLatencyUs, latencyUs);
+        }
     }
 }
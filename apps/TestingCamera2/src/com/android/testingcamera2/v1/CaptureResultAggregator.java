@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Aggregates capture results for display: the latest requested and reported values of a few
+ * keys, plus min/max/mean of the reported values since the last display.
+ *
+ * <p>Adding a result only updates primitive fields, so it's cheap enough to do for every frame
+ * of a repeating request; the text is only built when the display is refreshed, on a fixed
+ * tick. Results come from the camera thread and the display reads from the UI thread, so all
+ * methods are synchronized.</p>
+ */
+public class CaptureResultAggregator {
+
+    private static final int SENSITIVITY = 0;
+    private static final int EXPOSURE = 1;
+    private static final int FRAME_DURATION = 2;
+    private static final int VALUE_COUNT = 3;
+
+    // Latest values; -1 if not set
+    private int mRequestControlMode = -1;
+    private int mResultControlMode = -1;
+    private final long[] mRequested = new long[VALUE_COUNT];
+    private final long[] mLatest = new long[VALUE_COUNT];
+
+    // Statistics of the results since the last display
+    private final long[] mMin = new long[VALUE_COUNT];
+    private final long[] mMax = new long[VALUE_COUNT];
+    private final long[] mSum = new long[VALUE_COUNT];
+    private final int[] mCount = new int[VALUE_COUNT];
+    private int mResultCount = 0;
+    private TotalCaptureResult mLatestResult;
+
+    private final StringBuilder mText = new StringBuilder();
+
+    public CaptureResultAggregator() {
+        Arrays.fill(mRequested, -1);
+        Arrays.fill(mLatest, -1);
+        resetWindow();
+    }
+
+    public synchronized void addResult(CaptureRequest request, TotalCaptureResult result) {
+        mRequestControlMode = getOrDefault(request.get(CaptureRequest.CONTROL_MODE));
+        mResultControlMode = getOrDefault(result.get(CaptureResult.CONTROL_MODE));
+        mRequested[SENSITIVITY] = getOrDefault(request.get(CaptureRequest.SENSOR_SENSITIVITY));
+        mRequested[EXPOSURE] = getOrDefault(request.get(CaptureRequest.SENSOR_EXPOSURE_TIME));
+        mRequested[FRAME_DURATION] =
+                getOrDefault(request.get(CaptureRequest.SENSOR_FRAME_DURATION));
+        addValue(SENSITIVITY, result.get(CaptureResult.SENSOR_SENSITIVITY));
+        addValue(EXPOSURE, result.get(CaptureResult.SENSOR_EXPOSURE_TIME));
+        addValue(FRAME_DURATION, result.get(CaptureResult.SENSOR_FRAME_DURATION));
+        mResultCount++;
+        mLatestResult = result;
+    }
+
+    /**
+     * Get the display text for the results since the last call, and start a new window.
+     *
+     * @return the text, or null if there were no new results
+     */
+    public synchronized CharSequence takeDisplayText() {
+        if (mResultCount == 0) return null;
+        mText.setLength(0);
+        mText.append("Capture Result (").append(mResultCount).append(" since last update):\n");
+        mText.append("Control mode: request ").append(format(mRequestControlMode, 1))
+                .append(". result ").append(format(mResultControlMode, 1)).append('\n');
+        appendValue("Sensitivity", SENSITIVITY, 1, "");
+        appendValue("Exposure", EXPOSURE, 1e6, " ms");
+        appendValue("Frame duration", FRAME_DURATION, 1e6, " ms");
+        // Only looked at once per display, since listing the keys allocates
+        mText.append("Total keys: ").append(mLatestResult.getKeys().size()).append('\n');
+        resetWindow();
+        return mText.toString();
+    }
+
+    private void addValue(int index, Number value) {
+        if (value == null) return;
+        long v = value.longValue();
+        mLatest[index] = v;
+        mMin[index] = Math.min(mMin[index], v);
+        mMax[index] = Math.max(mMax[index], v);
+        mSum[index] += v;
+        mCount[index]++;
+    }
+
+    private void appendValue(String name, int index, double scale, String unit) {
+        mText.append(name).append(": request ").append(format(mRequested[index], scale))
+                .append(". result ").append(format(mLatest[index], scale)).append(unit);
+        if (mCount[index] > 1) {
+            mText.append(String.format(Locale.US, " (min %s, max %s, mean %s)",
+                    format(mMin[index], scale), format(mMax[index], scale),
+                    format((double) mSum[index] / mCount[index], scale)));
+        }
+        mText.append('\n');
+    }
+
+    private static String format(double value, double scale) {
+        if (value < 0) return "null";
+        if (scale == 1) return String.format(Locale.US, "%.0f", value);
+        return String.format(Locale.US, "%.3f", value / scale);
+    }
+
+    private void resetWindow() {
+        Arrays.fill(mMin, Long.MAX_VALUE);
+        Arrays.fill(mMax, Long.MIN_VALUE);
+        Arrays.fill(mSum, 0);
+        Arrays.fill(mCount, 0);
+        mResultCount = 0;
+    }
+
+    private static int getOrDefault(Integer value) {
+        return value == null ? -1 : value;
+    }
+
+    private static long getOrDefault(Long value) {
+        return value == null ? -1 : value;
+    }
+}
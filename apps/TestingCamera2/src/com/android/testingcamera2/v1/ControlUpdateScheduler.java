@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Coalesces control updates so that at most one is applied per frame interval, with the
+ * latest controls winning.
+ *
+ * <p>The updater reads the controls when it runs, so merging requests loses nothing but
+ * intermediate values. Updates carrying a one-shot trigger are never merged: each is applied
+ * as soon as possible, so that every trigger reaches the camera exactly once. A regular update
+ * waiting at that point is folded into the trigger's update.</p>
+ *
+ * <p>Requests may come from any thread; updates are applied on the given handler.</p>
+ */
+public class ControlUpdateScheduler {
+
+    /**
+     * Applies the latest controls.
+     */
+    public interface Updater {
+        /**
+         * @return the frame interval in effect after the update, in nanoseconds
+         */
+        long applyUpdate();
+    }
+
+    private static final long DEFAULT_FRAME_INTERVAL_NS = 33333333L;
+
+    private final Handler mHandler;
+    private final Updater mUpdater;
+
+    private final Object mLock = new Object();
+    private boolean mScheduled = false;
+    private int mPendingTriggers = 0;
+    private long mLastAppliedMs = 0;
+    private long mFrameIntervalNs = DEFAULT_FRAME_INTERVAL_NS;
+
+    private int mRequestedCount = 0;
+    private int mMergedCount = 0;
+    private int mAppliedCount = 0;
+    private int mTriggerCount = 0;
+
+    public ControlUpdateScheduler(Handler handler, Updater updater) {
+        mHandler = handler;
+        mUpdater = updater;
+    }
+
+    /**
+     * Request an update, applied once a frame interval has passed since the last one. Merged
+     * into an update that is already waiting.
+     */
+    public void requestUpdate() {
+        synchronized (mLock) {
+            mRequestedCount++;
+            if (mScheduled) {
+                mMergedCount++;
+                return;
+            }
+            mScheduled = true;
+            long intervalMs = (mFrameIntervalNs + 999999) / 1000000;
+            long delayMs = Math.max(0, mLastAppliedMs + intervalMs - SystemClock.uptimeMillis());
+            mHandler.postDelayed(mApplyRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Request an update that delivers a pending trigger, applied right away.
+     */
+    public void requestTriggerUpdate() {
+        synchronized (mLock) {
+            mRequestedCount++;
+            mTriggerCount++;
+            mPendingTriggers++;
+            if (mScheduled) {
+                mHandler.removeCallbacks(mApplyRunnable);
+                if (mPendingTriggers == 1) {
+                    // The waiting regular update goes out with this one
+                    mMergedCount++;
+                }
+            }
+            mScheduled = true;
+            mHandler.post(mApplyRunnable);
+        }
+    }
+
+    /**
+     * Get a summary of the update counters.
+     */
+    public String getSummary() {
+        synchronized (mLock) {
+            return String.format("Control updates: %d requested, %d applied, %d merged, " +
+                    "%d triggers", mRequestedCount, mAppliedCount, mMergedCount, mTriggerCount);
+        }
+    }
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mScheduled = false;
+                if (mPendingTriggers > 0) {
+                    mPendingTriggers--;
+                }
+            }
+            long frameIntervalNs = mUpdater.applyUpdate();
+            synchronized (mLock) {
+                mLastAppliedMs = SystemClock.uptimeMillis();
+                mFrameIntervalNs = frameIntervalNs > 0 ? frameIntervalNs :
+                        DEFAULT_FRAME_INTERVAL_NS;
+                mAppliedCount++;
+                // Several triggers may have been requested before this ran; one goes per update
+                if (mPendingTriggers > 0 && !mScheduled) {
+                    mScheduled = true;
+                    mHandler.post(mApplyRunnable);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency of each stage of the asynchronous CameraOps pipeline: how long operations waited
+ * in the queue behind earlier ones, and how long they ran from start to completion.
+ *
+ * <p>Stages complete on the camera ops thread and are read from the UI, so all methods are
+ * synchronized.</p>
+ */
+public class OpLatencyStats {
+
+    private static class Stage {
+        int count;
+        int failures;
+        long totalQueuedNs;
+        long totalRunNs;
+        long maxRunNs;
+    }
+
+    // In order of first use
+    private final Map<String, Stage> mStages = new LinkedHashMap<String, Stage>();
+
+    public synchronized void record(String stage, long queuedNs, long runNs, boolean failed) {
+        Stage s = mStages.get(stage);
+        if (s == null) {
+            s = new Stage();
+            mStages.put(stage, s);
+        }
+        s.count++;
+        if (failed) s.failures++;
+        s.totalQueuedNs += queuedNs;
+        s.totalRunNs += runNs;
+        s.maxRunNs = Math.max(s.maxRunNs, runNs);
+    }
+
+    /**
+     * Get a summary of all stages so far, one line per stage.
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, Stage> entry : mStages.entrySet()) {
+            Stage s = entry.getValue();
+            summary.append(String.format(Locale.US,
+                    "%s: %d ops (%d failed), queued avg %.1f ms, ran avg %.1f ms, max %.1f ms%n",
+                    entry.getKey(), s.count, s.failures, s.totalQueuedNs / 1e6 / s.count,
+                    s.totalRunNs / 1e6 / s.count, s.maxRunNs / 1e6));
+        }
+        return summary.toString();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import java.util.Locale;
+
+import android.os.SystemClock;
+
+/**
+ * Timing of still captures, kept separately for each capture mode so that reconfiguring the
+ * session for every shot can be compared against keeping one preview+still session, and
+ * against zero-shutter-lag reprocessing.
+ *
+ * <p>Shutter lag is measured from the shot request to the start of exposure, and to the JPEG
+ * arriving. Exposure start is the sensor timestamp, so it is only recorded when the sensor
+ * timestamps use the same clock as the app. Shot-to-shot time is from the request to the
+ * camera being ready for the next shot: the JPEG has arrived and, in reconfiguring mode, the
+ * preview has been restarted. For ZSL, exposure start is the SENSOR_TIMESTAMP of the
+ * reprocessed ring frame, passed in by the caller, so it is before the request.</p>
+ *
+ * <p>Timing events may come from different threads, so all methods are synchronized.</p>
+ */
+public class StillCaptureStats {
+
+    public static final int MODE_RECONFIGURE = 0;
+    public static final int MODE_PERSISTENT = 1;
+    public static final int MODE_ZSL = 2;
+    private static final String[] MODE_NAMES = { "reconfigure", "persistent", "zsl" };
+
+    private static final int START = 0;
+    private static final int JPEG = 1;
+    private static final int SHOT = 2;
+    private static final String[] METRIC_NAMES = {
+        "request to exposure start", "request to JPEG", "shot to shot" };
+
+    private final Metric[][] mMetrics = new Metric[MODE_NAMES.length][METRIC_NAMES.length];
+
+    // Timestamps of the shot in progress, or 0 if not seen yet
+    private int mMode;
+    private long mRequestNs;
+    private long mStartNs;
+    private long mJpegNs;
+    private long mPreviewReadyNs;
+
+    private static class Metric {
+        int count;
+        long totalNs;
+        long minNs = Long.MAX_VALUE;
+        long maxNs;
+
+        void add(long ns) {
+            count++;
+            totalNs += ns;
+            minNs = Math.min(minNs, ns);
+            maxNs = Math.max(maxNs, ns);
+        }
+    }
+
+    public StillCaptureStats() {
+        for (Metric[] modeMetrics : mMetrics) {
+            for (int i = 0; i < modeMetrics.length; i++) {
+                modeMetrics[i] = new Metric();
+            }
+        }
+    }
+
+    /**
+     * Start timing a shot. Any unfinished shot is dropped.
+     */
+    public synchronized void onShotRequested(int mode) {
+        mMode = mode;
+        mRequestNs = SystemClock.elapsedRealtimeNanos();
+        mStartNs = 0;
+        mJpegNs = 0;
+        mPreviewReadyNs = mode == MODE_RECONFIGURE ? 0 : mRequestNs;
+    }
+
+    /**
+     * @param sensorTimestampNs Start of exposure, from onCaptureStarted
+     * @param realtime Whether the sensor timestamp is in the
+     *        {@link SystemClock#elapsedRealtimeNanos} time base; otherwise it is ignored
+     */
+    public synchronized void onCaptureStarted(long sensorTimestampNs, boolean realtime) {
+        if (mRequestNs == 0 || mStartNs != 0 || !realtime) return;
+        mStartNs = sensorTimestampNs;
+        mMetrics[mMode][START].add(mStartNs - mRequestNs);
+    }
+
+    /**
+     * @return true if this finished the shot
+     */
+    public synchronized boolean onJpegAvailable() {
+        if (mRequestNs == 0 || mJpegNs != 0) return false;
+        mJpegNs = SystemClock.elapsedRealtimeNanos();
+        mMetrics[mMode][JPEG].add(mJpegNs - mRequestNs);
+        return finishShot();
+    }
+
+    /**
+     * @return true if this finished the shot
+     */
+    public synchronized boolean onPreviewReady() {
+        if (mRequestNs == 0 || mPreviewReadyNs != 0) return false;
+        mPreviewReadyNs = SystemClock.elapsedRealtimeNanos();
+        return finishShot();
+    }
+
+    private boolean finishShot() {
+        if (mJpegNs == 0 || mPreviewReadyNs == 0) return false;
+        mMetrics[mMode][SHOT].add(Math.max(mJpegNs, mPreviewReadyNs) - mRequestNs);
+        mRequestNs = 0;
+        return true;
+    }
+
+    /**
+     * Get a summary of all timings so far, one line per mode and metric.
+     */
+    public synchronized String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int i = 0; i < METRIC_NAMES.length; i++) {
+                Metric m = mMetrics[mode][i];
+                if (m.count == 0) continue;
+                summary.append(String.format(Locale.US,
+                        "%s, %s: %d shots, avg %.1f ms, min %.1f ms, max %.1f ms%n",
+                        MODE_NAMES[mode], METRIC_NAMES[i], m.count,
+                        m.totalNs / 1e6 / m.count, m.minNs / 1e6, m.maxNs / 1e6));
+            }
+        }
+        return summary.toString();
+    }
+}
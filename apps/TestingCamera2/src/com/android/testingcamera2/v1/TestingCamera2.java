@@ -21,14 +21,12 @@ import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.media.Image;
 import android.media.MediaMuxer;
@@ -37,6 +35,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.util.Log;
 import android.util.Range;
+import android.util.Size;
 import android.view.OrientationEventListener;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -64,6 +63,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import com.android.testingcamera2.JpegPreviewDecoder;
 import com.android.testingcamera2.R;
 
 public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
@@ -81,11 +81,20 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
     private static final int MIN_SENSITIVITY = 100;
     private static final int MAX_SENSITIVITY = 1600;
     private static final int ORIENTATION_UNINITIALIZED = -1;
+    // Low-bitrate streaming copy recorded alongside the main recording in simulcast mode
+    private static final Size SIMULCAST_SIZE = new Size(640, 480);
+    private static final int SIMULCAST_BIT_RATE = 1000000;
 
     private int mLastOrientation = ORIENTATION_UNINITIALIZED;
     private OrientationEventListener mOrientationEventListener;
     private SurfaceView mPreviewView;
     private ImageView mStillView;
+    private Bitmap mStillBitmap;
+    private final JpegPreviewDecoder mJpegDecoder = new JpegPreviewDecoder();
+    private final StillCaptureStats mStillStats = new StillCaptureStats();
+    private final CaptureResultAggregator mResultAggregator = new CaptureResultAggregator();
+    // How often the capture result view is refreshed
+    private static final long RESULT_DISPLAY_INTERVAL_MS = 250;
 
     private SurfaceHolder mCurrentPreviewHolder = null;
 
@@ -94,6 +103,11 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
     private ToggleButton mFocusLockToggle;
     private Spinner mFocusModeSpinner;
     private CheckBox mUseMediaCodecCheckBox;
+    private CheckBox mHighSpeedCheckBox;
+    private CheckBox mSimulcastCheckBox;
+    private CheckBox mPersistentStillCheckBox;
+    private CheckBox mStillRawCheckBox;
+    private CheckBox mZslCheckBox;
 
     private SeekBar mSensitivityBar;
     private SeekBar mExposureBar;
@@ -144,6 +158,11 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         mUseMediaCodecCheckBox = (CheckBox) findViewById(R.id.use_media_codec);
         mUseMediaCodecCheckBox.setOnCheckedChangeListener(mUseMediaCodecListener);
         mUseMediaCodecCheckBox.setChecked(mUseMediaCodec);
+        mHighSpeedCheckBox = (CheckBox) findViewById(R.id.high_speed_recording);
+        mSimulcastCheckBox = (CheckBox) findViewById(R.id.simulcast_recording);
+        mPersistentStillCheckBox = (CheckBox) findViewById(R.id.persistent_still_session);
+        mStillRawCheckBox = (CheckBox) findViewById(R.id.still_include_raw);
+        mZslCheckBox = (CheckBox) findViewById(R.id.zsl_still_capture);
 
         mManualCtrlToggle = (ToggleButton) findViewById(R.id.manual_control);
         mManualCtrlToggle.setOnClickListener(mControlToggleListener);
@@ -176,6 +195,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
         try {
             mCameraOps = CameraOps.create(this, mCameraOpsListener, mMainHandler);
+            mCameraOps.setPreviewResultListener(mPreviewResultListener);
         } catch(ApiFailureException e) {
             logException("Cannot create camera ops!",e);
         }
@@ -236,6 +256,8 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
     }
 
     private void setUpPreview() {
+        mMainHandler.removeCallbacks(mResultDisplayTick);
+        mMainHandler.post(mResultDisplayTick);
         try {
             mCameraOps.minimalPreviewConfig(mPreviewView.getHolder());
             mCurrentPreviewHolder = mPreviewView.getHolder();
@@ -249,6 +271,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         super.onPause();
         try {
             if (VERBOSE) Log.v(TAG, String.format("onPause"));
+            mMainHandler.removeCallbacks(mResultDisplayTick);
 
             mCameraOps.closeDevice();
         } catch (ApiFailureException e) {
@@ -360,15 +383,31 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         @Override
         public void onClick(View v) {
             final Handler uiHandler = new Handler();
+            final boolean persistent = mPersistentStillCheckBox.isChecked();
+            final boolean includeRaw = mStillRawCheckBox.isChecked();
+            final boolean zsl = mZslCheckBox.isChecked();
+            if (mCurrentPreviewHolder == null || (!zsl && !persistent)) {
+                reconfiguringJpegCapture(uiHandler);
+                return;
+            }
             AsyncTask.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        mCameraOps.minimalJpegCapture(mCaptureCallback, mCaptureResultListener,
-                                uiHandler, mCameraControl);
-                        if (mCurrentPreviewHolder != null) {
-                            mCameraOps.minimalPreview(mCurrentPreviewHolder, mCameraControl);
+                        if (zsl) {
+                            mStillStats.onShotRequested(StillCaptureStats.MODE_ZSL);
+                            long frameNs = mCameraOps.zslCapture(mCaptureCallback,
+                                    mCaptureResultListener, uiHandler, mCameraControl,
+                                    /*prefer3aConverged*/true);
+                            // Exposure start is when the reprocessed frame was exposed
+                            mStillStats.onCaptureStarted(frameNs,
+                                    mCameraOps.hasRealtimeSensorTimestamps());
+                            return;
                         }
+                        // The preview keeps running, so there is nothing to restore
+                        mStillStats.onShotRequested(StillCaptureStats.MODE_PERSISTENT);
+                        mCameraOps.persistentStillCapture(mCaptureCallback,
+                                mCaptureResultListener, uiHandler, mCameraControl, includeRaw);
                     } catch (ApiFailureException e) {
                         logException("Can't take a JPEG! ", e);
                     }
@@ -377,17 +416,58 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         }
     };
 
+    /**
+     * Take a JPEG from a JPEG-only session and then go back to preview, queued on the camera
+     * ops thread without blocking, so the preview session is set up while the JPEG is still
+     * being captured.
+     */
+    private void reconfiguringJpegCapture(Handler uiHandler) {
+        mStillStats.onShotRequested(StillCaptureStats.MODE_RECONFIGURE);
+        mCameraOps.jpegCaptureAsync(mCaptureCallback, mCaptureResultListener, uiHandler,
+                mCameraControl, new CameraOps.AsyncCallback<TotalCaptureResult>() {
+            @Override
+            public void onCompleted(TotalCaptureResult result) {
+            }
+
+            @Override
+            public void onFailed(Exception error) {
+                logException("Can't take a JPEG! ", error);
+            }
+        });
+        if (mCurrentPreviewHolder == null) {
+            // No preview to restore
+            if (mStillStats.onPreviewReady()) {
+                logStillStats();
+            }
+            return;
+        }
+        mCameraOps.startPreviewAsync(mCameraControl, new CameraOps.AsyncCallback<Void>() {
+            @Override
+            public void onCompleted(Void result) {
+                if (mStillStats.onPreviewReady()) {
+                    logStillStats();
+                }
+                Log.i(TAG, "Camera ops latency:\n" + mCameraOps.getAsyncLatencySummary());
+            }
+
+            @Override
+            public void onFailed(Exception error) {
+                logException("Can't restart preview! ", error);
+            }
+        });
+    }
+
     private final Button.OnClickListener mFlushButtonListener = new Button.OnClickListener() {
         @Override
         public void onClick(View v) {
-            AsyncTask.execute(new Runnable() {
+            mCameraOps.flushAsync(new CameraOps.AsyncCallback<Void>() {
                 @Override
-                public void run() {
-                    try {
-                        mCameraOps.flush();
-                    } catch (ApiFailureException e) {
-                        logException("Can't flush!", e);
-                    }
+                public void onCompleted(Void result) {
+                }
+
+                @Override
+                public void onFailed(Exception error) {
+                    logException("Can't flush!", error);
                 }
             });
         }
@@ -406,6 +486,10 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         }
     }
 
+    private void logStillStats() {
+        Log.i(TAG, "Still capture timing:\n" + mStillStats.getSummary());
+    }
+
     private final CameraOps.CaptureCallback mCaptureCallback = new CameraOps.CaptureCallback() {
         @Override
         public void onCaptureAvailable(Image capture) {
@@ -413,77 +497,42 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                 Log.e(TAG, "Unexpected format: " + capture.getFormat());
                 return;
             }
+            if (mStillStats.onJpegAvailable()) {
+                logStillStats();
+            }
             ByteBuffer jpegBuffer = capture.getPlanes()[0].getBuffer();
-            byte[] jpegData = new byte[jpegBuffer.capacity()];
-            jpegBuffer.get(jpegData);
+            jpegBuffer.rewind();
 
-            Bitmap b = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length);
+            // Only decode as much as the view can show
+            Bitmap b = mJpegDecoder.decode(jpegBuffer, Math.max(mStillView.getWidth(), 1),
+                    Math.max(mStillView.getHeight(), 1));
             mStillView.setImageBitmap(b);
+            // The previous still is no longer shown; decode the next one into it
+            mJpegDecoder.reuseBitmap(mStillBitmap);
+            mStillBitmap = b;
         }
     };
 
-    // TODO: this callback is not called for each capture, need figure out why.
     private final CameraOps.CaptureResultListener mCaptureResultListener =
             new CameraOps.CaptureResultListener() {
 
                 @Override
                 public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
                         long timestamp, long frameNumber) {
+                    mStillStats.onCaptureStarted(timestamp,
+                            mCameraOps.hasRealtimeSensorTimestamps());
                 }
 
                 @Override
                 public void onCaptureCompleted(
                         CameraCaptureSession session, CaptureRequest request,
                         TotalCaptureResult result) {
-                    Log.i(TAG, "Capture result is available");
-                    Integer reqCtrlMode;
-                    Integer resCtrlMode;
                     if (request == null || result ==null) {
                         Log.e(TAG, "request/result is invalid");
                         return;
                     }
-                    Log.i(TAG, "Capture complete");
-                    final StringBuffer info = new StringBuffer("Capture Result:\n");
-
-                    reqCtrlMode = request.get(CaptureRequest.CONTROL_MODE);
-                    resCtrlMode = result.get(CaptureResult.CONTROL_MODE);
-                    info.append("Control mode: request " + reqCtrlMode + ". result " + resCtrlMode);
-                    info.append("\n");
-
-                    Integer reqSen = request.get(CaptureRequest.SENSOR_SENSITIVITY);
-                    Integer resSen = result.get(CaptureResult.SENSOR_SENSITIVITY);
-                    info.append("Sensitivity: request " + reqSen + ". result " + resSen);
-                    info.append("\n");
-
-                    Long reqExp = request.get(CaptureRequest.SENSOR_EXPOSURE_TIME);
-                    Long resExp = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
-                    info.append("Exposure: request " + reqExp + ". result " + resExp);
-                    info.append("\n");
-
-                    Long reqFD = request.get(CaptureRequest.SENSOR_FRAME_DURATION);
-                    Long resFD = result.get(CaptureResult.SENSOR_FRAME_DURATION);
-                    info.append("Frame duration: request " + reqFD + ". result " + resFD);
-                    info.append("\n");
-
-                    List<CaptureResult.Key<?>> resultKeys = result.getKeys();
-                    if (VERBOSE) {
-                        CaptureResult.Key<?>[] arrayKeys =
-                                resultKeys.toArray(new CaptureResult.Key<?>[0]);
-                        Log.v(TAG, "onCaptureCompleted - dumping keys: " +
-                                Arrays.toString(arrayKeys));
-                    }
-                    info.append("Total keys: " + resultKeys.size());
-                    info.append("\n");
-
-                    if (mMainHandler != null) {
-                        mMainHandler.post (new Runnable() {
-                            @Override
-                            public void run() {
-                                // Update UI for capture result
-                                mCaptureResultView.setText(info);
-                            }
-                        });
-                    }
+                    // Shown on the next display tick
+                    mResultAggregator.addResult(request, result);
                 }
 
                 @Override
@@ -491,6 +540,31 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                         CaptureFailure failure) {
                     Log.e(TAG, "Capture failed");
                 }
+            };
+
+    private final CameraOps.CaptureResultListener mPreviewResultListener =
+            new CameraOps.CaptureResultListener() {
+                @Override
+                public void onCaptureCompleted(
+                        CameraCaptureSession session, CaptureRequest request,
+                        TotalCaptureResult result) {
+                    mResultAggregator.addResult(request, result);
+                }
+            };
+
+    /**
+     * Refreshes the capture result view from the aggregated results, on a fixed tick rather
+     * than for every result.
+     */
+    private final Runnable mResultDisplayTick = new Runnable() {
+        @Override
+        public void run() {
+            CharSequence info = mResultAggregator.takeDisplayText();
+            if (info != null) {
+                mCaptureResultView.setText(info);
+            }
+            mMainHandler.postDelayed(this, RESULT_DISPLAY_INTERVAL_MS);
+        }
     };
 
     private void logException(String msg, Throwable e) {
@@ -540,7 +614,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                   StringBuffer info = new StringBuffer("Sensitivity(ISO):");
                   info.append("" + curSensitivity);
                   mSensitivityInfoView.setText(info);
-                  mCameraOps.updatePreview(mCameraControl);
+                  mCameraOps.requestPreviewUpdate(mCameraControl);
               }
 
               @Override
@@ -549,6 +623,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
               @Override
               public void onStopTrackingTouch(SeekBar seekBar) {
+                  Log.i(TAG, mCameraOps.getPreviewUpdateSummary());
               }
     };
 
@@ -577,7 +652,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                   StringBuffer info = new StringBuffer("Exposure Time:");
                   info.append("" + curExposureTime / 1000000.0 + "ms");
                   mExposureInfoView.setText(info);
-                  mCameraOps.updatePreview(mCameraControl);
+                  mCameraOps.requestPreviewUpdate(mCameraControl);
               }
 
               @Override
@@ -586,6 +661,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
               @Override
               public void onStopTrackingTouch(SeekBar seekBar) {
+                  Log.i(TAG, mCameraOps.getPreviewUpdateSummary());
               }
     };
 
@@ -611,7 +687,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                   StringBuffer info = new StringBuffer("Frame Duration:");
                   info.append("" + curFrameDuration / 1000000.0 + "ms");
                   mFrameDurationInfoView.setText(info);
-                  mCameraOps.updatePreview(mCameraControl);
+                  mCameraOps.requestPreviewUpdate(mCameraControl);
               }
 
               @Override
@@ -620,6 +696,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
               @Override
               public void onStopTrackingTouch(SeekBar seekBar) {
+                  Log.i(TAG, mCameraOps.getPreviewUpdateSummary());
               }
     };
 
@@ -635,7 +712,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
             }
             mCameraControl.getManualControls().setManualControlEnabled(enableManual);
             enableManualControls(enableManual);
-            mCameraOps.updatePreview(mCameraControl);
+            mCameraOps.requestPreviewUpdate(mCameraControl);
         }
     };
 
@@ -645,13 +722,35 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
         public void onClick(View v) {
             if (mRecordingToggle.isChecked()) {
                 try {
-                    Log.i(TAG, "start recording, useMediaCodec = " + mUseMediaCodec);
+                    boolean highSpeed = mHighSpeedCheckBox.isChecked();
+                    boolean simulcast = mSimulcastCheckBox.isChecked();
+                    Log.i(TAG, "start recording, useMediaCodec = " + mUseMediaCodec +
+                            ", highSpeed = " + highSpeed + ", simulcast = " + simulcast);
                     RadioGroup fmt = getRadioFmt();
                     fmt.setActivated(false);
-                    mCameraOps.startRecording(
-                            /* applicationContext */ TestingCamera2.this,
-                            /* useMediaCodec */ mUseMediaCodec,
-                            /* outputFormat */ getOutputFormat());
+                    mHighSpeedCheckBox.setEnabled(false);
+                    mSimulcastCheckBox.setEnabled(false);
+                    if (highSpeed) {
+                        mCameraOps.startHighSpeedRecording(
+                                /* applicationContext */ TestingCamera2.this,
+                                /* useMediaCodec */ mUseMediaCodec,
+                                /* outputFormat */ getOutputFormat());
+                    } else if (simulcast) {
+                        int outputFormat = getOutputFormat();
+                        List<CameraRecordingStream.EncoderConfig> configs = Arrays.asList(
+                                mCameraOps.getDefaultEncoderConfig(outputFormat),
+                                new CameraRecordingStream.EncoderConfig(SIMULCAST_SIZE,
+                                        SIMULCAST_BIT_RATE, outputFormat));
+                        mCameraOps.startRecording(
+                                /* applicationContext */ TestingCamera2.this,
+                                /* useMediaCodec */ mUseMediaCodec,
+                                configs);
+                    } else {
+                        mCameraOps.startRecording(
+                                /* applicationContext */ TestingCamera2.this,
+                                /* useMediaCodec */ mUseMediaCodec,
+                                /* outputFormat */ getOutputFormat());
+                    }
                 } catch (ApiFailureException e) {
                     logException("Failed to start recording", e);
                 }
@@ -659,6 +758,15 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                 try {
                     mCameraOps.stopRecording(TestingCamera2.this);
                     getRadioFmt().setActivated(true);
+                    mHighSpeedCheckBox.setEnabled(true);
+                    mSimulcastCheckBox.setEnabled(true);
+                    if (mUseMediaCodec) {
+                        List<CameraRecordingStream.EncoderStats> stats =
+                                mCameraOps.getAllRecordingStats();
+                        for (int i = 0; i < stats.size(); i++) {
+                            Log.i(TAG, "Recording stream " + i + ": " + stats.get(i));
+                        }
+                    }
                 } catch (ApiFailureException e) {
                     logException("Failed to stop recording", e);
                 }
@@ -686,7 +794,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
                 afControls.setPendingTriggerCancel();
             }
 
-            mCameraOps.updatePreview(mCameraControl);
+            mCameraOps.requestPreviewTriggerUpdate(mCameraControl);
 
             if (VERBOSE) {
                 Log.v(TAG, "focus_lock#onClick - end");
@@ -744,7 +852,7 @@ public class TestingCamera2 extends Activity implements SurfaceHolder.Callback {
 
                     mCameraControl.getAfControls().setAfMode(afMode);
 
-                    mCameraOps.updatePreview(mCameraControl);
+                    mCameraOps.requestPreviewUpdate(mCameraControl);
                 }
 
                 @Override
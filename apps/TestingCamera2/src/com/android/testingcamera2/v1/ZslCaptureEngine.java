@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.v1;
+
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.media.ImageWriter;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a ring of the most recent full-resolution YUV or PRIVATE frames, each with its
+ * capture result, for zero-shutter-lag capture through a reprocessable session.
+ *
+ * <p>Frames come from the ZSL output of the session's repeating request; images and results
+ * are matched by sensor timestamp. On shutter, {@link #takeFrame} picks a frame from the ring,
+ * and {@link #queueInput} sends it back into the session through an ImageWriter, to be
+ * reprocessed by a request created from the frame's result.</p>
+ *
+ * <p>Images and results may arrive on the camera handler while frames are taken from another
+ * thread, so the ring is guarded by a lock.</p>
+ */
+public class ZslCaptureEngine {
+
+    private static final String TAG = "ZslCaptureEngine";
+
+    // Images or results still waiting for their match, enough to cover the results lagging the
+    // images by a few frames; older ones are dropped
+    private static final int MAX_PENDING = 4;
+
+    /**
+     * A frame from the ring, owned by the caller until it's queued or closed.
+     */
+    public static class Frame {
+        public final Image image;
+        public final TotalCaptureResult result;
+
+        Frame(Image image, TotalCaptureResult result) {
+            this.image = image;
+            this.result = result;
+        }
+
+        public long getTimestamp() {
+            return image.getTimestamp();
+        }
+
+        public void close() {
+            image.close();
+        }
+    }
+
+    private final int mRingSize;
+    private final ImageReader mReader;
+    private ImageWriter mWriter;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<Frame> mRing = new ArrayDeque<Frame>();
+    private final LinkedHashMap<Long, Image> mPendingImages = new LinkedHashMap<Long, Image>();
+    private final LinkedHashMap<Long, TotalCaptureResult> mPendingResults =
+            new LinkedHashMap<Long, TotalCaptureResult>();
+    private boolean mReleased = false;
+
+    /**
+     * @param format ImageFormat.PRIVATE or ImageFormat.YUV_420_888
+     * @param ringSize how many frames to keep
+     * @param handler handler for incoming images
+     */
+    public ZslCaptureEngine(int width, int height, int format, int ringSize, Handler handler) {
+        mRingSize = ringSize;
+        // Room for the ring, unmatched images, and one frame on its way to the ImageWriter
+        mReader = ImageReader.newInstance(width, height, format, ringSize + MAX_PENDING + 1);
+        mReader.setOnImageAvailableListener(mImageListener, handler);
+    }
+
+    /**
+     * Get the surface to add to the session outputs and the repeating request.
+     */
+    public Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * Get the callback to use for the repeating request, to collect frame results.
+     */
+    public CameraCaptureSession.CaptureCallback getResultCallback() {
+        return mResultCallback;
+    }
+
+    /**
+     * Set the input surface of the reprocessable session the frames are queued to.
+     */
+    public void setInputSurface(Surface inputSurface) {
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        mWriter = ImageWriter.newInstance(inputSurface, /*maxImages*/1);
+    }
+
+    /**
+     * Take a frame out of the ring.
+     *
+     * @param shutterTimestampNs only frames at or before this sensor timestamp are picked, so
+     *     the capture shows what was on screen at shutter; Long.MAX_VALUE for any frame
+     * @param prefer3aConverged pick the most recent frame with AE, AF and AWB converged, if
+     *     there is one, rather than the most recent frame
+     * @return the frame, or null if the ring is empty
+     */
+    public Frame takeFrame(long shutterTimestampNs, boolean prefer3aConverged) {
+        synchronized (mLock) {
+            Frame newest = null;
+            Frame best = null;
+            // The ring is oldest first
+            Iterator<Frame> it = mRing.descendingIterator();
+            while (it.hasNext()) {
+                Frame frame = it.next();
+                if (frame.getTimestamp() > shutterTimestampNs) continue;
+                if (newest == null) {
+                    newest = frame;
+                    if (!prefer3aConverged) break;
+                }
+                if (is3aConverged(frame.result)) {
+                    best = frame;
+                    break;
+                }
+            }
+            Frame picked = best != null ? best : newest;
+            if (picked == null && !mRing.isEmpty()) {
+                // Every frame is newer than the shutter; the oldest is the closest
+                picked = mRing.peekFirst();
+            }
+            if (picked != null) {
+                mRing.remove(picked);
+            }
+            return picked;
+        }
+    }
+
+    /**
+     * Queue a taken frame for reprocessing. The frame's image is closed by the ImageWriter.
+     */
+    public void queueInput(Frame frame) {
+        mWriter.queueInputImage(frame.image);
+    }
+
+    public int getFrameCount() {
+        synchronized (mLock) {
+            return mRing.size();
+        }
+    }
+
+    /**
+     * Close all frames, the reader and the writer. Call once the session using them is gone.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            for (Frame frame : mRing) {
+                frame.close();
+            }
+            mRing.clear();
+            for (Image image : mPendingImages.values()) {
+                image.close();
+            }
+            mPendingImages.clear();
+            mPendingResults.clear();
+        }
+        if (mWriter != null) {
+            mWriter.close();
+        }
+        mReader.close();
+    }
+
+    private static boolean is3aConverged(TotalCaptureResult result) {
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        Integer afMode = result.get(CaptureResult.CONTROL_AF_MODE);
+        Integer awbState = result.get(CaptureResult.CONTROL_AWB_STATE);
+
+        boolean aeOk = aeState == null ||
+                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                aeState == CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED ||
+                aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        boolean afOk = afState == null || afMode == null ||
+                afMode == CaptureResult.CONTROL_AF_MODE_OFF ||
+                afMode == CaptureResult.CONTROL_AF_MODE_EDOF ||
+                afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED ||
+                afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED;
+        boolean awbOk = awbState == null ||
+                awbState == CaptureResult.CONTROL_AWB_STATE_CONVERGED ||
+                awbState == CaptureResult.CONTROL_AWB_STATE_LOCKED;
+        return aeOk && afOk && awbOk;
+    }
+
+    /**
+     * Add a matched frame to the ring, dropping the oldest frame if it's full. Called with
+     * mLock held.
+     */
+    private void addFrame(Image image, TotalCaptureResult result) {
+        mRing.addLast(new Frame(image, result));
+        while (mRing.size() > mRingSize) {
+            mRing.removeFirst().close();
+        }
+    }
+
+    private static <V> Map.Entry<Long, V> oldest(LinkedHashMap<Long, V> map) {
+        return map.entrySet().iterator().next();
+    }
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (image == null) return;
+            synchronized (mLock) {
+                if (mReleased) {
+                    image.close();
+                    return;
+                }
+                TotalCaptureResult result = mPendingResults.remove(image.getTimestamp());
+                if (result != null) {
+                    addFrame(image, result);
+                    return;
+                }
+                mPendingImages.put(image.getTimestamp(), image);
+                if (mPendingImages.size() > MAX_PENDING) {
+                    Map.Entry<Long, Image> entry = oldest(mPendingImages);
+                    mPendingImages.remove(entry.getKey());
+                    entry.getValue().close();
+                    Log.w(TAG, "No result for ZSL frame at " + entry.getKey() + ", dropping");
+                }
+            }
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback mResultCallback =
+            new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                TotalCaptureResult result) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp == null) return;
+            synchronized (mLock) {
+                if (mReleased) return;
+                Image image = mPendingImages.remove(timestamp);
+                if (image != null) {
+                    addFrame(image, result);
+                    return;
+                }
+                mPendingResults.put(timestamp, result);
+                if (mPendingResults.size() > MAX_PENDING) {
+                    mPendingResults.remove(oldest(mPendingResults).getKey());
+                }
+            }
+        }
+    };
+}
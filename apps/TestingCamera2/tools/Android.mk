@@ -0,0 +1,26 @@
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+tc2_tools_path := $(call my-dir)
+
+# The included makefiles change LOCAL_PATH, so the tools path is kept separately
+include $(tc2_tools_path)/synthcamera/Android.mk \
+    $(tc2_tools_path)/traceanalyzer/Android.mk
+
+# The benchmarks need the JMH prebuilts, which not all trees have
+ifeq ($(TC2_BUILD_BENCHMARKS),true)
+include $(tc2_tools_path)/benchmarks/Android.mk
+endif
+
+tc2_tools_path :=
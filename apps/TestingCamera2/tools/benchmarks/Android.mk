@@ -0,0 +1,49 @@
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+# Framework-independent app code, benchmarked against the legacy copies
+LOCAL_SRC_FILES += \
+    ../../src/com/android/testingcamera2/Depth16Decoder.java \
+    ../../src/com/android/testingcamera2/PointCloudWriter.java \
+    ../../src/com/android/testingcamera2/RawSequenceFile.java
+
+# TestingCamera's preview callback conversion; the native path needs
+# libtestingcamera_jni from the host build on java.library.path
+LOCAL_SRC_FILES += \
+    ../../../TestingCamera/src/com/android/testingcamera/NativeYuvConverter.java \
+    ../../../TestingCamera/src/com/android/testingcamera/YuvToRgbConverter.java
+
+# Synthetic frames are used as benchmark inputs
+LOCAL_STATIC_JAVA_LIBRARIES := \
+    tc2synthcamera \
+    jmh-core \
+    jopt-simple \
+    commons-math3
+
+LOCAL_ANNOTATION_PROCESSORS := jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+
+LOCAL_JAR_MANIFEST := manifest.txt
+
+LOCAL_MODULE := tc2benchmarks
+
+include $(BUILD_HOST_JAVA_LIBRARY)
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera2.tools.synth.SyntheticCameraInfo;
+import com.android.testingcamera2.tools.synth.SyntheticImage;
+import com.android.testingcamera2.tools.synth.SyntheticImageReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Shared input data for the benchmarks: synthetic camera frames with realistic plane layouts.
+ */
+final class BenchmarkInputs {
+    private BenchmarkInputs() {}
+
+    /**
+     * Parse a "WIDTHxHEIGHT" size parameter.
+     */
+    static int[] parseSize(String size) {
+        String[] dims = size.split("x");
+        return new int[] { Integer.parseInt(dims[0]), Integer.parseInt(dims[1]) };
+    }
+
+    static SyntheticImage createImage(int format, int width, int height) throws IOException {
+        SyntheticCameraInfo info = new SyntheticCameraInfo("bench", width, height);
+        SyntheticImageReader reader =
+                SyntheticImageReader.newInstance(info, width, height, format, 1);
+        return reader.acquireTestImage();
+    }
+
+    /**
+     * Create a legacy preview callback buffer in the given format, filled with a luma
+     * gradient and varying chroma so that conversions see a spread of values.
+     */
+    static byte[] createCallbackBuffer(int width, int height, int format) {
+        byte[] buffer = new byte[LegacyConversions.getCallbackBufferSize(width, height, format)];
+        for (int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) (i * 7 + i / width);
+        }
+        return buffer;
+    }
+
+    /**
+     * Create a DEPTH_POINT_CLOUD buffer of (x, y, z, confidence) float tuples, laid out as a
+     * grid of points on a tilted plane.
+     */
+    static ByteBuffer createPointCloud(int width, int height) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 4 * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float z = 0.5f + 3.5f * y / height;
+                buffer.putFloat((x - width / 2) * z / width);
+                buffer.putFloat((y - height / 2) * z / height);
+                buffer.putFloat(z);
+                buffer.putFloat(1.0f);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A stream that discards its output, so that writer benchmarks measure formatting and
+     * copying cost rather than storage speed.
+     */
+    static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
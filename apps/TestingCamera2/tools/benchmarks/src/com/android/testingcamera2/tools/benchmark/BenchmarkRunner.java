@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the TestingCamera benchmarks with allocation profiling, and prints a summary of pixel
+ * throughput and allocation rate per benchmark.
+ *
+ * <pre>
+ * tc2benchmarks [REGEX...]
+ * </pre>
+ *
+ * <p>Each REGEX selects benchmarks to run, as with the JMH command line; by default all are
+ * run. For other JMH options, run org.openjdk.jmh.Main from the same jar instead.</p>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler(GCProfiler.class);
+        if (args.length == 0) {
+            options.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+        }
+        for (String regex : args) {
+            options.include(regex);
+        }
+        Collection<RunResult> results = new Runner(options.build()).run();
+        printSummary(results);
+    }
+
+    private static void printSummary(Collection<RunResult> results) {
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%-72s %12s %10s %12s %14s",
+                "benchmark", "ops/s", "MP/s", "alloc MB/s", "alloc B/op"));
+        for (RunResult result : results) {
+            Map<String, Result> secondary = result.getSecondaryResults();
+            Result pixels = secondary.get("pixels");
+            Result allocRate = findResult(secondary, "gc.alloc.rate");
+            Result allocNorm = findResult(secondary, "gc.alloc.rate.norm");
+            System.out.println(String.format(Locale.US, "%-72s %12.1f %10s %12s %14s",
+                    describe(result.getParams()),
+                    result.getPrimaryResult().getScore(),
+                    pixels == null ? "-" : formatScore(pixels.getScore() / 1e6),
+                    allocRate == null ? "-" : formatScore(allocRate.getScore()),
+                    allocNorm == null ? "-" : formatScore(allocNorm.getScore())));
+        }
+    }
+
+    /**
+     * Find a GC profiler result; depending on the JMH version the keys have a leading
+     * middle dot.
+     */
+    private static Result findResult(Map<String, Result> results, String key) {
+        Result r = results.get(key);
+        return r != null ? r : results.get("\u00b7" + key);
+    }
+
+    private static String describe(BenchmarkParams params) {
+        String name = params.getBenchmark();
+        name = name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1);
+        List<String> values = new ArrayList<String>();
+        for (String key : params.getParamsKeys()) {
+            values.add(key + "=" + params.getParam(key));
+        }
+        return values.isEmpty() ? name : name + " " + values;
+    }
+
+    private static String formatScore(double score) {
+        return String.format(Locale.US, "%.1f", score);
+    }
+}
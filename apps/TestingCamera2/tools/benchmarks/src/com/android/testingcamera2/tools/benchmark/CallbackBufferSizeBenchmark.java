@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TestingCamera.getCallbackBufferSize(), the buffer size math run for every preview callback
+ * configuration. Width and height are read from fields so the computation isn't constant
+ * folded. The cost doesn't depend on image size, so no pixel rate is reported.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackBufferSizeBenchmark {
+
+    @Param({"640x480", "1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"NV21", "YV12"})
+    public String format;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] dims = BenchmarkInputs.parseSize(size);
+        mWidth = dims[0];
+        mHeight = dims[1];
+        mFormat = "YV12".equals(format) ?
+                LegacyConversions.FORMAT_YV12 : LegacyConversions.FORMAT_NV21;
+    }
+
+    @Benchmark
+    public int callbackBufferSizeLegacy() {
+        return LegacyConversions.getCallbackBufferSize(mWidth, mHeight, mFormat);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera.YuvToRgbConverter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TestingCamera's YuvToRgbConverter, the non-RenderScript preview callback conversion, scaling
+ * to half size as a typical callback view does.
+ *
+ * <p>Only the Java backend runs by default. The native backend needs libtestingcamera_jni from
+ * the host build; run with {@code -p backend=java,native} and
+ * {@code -jvmArgsAppend -Djava.library.path=<dir>} to include it.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackConversionBenchmark {
+
+    @Param({"640x480", "1920x1080"})
+    public String size;
+
+    @Param({"NV21", "YV12", "YUY2"})
+    public String format;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"java"})
+    public String backend;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mInput;
+    private int[] mOutput;
+    private YuvToRgbConverter mConverter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int[] dims = BenchmarkInputs.parseSize(size);
+        mWidth = dims[0];
+        mHeight = dims[1];
+        int formatId;
+        if ("YV12".equals(format)) {
+            formatId = LegacyConversions.FORMAT_YV12;
+        } else if ("YUY2".equals(format)) {
+            formatId = LegacyConversions.FORMAT_YUY2;
+        } else {
+            formatId = LegacyConversions.FORMAT_NV21;
+        }
+        mInput = BenchmarkInputs.createCallbackBuffer(mWidth, mHeight, formatId);
+        mOutput = new int[(mWidth / 2) * (mHeight / 2)];
+        mConverter = new YuvToRgbConverter(mWidth, mHeight, formatId,
+                mWidth / 2, mHeight / 2, threads, "native".equals(backend));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mConverter.release();
+    }
+
+    @Benchmark
+    public int[] convert(PixelCounter counter) {
+        counter.pixels += mWidth * mHeight;
+        mConverter.convert(mInput, mOutput);
+        return mOutput;
+    }
+}
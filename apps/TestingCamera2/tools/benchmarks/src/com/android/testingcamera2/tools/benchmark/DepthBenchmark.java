@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera2.Depth16Decoder;
+import com.android.testingcamera2.PointCloudWriter;
+import com.android.testingcamera2.tools.synth.SyntheticImage;
+import com.android.testingcamera2.tools.synth.SyntheticImageFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Depth output handling from ImageReaderSubPane: DEPTH16 false-color conversion for display
+ * (scale 2) and saving (scale 1), the DEPTH16 range PGM writer, and the DEPTH_POINT_CLOUD
+ * writers. Sizes are typical depth camera resolutions; the point cloud has one point per
+ * depth pixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DepthBenchmark {
+
+    @Param({"240x180", "640x480"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private SyntheticImage mDepthImage;
+    private ByteBuffer mPointCloud;
+    private final BenchmarkInputs.NullOutputStream mOut = new BenchmarkInputs.NullOutputStream();
+    private final WritableByteChannel mOutChannel = Channels.newChannel(mOut);
+    private final Depth16Decoder mDecoder = new Depth16Decoder();
+    private final PointCloudWriter mBinaryPlyWriter =
+            new PointCloudWriter(PointCloudWriter.Format.BINARY_LITTLE_ENDIAN);
+    private final PointCloudWriter mAsciiPlyWriter =
+            new PointCloudWriter(PointCloudWriter.Format.ASCII);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] dims = BenchmarkInputs.parseSize(size);
+        mWidth = dims[0];
+        mHeight = dims[1];
+        mDepthImage = BenchmarkInputs.createImage(SyntheticImageFormat.DEPTH16, mWidth, mHeight);
+        mPointCloud = BenchmarkInputs.createPointCloud(mWidth, mHeight);
+    }
+
+    private ShortBuffer depthData() {
+        return mDepthImage.getPlanes()[0].getBuffer().asShortBuffer();
+    }
+
+    private int depthStride() {
+        return mDepthImage.getPlanes()[0].getRowStride() / 2;
+    }
+
+    @Benchmark
+    public int[] falseColorPreviewLegacy(PixelCounter counter) {
+        counter.pixels += mWidth * mHeight;
+        return LegacyConversions.depthToFalseColor(depthData(), mWidth, mHeight,
+                depthStride(), 2);
+    }
+
+    @Benchmark
+    public int[] falseColorSaveLegacy(PixelCounter counter) {
+        counter.pixels += mWidth * mHeight;
+        return LegacyConversions.depthToFalseColor(depthData(), mWidth, mHeight,
+                depthStride(), 1);
+    }
+
+    @Benchmark
+    public int[] falseColorPreview(PixelCounter counter) {
+        counter.pixels += mWidth * mHeight;
+        return mDecoder.decode(depthData(), mWidth, mHeight, depthStride(), 2);
+    }
+
+    @Benchmark
+    public int[] falseColorSave(PixelCounter counter) {
+        counter.pixels += mWidth * mHeight;
+        return mDecoder.decode(depthData(), mWidth, mHeight, depthStride(), 1);
+    }
+
+    @Benchmark
+    public void writeRangePgm(PixelCounter counter) throws IOException {
+        counter.pixels += mWidth * mHeight;
+        Depth16Decoder.writePgm(depthData(), mWidth, mHeight, depthStride(), mOut);
+    }
+
+    @Benchmark
+    public void writePointCloudLegacy(PixelCounter counter) throws IOException {
+        counter.pixels += mWidth * mHeight;
+        mPointCloud.rewind();
+        LegacyConversions.writeDepthPointImage(mPointCloud, mOut);
+    }
+
+    @Benchmark
+    public int writePointCloudPly(PixelCounter counter) throws IOException {
+        counter.pixels += mWidth * mHeight;
+        return mBinaryPlyWriter.write(mPointCloud, mOutChannel);
+    }
+
+    @Benchmark
+    public int writePointCloudAsciiPly(PixelCounter counter) throws IOException {
+        counter.pixels += mWidth * mHeight;
+        return mAsciiPlyWriter.write(mPointCloud, mOutChannel);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera2.tools.synth.SyntheticImage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Host-runnable copies of the image handling code in TestingCamera2's ImageReaderSubPane and
+ * TestingCamera's TestingCamera, as they were before any optimization, to serve as the
+ * baseline for benchmarks.
+ *
+ * <p>The loops are unchanged; only framework calls are replaced. Color.rgb() is inlined with
+ * the same arithmetic, Bitmap creation is left out (the pixel array is returned instead), and
+ * SyntheticImage stands in for android.media.Image.</p>
+ */
+final class LegacyConversions {
+
+    // Values of the android.graphics.ImageFormat constants used below
+    static final int FORMAT_UNKNOWN = 0;
+    static final int FORMAT_RGB_565 = 4;
+    static final int FORMAT_NV16 = 0x10;
+    static final int FORMAT_NV21 = 0x11;
+    static final int FORMAT_YUY2 = 0x14;
+    static final int FORMAT_JPEG = 0x100;
+    static final int FORMAT_YV12 = 0x32315659;
+
+    private LegacyConversions() {}
+
+    private static int rgb(int red, int green, int blue) {
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * ImageReaderSubPane.updateImage(), YUV_420_888 case
+     */
+    static int[] yuvToPreview(SyntheticImage img, int width, int height, int scaleFactor) {
+        ByteBuffer yBuffer = img.getPlanes()[0].getBuffer();
+        ByteBuffer uBuffer = img.getPlanes()[1].getBuffer();
+        ByteBuffer vBuffer = img.getPlanes()[2].getBuffer();
+        yBuffer.rewind();
+        uBuffer.rewind();
+        vBuffer.rewind();
+        int w = width / scaleFactor;
+        int h = height / scaleFactor;
+        int stride = img.getPlanes()[0].getRowStride();
+        int uStride = img.getPlanes()[1].getRowStride();
+        int vStride = img.getPlanes()[2].getRowStride();
+        int uPStride = img.getPlanes()[1].getPixelStride();
+        int vPStride = img.getPlanes()[2].getPixelStride();
+        byte[] row = new byte[width];
+        byte[] uRow = new byte[(width/2-1)*uPStride + 1];
+        byte[] vRow = new byte[(width/2-1)*vPStride + 1];
+        int[] imgArray = new int[w * h];
+        for (int y = 0, j = 0, rowStart = 0, uRowStart = 0, vRowStart = 0; y < h;
+             y++, rowStart += stride*scaleFactor) {
+            yBuffer.position(rowStart);
+            yBuffer.get(row);
+            if (y * scaleFactor % 2 == 0) {
+                uBuffer.position(uRowStart);
+                uBuffer.get(uRow);
+                vBuffer.position(vRowStart);
+                vBuffer.get(vRow);
+                uRowStart += uStride*scaleFactor/2;
+                vRowStart += vStride*scaleFactor/2;
+            }
+            for (int x = 0, i = 0; x < w; x++) {
+                int yval = row[i] & 0xFF;
+                int uval = uRow[i/2 * uPStride] & 0xFF;
+                int vval = vRow[i/2 * vPStride] & 0xFF;
+                imgArray[j] = rgb(yval, uval, vval);
+                i += scaleFactor;
+                j++;
+            }
+        }
+        return imgArray;
+    }
+
+    /**
+     * ImageReaderSubPane.updateImage(), RAW_SENSOR case
+     */
+    static int[] raw16ToPreview(SyntheticImage img, int width, int height, int scaleFactor,
+            int rawShiftRow, int rawShiftCol, int rawShiftFactor) {
+        ShortBuffer rawBuffer = img.getPlanes()[0].getBuffer().asShortBuffer();
+        rawBuffer.rewind();
+        int w = width / scaleFactor;
+        int h = height / scaleFactor;
+        short[] redRow = new short[width];
+        short[] blueRow = new short[width];
+        int[] imgArray = new int[w * h];
+        for (int y = 0, j = 0; y < h; y++) {
+            rawBuffer.position((y * scaleFactor + rawShiftRow) * width);
+            rawBuffer.get(redRow);
+            rawBuffer.position((y * scaleFactor + 1 - rawShiftRow) * width);
+            rawBuffer.get(blueRow);
+            for (int x = 0, i = 0; x < w; x++, i += scaleFactor, j++) {
+                int r = redRow[i + rawShiftCol] >> rawShiftFactor;
+                int g = redRow[i + 1 - rawShiftCol] >> rawShiftFactor;
+                int b = blueRow[i + 1 - rawShiftCol] >> rawShiftFactor;
+                imgArray[j] = rgb(r,g,b);
+            }
+        }
+        return imgArray;
+    }
+
+    /**
+     * ImageReaderSubPane.convertDepthToFalseColor()
+     */
+    static int[] depthToFalseColor(ShortBuffer depthBuffer, int w, int h,
+            int stride, int scale) {
+        short[] yRow = new short[w];
+        int[] imgArray = new int[w * h];
+        w = w / scale;
+        h = h / scale;
+        stride = stride * scale;
+        for (int y = 0, j = 0, rowStart = 0; y < h; y++, rowStart += stride) {
+            depthBuffer.position(rowStart);
+            depthBuffer.get(yRow);
+            for (int x = 0, i = 0; x < w; x++, i += scale, j++) {
+                short y16 = yRow[i];
+                int r = y16 & 0x00FF;
+                int g = (y16 >> 8) & 0x00FF;
+                imgArray[j] = rgb(r, g, 0);
+            }
+        }
+        return imgArray;
+    }
+
+    /**
+     * ImageReaderSubPane.writeYuvImage()
+     */
+    static void writeYuvImage(SyntheticImage img, OutputStream out)
+            throws IOException {
+        WritableByteChannel outChannel = Channels.newChannel(out);
+        for (int plane = 0; plane < 3; plane++) {
+            SyntheticImage.Plane colorPlane = img.getPlanes()[plane];
+            ByteBuffer colorData = colorPlane.getBuffer();
+            int subsampleFactor = (plane == 0) ? 1 : 2;
+            int colorW = img.getWidth() / subsampleFactor;
+            int colorH = img.getHeight() / subsampleFactor;
+            colorData.rewind();
+            colorData.limit(colorData.capacity());
+            if (colorPlane.getPixelStride() == 1) {
+                for (int y = 0, rowStart = 0; y < colorH;
+                        y++, rowStart += colorPlane.getRowStride()) {
+                    colorData.limit(rowStart + colorW);
+                    colorData.position(rowStart);
+                    outChannel.write(colorData);
+                }
+            } else {
+                byte[] row = new byte[(colorW - 1) * colorPlane.getPixelStride() + 1];
+                byte[] packedRow = new byte[colorW];
+                ByteBuffer packedRowBuffer = ByteBuffer.wrap(packedRow);
+                for (int y = 0, rowStart = 0; y < colorH;
+                        y++, rowStart += colorPlane.getRowStride()) {
+                    colorData.position(rowStart);
+                    colorData.get(row);
+                    for (int x = 0, i = 0; x < colorW;
+                            x++, i += colorPlane.getPixelStride()) {
+                        packedRow[x] = row[i];
+                    }
+                    packedRowBuffer.rewind();
+                    outChannel.write(packedRowBuffer);
+                }
+            }
+            // Restore the limit for the next run on the same image
+            colorData.limit(colorData.capacity());
+        }
+    }
+
+    /**
+     * ImageReaderSubPane.writeDepthPointImage()
+     */
+    static void writeDepthPointImage(ByteBuffer points, OutputStream out) throws IOException {
+        FloatBuffer pointList = points.asFloatBuffer();
+        int pointCount = pointList.limit() / 3;
+        OutputStreamWriter writer = new OutputStreamWriter(out);
+        for (int i = 0; i < pointCount; i++) {
+            String pt = String.format("%f, %f, %f\n",
+                    pointList.get(), pointList.get(),pointList.get());
+            writer.write(pt, 0, pt.length());
+        }
+    }
+
+    /**
+     * TestingCamera.getCallbackBufferSize()
+     */
+    static int getCallbackBufferSize(int width, int height, int format) {
+        int size = -1;
+        switch (format) {
+        case FORMAT_NV21:
+            size = width * height * 3 / 2;
+            break;
+        case FORMAT_YV12:
+            int y_stride = (int) (Math.ceil( width / 16.) * 16);
+            int y_size = y_stride * height;
+            int c_stride = (int) (Math.ceil(y_stride / 32.) * 16);
+            int c_size = c_stride * height/2;
+            size = y_size + c_size * 2;
+            break;
+        case FORMAT_NV16:
+        case FORMAT_RGB_565:
+        case FORMAT_YUY2:
+            size = 2 * width * height;
+            break;
+        case FORMAT_JPEG:
+            size = 0;
+            break;
+        case FORMAT_UNKNOWN:
+            size = 0;
+            break;
+        }
+        return size;
+    }
+}
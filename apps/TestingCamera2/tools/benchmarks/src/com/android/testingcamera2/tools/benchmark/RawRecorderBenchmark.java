@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera2.RawSequenceFile;
+import com.android.testingcamera2.tools.synth.SyntheticImage;
+import com.android.testingcamera2.tools.synth.SyntheticImageFormat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Recording a burst of RAW16 frames, each operation being one burst of BURST_LENGTH frames:
+ * into one preallocated, memory-mapped RawSequenceFile, against a file per frame written
+ * through a stream as single-frame saves do. Files go to the temporary directory, so results
+ * include its storage cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawRecorderBenchmark {
+
+    private static final int BURST_LENGTH = 16;
+
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private SyntheticImage mRawImage;
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] dims = BenchmarkInputs.parseSize(size);
+        mWidth = dims[0];
+        mHeight = dims[1];
+        mRawImage = BenchmarkInputs.createImage(SyntheticImageFormat.RAW_SENSOR,
+                mWidth, mHeight);
+        mDir = File.createTempFile("rawbench", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void recordSequenceFile(PixelCounter counter) throws IOException {
+        SyntheticImage.Plane plane = mRawImage.getPlanes()[0];
+        ByteBuffer data = plane.getBuffer();
+        RawSequenceFile.Header header = new RawSequenceFile.Header(mRawImage.getFormat(),
+                mWidth, mHeight, plane.getRowStride(), plane.getPixelStride(), data.remaining());
+        try (RawSequenceFile.Writer writer = new RawSequenceFile.Writer(
+                new File(mDir, "burst.tc2raw"), header, BURST_LENGTH)) {
+            for (int i = 0; i < BURST_LENGTH; i++) {
+                writer.append(i, data);
+                writer.setMetadata(i, 10000000L, 100, 33333333L);
+            }
+        }
+        counter.pixels += (long) mWidth * mHeight * BURST_LENGTH;
+    }
+
+    @Benchmark
+    public void recordFilePerFrame(PixelCounter counter) throws IOException {
+        ByteBuffer data = mRawImage.getPlanes()[0].getBuffer();
+        for (int i = 0; i < BURST_LENGTH; i++) {
+            try (FileOutputStream out = new FileOutputStream(new File(mDir, "frame" + i))) {
+                FileChannel channel = out.getChannel();
+                ByteBuffer src = data.duplicate();
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+                out.getFD().sync();
+            }
+        }
+        counter.pixels += (long) mWidth * mHeight * BURST_LENGTH;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.benchmark;
+
+import com.android.testingcamera2.tools.synth.SyntheticImage;
+import com.android.testingcamera2.tools.synth.SyntheticImageFormat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ImageReaderSubPane.writeYuvImage(), packing a YUV_420_888 image with interleaved chroma into
+ * planar output. Output is discarded, so only the packing and copying cost is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvWriterBenchmark {
+
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    private int mWidth;
+    private int mHeight;
+    private SyntheticImage mYuvImage;
+    private final BenchmarkInputs.NullOutputStream mOut = new BenchmarkInputs.NullOutputStream();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int[] dims = BenchmarkInputs.parseSize(size);
+        mWidth = dims[0];
+        mHeight = dims[1];
+        mYuvImage = BenchmarkInputs.createImage(SyntheticImageFormat.YUV_420_888,
+                mWidth, mHeight);
+    }
+
+    @Benchmark
+    public void writeYuvLegacy(PixelCounter counter) throws IOException {
+        counter.pixels += mWidth * mHeight;
+        LegacyConversions.writeYuvImage(mYuvImage, mOut);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Lays out and fills synthetic image buffers.
+ *
+ * <p>Plane layouts follow what camera HALs commonly produce: rows padded out to a fixed
+ * alignment, RAW10 packed four pixels into five bytes, and YUV_420_888 chroma interleaved in a
+ * single buffer (NV21 order) with a pixel stride of 2. Each buffer is filled with a test pattern
+ * once when it is allocated; afterwards only the first bytes of the first row are rewritten with
+ * the frame number, so generation cost stays low even at high resolutions while consumers can
+ * still tell frames apart.</p>
+ */
+class FrameGenerator {
+    private static final int RAW_BLACK_LEVEL = 64;
+    private static final int RAW_WHITE_LEVEL = 1023;
+    private static final int DEPTH_MIN_MM = 300;
+    private static final int DEPTH_MAX_MM = 4000;
+
+    private final int mRowAlignment;
+    private byte[] mJpegData;
+    private int mJpegWidth;
+    private int mJpegHeight;
+
+    FrameGenerator(int rowAlignment) {
+        mRowAlignment = rowAlignment;
+    }
+
+    /**
+     * Allocate planes for a new image of the given format and size, filled with a test pattern.
+     */
+    SyntheticImage.Plane[] createPlanes(int format, int width, int height) throws IOException {
+        switch (format) {
+            case SyntheticImageFormat.RAW_SENSOR:
+                return createRaw16(width, height);
+            case SyntheticImageFormat.RAW10:
+                return createRaw10(width, height);
+            case SyntheticImageFormat.YUV_420_888:
+                return createYuv(width, height);
+            case SyntheticImageFormat.JPEG:
+                return createJpeg(width, height);
+            case SyntheticImageFormat.DEPTH16:
+                return createDepth16(width, height);
+            default:
+                throw new IllegalArgumentException("Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Mark the image contents with the frame number.
+     */
+    void stamp(SyntheticImage image, long frameNumber) {
+        if (image.getFormat() == SyntheticImageFormat.JPEG) {
+            // Compressed data can't be touched without corrupting it
+            return;
+        }
+        ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+        if (buffer.limit() >= 8) {
+            buffer.putLong(0, frameNumber);
+        }
+    }
+
+    private int align(int rowBytes) {
+        return (rowBytes + mRowAlignment - 1) / mRowAlignment * mRowAlignment;
+    }
+
+    private static ByteBuffer allocate(int size) {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Data size of a plane; the last row isn't padded, as with real buffers.
+     */
+    private static int planeSize(int rowStride, int rowBytes, int rows) {
+        return rowStride * (rows - 1) + rowBytes;
+    }
+
+    private static int bayerValue(int x, int y, int width, int height) {
+        // RGGB: red ramps horizontally, blue vertically, green is flat mid-gray
+        int range = RAW_WHITE_LEVEL - RAW_BLACK_LEVEL;
+        if ((y & 1) == 0) {
+            if ((x & 1) == 0) return RAW_BLACK_LEVEL + range * x / width;
+            return RAW_BLACK_LEVEL + range / 2;
+        }
+        if ((x & 1) == 0) return RAW_BLACK_LEVEL + range / 2;
+        return RAW_BLACK_LEVEL + range * y / height;
+    }
+
+    private SyntheticImage.Plane[] createRaw16(int width, int height) {
+        int rowStride = align(width * 2);
+        ByteBuffer buffer = allocate(planeSize(rowStride, width * 2, height));
+        for (int y = 0; y < height; y++) {
+            int row = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                buffer.putShort(row + x * 2, (short) bayerValue(x, y, width, height));
+            }
+        }
+        return new SyntheticImage.Plane[] { new SyntheticImage.Plane(buffer, rowStride, 2) };
+    }
+
+    private SyntheticImage.Plane[] createRaw10(int width, int height) {
+        if (width % 4 != 0) {
+            throw new IllegalArgumentException("RAW10 width must be a multiple of 4");
+        }
+        int rowBytes = width * 10 / 8;
+        int rowStride = align(rowBytes);
+        ByteBuffer buffer = allocate(planeSize(rowStride, rowBytes, height));
+        for (int y = 0; y < height; y++) {
+            int pos = y * rowStride;
+            for (int x = 0; x < width; x += 4) {
+                int low = 0;
+                for (int i = 0; i < 4; i++) {
+                    int v = bayerValue(x + i, y, width, height);
+                    buffer.put(pos + i, (byte) (v >> 2));
+                    low |= (v & 0x3) << (i * 2);
+                }
+                buffer.put(pos + 4, (byte) low);
+                pos += 5;
+            }
+        }
+        // RAW10 has no meaningful pixel stride
+        return new SyntheticImage.Plane[] { new SyntheticImage.Plane(buffer, rowStride, 0) };
+    }
+
+    private SyntheticImage.Plane[] createYuv(int width, int height) {
+        int rowStride = align(width);
+        ByteBuffer y = allocate(planeSize(rowStride, width, height));
+        for (int row = 0; row < height; row++) {
+            int base = row * rowStride;
+            for (int x = 0; x < width; x++) {
+                y.put(base + x, (byte) (16 + 219 * (x + row) / (width + height)));
+            }
+        }
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        ByteBuffer vu = allocate(planeSize(rowStride, chromaWidth * 2, chromaHeight));
+        for (int row = 0; row < chromaHeight; row++) {
+            int base = row * rowStride;
+            for (int x = 0; x < chromaWidth; x++) {
+                vu.put(base + x * 2, (byte) (64 + 128 * row / chromaHeight));
+                vu.put(base + x * 2 + 1, (byte) (64 + 128 * x / chromaWidth));
+            }
+        }
+        ByteBuffer v = vu.duplicate();
+        v.limit(vu.capacity() - 1);
+        v = v.slice();
+        vu.position(1);
+        ByteBuffer u = vu.slice();
+        return new SyntheticImage.Plane[] {
+            new SyntheticImage.Plane(y, rowStride, 1),
+            new SyntheticImage.Plane(u, rowStride, 2),
+            new SyntheticImage.Plane(v, rowStride, 2)
+        };
+    }
+
+    private SyntheticImage.Plane[] createJpeg(int width, int height) throws IOException {
+        // All images of a reader share the same size, so encode once and copy
+        if (mJpegData == null || mJpegWidth != width || mJpegHeight != height) {
+            BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int r = 255 * x / width;
+                    int g = 255 * y / height;
+                    int b = ((x / 32 + y / 32) & 1) == 0 ? 64 : 192;
+                    img.setRGB(x, y, (r << 16) | (g << 8) | b);
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (!ImageIO.write(img, "jpeg", out)) {
+                throw new IOException("No JPEG encoder available");
+            }
+            mJpegData = out.toByteArray();
+            mJpegWidth = width;
+            mJpegHeight = height;
+        }
+        ByteBuffer buffer = allocate(mJpegData.length);
+        buffer.put(mJpegData);
+        buffer.flip();
+        return new SyntheticImage.Plane[] { new SyntheticImage.Plane(buffer, 0, 0) };
+    }
+
+    private SyntheticImage.Plane[] createDepth16(int width, int height) {
+        int rowStride = align(width * 2);
+        ByteBuffer buffer = allocate(planeSize(rowStride, width * 2, height));
+        for (int y = 0; y < height; y++) {
+            int row = y * rowStride;
+            for (int x = 0; x < width; x++) {
+                // A tilted plane, with confidence falling off towards the edges
+                int range = DEPTH_MIN_MM + (DEPTH_MAX_MM - DEPTH_MIN_MM) * y / height;
+                int edge = Math.min(Math.min(x, width - 1 - x), Math.min(y, height - 1 - y));
+                int confidence;
+                if (edge < 2) {
+                    confidence = 1; // 0% confidence
+                } else if (edge < 8) {
+                    confidence = 4;
+                } else {
+                    confidence = 0; // 100% confidence
+                }
+                buffer.putShort(row + x * 2, (short) ((confidence << 13) | (range & 0x1FFF)));
+            }
+        }
+        return new SyntheticImage.Plane[] { new SyntheticImage.Plane(buffer, rowStride, 2) };
+    }
+}
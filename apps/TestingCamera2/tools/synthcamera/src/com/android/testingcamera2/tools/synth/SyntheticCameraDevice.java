@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An open synthetic camera; the counterpart of CameraDevice.
+ *
+ * <p>Each device runs one frame thread that emulates the sensor: while a request is pending it
+ * starts a new exposure every frame duration (plus injected jitter), randomly skips frame slots
+ * at the configured drop probability, and delivers each frame's images and result one pipeline
+ * latency after its start of exposure. All callbacks are invoked on the frame thread.</p>
+ */
+public class SyntheticCameraDevice {
+
+    /**
+     * Device state callbacks, mirroring CameraDevice.StateCallback.
+     */
+    public static abstract class StateCallback {
+        public abstract void onOpened(SyntheticCameraDevice camera);
+
+        public void onClosed(SyntheticCameraDevice camera) {
+        }
+    }
+
+    private static class PendingCapture {
+        final SyntheticCaptureSession session;
+        final SyntheticCaptureRequest request;
+        final SyntheticCaptureSession.CaptureCallback callback;
+
+        PendingCapture(SyntheticCaptureSession session, SyntheticCaptureRequest request,
+                SyntheticCaptureSession.CaptureCallback callback) {
+            this.session = session;
+            this.request = request;
+            this.callback = callback;
+        }
+    }
+
+    private final SyntheticCameraInfo mInfo;
+    private final SyntheticCameraOps mOps;
+    private final StateCallback mStateCallback;
+    private final Random mRandom;
+    private final Thread mFrameThread;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<PendingCapture> mCaptures = new ArrayDeque<PendingCapture>();
+    private PendingCapture mRepeating;
+    private SyntheticCaptureSession mSession;
+    private boolean mClosing = false;
+    private int mFramesSinceRepeatStart = 0;
+
+    private long mNextFrameNumber = 0;
+    private long mSensorDroppedFrames = 0;
+
+    SyntheticCameraDevice(SyntheticCameraOps ops, SyntheticCameraInfo info,
+            StateCallback callback) {
+        mOps = ops;
+        mInfo = info;
+        mStateCallback = callback;
+        mRandom = new Random(info.getSeed());
+        mFrameThread = new Thread(mFrameLoop, "SyntheticCamera-" + info.getId());
+    }
+
+    void start() {
+        mFrameThread.start();
+    }
+
+    public String getId() {
+        return mInfo.getId();
+    }
+
+    public SyntheticCameraInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Get the number of frame slots the emulated sensor skipped due to drop injection.
+     */
+    public long getSensorDroppedFrameCount() {
+        synchronized (mLock) {
+            return mSensorDroppedFrames;
+        }
+    }
+
+    /**
+     * Configure a new set of outputs, closing the current session if there is one.
+     */
+    public SyntheticCaptureSession createCaptureSession(List<SyntheticImageReader> outputs) {
+        synchronized (mLock) {
+            if (mClosing) {
+                throw new IllegalStateException("Camera " + getId() + " has been closed");
+            }
+            if (mSession != null) {
+                closeSessionLocked(mSession);
+            }
+            mSession = new SyntheticCaptureSession(this, outputs);
+            return mSession;
+        }
+    }
+
+    /**
+     * Close the device. Blocks until the frame thread has stopped, then calls onClosed.
+     */
+    public void close() {
+        synchronized (mLock) {
+            if (mClosing) return;
+            mClosing = true;
+            if (mSession != null) {
+                closeSessionLocked(mSession);
+            }
+            mLock.notifyAll();
+        }
+        mFrameThread.interrupt();
+        boolean interrupted = false;
+        while (mFrameThread.isAlive()) {
+            try {
+                mFrameThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        mOps.onDeviceClosed(this);
+        mStateCallback.onClosed(this);
+    }
+
+    void queueCapture(SyntheticCaptureSession session, SyntheticCaptureRequest request,
+            SyntheticCaptureSession.CaptureCallback callback) {
+        synchronized (mLock) {
+            mCaptures.add(new PendingCapture(session, request, callback));
+            mLock.notifyAll();
+        }
+    }
+
+    void setRepeating(SyntheticCaptureSession session, SyntheticCaptureRequest request,
+            SyntheticCaptureSession.CaptureCallback callback) {
+        synchronized (mLock) {
+            mRepeating = (request == null) ? null :
+                    new PendingCapture(session, request, callback);
+            mFramesSinceRepeatStart = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    void closeSession(SyntheticCaptureSession session) {
+        synchronized (mLock) {
+            closeSessionLocked(session);
+        }
+    }
+
+    private void closeSessionLocked(SyntheticCaptureSession session) {
+        session.markClosed();
+        if (mRepeating != null && mRepeating.session == session) {
+            mRepeating = null;
+        }
+        mCaptures.clear();
+        if (mSession == session) {
+            mSession = null;
+        }
+    }
+
+    /**
+     * Wait for the next request to process.
+     *
+     * @return the capture, or null if the device is closing
+     */
+    private PendingCapture peekNextCapture(boolean[] waited) throws InterruptedException {
+        synchronized (mLock) {
+            while (!mClosing && mCaptures.isEmpty() && mRepeating == null) {
+                waited[0] = true;
+                mLock.wait();
+            }
+            if (mClosing) return null;
+            return mCaptures.isEmpty() ? mRepeating : mCaptures.peek();
+        }
+    }
+
+    private static void sleepUntil(long deadlineNs) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNs - System.nanoTime()) > 0) {
+            Thread.sleep(remaining / 1000000, (int) (remaining % 1000000));
+        }
+    }
+
+    private final Runnable mFrameLoop = new Runnable() {
+        @Override
+        public void run() {
+            mStateCallback.onOpened(SyntheticCameraDevice.this);
+            long frameDurationNs = mInfo.getFrameDurationNs();
+            long nextSlotNs = 0;
+            boolean[] waited = new boolean[] { true };
+            try {
+                while (true) {
+                    PendingCapture capture = peekNextCapture(waited);
+                    if (capture == null) break;
+                    if (waited[0]) {
+                        // Sensor was idle; restart streaming from now
+                        nextSlotNs = System.nanoTime();
+                        waited[0] = false;
+                    }
+
+                    long jitter = 0;
+                    if (mInfo.getJitterNs() > 0) {
+                        jitter = (long) ((mRandom.nextDouble() * 2 - 1) * mInfo.getJitterNs());
+                    }
+                    long exposureStartNs = nextSlotNs + jitter;
+                    nextSlotNs += frameDurationNs;
+
+                    if (mRandom.nextDouble() < mInfo.getDropProbability()) {
+                        synchronized (mLock) {
+                            mSensorDroppedFrames++;
+                        }
+                        sleepUntil(nextSlotNs);
+                        continue;
+                    }
+
+                    sleepUntil(exposureStartNs + mInfo.getPipelineLatencyNs());
+                    deliverFrame(capture, exposureStartNs);
+                }
+            } catch (InterruptedException e) {
+                // Closing
+            }
+        }
+    };
+
+    private void deliverFrame(PendingCapture capture, long timestampNs) {
+        long frameNumber;
+        int framesSinceStart;
+        synchronized (mLock) {
+            // The session may have been closed or the request replaced while sleeping
+            if (capture.session.isClosed()) return;
+            if (!mCaptures.isEmpty() && mCaptures.peek() == capture) {
+                mCaptures.poll();
+            } else if (capture != mRepeating) {
+                return;
+            }
+            frameNumber = mNextFrameNumber++;
+            framesSinceStart = mFramesSinceRepeatStart++;
+        }
+
+        for (SyntheticImageReader target : capture.request.getTargets()) {
+            SyntheticImage image = target.dequeueForFill();
+            if (image == null) {
+                if (capture.callback != null) {
+                    capture.callback.onCaptureBufferLost(capture.session, capture.request,
+                            target, frameNumber);
+                }
+                continue;
+            }
+            image.setFrameInfo(frameNumber, timestampNs);
+            target.getGenerator().stamp(image, frameNumber);
+            target.queueFilled(image);
+        }
+
+        if (capture.callback != null) {
+            SyntheticCaptureResult result = new SyntheticCaptureResult(capture.request,
+                    frameNumber, timestampNs,
+                    framesSinceStart < mInfo.getAeConvergeFrames() ?
+                            SyntheticCaptureResult.CONTROL_AE_STATE_SEARCHING :
+                            SyntheticCaptureResult.CONTROL_AE_STATE_CONVERGED,
+                    framesSinceStart < mInfo.getAfConvergeFrames() ?
+                            SyntheticCaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN :
+                            SyntheticCaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED,
+                    framesSinceStart < mInfo.getAwbConvergeFrames() ?
+                            SyntheticCaptureResult.CONTROL_AWB_STATE_SEARCHING :
+                            SyntheticCaptureResult.CONTROL_AWB_STATE_CONVERGED,
+                    mInfo.getExposureTimeNs(), mInfo.getSensitivity(),
+                    mInfo.getFrameDurationNs());
+            capture.callback.onCaptureCompleted(capture.session, capture.request, result);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command-line load generator: streams one output from a synthetic camera for a fixed time,
+ * optionally reading every pixel of every frame, and reports delivered and dropped frames.
+ * Results can be written as a capture trace in the same format as TestingCamera2's capture
+ * traces, for feeding to the trace analyzer.
+ *
+ * <pre>
+ * tc2synthcamera [--format raw16|raw10|yuv|jpeg|depth16] [--size WxH] [--fps N]
+ *     [--jitter-us N] [--drop-pct N] [--latency-ms N] [--max-images N] [--seconds N]
+ *     [--consume] [--consumer-delay-ms N] [--seed N] [--trace FILE]
+ * </pre>
+ */
+public class SyntheticCameraHarness {
+
+    // Matches CaptureTraceWriter in the app
+    private static final String TRACE_VERSION = "# tc2trace v1";
+    private static final String TRACE_COLUMNS =
+            "frame_number,sensor_timestamp_ns,result_timestamp_ns,ae_state,af_state,awb_state," +
+            "exposure_time_ns,sensitivity,frame_duration_ns";
+
+    private int mFormat = SyntheticImageFormat.YUV_420_888;
+    private int mWidth = 1920;
+    private int mHeight = 1080;
+    private int mMaxImages = 4;
+    private double mSeconds = 10;
+    private boolean mConsume = false;
+    private long mConsumerDelayMs = 0;
+    private String mTracePath = null;
+    private final SyntheticCameraInfo mInfo = new SyntheticCameraInfo("0", 4032, 3024);
+
+    private final Semaphore mImagesAvailable = new Semaphore(0);
+    private volatile boolean mRunning = true;
+    private long mImagesConsumed = 0;
+    private long mBytesRead = 0;
+    private long mChecksum = 0;
+    private long mResults = 0;
+    private long mBuffersLost = 0;
+    private Writer mTrace;
+    private final StringBuilder mLine = new StringBuilder(128);
+
+    public static void main(String[] args) {
+        SyntheticCameraHarness harness = new SyntheticCameraHarness();
+        try {
+            if (!harness.parseArgs(args)) {
+                usage();
+                System.exit(1);
+            }
+            harness.run();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: tc2synthcamera [--format raw16|raw10|yuv|jpeg|depth16] " +
+                "[--size WxH] [--fps N]");
+        System.err.println("    [--jitter-us N] [--drop-pct N] [--latency-ms N] " +
+                "[--max-images N] [--seconds N]");
+        System.err.println("    [--consume] [--consumer-delay-ms N] [--seed N] [--trace FILE]");
+    }
+
+    private boolean parseArgs(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--consume".equals(arg)) {
+                    mConsume = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) return false;
+                String value = args[++i];
+                if ("--format".equals(arg)) {
+                    mFormat = SyntheticImageFormat.fromString(value);
+                    if (mFormat < 0) return false;
+                } else if ("--size".equals(arg)) {
+                    String[] dims = value.split("x");
+                    if (dims.length != 2) return false;
+                    mWidth = Integer.parseInt(dims[0]);
+                    mHeight = Integer.parseInt(dims[1]);
+                } else if ("--fps".equals(arg)) {
+                    mInfo.setFps(Double.parseDouble(value));
+                } else if ("--jitter-us".equals(arg)) {
+                    mInfo.setJitterNs(Long.parseLong(value) * 1000);
+                } else if ("--drop-pct".equals(arg)) {
+                    mInfo.setDropProbability(Double.parseDouble(value) / 100);
+                } else if ("--latency-ms".equals(arg)) {
+                    mInfo.setPipelineLatencyNs(Long.parseLong(value) * 1000000);
+                } else if ("--max-images".equals(arg)) {
+                    mMaxImages = Integer.parseInt(value);
+                } else if ("--seconds".equals(arg)) {
+                    mSeconds = Double.parseDouble(value);
+                } else if ("--consumer-delay-ms".equals(arg)) {
+                    mConsumerDelayMs = Long.parseLong(value);
+                } else if ("--seed".equals(arg)) {
+                    mInfo.setSeed(Long.parseLong(value));
+                } else if ("--trace".equals(arg)) {
+                    mTracePath = value;
+                } else {
+                    return false;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        SyntheticCameraOps ops = new SyntheticCameraOps(mInfo);
+        final SyntheticImageReader reader = SyntheticImageReader.newInstance(mInfo,
+                mWidth, mHeight, mFormat, mMaxImages);
+        reader.setOnImageAvailableListener(new SyntheticImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(SyntheticImageReader r) {
+                mImagesAvailable.release();
+            }
+        });
+
+        if (mTracePath != null) {
+            mTrace = new BufferedWriter(new FileWriter(mTracePath), 64 * 1024);
+            // Sensor timestamps and arrival times share the System.nanoTime time base
+            mTrace.write(TRACE_VERSION + "\n# camera_id=" + mInfo.getId() +
+                    "\n# timestamp_source=REALTIME\n# " + TRACE_COLUMNS + "\n");
+        }
+
+        final Semaphore opened = new Semaphore(0);
+        final SyntheticCameraDevice[] device = new SyntheticCameraDevice[1];
+        ops.openCamera(mInfo.getId(), new SyntheticCameraDevice.StateCallback() {
+            @Override
+            public void onOpened(SyntheticCameraDevice camera) {
+                device[0] = camera;
+                opened.release();
+            }
+        });
+        opened.acquire();
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consumeImages(reader);
+            }
+        }, "SyntheticConsumer");
+        consumer.start();
+
+        SyntheticCaptureSession session =
+                device[0].createCaptureSession(Collections.singletonList(reader));
+        long startNs = System.nanoTime();
+        session.setRepeatingRequest(
+                new SyntheticCaptureRequest(Collections.singletonList(reader)),
+                mCaptureCallback);
+
+        Thread.sleep((long) (mSeconds * 1000));
+        device[0].close();
+        long elapsedNs = System.nanoTime() - startNs;
+        mRunning = false;
+        consumer.join();
+
+        if (mTrace != null) {
+            mTrace.close();
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%s %dx%d at %.1f fps for %.1f s", SyntheticImageFormat.toString(mFormat),
+                mWidth, mHeight, mInfo.getFps(), elapsedNs / 1e9));
+        System.out.println(String.format(Locale.US,
+                "results: %d (%.2f fps), sensor drops: %d, buffers lost: %d",
+                mResults, mResults * 1e9 / elapsedNs, device[0].getSensorDroppedFrameCount(),
+                mBuffersLost));
+        System.out.println(String.format(Locale.US,
+                "images consumed: %d, bytes read: %d (%.1f MB/s), checksum %x",
+                mImagesConsumed, mBytesRead, mBytesRead / (elapsedNs / 1e9) / 1e6, mChecksum));
+        if (mTrace != null) {
+            System.out.println("Trace written to " + mTracePath);
+        }
+    }
+
+    private void consumeImages(SyntheticImageReader reader) {
+        try {
+            while (mRunning) {
+                if (!mImagesAvailable.tryAcquire(100, TimeUnit.MILLISECONDS)) continue;
+                SyntheticImage image = reader.acquireNextImage();
+                if (image == null) continue;
+                if (mConsume) {
+                    readImage(image);
+                }
+                if (mConsumerDelayMs > 0) {
+                    Thread.sleep(mConsumerDelayMs);
+                }
+                image.close();
+                mImagesConsumed++;
+            }
+        } catch (InterruptedException e) {
+            // Done
+        }
+    }
+
+    /**
+     * Read every valid byte of the image, skipping row padding the way format conversion code
+     * has to.
+     */
+    private void readImage(SyntheticImage image) {
+        long sum = mChecksum;
+        SyntheticImage.Plane[] planes = image.getPlanes();
+        for (int p = 0; p < planes.length; p++) {
+            ByteBuffer buffer = planes[p].getBuffer();
+            int rowStride = planes[p].getRowStride();
+            int pixelStride = planes[p].getPixelStride();
+            int rows;
+            int rowBytes;
+            if (rowStride == 0) {
+                // Compressed data
+                rows = 1;
+                rowBytes = buffer.limit();
+            } else if (pixelStride == 0) {
+                // RAW10
+                rows = image.getHeight();
+                rowBytes = image.getWidth() * 10 / 8;
+            } else if (p == 0) {
+                rows = image.getHeight();
+                rowBytes = image.getWidth() * pixelStride;
+            } else {
+                // Subsampled chroma
+                rows = image.getHeight() / 2;
+                rowBytes = (image.getWidth() / 2 - 1) * pixelStride + 1;
+            }
+            for (int row = 0; row < rows; row++) {
+                int start = row * rowStride;
+                int end = Math.min(start + rowBytes, buffer.limit());
+                for (int i = start; i < end; i++) {
+                    sum += buffer.get(i);
+                }
+                mBytesRead += end - start;
+            }
+        }
+        mChecksum = sum;
+    }
+
+    private final SyntheticCaptureSession.CaptureCallback mCaptureCallback =
+            new SyntheticCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(SyntheticCaptureSession session,
+                SyntheticCaptureRequest request, SyntheticCaptureResult result) {
+            long arrivalNs = System.nanoTime();
+            mResults++;
+            if (mTrace == null) return;
+            mLine.setLength(0);
+            mLine.append(result.getFrameNumber()).append(',')
+                    .append(result.getSensorTimestamp()).append(',')
+                    .append(arrivalNs).append(',')
+                    .append(result.getAeState()).append(',')
+                    .append(result.getAfState()).append(',')
+                    .append(result.getAwbState()).append(',')
+                    .append(result.getExposureTimeNs()).append(',')
+                    .append(result.getSensitivity()).append(',')
+                    .append(result.getFrameDurationNs()).append('\n');
+            try {
+                mTrace.append(mLine);
+            } catch (IOException e) {
+                System.err.println("Unable to write trace: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onCaptureBufferLost(SyntheticCaptureSession session,
+                SyntheticCaptureRequest request, SyntheticImageReader target,
+                long frameNumber) {
+            mBuffersLost++;
+        }
+    };
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+/**
+ * Static description and behavior settings of one synthetic camera; the counterpart of
+ * CameraCharacteristics, plus the knobs that control frame timing and fault injection.
+ *
+ * <p>Setters return this object so a camera can be described in a single expression. Changes
+ * take effect the next time the camera is opened.</p>
+ */
+public class SyntheticCameraInfo {
+    private final String mId;
+    private final int mSensorWidth;
+    private final int mSensorHeight;
+
+    private double mFps = 30.0;
+    private long mJitterNs = 0;
+    private double mDropProbability = 0;
+    private long mPipelineLatencyNs = 30000000L;
+    private int mRowAlignment = 64;
+    private long mSeed = 0;
+    private int mAeConvergeFrames = 8;
+    private int mAfConvergeFrames = 15;
+    private int mAwbConvergeFrames = 4;
+    private long mExposureTimeNs = 10000000L;
+    private int mSensitivity = 100;
+
+    public SyntheticCameraInfo(String id, int sensorWidth, int sensorHeight) {
+        mId = id;
+        mSensorWidth = sensorWidth;
+        mSensorHeight = sensorHeight;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    public int getSensorWidth() {
+        return mSensorWidth;
+    }
+
+    public int getSensorHeight() {
+        return mSensorHeight;
+    }
+
+    public double getFps() {
+        return mFps;
+    }
+
+    public long getFrameDurationNs() {
+        return (long) (1e9 / mFps);
+    }
+
+    public long getJitterNs() {
+        return mJitterNs;
+    }
+
+    public double getDropProbability() {
+        return mDropProbability;
+    }
+
+    public long getPipelineLatencyNs() {
+        return mPipelineLatencyNs;
+    }
+
+    public int getRowAlignment() {
+        return mRowAlignment;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    public int getAeConvergeFrames() {
+        return mAeConvergeFrames;
+    }
+
+    public int getAfConvergeFrames() {
+        return mAfConvergeFrames;
+    }
+
+    public int getAwbConvergeFrames() {
+        return mAwbConvergeFrames;
+    }
+
+    public long getExposureTimeNs() {
+        return mExposureTimeNs;
+    }
+
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    /**
+     * Set the nominal output frame rate.
+     */
+    public SyntheticCameraInfo setFps(double fps) {
+        if (fps <= 0) throw new IllegalArgumentException("fps must be positive");
+        mFps = fps;
+        return this;
+    }
+
+    /**
+     * Set the maximum deviation of each frame's start of exposure from its nominal time. Actual
+     * deviations are uniformly distributed in [-jitter, +jitter].
+     */
+    public SyntheticCameraInfo setJitterNs(long jitterNs) {
+        mJitterNs = jitterNs;
+        return this;
+    }
+
+    /**
+     * Set the probability in [0, 1] that the sensor misses any given frame slot entirely.
+     */
+    public SyntheticCameraInfo setDropProbability(double probability) {
+        mDropProbability = probability;
+        return this;
+    }
+
+    /**
+     * Set the delay from the start of exposure to delivery of the frame and its result.
+     */
+    public SyntheticCameraInfo setPipelineLatencyNs(long latencyNs) {
+        mPipelineLatencyNs = latencyNs;
+        return this;
+    }
+
+    /**
+     * Set the byte alignment of image rows; row strides are padded up to a multiple of this.
+     */
+    public SyntheticCameraInfo setRowAlignment(int alignment) {
+        if (alignment < 1) throw new IllegalArgumentException("alignment must be positive");
+        mRowAlignment = alignment;
+        return this;
+    }
+
+    /**
+     * Set the seed for jitter and drop injection, so runs are reproducible.
+     */
+    public SyntheticCameraInfo setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    /**
+     * Set how many frames AE, AF and AWB search for before converging after the repeating
+     * request starts.
+     */
+    public SyntheticCameraInfo setConvergeFrames(int ae, int af, int awb) {
+        mAeConvergeFrames = ae;
+        mAfConvergeFrames = af;
+        mAwbConvergeFrames = awb;
+        return this;
+    }
+
+    public SyntheticCameraInfo setExposure(long exposureTimeNs, int sensitivity) {
+        mExposureTimeNs = exposureTimeNs;
+        mSensitivity = sensitivity;
+        return this;
+    }
+}
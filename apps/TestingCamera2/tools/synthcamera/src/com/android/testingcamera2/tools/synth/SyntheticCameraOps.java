@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A central manager of synthetic camera devices, with the same operations as TestingCamera2's
+ * CameraOps2 but no dependency on the Android framework, so camera pipelines can be driven
+ * from a plain JVM.
+ */
+public class SyntheticCameraOps {
+
+    /**
+     * Camera availability callbacks, mirroring CameraManager.AvailabilityCallback.
+     */
+    public static abstract class AvailabilityCallback {
+        public void onCameraAvailable(String cameraId) {
+        }
+
+        public void onCameraUnavailable(String cameraId) {
+        }
+    }
+
+    private final Map<String, SyntheticCameraInfo> mCameras =
+            new LinkedHashMap<String, SyntheticCameraInfo>();
+    private final Map<String, SyntheticCameraDevice> mOpenCameras =
+            new LinkedHashMap<String, SyntheticCameraDevice>();
+    private final List<AvailabilityCallback> mListeners = new ArrayList<AvailabilityCallback>();
+
+    public SyntheticCameraOps(SyntheticCameraInfo... cameras) {
+        for (SyntheticCameraInfo info : cameras) {
+            mCameras.put(info.getId(), info);
+        }
+    }
+
+    /**
+     * Add a listener for camera availability changes, and retrieve the list of cameras. As
+     * with CameraManager, the listener is immediately told the status of every camera.
+     *
+     * @param listener
+     *            A listener to notify on changes to camera availability
+     * @return the current list of cameras
+     */
+    public String[] getCamerasAndListen(AvailabilityCallback listener) {
+        String[] ids;
+        List<String> unavailable = new ArrayList<String>();
+        synchronized (this) {
+            mListeners.add(listener);
+            ids = mCameras.keySet().toArray(new String[mCameras.size()]);
+            unavailable.addAll(mOpenCameras.keySet());
+        }
+        for (String id : ids) {
+            if (unavailable.contains(id)) {
+                listener.onCameraUnavailable(id);
+            } else {
+                listener.onCameraAvailable(id);
+            }
+        }
+        return ids;
+    }
+
+    public synchronized void removeAvailabilityCallback(AvailabilityCallback listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Attempt to open a camera device. Returns false if the camera doesn't exist or the device
+     * is already open
+     *
+     * @param cameraId id of the camera to open
+     * @param listener listener to notify of camera device state changes
+     * @return true if the camera is being opened. The listener is called on the new device's
+     *         frame thread once it is ready.
+     */
+    public boolean openCamera(String cameraId, SyntheticCameraDevice.StateCallback listener) {
+        SyntheticCameraDevice device;
+        synchronized (this) {
+            SyntheticCameraInfo info = mCameras.get(cameraId);
+            if (info == null || mOpenCameras.containsKey(cameraId)) {
+                return false;
+            }
+            device = new SyntheticCameraDevice(this, info, listener);
+            mOpenCameras.put(cameraId, device);
+        }
+        notifyAvailability(cameraId, false);
+        device.start();
+        return true;
+    }
+
+    public synchronized SyntheticCameraInfo getCameraInfo(String cameraId) {
+        return mCameras.get(cameraId);
+    }
+
+    void onDeviceClosed(SyntheticCameraDevice device) {
+        synchronized (this) {
+            mOpenCameras.remove(device.getId());
+        }
+        notifyAvailability(device.getId(), true);
+    }
+
+    private void notifyAvailability(String cameraId, boolean available) {
+        List<AvailabilityCallback> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<AvailabilityCallback>(mListeners);
+        }
+        for (AvailabilityCallback listener : listeners) {
+            if (available) {
+                listener.onCameraAvailable(cameraId);
+            } else {
+                listener.onCameraUnavailable(cameraId);
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A synthetic capture request: the set of outputs a frame should be sent to.
+ */
+public class SyntheticCaptureRequest {
+    private final List<SyntheticImageReader> mTargets;
+
+    public SyntheticCaptureRequest(List<SyntheticImageReader> targets) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("A request needs at least one target");
+        }
+        mTargets = Collections.unmodifiableList(new ArrayList<SyntheticImageReader>(targets));
+    }
+
+    public List<SyntheticImageReader> getTargets() {
+        return mTargets;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+/**
+ * Metadata for one synthetic frame; the counterpart of TotalCaptureResult, limited to the
+ * fields TestingCamera2 records. 3A state values match the CaptureResult constants.
+ */
+public class SyntheticCaptureResult {
+    public static final int CONTROL_AE_STATE_SEARCHING = 1;
+    public static final int CONTROL_AE_STATE_CONVERGED = 2;
+    public static final int CONTROL_AF_STATE_PASSIVE_SCAN = 1;
+    public static final int CONTROL_AF_STATE_PASSIVE_FOCUSED = 2;
+    public static final int CONTROL_AWB_STATE_SEARCHING = 1;
+    public static final int CONTROL_AWB_STATE_CONVERGED = 2;
+
+    private final SyntheticCaptureRequest mRequest;
+    private final long mFrameNumber;
+    private final long mSensorTimestamp;
+    private final int mAeState;
+    private final int mAfState;
+    private final int mAwbState;
+    private final long mExposureTimeNs;
+    private final int mSensitivity;
+    private final long mFrameDurationNs;
+
+    SyntheticCaptureResult(SyntheticCaptureRequest request, long frameNumber,
+            long sensorTimestamp, int aeState, int afState, int awbState, long exposureTimeNs,
+            int sensitivity, long frameDurationNs) {
+        mRequest = request;
+        mFrameNumber = frameNumber;
+        mSensorTimestamp = sensorTimestamp;
+        mAeState = aeState;
+        mAfState = afState;
+        mAwbState = awbState;
+        mExposureTimeNs = exposureTimeNs;
+        mSensitivity = sensitivity;
+        mFrameDurationNs = frameDurationNs;
+    }
+
+    public SyntheticCaptureRequest getRequest() {
+        return mRequest;
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    /**
+     * Start of exposure, in the System.nanoTime time base.
+     */
+    public long getSensorTimestamp() {
+        return mSensorTimestamp;
+    }
+
+    public int getAeState() {
+        return mAeState;
+    }
+
+    public int getAfState() {
+        return mAfState;
+    }
+
+    public int getAwbState() {
+        return mAwbState;
+    }
+
+    public long getExposureTimeNs() {
+        return mExposureTimeNs;
+    }
+
+    public int getSensitivity() {
+        return mSensitivity;
+    }
+
+    public long getFrameDurationNs() {
+        return mFrameDurationNs;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A configured set of outputs on a synthetic camera; the counterpart of CameraCaptureSession.
+ *
+ * <p>Creating a new session on the same device closes this one, which stops any repeating
+ * request and discards pending captures.</p>
+ */
+public class SyntheticCaptureSession {
+
+    /**
+     * Callbacks for capture progress, invoked on the camera's frame thread.
+     */
+    public static abstract class CaptureCallback {
+        public void onCaptureCompleted(SyntheticCaptureSession session,
+                SyntheticCaptureRequest request, SyntheticCaptureResult result) {
+        }
+
+        /**
+         * Called when a frame could not be written to one of the request's outputs because
+         * the consumer of that output was holding all of its images.
+         */
+        public void onCaptureBufferLost(SyntheticCaptureSession session,
+                SyntheticCaptureRequest request, SyntheticImageReader target, long frameNumber) {
+        }
+    }
+
+    private final SyntheticCameraDevice mDevice;
+    private final List<SyntheticImageReader> mOutputs;
+    private volatile boolean mClosed = false;
+
+    SyntheticCaptureSession(SyntheticCameraDevice device, List<SyntheticImageReader> outputs) {
+        mDevice = device;
+        mOutputs = Collections.unmodifiableList(new ArrayList<SyntheticImageReader>(outputs));
+    }
+
+    public SyntheticCameraDevice getDevice() {
+        return mDevice;
+    }
+
+    public List<SyntheticImageReader> getOutputs() {
+        return mOutputs;
+    }
+
+    /**
+     * Queue a one-shot capture. One-shot captures take priority over the repeating request.
+     */
+    public void capture(SyntheticCaptureRequest request, CaptureCallback callback) {
+        checkRequest(request);
+        mDevice.queueCapture(this, request, callback);
+    }
+
+    /**
+     * Replace the repeating request; a new repeating request restarts 3A convergence.
+     */
+    public void setRepeatingRequest(SyntheticCaptureRequest request, CaptureCallback callback) {
+        checkRequest(request);
+        mDevice.setRepeating(this, request, callback);
+    }
+
+    public void stopRepeating() {
+        checkOpen();
+        mDevice.setRepeating(this, null, null);
+    }
+
+    public void close() {
+        if (!mClosed) {
+            mDevice.closeSession(this);
+        }
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    void markClosed() {
+        mClosed = true;
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Session has been closed");
+        }
+    }
+
+    private void checkRequest(SyntheticCaptureRequest request) {
+        checkOpen();
+        for (SyntheticImageReader target : request.getTargets()) {
+            if (!mOutputs.contains(target)) {
+                throw new IllegalArgumentException("Request target is not part of the session");
+            }
+        }
+    }
+}
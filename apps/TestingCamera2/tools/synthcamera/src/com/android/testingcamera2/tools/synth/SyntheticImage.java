@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A synthetic camera frame, laid out the same way as an android.media.Image of the same
+ * format would be: one or more planes, each with a direct buffer, a row stride and a pixel
+ * stride.
+ *
+ * <p>Images belong to the {@link SyntheticImageReader} that produced them, and must be closed
+ * once the consumer is done with them so that their buffers can be reused.</p>
+ */
+public class SyntheticImage {
+
+    /**
+     * A single plane of image data.
+     */
+    public static class Plane {
+        private final ByteBuffer mBuffer;
+        private final int mRowStride;
+        private final int mPixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            mBuffer = buffer;
+            mRowStride = rowStride;
+            mPixelStride = pixelStride;
+        }
+
+        /**
+         * Get the plane's data. Position is 0 and the limit is the end of the valid data.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        public int getRowStride() {
+            return mRowStride;
+        }
+
+        public int getPixelStride() {
+            return mPixelStride;
+        }
+    }
+
+    private final SyntheticImageReader mOwner;
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final Plane[] mPlanes;
+    private long mTimestamp;
+    private long mFrameNumber;
+
+    SyntheticImage(SyntheticImageReader owner, int format, int width, int height,
+            Plane[] planes) {
+        mOwner = owner;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mPlanes = planes;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Get the sensor timestamp of the frame, in nanoseconds in the System.nanoTime time base.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Get the frame number of the capture result that matches this image.
+     */
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    public Plane[] getPlanes() {
+        return mPlanes;
+    }
+
+    /**
+     * Return this image to its reader.
+     */
+    public void close() {
+        mOwner.releaseImage(this);
+    }
+
+    void setFrameInfo(long frameNumber, long timestamp) {
+        mFrameNumber = frameNumber;
+        mTimestamp = timestamp;
+        for (Plane p : mPlanes) {
+            p.mBuffer.rewind();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+/**
+ * Image formats supported by the synthetic camera. The values match the constants in
+ * android.graphics.ImageFormat, so code that switches on format works unchanged.
+ */
+public final class SyntheticImageFormat {
+    public static final int RAW_SENSOR = 0x20;
+    public static final int YUV_420_888 = 0x23;
+    public static final int RAW10 = 0x25;
+    public static final int JPEG = 0x100;
+    public static final int DEPTH16 = 0x44363159;
+
+    private SyntheticImageFormat() {}
+
+    public static String toString(int format) {
+        switch (format) {
+            case RAW_SENSOR: return "RAW16";
+            case YUV_420_888: return "YUV_420_888";
+            case RAW10: return "RAW10";
+            case JPEG: return "JPEG";
+            case DEPTH16: return "DEPTH16";
+            default: return String.format("0x%x", format);
+        }
+    }
+
+    /**
+     * Parse a format name as used on the harness command line.
+     *
+     * @return the format, or -1 if the name isn't recognized
+     */
+    public static int fromString(String name) {
+        String n = name.toLowerCase();
+        if (n.equals("raw16") || n.equals("raw_sensor")) return RAW_SENSOR;
+        if (n.equals("raw10")) return RAW10;
+        if (n.equals("yuv") || n.equals("yuv_420_888")) return YUV_420_888;
+        if (n.equals("jpeg")) return JPEG;
+        if (n.equals("depth16")) return DEPTH16;
+        return -1;
+    }
+}
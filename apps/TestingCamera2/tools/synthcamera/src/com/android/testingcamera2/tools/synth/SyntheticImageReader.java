@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.synth;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Synthetic counterpart of android.media.ImageReader: a fixed pool of images that the camera
+ * fills and the consumer acquires and closes.
+ *
+ * <p>As with a real ImageReader, at most maxImages images can be acquired at once. When the
+ * consumer falls behind and every buffer is queued or acquired, the camera has nowhere to put
+ * the next frame and it is dropped for this output; {@link #getDroppedFrameCount} reports how
+ * often that happened.</p>
+ */
+public class SyntheticImageReader {
+
+    public interface OnImageAvailableListener {
+        /**
+         * Called on the camera's frame thread each time a new image is queued.
+         */
+        void onImageAvailable(SyntheticImageReader reader);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final int mMaxImages;
+    private final FrameGenerator mGenerator;
+
+    private final Object mLock = new Object();
+    private final ArrayDeque<SyntheticImage> mFree = new ArrayDeque<SyntheticImage>();
+    private final ArrayDeque<SyntheticImage> mQueued = new ArrayDeque<SyntheticImage>();
+    private int mAcquiredCount = 0;
+    private long mDroppedFrameCount = 0;
+    private volatile OnImageAvailableListener mListener;
+
+    private SyntheticImageReader(int width, int height, int format, int maxImages,
+            FrameGenerator generator) throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mMaxImages = maxImages;
+        mGenerator = generator;
+        for (int i = 0; i < maxImages; i++) {
+            mFree.add(new SyntheticImage(this, format, width, height,
+                    generator.createPlanes(format, width, height)));
+        }
+    }
+
+    /**
+     * Create a reader for the given camera. Buffer layouts follow that camera's configured row
+     * alignment.
+     */
+    public static SyntheticImageReader newInstance(SyntheticCameraInfo camera, int width,
+            int height, int format, int maxImages) throws IOException {
+        if (maxImages < 1) {
+            throw new IllegalArgumentException("maxImages must be at least 1");
+        }
+        return new SyntheticImageReader(width, height, format, maxImages,
+                new FrameGenerator(camera.getRowAlignment()));
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getImageFormat() {
+        return mFormat;
+    }
+
+    public int getMaxImages() {
+        return mMaxImages;
+    }
+
+    public void setOnImageAvailableListener(OnImageAvailableListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Acquire the oldest queued image.
+     *
+     * @return the image, or null if none are queued
+     * @throws IllegalStateException if maxImages images are already acquired
+     */
+    public SyntheticImage acquireNextImage() {
+        synchronized (mLock) {
+            if (mQueued.isEmpty()) return null;
+            if (mAcquiredCount >= mMaxImages) {
+                throw new IllegalStateException("maxImages (" + mMaxImages +
+                        ") has already been acquired, call #close before acquiring more.");
+            }
+            mAcquiredCount++;
+            return mQueued.poll();
+        }
+    }
+
+    /**
+     * Acquire the newest queued image, discarding any older ones.
+     *
+     * @return the image, or null if none are queued
+     */
+    public SyntheticImage acquireLatestImage() {
+        synchronized (mLock) {
+            while (mQueued.size() > 1) {
+                mFree.add(mQueued.poll());
+            }
+            return acquireNextImage();
+        }
+    }
+
+    /**
+     * Acquire one of the reader's free images directly, without a capture. The image holds the
+     * format's test pattern, which makes it usable as input data for benchmarks; it counts
+     * towards maxImages until closed.
+     *
+     * @return the image, or null if no images are free
+     */
+    public SyntheticImage acquireTestImage() {
+        synchronized (mLock) {
+            if (mFree.isEmpty() || mAcquiredCount >= mMaxImages) return null;
+            mAcquiredCount++;
+            SyntheticImage image = mFree.poll();
+            image.setFrameInfo(0, 0);
+            return image;
+        }
+    }
+
+    public long getDroppedFrameCount() {
+        synchronized (mLock) {
+            return mDroppedFrameCount;
+        }
+    }
+
+    FrameGenerator getGenerator() {
+        return mGenerator;
+    }
+
+    /**
+     * Get an empty image to fill, or null if the consumer is holding on to all of them.
+     */
+    SyntheticImage dequeueForFill() {
+        synchronized (mLock) {
+            SyntheticImage image = mFree.poll();
+            if (image == null) {
+                mDroppedFrameCount++;
+            }
+            return image;
+        }
+    }
+
+    void queueFilled(SyntheticImage image) {
+        synchronized (mLock) {
+            mQueued.add(image);
+        }
+        OnImageAvailableListener listener = mListener;
+        if (listener != null) {
+            listener.onImageAvailable(this);
+        }
+    }
+
+    void releaseImage(SyntheticImage image) {
+        synchronized (mLock) {
+            mAcquiredCount--;
+            mFree.add(image);
+        }
+    }
+}
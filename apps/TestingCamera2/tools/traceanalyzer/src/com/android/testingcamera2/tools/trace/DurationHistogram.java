@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.trace;
+
+/**
+ * Fixed-resolution histogram of durations, in nanoseconds.
+ *
+ * <p>Memory use is constant regardless of how many samples are added, so arbitrarily long
+ * traces can be summarized; percentiles are accurate to the bucket width. Samples beyond the
+ * last bucket are clamped into it, but the true maximum is tracked separately.</p>
+ */
+class DurationHistogram {
+    private static final long BUCKET_WIDTH_NS = 10000; // 10 us
+    private static final int BUCKET_COUNT = 200000;    // 2 s of range
+
+    private final int[] mBuckets = new int[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mMaxNs = Long.MIN_VALUE;
+    private long mMinNs = Long.MAX_VALUE;
+    private double mSum = 0;
+    private double mSumSquares = 0;
+
+    void add(long durationNs) {
+        if (durationNs < 0) return;
+        long bucket = durationNs / BUCKET_WIDTH_NS;
+        if (bucket >= BUCKET_COUNT) bucket = BUCKET_COUNT - 1;
+        mBuckets[(int) bucket]++;
+        mCount++;
+        if (durationNs > mMaxNs) mMaxNs = durationNs;
+        if (durationNs < mMinNs) mMinNs = durationNs;
+        mSum += durationNs;
+        mSumSquares += (double) durationNs * durationNs;
+    }
+
+    void merge(DurationHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] += other.mBuckets[i];
+        }
+        mCount += other.mCount;
+        mMaxNs = Math.max(mMaxNs, other.mMaxNs);
+        mMinNs = Math.min(mMinNs, other.mMinNs);
+        mSum += other.mSum;
+        mSumSquares += other.mSumSquares;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getMaxNs() {
+        return mCount == 0 ? -1 : mMaxNs;
+    }
+
+    long getMinNs() {
+        return mCount == 0 ? -1 : mMinNs;
+    }
+
+    double getMeanNs() {
+        return mCount == 0 ? -1 : mSum / mCount;
+    }
+
+    double getStdDevNs() {
+        if (mCount < 2) return 0;
+        double mean = mSum / mCount;
+        double variance = mSumSquares / mCount - mean * mean;
+        return variance > 0 ? Math.sqrt(variance) : 0;
+    }
+
+    /**
+     * Get the given percentile, as the midpoint of the bucket that contains it.
+     *
+     * @param percentile value in the range [0, 100]
+     * @return the percentile in nanoseconds, or -1 if the histogram is empty
+     */
+    long getPercentileNs(double percentile) {
+        if (mCount == 0) return -1;
+        long target = (long) Math.ceil(mCount * percentile / 100.0);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                if (i == BUCKET_COUNT - 1) return mMaxNs;
+                return Math.min(i * BUCKET_WIDTH_NS + BUCKET_WIDTH_NS / 2, mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    /**
+     * Count the number of frames that are missing, assuming each sample is the interval between
+     * consecutive frames and the nominal frame interval is nominalNs. An interval of more than
+     * 1.5x nominal counts as round(interval / nominal) - 1 dropped frames.
+     */
+    long countMissingIntervals(long nominalNs) {
+        if (nominalNs <= 0) return 0;
+        long missing = 0;
+        long threshold = nominalNs + nominalNs / 2;
+        for (int i = (int) Math.min(threshold / BUCKET_WIDTH_NS, BUCKET_COUNT - 1);
+                i < BUCKET_COUNT; i++) {
+            if (mBuckets[i] == 0) continue;
+            long intervalNs = (i == BUCKET_COUNT - 1) ? mMaxNs :
+                    i * BUCKET_WIDTH_NS + BUCKET_WIDTH_NS / 2;
+            if (intervalNs <= threshold) continue;
+            missing += mBuckets[i] * (Math.round((double) intervalNs / nominalNs) - 1);
+        }
+        return missing;
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Host-side command-line analyzer for TestingCamera2 capture traces.
+ *
+ * <pre>
+ * tc2traceanalyzer analyze [--format csv|json] [-o OUTPUT] PATH...
+ * tc2traceanalyzer compare [--threshold PERCENT] [--min-delta VALUE] BASELINE CANDIDATE
+ * </pre>
+ *
+ * <p>Each PATH is either a single trace file or a directory, in which case all TRACE_*.csv
+ * files directly inside it are combined into one summary. All files are parsed in parallel, one
+ * per worker thread, and each is merged into its summary as soon as it is parsed. The compare
+ * command exits with status 2 if any metric of the candidate is worse than the baseline by more
+ * than the threshold, and by more than the minimum delta in the metric's own units; the latter
+ * keeps metrics with a near-zero baseline from being reported for negligible changes.</p>
+ */
+public class TraceAnalyzer {
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_USAGE = 1;
+    private static final int EXIT_REGRESSION = 2;
+
+    private static final double DEFAULT_THRESHOLD_PCT = 5.0;
+    private static final double DEFAULT_MIN_DELTA = 0.1;
+
+    private static final String TRACE_PREFIX = "TRACE_";
+    private static final String TRACE_SUFFIX = ".csv";
+
+    private static final ThreadLocal<TraceParser> sParser = new ThreadLocal<TraceParser>() {
+        @Override
+        protected TraceParser initialValue() {
+            return new TraceParser();
+        }
+    };
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = run(args);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            status = EXIT_USAGE;
+        }
+        System.exit(status);
+    }
+
+    private static int run(String[] args) throws IOException {
+        if (args.length < 1) {
+            return usage();
+        }
+        String command = args[0];
+        List<String> rest = Arrays.asList(args).subList(1, args.length);
+        if ("analyze".equals(command)) {
+            return analyze(rest);
+        } else if ("compare".equals(command)) {
+            return compare(rest);
+        }
+        return usage();
+    }
+
+    private static int usage() {
+        System.err.println("Usage:");
+        System.err.println("  tc2traceanalyzer analyze [--format csv|json] [-o OUTPUT] PATH...");
+        System.err.println("  tc2traceanalyzer compare [--threshold PERCENT] " +
+                "[--min-delta VALUE] BASELINE CANDIDATE");
+        return EXIT_USAGE;
+    }
+
+    private static int analyze(List<String> args) throws IOException {
+        String format = "csv";
+        String output = null;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if ("--format".equals(arg) && i + 1 < args.size()) {
+                format = args.get(++i);
+            } else if ("-o".equals(arg) && i + 1 < args.size()) {
+                output = args.get(++i);
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty() || !("csv".equals(format) || "json".equals(format))) {
+            return usage();
+        }
+
+        List<TraceStats> summaries = analyzePaths(paths);
+
+        PrintWriter out = (output == null) ?
+                new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")) :
+                new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        try {
+            if ("json".equals(format)) {
+                writeJson(out, paths, summaries);
+            } else {
+                writeCsv(out, paths, summaries);
+            }
+        } finally {
+            out.flush();
+            if (output != null) out.close();
+        }
+        return EXIT_OK;
+    }
+
+    private static int compare(List<String> args) throws IOException {
+        double thresholdPct = DEFAULT_THRESHOLD_PCT;
+        double minDelta = DEFAULT_MIN_DELTA;
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < args.size(); i++) {
+            String arg = args.get(i);
+            if ("--threshold".equals(arg) && i + 1 < args.size()) {
+                try {
+                    thresholdPct = Double.parseDouble(args.get(++i));
+                } catch (NumberFormatException e) {
+                    return usage();
+                }
+            } else if ("--min-delta".equals(arg) && i + 1 < args.size()) {
+                try {
+                    minDelta = Double.parseDouble(args.get(++i));
+                } catch (NumberFormatException e) {
+                    return usage();
+                }
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.size() != 2) {
+            return usage();
+        }
+
+        List<TraceStats> summaries = analyzePaths(paths);
+        double[] baseline = summaries.get(0).getMetrics();
+        double[] candidate = summaries.get(1).getMetrics();
+
+        int regressions = 0;
+        System.out.println(String.format(Locale.US, "%-24s %14s %14s %9s",
+                "metric", "baseline", "candidate", "change"));
+        for (int i = 0; i < TraceStats.METRIC_NAMES.length; i++) {
+            double b = baseline[i];
+            double c = candidate[i];
+            double changePct = (b != 0 && !Double.isNaN(b) && !Double.isNaN(c)) ?
+                    100.0 * (c - b) / Math.abs(b) : Double.NaN;
+            boolean regressed = false;
+            int direction = TraceStats.METRIC_DIRECTIONS[i];
+            if (direction != 0 && !Double.isNaN(b) && !Double.isNaN(c)) {
+                if (direction * (c - b) <= minDelta) {
+                    // Too small to matter, however large relative to the baseline
+                    regressed = false;
+                } else if (b == 0) {
+                    // No relative change from zero
+                    regressed = true;
+                } else {
+                    regressed = direction * changePct > thresholdPct;
+                }
+            }
+            if (regressed) regressions++;
+            System.out.println(String.format(Locale.US, "%-24s %14s %14s %9s %s",
+                    TraceStats.METRIC_NAMES[i], formatValue(b), formatValue(c),
+                    Double.isNaN(changePct) ? "-" : String.format(Locale.US, "%+.1f%%", changePct),
+                    regressed ? "REGRESSION" : ""));
+        }
+        System.out.println(String.format(Locale.US,
+                "%d regression(s) at a %.1f%% threshold, minimum delta %s",
+                regressions, thresholdPct, formatValue(minDelta)));
+        return regressions > 0 ? EXIT_REGRESSION : EXIT_OK;
+    }
+
+    /**
+     * Parse every trace file under the given paths in parallel, and return one merged summary
+     * per path. Each file's statistics are merged as soon as it is parsed, so only those of the
+     * files being parsed are held at once.
+     */
+    private static List<TraceStats> analyzePaths(List<String> paths) throws IOException {
+        List<List<File>> inputs = new ArrayList<List<File>>();
+        for (String path : paths) {
+            inputs.add(listTraceFiles(new File(path)));
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<TraceStats> summaries = new ArrayList<TraceStats>();
+            List<Future<Void>> pending = new ArrayList<Future<Void>>();
+            for (List<File> files : inputs) {
+                final TraceStats merged = new TraceStats();
+                summaries.add(merged);
+                for (final File file : files) {
+                    pending.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            TraceStats stats = sParser.get().parse(file);
+                            synchronized (merged) {
+                                merged.merge(stats);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+            }
+            for (Future<Void> future : pending) {
+                getResult(future);
+            }
+            for (int i = 0; i < summaries.size(); i++) {
+                long skipped = summaries.get(i).getLatencySkippedSources();
+                if (skipped > 0) {
+                    System.err.println(String.format(Locale.US,
+                            "Note: %d trace(s) in %s have no realtime timestamp source; " +
+                            "latency not computed for them", skipped, paths.get(i)));
+                }
+            }
+            return summaries;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void getResult(Future<Void> future) throws IOException {
+        while (true) {
+            try {
+                future.get();
+                return;
+            } catch (InterruptedException e) {
+                // Keep waiting
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof Error) {
+                    // Such as running out of memory; not a problem with the trace
+                    throw (Error) cause;
+                }
+                throw new IOException("Trace parsing failed", cause);
+            }
+        }
+    }
+
+    private static List<File> listTraceFiles(File path) throws IOException {
+        if (!path.exists()) {
+            throw new IOException("No such file or directory: " + path);
+        }
+        List<File> files = new ArrayList<File>();
+        if (path.isDirectory()) {
+            File[] children = path.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    String name = child.getName();
+                    if (child.isFile() && name.startsWith(TRACE_PREFIX) &&
+                            name.endsWith(TRACE_SUFFIX)) {
+                        files.add(child);
+                    }
+                }
+            }
+        } else {
+            files.add(path);
+        }
+        return files;
+    }
+
+    private static void writeCsv(PrintWriter out, List<String> paths, List<TraceStats> summaries) {
+        out.print("input,files");
+        for (String name : TraceStats.METRIC_NAMES) {
+            out.print(',');
+            out.print(name);
+        }
+        out.println();
+        for (int i = 0; i < summaries.size(); i++) {
+            TraceStats stats = summaries.get(i);
+            out.print(paths.get(i).replace(',', '_'));
+            out.print(',');
+            out.print(stats.getSources().size());
+            for (double value : stats.getMetrics()) {
+                out.print(',');
+                out.print(Double.isNaN(value) ? "" : formatValue(value));
+            }
+            out.println();
+        }
+    }
+
+    private static void writeJson(PrintWriter out, List<String> paths, List<TraceStats> summaries) {
+        out.println("[");
+        for (int i = 0; i < summaries.size(); i++) {
+            TraceStats stats = summaries.get(i);
+            out.print("  {\"input\": \"");
+            out.print(escapeJson(paths.get(i)));
+            out.print("\", \"files\": ");
+            out.print(stats.getSources().size());
+            double[] metrics = stats.getMetrics();
+            for (int m = 0; m < metrics.length; m++) {
+                out.print(", \"");
+                out.print(TraceStats.METRIC_NAMES[m]);
+                out.print("\": ");
+                out.print(Double.isNaN(metrics[m]) ? "null" : formatValue(metrics[m]));
+            }
+            out.println(i + 1 < summaries.size() ? "}," : "}");
+        }
+        out.println("]");
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value)) return "-";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming parser for capture traces written by TestingCamera2's CaptureTraceWriter.
+ *
+ * <p>The file is read in fixed-size chunks and parsed byte by byte straight into numeric
+ * fields, so memory use does not depend on the trace size and no objects are allocated per
+ * line. Each parser instance handles one file at a time and is not thread-safe; use one
+ * instance per worker thread.</p>
+ */
+class TraceParser {
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_COMMENT_LENGTH = 256;
+
+    // Column indices, matching CaptureTraceWriter.TRACE_COLUMNS
+    static final int COL_FRAME_NUMBER = 0;
+    static final int COL_SENSOR_TIMESTAMP = 1;
+    static final int COL_RESULT_TIMESTAMP = 2;
+    static final int COL_AE_STATE = 3;
+    static final int COL_AF_STATE = 4;
+    static final int COL_AWB_STATE = 5;
+    static final int COL_EXPOSURE_TIME = 6;
+    static final int COL_SENSITIVITY = 7;
+    static final int COL_FRAME_DURATION = 8;
+    static final int COLUMN_COUNT = 9;
+
+    private static final String TIMESTAMP_SOURCE_KEY = "timestamp_source=";
+    private static final String TIMESTAMP_SOURCE_REALTIME = "REALTIME";
+
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final long[] mFields = new long[COLUMN_COUNT];
+    private final byte[] mComment = new byte[MAX_COMMENT_LENGTH];
+
+    // Line state
+    private boolean mInComment;
+    private int mCommentLength;
+    private int mField;
+    private long mValue;
+    private boolean mNegative;
+    private boolean mHasDigits;
+    private boolean mValid;
+    private boolean mLineEmpty;
+
+    /**
+     * Parse a single trace file, adding every line to a new set of statistics.
+     */
+    TraceStats parse(File file) throws IOException {
+        TraceStats stats = new TraceStats();
+        stats.addSource(file.getPath());
+        resetLine();
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            byte[] data = mReadBuffer.array();
+            mReadBuffer.clear();
+            int read;
+            while ((read = channel.read(mReadBuffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    consume(data[i], stats);
+                }
+                mReadBuffer.clear();
+            }
+            // Trailing line without a newline
+            consume((byte) '\n', stats);
+        } finally {
+            in.close();
+        }
+        stats.finishSource();
+        return stats;
+    }
+
+    private void consume(byte b, TraceStats stats) {
+        if (b == '\n') {
+            endLine(stats);
+            return;
+        }
+        if (b == '\r') {
+            return;
+        }
+        if (mInComment) {
+            if (mCommentLength < MAX_COMMENT_LENGTH) {
+                mComment[mCommentLength++] = b;
+            }
+            return;
+        }
+        if (mLineEmpty && b == '#') {
+            mInComment = true;
+            mLineEmpty = false;
+            return;
+        }
+        mLineEmpty = false;
+        if (b == ',') {
+            endField();
+        } else if (b >= '0' && b <= '9') {
+            mValue = mValue * 10 + (b - '0');
+            mHasDigits = true;
+        } else if (b == '-' && !mHasDigits && !mNegative) {
+            mNegative = true;
+        } else if (b != ' ') {
+            // Anything else (including "null") marks the field as missing
+            mValid = false;
+        }
+    }
+
+    private void endField() {
+        if (mField < COLUMN_COUNT) {
+            boolean ok = mValid && mHasDigits;
+            mFields[mField] = ok ? (mNegative ? -mValue : mValue) : -1;
+        }
+        mField++;
+        mValue = 0;
+        mNegative = false;
+        mHasDigits = false;
+        mValid = true;
+    }
+
+    private void endLine(TraceStats stats) {
+        if (mInComment) {
+            parseComment(stats);
+        } else if (!mLineEmpty) {
+            endField();
+            if (mField >= COLUMN_COUNT && mFields[COL_SENSOR_TIMESTAMP] >= 0) {
+                stats.addResult(mFields);
+            } else {
+                stats.addMalformedLine();
+            }
+        }
+        resetLine();
+    }
+
+    private void parseComment(TraceStats stats) {
+        String comment = new String(mComment, 0, mCommentLength).trim();
+        if (comment.startsWith(TIMESTAMP_SOURCE_KEY)) {
+            String source = comment.substring(TIMESTAMP_SOURCE_KEY.length());
+            stats.setRealtimeTimestamps(TIMESTAMP_SOURCE_REALTIME.equals(source));
+        }
+    }
+
+    private void resetLine() {
+        mInComment = false;
+        mCommentLength = 0;
+        mField = 0;
+        mValue = 0;
+        mNegative = false;
+        mHasDigits = false;
+        mValid = true;
+        mLineEmpty = true;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.testingcamera2.tools.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary statistics for one or more capture traces.
+ *
+ * <p>Frame intervals and 3A state transitions are only tracked between consecutive results of
+ * the same trace file; statistics for several files are combined with {@link #merge}, which
+ * lets files be parsed independently on separate threads.</p>
+ */
+class TraceStats {
+
+    /** Metric names, in output order. */
+    static final String[] METRIC_NAMES = {
+        "frames",
+        "fps",
+        "interval_mean_ms",
+        "interval_stddev_ms",
+        "interval_p50_ms",
+        "interval_p90_ms",
+        "interval_p99_ms",
+        "interval_max_ms",
+        "latency_p50_ms",
+        "latency_p90_ms",
+        "latency_p99_ms",
+        "latency_max_ms",
+        "dropped_frames",
+        "drop_rate_pct",
+        "missing_results",
+        "ae_first_converge_ms",
+        "ae_search_episodes",
+        "ae_search_p90_ms",
+        "af_first_converge_ms",
+        "af_search_episodes",
+        "af_search_p90_ms",
+        "awb_first_converge_ms",
+        "awb_search_episodes",
+        "awb_search_p90_ms",
+        "malformed_lines"
+    };
+
+    /**
+     * Whether an increase in the metric at the same index in {@link #METRIC_NAMES} is a
+     * regression; metrics with 0 here are informational and never reported as regressions.
+     */
+    static final int[] METRIC_DIRECTIONS = {
+        0,  // frames
+        -1, // fps
+        1, 1, 1, 1, 1, 1,  // intervals
+        1, 1, 1, 1,        // latency
+        1, 1, 1,           // drops
+        1, 0, 1,           // ae
+        1, 0, 1,           // af
+        1, 0, 1,           // awb
+        0   // malformed_lines
+    };
+
+    private static final double NS_PER_MS = 1e6;
+
+    private final List<String> mSources = new ArrayList<String>();
+
+    private long mFrames = 0;
+    private long mMalformedLines = 0;
+    private long mMissingResults = 0;
+    private long mLatencySkippedSources = 0;
+    private final DurationHistogram mIntervals = new DurationHistogram();
+    private final DurationHistogram mLatency = new DurationHistogram();
+
+    private final ConvergenceTracker mAe =
+            new ConvergenceTracker(TraceParser.COL_AE_STATE,
+                    new int[] {1}, new int[] {2, 3, 4});
+    private final ConvergenceTracker mAf =
+            new ConvergenceTracker(TraceParser.COL_AF_STATE,
+                    new int[] {1, 3}, new int[] {2, 4});
+    private final ConvergenceTracker mAwb =
+            new ConvergenceTracker(TraceParser.COL_AWB_STATE,
+                    new int[] {1}, new int[] {2, 3});
+
+    // Per-source parsing state
+    private boolean mRealtimeTimestamps = false;
+    private long mFirstSensorTimestamp = -1;
+    private long mLastSensorTimestamp = -1;
+    private long mLastFrameNumber = -1;
+
+    void addSource(String source) {
+        mSources.add(source);
+        mRealtimeTimestamps = false;
+        mFirstSensorTimestamp = -1;
+        mLastSensorTimestamp = -1;
+        mLastFrameNumber = -1;
+        mAe.startSource();
+        mAf.startSource();
+        mAwb.startSource();
+    }
+
+    void finishSource() {
+        if (!mRealtimeTimestamps && mFirstSensorTimestamp >= 0) {
+            mLatencySkippedSources++;
+        }
+        mAe.finishSource();
+        mAf.finishSource();
+        mAwb.finishSource();
+    }
+
+    void setRealtimeTimestamps(boolean realtime) {
+        mRealtimeTimestamps = realtime;
+    }
+
+    void addMalformedLine() {
+        mMalformedLines++;
+    }
+
+    /**
+     * Add one parsed result line; fields are indexed by the TraceParser.COL_* constants.
+     */
+    void addResult(long[] fields) {
+        long frameNumber = fields[TraceParser.COL_FRAME_NUMBER];
+        long sensorTimestamp = fields[TraceParser.COL_SENSOR_TIMESTAMP];
+        long resultTimestamp = fields[TraceParser.COL_RESULT_TIMESTAMP];
+
+        mFrames++;
+        if (mLastFrameNumber >= 0 && frameNumber > mLastFrameNumber + 1) {
+            mMissingResults += frameNumber - mLastFrameNumber - 1;
+        }
+        if (frameNumber >= 0) {
+            mLastFrameNumber = frameNumber;
+        }
+
+        if (mLastSensorTimestamp >= 0 && sensorTimestamp > mLastSensorTimestamp) {
+            mIntervals.add(sensorTimestamp - mLastSensorTimestamp);
+        }
+        if (mFirstSensorTimestamp < 0) {
+            mFirstSensorTimestamp = sensorTimestamp;
+        }
+        mLastSensorTimestamp = sensorTimestamp;
+
+        // Sensor and arrival times are only comparable with a realtime timestamp source
+        if (mRealtimeTimestamps && resultTimestamp >= sensorTimestamp) {
+            mLatency.add(resultTimestamp - sensorTimestamp);
+        }
+
+        long sinceStart = sensorTimestamp - mFirstSensorTimestamp;
+        mAe.add(fields, sensorTimestamp, sinceStart);
+        mAf.add(fields, sensorTimestamp, sinceStart);
+        mAwb.add(fields, sensorTimestamp, sinceStart);
+    }
+
+    void merge(TraceStats other) {
+        mSources.addAll(other.mSources);
+        mFrames += other.mFrames;
+        mMalformedLines += other.mMalformedLines;
+        mMissingResults += other.mMissingResults;
+        mLatencySkippedSources += other.mLatencySkippedSources;
+        mIntervals.merge(other.mIntervals);
+        mLatency.merge(other.mLatency);
+        mAe.merge(other.mAe);
+        mAf.merge(other.mAf);
+        mAwb.merge(other.mAwb);
+    }
+
+    List<String> getSources() {
+        return mSources;
+    }
+
+    long getLatencySkippedSources() {
+        return mLatencySkippedSources;
+    }
+
+    /**
+     * Get all metrics, in the order of {@link #METRIC_NAMES}. Metrics that cannot be computed
+     * from the available data are NaN.
+     */
+    double[] getMetrics() {
+        double[] m = new double[METRIC_NAMES.length];
+        int i = 0;
+        m[i++] = mFrames;
+        double meanInterval = mIntervals.getMeanNs();
+        m[i++] = meanInterval > 0 ? 1e9 / meanInterval : Double.NaN;
+        m[i++] = toMs(meanInterval);
+        m[i++] = mIntervals.getCount() > 0 ? mIntervals.getStdDevNs() / NS_PER_MS : Double.NaN;
+        m[i++] = toMs(mIntervals.getPercentileNs(50));
+        m[i++] = toMs(mIntervals.getPercentileNs(90));
+        m[i++] = toMs(mIntervals.getPercentileNs(99));
+        m[i++] = toMs(mIntervals.getMaxNs());
+        m[i++] = toMs(mLatency.getPercentileNs(50));
+        m[i++] = toMs(mLatency.getPercentileNs(90));
+        m[i++] = toMs(mLatency.getPercentileNs(99));
+        m[i++] = toMs(mLatency.getMaxNs());
+        // Frames missing from the sensor output, estimated from the median frame interval
+        long dropped = mIntervals.countMissingIntervals(mIntervals.getPercentileNs(50));
+        m[i++] = dropped;
+        m[i++] = mFrames > 0 ? 100.0 * dropped / (mFrames + dropped) : Double.NaN;
+        m[i++] = mMissingResults;
+        i = mAe.fillMetrics(m, i);
+        i = mAf.fillMetrics(m, i);
+        i = mAwb.fillMetrics(m, i);
+        m[i++] = mMalformedLines;
+        return m;
+    }
+
+    private static double toMs(double ns) {
+        return ns < 0 ? Double.NaN : ns / NS_PER_MS;
+    }
+
+    /**
+     * Tracks time to first convergence and the length of each search episode for one 3A
+     * state machine.
+     */
+    private static class ConvergenceTracker {
+        private final int mColumn;
+        private final long mSearchingMask;
+        private final long mConvergedMask;
+
+        private final DurationHistogram mFirstConvergence = new DurationHistogram();
+        private final DurationHistogram mSearchEpisodes = new DurationHistogram();
+        private long mEpisodeCount = 0;
+
+        private boolean mConvergedOnce;
+        private long mSearchStart;
+
+        ConvergenceTracker(int column, int[] searchingStates, int[] convergedStates) {
+            mColumn = column;
+            mSearchingMask = toMask(searchingStates);
+            mConvergedMask = toMask(convergedStates);
+        }
+
+        void startSource() {
+            mConvergedOnce = false;
+            mSearchStart = -1;
+        }
+
+        void finishSource() {
+            // Unfinished searches at the end of a trace aren't counted
+            mSearchStart = -1;
+        }
+
+        void add(long[] fields, long timestamp, long sinceStart) {
+            long state = fields[mColumn];
+            if (state < 0 || state >= 64) return;
+            long bit = 1L << state;
+            if ((bit & mSearchingMask) != 0) {
+                if (mSearchStart < 0) {
+                    mSearchStart = timestamp;
+                    mEpisodeCount++;
+                }
+            } else if ((bit & mConvergedMask) != 0) {
+                if (!mConvergedOnce) {
+                    mFirstConvergence.add(sinceStart);
+                    mConvergedOnce = true;
+                }
+                if (mSearchStart >= 0) {
+                    mSearchEpisodes.add(timestamp - mSearchStart);
+                    mSearchStart = -1;
+                }
+            } else {
+                // Inactive or failed; abandon the current search
+                mSearchStart = -1;
+            }
+        }
+
+        void merge(ConvergenceTracker other) {
+            mFirstConvergence.merge(other.mFirstConvergence);
+            mSearchEpisodes.merge(other.mSearchEpisodes);
+            mEpisodeCount += other.mEpisodeCount;
+        }
+
+        int fillMetrics(double[] m, int i) {
+            m[i++] = toMs(mFirstConvergence.getPercentileNs(50));
+            m[i++] = mEpisodeCount;
+            m[i++] = toMs(mSearchEpisodes.getPercentileNs(90));
+            return i;
+        }
+
+        private static long toMask(int[] states) {
+            long mask = 0;
+            for (int s : states) {
+                mask |= 1L << s;
+            }
+            return mask;
+        }
+    }
+}